@@ -0,0 +1,118 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.WavefrontSender;
+import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/** Span generators and fake senders shared by the benchmarks. */
+final class BenchmarkSupport {
+  private BenchmarkSupport() {}
+
+  /**
+   * Creates a {@link WavefrontSender} that discards everything sent to it.
+   *
+   * @return
+   */
+  static WavefrontSender discardingSender() {
+    return (WavefrontSender)
+        Proxy.newProxyInstance(
+            WavefrontSender.class.getClassLoader(),
+            new Class<?>[] {WavefrontSender.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "getFailureCount":
+                  return 0;
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                case "toString":
+                case "getClientId":
+                  return "discarding";
+                default:
+                  return null;
+              }
+            });
+  }
+
+  /**
+   * Creates a batch of synthetic spans. Spans are grouped into traces of ten spans each, with
+   * every span but the first in a trace pointing at the first one as its parent.
+   *
+   * @param count The number of spans
+   * @param attributes The number of attributes per span
+   * @param events The number of timed events per span
+   * @param seed Seed for the random IDs
+   * @return
+   */
+  static List<SpanData> spans(
+      final int count, final int attributes, final int events, final long seed) {
+    final Random r = new Random(seed);
+    final List<SpanData> spans = new ArrayList<>(count);
+    final InstrumentationLibraryInfo lib =
+        InstrumentationLibraryInfo.create("io.opentelemetry.auto.servlet", "0.2.0");
+    final long now = System.currentTimeMillis() * 1000000;
+    TraceId traceId = null;
+    SpanId root = SpanId.getInvalid();
+    for (int i = 0; i < count; ++i) {
+      if (i % 10 == 0) {
+        traceId = new TraceId(r.nextLong(), r.nextLong());
+        root = SpanId.getInvalid();
+      }
+      final SpanId spanId = new SpanId(r.nextLong());
+      final Map<String, AttributeValue> attrs = new HashMap<>();
+      for (int j = 0; j < attributes; ++j) {
+        switch (j % 3) {
+          case 0:
+            attrs.put("attr.string." + j, AttributeValue.stringAttributeValue("value-" + j));
+            break;
+          case 1:
+            attrs.put("attr.long." + j, AttributeValue.longAttributeValue(r.nextInt(1000)));
+            break;
+          default:
+            attrs.put("attr.bool." + j, AttributeValue.booleanAttributeValue(r.nextBoolean()));
+            break;
+        }
+      }
+      final List<SpanData.TimedEvent> timedEvents = new ArrayList<>(events);
+      for (int j = 0; j < events; ++j) {
+        timedEvents.add(
+            SpanData.TimedEvent.create(
+                now + j * 1000,
+                "event-" + j,
+                Collections.singletonMap(
+                    "message", AttributeValue.stringAttributeValue("something happened"))));
+      }
+      spans.add(
+          SpanData.newBuilder()
+              .setName("operation-" + (i % 10))
+              .setKind(i % 10 == 0 ? Span.Kind.SERVER : Span.Kind.CLIENT)
+              .setTraceId(traceId)
+              .setSpanId(spanId)
+              .setParentSpanId(root)
+              .setInstrumentationLibraryInfo(lib)
+              .setAttributes(attrs)
+              .setTimedEvents(timedEvents)
+              .setStartEpochNanos(now)
+              .setEndEpochNanos(now + r.nextInt(100000000))
+              .setStatus(i % 50 == 0 ? Status.INTERNAL : Status.OK)
+              .build());
+      if (i % 10 == 0) {
+        root = spanId;
+      }
+    }
+    return spans;
+  }
+}
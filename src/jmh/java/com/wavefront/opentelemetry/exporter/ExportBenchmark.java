@@ -0,0 +1,102 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter.ResultCode;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures end-to-end export throughput into a {@link LocalSink} for different batch sizes, span
+ * shapes and transports. The {@code spans} counter gives spans per second; run with the GC
+ * profiler (the default for the {@code jmh} task) to get allocated bytes per span by dividing
+ * {@code gc.alloc.rate.norm} by the batch size. The number of bytes written to the socket per span
+ * is printed when each trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ExportBenchmark {
+  @Param({"1", "100", "1000"})
+  public int batchSize;
+
+  @Param({"0", "10", "50"})
+  public int attributes;
+
+  @Param({"0", "5"})
+  public int events;
+
+  /** {@code sdk} sends through the Wavefront SDK, {@code native} and {@code nio} bypass it. */
+  @Param({"sdk", "native", "nio"})
+  public String transport;
+
+  private List<SpanData> batch;
+
+  private LocalSink sink;
+
+  private WavefrontSpanExporter exporter;
+
+  private long exported;
+
+  /** Counts exported spans so JMH reports spans per second next to batches per second. */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Counters {
+    public long spans;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      spans = 0;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    batch = BenchmarkSupport.spans(batchSize, attributes, events, 4711);
+    sink = new LocalSink();
+    final WavefrontSpanExporter.ProxyClientBuilder b =
+        WavefrontSpanExporter.Builder.newBuilder()
+            .host("benchmark")
+            .proxyClient("localhost")
+            .tracingPort(sink.getPort())
+            .flushIntervalSeconds(1);
+    switch (transport) {
+      case "native":
+        b.nativeEncoding(true);
+        break;
+      case "nio":
+        b.nonBlocking(true);
+        break;
+      default:
+        break;
+    }
+    exporter = b.build();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    exporter.shutdown();
+    sink.close();
+    if (exported > 0) {
+      System.out.printf("Sink received %.1f bytes/span%n", (double) sink.getBytes() / exported);
+    }
+  }
+
+  @Benchmark
+  public ResultCode export(final Counters counters) {
+    counters.spans += batchSize;
+    exported += batchSize;
+    return exporter.export(batch);
+  }
+}
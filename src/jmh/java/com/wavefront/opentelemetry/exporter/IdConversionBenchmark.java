@@ -0,0 +1,78 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.TraceId;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the hex string based ID conversion ({@link WavefrontSpanExporter#makeUUID} and {@link
+ * WavefrontSpanExporter#parseHex}) with the binary conversion in {@link IdConverter}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class IdConversionBenchmark {
+  private static final int ID_COUNT = 64;
+
+  private final TraceId[] traceIds = new TraceId[ID_COUNT];
+
+  private final SpanId[] spanIds = new SpanId[ID_COUNT];
+
+  private final String[] hexIds = new String[ID_COUNT];
+
+  private final IdConverter cached = new IdConverter(1024);
+
+  private int next;
+
+  @Setup
+  public void setup() {
+    final Random r = new Random(4711);
+    final byte[] b = new byte[TraceId.getSize()];
+    for (int i = 0; i < ID_COUNT; ++i) {
+      r.nextBytes(b);
+      traceIds[i] = TraceId.fromBytes(b, 0);
+      spanIds[i] = SpanId.fromBytes(b, 0);
+      hexIds[i] = spanIds[i].toLowerBase16();
+    }
+  }
+
+  private int nextIndex() {
+    next = (next + 1) & (ID_COUNT - 1);
+    return next;
+  }
+
+  @Benchmark
+  public void hexString(final Blackhole bh) {
+    final int i = nextIndex();
+    bh.consume(WavefrontSpanExporter.makeUUID(traceIds[i].toLowerBase16()));
+    bh.consume(WavefrontSpanExporter.makeUUID(spanIds[i].toLowerBase16()));
+  }
+
+  @Benchmark
+  public long parseHex() {
+    return WavefrontSpanExporter.parseHex(hexIds[nextIndex()]);
+  }
+
+  @Benchmark
+  public void binary(final Blackhole bh) {
+    final int i = nextIndex();
+    bh.consume(IdConverter.toUUID(traceIds[i]));
+    bh.consume(IdConverter.toUUID(spanIds[i]));
+  }
+
+  @Benchmark
+  public void binaryCached(final Blackhole bh) {
+    final int i = nextIndex();
+    bh.consume(cached.traceId(traceIds[i]));
+    bh.consume(cached.spanId(spanIds[i]));
+  }
+}
@@ -0,0 +1,82 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A TCP server on the loopback interface that reads and discards everything sent to it, standing
+ * in for a Wavefront proxy so that benchmarks include the cost of writing to a real socket.
+ */
+final class LocalSink implements AutoCloseable {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final ServerSocket server;
+
+  private final LongAdder bytes = new LongAdder();
+
+  private final Thread acceptor;
+
+  /**
+   * Creates a new {@link LocalSink} listening on an ephemeral port.
+   *
+   * @throws IOException If the server socket could not be opened
+   */
+  LocalSink() throws IOException {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    acceptor = new Thread(this::accept, "local-sink");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  private void accept() {
+    while (!server.isClosed()) {
+      try {
+        final Socket conn = server.accept();
+        final Thread reader = new Thread(() -> drain(conn), "local-sink-reader");
+        reader.setDaemon(true);
+        reader.start();
+      } catch (final IOException e) {
+        // Closed
+      }
+    }
+  }
+
+  private void drain(final Socket conn) {
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    try (final InputStream in = conn.getInputStream()) {
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        bytes.add(n);
+      }
+    } catch (final IOException e) {
+      // Connection closed
+    }
+  }
+
+  /**
+   * Returns the port the sink listens on.
+   *
+   * @return
+   */
+  int getPort() {
+    return server.getLocalPort();
+  }
+
+  /**
+   * Returns the number of bytes received so far.
+   *
+   * @return
+   */
+  long getBytes() {
+    return bytes.sum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    server.close();
+  }
+}
@@ -0,0 +1,62 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter.ResultCode;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how export throughput scales with the number of conversion threads for large batches.
+ * A parallelism of 1 means conversion runs on the exporting thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ParallelConversionBenchmark {
+  private static final int BATCH_SIZE = 2048;
+
+  @Param({"1", "2", "4", "8", "16", "32"})
+  public int parallelism;
+
+  private List<SpanData> batch;
+
+  private ForkJoinPool pool;
+
+  private WavefrontSpanExporter exporter;
+
+  @Setup
+  public void setup() {
+    batch = BenchmarkSupport.spans(BATCH_SIZE, 10, 1, 4711);
+    final WavefrontSpanExporter.Builder b = WavefrontSpanExporter.Builder.newBuilder();
+    if (parallelism > 1) {
+      pool = new ForkJoinPool(parallelism);
+      b.parallelConversion(pool).parallelThreshold(256);
+    }
+    exporter = new WavefrontSpanExporter(BenchmarkSupport.discardingSender(), b);
+  }
+
+  @TearDown
+  public void tearDown() {
+    exporter.shutdown();
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public ResultCode export() {
+    return exporter.export(batch);
+  }
+}
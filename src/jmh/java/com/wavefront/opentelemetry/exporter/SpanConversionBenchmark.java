@@ -0,0 +1,68 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Measures the individual steps of converting a span into tags and span logs. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SpanConversionBenchmark {
+  private static final int SPAN_COUNT = 64;
+
+  @Param({"0", "10", "50"})
+  public int attributes;
+
+  @Param({"1", "5"})
+  public int events;
+
+  private List<SpanData> spans;
+
+  private WavefrontSpanExporter exporter;
+
+  private int next;
+
+  @Setup
+  public void setup() {
+    spans = BenchmarkSupport.spans(SPAN_COUNT, attributes, events, 4711);
+    exporter =
+        new WavefrontSpanExporter(
+            BenchmarkSupport.discardingSender(), WavefrontSpanExporter.Builder.newBuilder());
+  }
+
+  @TearDown
+  public void tearDown() {
+    exporter.shutdown();
+  }
+
+  private SpanData nextSpan() {
+    next = (next + 1) & (SPAN_COUNT - 1);
+    return spans.get(next);
+  }
+
+  @Benchmark
+  public void extractTags(final Blackhole bh) {
+    bh.consume(exporter.extractTags(nextSpan(), true));
+  }
+
+  @Benchmark
+  public void extractTagsNewList(final Blackhole bh) {
+    bh.consume(exporter.extractTags(nextSpan(), false));
+  }
+
+  @Benchmark
+  public void spanLogs(final Blackhole bh) {
+    bh.consume(exporter.spanLogs(nextSpan()));
+  }
+}
@@ -0,0 +1,331 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when buffered spans are flushed to the backend. A flush happens as soon as the number of
+ * pending spans reaches the current batch size, the pending bytes reach the byte budget, or the
+ * oldest pending span has waited for the maximum latency, whichever comes first. Flushes run as
+ * background tasks so that exporting threads never wait for the network.
+ *
+ * <p>The batch size adapts to conditions. If the backlog grows while a flush is in progress, the
+ * batch size is doubled so that each send carries more spans. If a send takes longer than the
+ * target send time, the batch size is halved. When traffic is light, batches are flushed by the
+ * latency limit and the batch size slowly drifts back towards the minimum.
+ *
+ * <p>If a flush fails, the action can put the spans it wants retried back with {@link
+ * #requeued(int, long)}. Flushing then pauses with exponential backoff, as long as it keeps
+ * failing.
+ */
+final class AdaptiveFlusher implements MetricSource {
+  private static final Logger logger = Logger.getLogger(AdaptiveFlusher.class.getCanonicalName());
+
+  private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+  private static final long DEFAULT_MIN_BACKOFF_MILLIS = 100;
+
+  private static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+
+  /** Flushes the pending spans. */
+  interface Action {
+    /**
+     * Sends everything buffered so far.
+     *
+     * @throws IOException If some of the spans could not be sent. Those to retry must have been
+     *     put back with {@link #requeued(int, long)}.
+     */
+    void flush() throws IOException;
+  }
+
+  private final Action action;
+
+  private final int minBatchSpans;
+
+  private final int maxBatchSpans;
+
+  private final long maxBatchBytes;
+
+  private final long maxLatencyNanos;
+
+  private final long targetSendNanos;
+
+  private final long minBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final ConcurrentHistogram flushNanos = new ConcurrentHistogram();
+
+  private final Workers workers;
+
+  private final Workers.Drain drain;
+
+  // Guarded by this
+  private long pendingSpans;
+
+  private long pendingBytes;
+
+  private long oldestPending;
+
+  // A timer is set to flush when the oldest pending span has waited long enough
+  private boolean timerSet;
+
+  private boolean closed;
+
+  // Only used by the one flushing task there is at a time
+  private long backoffMillis;
+
+  private volatile ScheduledFuture<?> timer;
+
+  private volatile int batchSpans;
+
+  /**
+   * Creates a new {@link AdaptiveFlusher}
+   *
+   * @param action What to do to flush
+   * @param minBatchSpans The smallest batch size
+   * @param maxBatchSpans The largest batch size
+   * @param maxBatchBytes Flush once this many bytes are pending
+   * @param maxLatencyMillis Flush once the oldest pending span has waited this long
+   * @param targetSendMillis Shrink batches if sending them takes longer than this
+   * @param workers Where to run the flushes
+   */
+  AdaptiveFlusher(
+      final Action action,
+      final int minBatchSpans,
+      final int maxBatchSpans,
+      final long maxBatchBytes,
+      final long maxLatencyMillis,
+      final long targetSendMillis,
+      final Workers workers) {
+    this(
+        action,
+        minBatchSpans,
+        maxBatchSpans,
+        maxBatchBytes,
+        maxLatencyMillis,
+        targetSendMillis,
+        DEFAULT_MIN_BACKOFF_MILLIS,
+        DEFAULT_MAX_BACKOFF_MILLIS,
+        workers);
+  }
+
+  /**
+   * Creates a new {@link AdaptiveFlusher}
+   *
+   * @param action What to do to flush
+   * @param minBatchSpans The smallest batch size
+   * @param maxBatchSpans The largest batch size
+   * @param maxBatchBytes Flush once this many bytes are pending
+   * @param maxLatencyMillis Flush once the oldest pending span has waited this long
+   * @param targetSendMillis Shrink batches if sending them takes longer than this
+   * @param minBackoffMillis The time to wait after the first failed flush
+   * @param maxBackoffMillis The longest time to wait between failed flushes
+   * @param workers Where to run the flushes
+   */
+  AdaptiveFlusher(
+      final Action action,
+      final int minBatchSpans,
+      final int maxBatchSpans,
+      final long maxBatchBytes,
+      final long maxLatencyMillis,
+      final long targetSendMillis,
+      final long minBackoffMillis,
+      final long maxBackoffMillis,
+      final Workers workers) {
+    this.action = action;
+    this.minBatchSpans = Math.max(1, minBatchSpans);
+    this.maxBatchSpans = Math.max(this.minBatchSpans, maxBatchSpans);
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxLatencyNanos = maxLatencyMillis * 1000000;
+    this.targetSendNanos = targetSendMillis * 1000000;
+    this.minBackoffMillis = Math.max(1, minBackoffMillis);
+    this.maxBackoffMillis = Math.max(this.minBackoffMillis, maxBackoffMillis);
+    this.backoffMillis = this.minBackoffMillis;
+    this.batchSpans = this.minBatchSpans;
+    this.workers = workers;
+    this.drain = workers.drain(this::flushIfDue);
+  }
+
+  /**
+   * Records that spans have been buffered and starts a flush if it's time to flush.
+   *
+   * @param spans The number of spans
+   * @param bytes Their size in bytes, or zero if unknown
+   */
+  void added(final int spans, final long bytes) {
+    final long now = System.nanoTime();
+    final boolean start;
+    final long timerMillis;
+    synchronized (this) {
+      if (pendingSpans == 0) {
+        oldestPending = now;
+      }
+      pendingSpans += spans;
+      pendingBytes += bytes;
+      if (closed) {
+        return;
+      }
+      start = isDue(now);
+      timerMillis = start ? -1 : setTimer(now);
+    }
+    if (start) {
+      drain.start();
+    } else if (timerMillis >= 0) {
+      timer = workers.schedule(this::onTimer, timerMillis);
+    }
+  }
+
+  /**
+   * Puts back spans taken by a failing flush, to be flushed again once the backoff has passed.
+   * Only to be called by the flush action.
+   *
+   * @param spans The number of spans
+   * @param bytes Their size in bytes, or zero if unknown
+   */
+  synchronized void requeued(final int spans, final long bytes) {
+    if (pendingSpans == 0) {
+      oldestPending = System.nanoTime();
+    }
+    pendingSpans += spans;
+    pendingBytes += bytes;
+  }
+
+  /** Returns the delay for a new latency timer, or -1 if one is already set. */
+  private long setTimer(final long now) {
+    if (timerSet || pendingSpans == 0) {
+      return -1;
+    }
+    timerSet = true;
+    return Math.max(0, oldestPending + maxLatencyNanos - now) / 1000000 + 1;
+  }
+
+  private void onTimer() {
+    synchronized (this) {
+      timerSet = false;
+    }
+    drain.start();
+  }
+
+  /**
+   * Flushes if a flush is due, or else sets a timer for the oldest span still pending. After a
+   * failed flush, returns how long to back off for.
+   */
+  private long flushIfDue() {
+    final long spans;
+    final boolean full;
+    final long timerMillis;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      if (!isDue(now)) {
+        timerMillis = setTimer(now);
+        spans = 0;
+        full = false;
+      } else {
+        timerMillis = -1;
+        spans = pendingSpans;
+        full = pendingSpans >= batchSpans || pendingBytes >= maxBatchBytes;
+        pendingSpans = 0;
+        pendingBytes = 0;
+      }
+    }
+    if (spans == 0) {
+      if (timerMillis >= 0) {
+        timer = workers.schedule(this::onTimer, timerMillis);
+      }
+      return Workers.Step.DONE;
+    }
+    final long delayMillis = backoffMillis;
+    return flush(spans, full) ? 0 : delayMillis;
+  }
+
+  private boolean isDue(final long now) {
+    return pendingSpans > 0
+        && (pendingSpans >= batchSpans
+            || pendingBytes >= maxBatchBytes
+            || now - oldestPending >= maxLatencyNanos);
+  }
+
+  /** Runs the flush action and adapts the batch size. Returns false if the flush failed. */
+  private boolean flush(final long spans, final boolean full) {
+    final long start = System.nanoTime();
+    boolean failed = false;
+    try {
+      action.flush();
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error while flushing " + spans + " spans: " + e);
+      failed = true;
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while flushing spans", e);
+      failed = true;
+    }
+    final long elapsed = System.nanoTime() - start;
+    flushNanos.record(elapsed);
+    backoffMillis = failed ? Math.min(backoffMillis * 2, maxBackoffMillis) : minBackoffMillis;
+    adapt(spans, full, elapsed);
+    return !failed;
+  }
+
+  private void adapt(final long spans, final boolean full, final long elapsed) {
+    final long backlog;
+    synchronized (this) {
+      backlog = pendingSpans;
+    }
+    final int current = batchSpans;
+    int next = current;
+    if (elapsed > targetSendNanos) {
+      next = current / 2;
+    } else if (full && backlog >= spans) {
+      // More arrived while sending than we just sent, so we're falling behind
+      next = current * 2;
+    } else if (!full) {
+      next = current - current / 8;
+    }
+    batchSpans = Math.min(maxBatchSpans, Math.max(minBatchSpans, next));
+  }
+
+  /**
+   * Returns the current batch size.
+   *
+   * @return
+   */
+  int getBatchSpans() {
+    return batchSpans;
+  }
+
+  /**
+   * Returns the distribution of flush times in nanoseconds.
+   *
+   * @return
+   */
+  ConcurrentHistogram.Snapshot getFlushNanos() {
+    return flushNanos.snapshot();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("flush.batch.size", getBatchSpans());
+    values.addTiming("flush.time", getFlushNanos());
+  }
+
+  /** Stops flushing in the background and flushes whatever is still pending. */
+  void close() {
+    final ScheduledFuture<?> f = timer;
+    if (f != null) {
+      f.cancel(false);
+    }
+    synchronized (this) {
+      closed = true;
+    }
+    drain.close(CLOSE_TIMEOUT_MILLIS);
+    final long spans;
+    synchronized (this) {
+      spans = pendingSpans;
+      pendingSpans = 0;
+      pendingBytes = 0;
+    }
+    flush(spans, false);
+  }
+}
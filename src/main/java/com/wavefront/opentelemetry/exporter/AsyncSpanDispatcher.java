@@ -0,0 +1,290 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter.ResultCode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decouples {@link WavefrontSpanExporter#export(List)} from the network. Spans are placed in a
+ * bounded {@link SpanRingBuffer} and picked up by one or more drain tasks that convert and send
+ * them. Drain tasks are started when spans are queued and finish when the queue is empty, so an
+ * idle exporter doesn't hold on to any threads.
+ */
+final class AsyncSpanDispatcher implements MetricSource {
+  private static final Logger logger =
+      Logger.getLogger(AsyncSpanDispatcher.class.getCanonicalName());
+
+  private static final int MAX_DRAIN_BATCH = 512;
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+  private static final long SHUTDOWN_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final WavefrontSpanExporter exporter;
+
+  private final SpanRingBuffer<SpanData> queue;
+
+  private final OverflowPolicy overflowPolicy;
+
+  private final long blockTimeoutNanos;
+
+  private final int threadCount;
+
+  private final Workers workers;
+
+  // The number of drain tasks started and not yet finished
+  private final AtomicInteger active = new AtomicInteger();
+
+  private final LongAdder droppedNewest = new LongAdder();
+
+  private final LongAdder droppedOldest = new LongAdder();
+
+  private final LongAdder droppedTimeout = new LongAdder();
+
+  private final LongAdder droppedShutdown = new LongAdder();
+
+  private final LongAdder failed = new LongAdder();
+
+  private volatile boolean stopped;
+
+  /**
+   * Creates a new {@link AsyncSpanDispatcher}
+   *
+   * @param exporter The exporter that does the actual conversion and sending
+   * @param queueSize The maximum number of queued spans
+   * @param threadCount The maximum number of drain tasks running at once
+   * @param overflowPolicy What to do when the queue is full
+   * @param blockTimeoutMillis The maximum time to block when the policy is {@link
+   *     OverflowPolicy#BLOCK}
+   * @param workers Where to run the drain tasks
+   */
+  AsyncSpanDispatcher(
+      final WavefrontSpanExporter exporter,
+      final int queueSize,
+      final int threadCount,
+      final OverflowPolicy overflowPolicy,
+      final long blockTimeoutMillis,
+      final Workers workers) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Number of drain threads must be positive");
+    }
+    this.exporter = exporter;
+    this.overflowPolicy = overflowPolicy;
+    blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    queue = new SpanRingBuffer<>(queueSize);
+    this.threadCount = threadCount;
+    this.workers = workers;
+  }
+
+  /**
+   * Queues a batch of spans for sending. Spans that can't be queued are dropped according to the
+   * overflow policy.
+   *
+   * @param spans The spans to queue
+   * @return
+   */
+  ResultCode submit(final List<SpanData> spans) {
+    if (stopped) {
+      droppedShutdown.add(spans.size());
+      return ResultCode.FAILED_NOT_RETRYABLE;
+    }
+    final long deadline = System.nanoTime() + blockTimeoutNanos;
+    boolean draining = false;
+    for (int i = 0; i < spans.size(); ++i) {
+      final SpanData span = spans.get(i);
+      if (queue.offer(span)) {
+        continue;
+      }
+      if (!draining) {
+        // Get the queue moving before dropping anything, rather than after the whole batch
+        startDrains();
+        draining = true;
+        if (queue.offer(span)) {
+          continue;
+        }
+      }
+      switch (overflowPolicy) {
+        case DROP_NEWEST:
+          droppedNewest.increment();
+          break;
+        case DROP_OLDEST:
+          do {
+            if (queue.poll() != null) {
+              droppedOldest.increment();
+            }
+          } while (!queue.offer(span));
+          break;
+        case BLOCK:
+          if (!offerUntil(span, deadline)) {
+            // We've run out of time. Drop the rest of the batch.
+            droppedTimeout.add(spans.size() - i);
+            return ResultCode.SUCCESS;
+          }
+          break;
+      }
+    }
+    startDrains();
+    return ResultCode.SUCCESS;
+  }
+
+  private boolean offerUntil(final SpanData span, final long deadline) {
+    // Make sure someone is draining the queue while we wait
+    startDrains();
+    while (!queue.offer(span)) {
+      if (System.nanoTime() - deadline >= 0 || stopped) {
+        return false;
+      }
+      LockSupport.parkNanos(BLOCK_PARK_NANOS);
+    }
+    return true;
+  }
+
+  /** Starts drain tasks while there's more queued than the running ones take in one go. */
+  private void startDrains() {
+    while (queue.size() > (long) active.get() * MAX_DRAIN_BATCH && tryActivate()) {
+      workers.execute(this::drain);
+    }
+  }
+
+  private boolean tryActivate() {
+    int n;
+    do {
+      n = active.get();
+      if (n >= threadCount) {
+        return false;
+      }
+    } while (!active.compareAndSet(n, n + 1));
+    return true;
+  }
+
+  private void drain() {
+    final List<SpanData> batch = new ArrayList<>(MAX_DRAIN_BATCH);
+    for (; ; ) {
+      SpanData span;
+      while (batch.size() < MAX_DRAIN_BATCH && (span = queue.poll()) != null) {
+        batch.add(span);
+      }
+      if (batch.isEmpty()) {
+        active.decrementAndGet();
+        // Spans queued just before we finished may have found all drain tasks still running, so
+        // check again and carry on if there's room for us
+        if (queue.size() == 0 || !tryActivate()) {
+          return;
+        }
+        continue;
+      }
+      try {
+        if (exporter.exportBatch(batch) != ResultCode.SUCCESS) {
+          failed.add(batch.size());
+        }
+      } catch (final Throwable t) {
+        logger.log(Level.WARNING, "Error while sending spans", t);
+        failed.add(batch.size());
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Stops accepting new spans and waits for the drain tasks to empty the queue.
+   *
+   * @return True if the queue was fully drained
+   */
+  boolean shutdown() {
+    stopped = true;
+    startDrains();
+    final long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+    while ((queue.size() > 0 || active.get() > 0) && System.currentTimeMillis() < deadline) {
+      if (Thread.currentThread().isInterrupted()) {
+        return false;
+      }
+      LockSupport.parkNanos(SHUTDOWN_PARK_NANOS);
+    }
+    final int remaining = queue.size();
+    if (remaining > 0) {
+      logger.log(Level.WARNING, "Dropping " + remaining + " queued spans at shutdown");
+      droppedShutdown.add(remaining);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of spans currently waiting to be sent.
+   *
+   * @return
+   */
+  int getQueuedSpans() {
+    return queue.size();
+  }
+
+  /**
+   * Returns the number of spans dropped because the queue was full and the policy was {@link
+   * OverflowPolicy#DROP_NEWEST}.
+   *
+   * @return
+   */
+  long getDroppedNewest() {
+    return droppedNewest.sum();
+  }
+
+  /**
+   * Returns the number of queued spans evicted to make room for newer ones.
+   *
+   * @return
+   */
+  long getDroppedOldest() {
+    return droppedOldest.sum();
+  }
+
+  /**
+   * Returns the number of spans dropped after waiting for the blocking timeout.
+   *
+   * @return
+   */
+  long getDroppedTimeout() {
+    return droppedTimeout.sum();
+  }
+
+  /**
+   * Returns the number of spans dropped because the exporter was shutting down.
+   *
+   * @return
+   */
+  long getDroppedShutdown() {
+    return droppedShutdown.sum();
+  }
+
+  /**
+   * Returns the number of dequeued spans that could not be sent.
+   *
+   * @return
+   */
+  long getFailed() {
+    return failed.sum();
+  }
+
+  /**
+   * Returns the total number of spans dropped for any reason.
+   *
+   * @return
+   */
+  long getDropped() {
+    return getDroppedNewest()
+        + getDroppedOldest()
+        + getDroppedTimeout()
+        + getDroppedShutdown()
+        + getFailed();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("spans.dropped", getDropped());
+  }
+}
@@ -0,0 +1,81 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct {@link ByteBuffer}s. Allocating direct buffers is expensive, so
+ * buffers are handed back to the pool once their contents have been sent. The pool keeps at most
+ * a fixed number of idle buffers; any surplus is left to the garbage collector.
+ */
+final class ByteBufferPool {
+  private final int bufferSize;
+
+  private final int maxIdle;
+
+  private final Queue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  /**
+   * Creates a new {@link ByteBufferPool}
+   *
+   * @param bufferSize The capacity of each buffer in bytes
+   * @param maxIdle The maximum number of idle buffers kept by the pool
+   */
+  ByteBufferPool(final int bufferSize, final int maxIdle) {
+    this.bufferSize = bufferSize;
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns a cleared buffer, either from the pool or newly allocated.
+   *
+   * @return
+   */
+  ByteBuffer acquire() {
+    final ByteBuffer b = idle.poll();
+    if (b != null) {
+      idleCount.decrementAndGet();
+      b.clear();
+      return b;
+    }
+    return ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  /**
+   * Returns a buffer to the pool. The caller must not touch the buffer afterwards.
+   *
+   * @param b The buffer to return
+   */
+  void release(final ByteBuffer b) {
+    if (b.capacity() != bufferSize || !b.isDirect()) {
+      return;
+    }
+    if (idleCount.incrementAndGet() <= maxIdle) {
+      idle.offer(b);
+    } else {
+      idleCount.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the capacity of the buffers handed out by this pool.
+   *
+   * @return
+   */
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns the number of idle buffers currently held by the pool.
+   *
+   * @return
+   */
+  int getIdleCount() {
+    return idleCount.get();
+  }
+}
@@ -0,0 +1,10 @@
+package com.wavefront.opentelemetry.exporter;
+
+/** Determines how payloads sent to the direct ingestion API are compressed. */
+public enum Compression {
+  /** Send payloads as they are. */
+  NONE,
+
+  /** Compress payloads with gzip and send them with {@code Content-Encoding: gzip}. */
+  GZIP
+}
@@ -0,0 +1,173 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of non-negative long values, such as latencies in nanoseconds or batch
+ * sizes. Values are counted in log-linear buckets: each power of two is split into 8 sub-buckets,
+ * which bounds the relative error of a percentile to 12.5%. Every bucket is a {@link LongAdder},
+ * so threads recording at the same time don't contend on a shared counter.
+ */
+public final class ConcurrentHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+  private final LongAdder sum = new LongAdder();
+
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  ConcurrentHistogram() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = new LongAdder();
+    }
+  }
+
+  static int bucket(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  static long upperBound(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    final long lower = (long) (SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1))) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  /**
+   * Records a value. Negative values are recorded as zero.
+   *
+   * @param value The value to record
+   */
+  void record(final long value) {
+    final long v = Math.max(0, value);
+    counts[bucket(v)].increment();
+    sum.add(v);
+    max.accumulate(v);
+  }
+
+  /**
+   * Returns a point-in-time copy of the histogram. Values recorded while the snapshot is taken
+   * may or may not be included.
+   *
+   * @return
+   */
+  public Snapshot snapshot() {
+    final long[] c = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      c[i] = counts[i].sum();
+      total += c[i];
+    }
+    return new Snapshot(c, total, sum.sum(), max.get());
+  }
+
+  /** An immutable copy of a {@link ConcurrentHistogram}. */
+  public static final class Snapshot {
+    private final long[] counts;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Returns the values recorded since an earlier snapshot of the same histogram. The maximum is
+     * exact if it was recorded since then, and otherwise the upper bound of the highest bucket
+     * that gained values.
+     *
+     * @param earlier An earlier snapshot of the same histogram
+     * @return
+     */
+    public Snapshot since(final Snapshot earlier) {
+      final long[] c = new long[counts.length];
+      long top = -1;
+      for (int i = 0; i < counts.length; ++i) {
+        c[i] = Math.max(0, counts[i] - earlier.counts[i]);
+        if (c[i] > 0) {
+          top = i;
+        }
+      }
+      final long m =
+          max > earlier.max ? max : top >= 0 ? Math.min(upperBound((int) top), max) : 0;
+      return new Snapshot(
+          c, Math.max(0, count - earlier.count), Math.max(0, sum - earlier.sum), m);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Returns the sum of all recorded values.
+     *
+     * @return
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     *
+     * @return
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values, or zero if nothing was recorded.
+     *
+     * @return
+     */
+    public double getMean() {
+      return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, or zero if nothing was recorded.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return
+     */
+    public long getPercentile(final double percentile) {
+      if (count == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < counts.length; ++i) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(upperBound(i), max);
+        }
+      }
+      return max;
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A span that has been converted into the arguments expected by {@link
+ * WavefrontSender#sendSpan}. Conversion and sending are kept apart so that conversion can run on
+ * other threads than the one talking to the backend.
+ */
+final class ConvertedSpan {
+  final String name;
+
+  final long startMillis;
+
+  final long durationMillis;
+
+  final UUID traceId;
+
+  final UUID spanId;
+
+  final List<UUID> parents;
+
+  final List<UUID> followsFrom;
+
+  final List<Pair<String, String>> tags;
+
+  final List<SpanLog> spanLogs;
+
+  ConvertedSpan(
+      final String name,
+      final long startMillis,
+      final long durationMillis,
+      final UUID traceId,
+      final UUID spanId,
+      final List<UUID> parents,
+      final List<UUID> followsFrom,
+      final List<Pair<String, String>> tags,
+      final List<SpanLog> spanLogs) {
+    this.name = name;
+    this.startMillis = startMillis;
+    this.durationMillis = durationMillis;
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parents = parents;
+    this.followsFrom = followsFrom;
+    this.tags = tags;
+    this.spanLogs = spanLogs;
+  }
+
+  /**
+   * Sends this span.
+   *
+   * @param sender The sender to use
+   * @param source The source (host) name
+   * @throws IOException If the sender fails
+   */
+  void sendTo(final WavefrontSender sender, final String source) throws IOException {
+    sender.sendSpan(
+        name,
+        startMillis,
+        durationMillis,
+        source,
+        traceId,
+        spanId,
+        parents,
+        followsFrom,
+        tags,
+        spanLogs);
+  }
+}
@@ -0,0 +1,344 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Sends encoded spans straight to a Wavefront cluster using the direct ingestion API. Spans and
+ * span logs are posted to separate endpoints.
+ *
+ * <p>Payloads are gzip compressed unless compression is turned off. A payload whose compressed
+ * size exceeds the maximum message size is split at line boundaries into several requests, sized
+ * by how well the whole payload compressed. If one of these requests fails, the lines already
+ * posted are removed from the batch so that only the rest is retried. The
+ * buffers and {@link Deflater}s needed for this are pooled, so that concurrent sends don't have
+ * to wait for each other and don't allocate once the pool has warmed up. Connections are kept
+ * alive and reused by the JDK, which requires each response to be read to the end.
+ */
+final class DirectIngestionSpanTransport implements SpanTransport {
+  private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+  private static final int READ_TIMEOUT_MILLIS = 60000;
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_RETAINED_BUFFER_SIZE = 8 * 1024 * 1024;
+  private static final int MAX_IDLE_BUFFERS = 4;
+
+  private final URL traceUrl;
+
+  private final URL spanLogsUrl;
+
+  private final String authorization;
+
+  private final Compression compression;
+
+  private final int maxMessageBytes;
+
+  private final Queue<Buffers> idle = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger idleCount = new AtomicInteger();
+
+  private final LongAdder bytesIn = new LongAdder();
+
+  private final LongAdder bytesOut = new LongAdder();
+
+  /** The buffers and compressor needed for one request at a time. */
+  private static final class Buffers {
+    byte[] input = new byte[INITIAL_BUFFER_SIZE];
+
+    final byte[] scratch = new byte[8192];
+
+    final GzipEncoder gzip;
+
+    // The end of the input posted so far
+    int posted;
+
+    Buffers(final Compression compression) {
+      gzip =
+          compression == Compression.GZIP
+              ? new GzipEncoder(Deflater.DEFAULT_COMPRESSION, INITIAL_BUFFER_SIZE)
+              : null;
+    }
+
+    boolean isOversized() {
+      return input.length > MAX_RETAINED_BUFFER_SIZE
+          || (gzip != null && gzip.getCapacity() > MAX_RETAINED_BUFFER_SIZE);
+    }
+
+    void end() {
+      if (gzip != null) {
+        gzip.end();
+      }
+    }
+  }
+
+  /**
+   * Creates a new {@link DirectIngestionSpanTransport} that compresses payloads with gzip and
+   * doesn't limit their size.
+   *
+   * @param server The Wavefront server URL
+   * @param token The API token
+   * @throws MalformedURLException If the server URL is malformed
+   */
+  DirectIngestionSpanTransport(final String server, final String token)
+      throws MalformedURLException {
+    this(server, token, Compression.GZIP, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new {@link DirectIngestionSpanTransport}
+   *
+   * @param server The Wavefront server URL
+   * @param token The API token
+   * @param compression How to compress payloads
+   * @param maxMessageBytes The maximum size of a request body, after compression
+   * @throws MalformedURLException If the server URL is malformed
+   */
+  DirectIngestionSpanTransport(
+      final String server,
+      final String token,
+      final Compression compression,
+      final int maxMessageBytes)
+      throws MalformedURLException {
+    final String base = server.endsWith("/") ? server.substring(0, server.length() - 1) : server;
+    traceUrl = new URL(base + "/report?f=trace");
+    spanLogsUrl = new URL(base + "/report?f=spanLogs");
+    authorization = "Bearer " + token;
+    this.compression = compression;
+    this.maxMessageBytes = maxMessageBytes > 0 ? maxMessageBytes : Integer.MAX_VALUE;
+  }
+
+  @Override
+  public void send(final EncodedBatch spans, final EncodedBatch spanLogs) throws IOException {
+    final Buffers buffers = acquire();
+    try {
+      if (!spans.isEmpty()) {
+        post(traceUrl, spans, buffers);
+      }
+      if (!spanLogs.isEmpty()) {
+        try {
+          post(spanLogsUrl, spanLogs, buffers);
+        } catch (final IOException e) {
+          // The spans got through, so only the span logs are left to retry
+          spans.skip(spans.size(), spans.count());
+          throw e;
+        }
+      }
+    } finally {
+      release(buffers);
+    }
+  }
+
+  private Buffers acquire() {
+    final Buffers b = idle.poll();
+    if (b != null) {
+      idleCount.decrementAndGet();
+      return b;
+    }
+    return new Buffers(compression);
+  }
+
+  private void release(final Buffers b) {
+    if (!b.isOversized() && idleCount.incrementAndGet() <= MAX_IDLE_BUFFERS) {
+      idle.offer(b);
+      return;
+    }
+    if (!b.isOversized()) {
+      idleCount.decrementAndGet();
+    }
+    b.end();
+  }
+
+  private void post(final URL url, final EncodedBatch batch, final Buffers buffers)
+      throws IOException {
+    final int size = batch.size();
+    if (buffers.input.length < size) {
+      buffers.input = new byte[Math.max(size, buffers.input.length * 2)];
+    }
+    batch.copyTo(ByteBuffer.wrap(buffers.input));
+    bytesIn.add(size);
+    buffers.posted = 0;
+    try {
+      postAll(url, buffers, size);
+    } catch (final IOException e) {
+      if (buffers.posted > 0) {
+        batch.skip(buffers.posted, countLines(buffers.input, buffers.posted));
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Posts the input in as few messages as it fits in. The size of the parts is estimated from how
+   * well the whole input compresses, so it's only compressed once more in the common case.
+   */
+  private void postAll(final URL url, final Buffers buffers, final int size) throws IOException {
+    final int length = encode(buffers, 0, size);
+    if (length <= maxMessageBytes) {
+      post(url, buffers, 0, size, length);
+      return;
+    }
+    long partSize = (long) size * maxMessageBytes / length;
+    if (buffers.gzip != null) {
+      // Leave some room, since smaller parts compress a little less well
+      partSize = partSize * 9 / 10;
+    }
+    int from = 0;
+    while (from < size) {
+      final int to = lineEnd(buffers.input, from, (int) Math.min(size, from + partSize), size);
+      postPart(url, buffers, from, to);
+      from = to;
+    }
+  }
+
+  /** Posts a range of lines, splitting it in two if it still doesn't fit in one message. */
+  private void postPart(final URL url, final Buffers buffers, final int from, final int to)
+      throws IOException {
+    final int length = encode(buffers, from, to);
+    if (length > maxMessageBytes) {
+      final int split = lineBoundary(buffers.input, from, to);
+      if (split > from) {
+        postPart(url, buffers, from, split);
+        postPart(url, buffers, split, to);
+        return;
+      }
+      // A single line that's too large. Let the server decide what to do with it.
+    }
+    post(url, buffers, from, to, length);
+  }
+
+  /** Compresses a range of the input if needed, returning the size of the message body. */
+  private static int encode(final Buffers buffers, final int from, final int to) {
+    return buffers.gzip != null ? buffers.gzip.encode(buffers.input, from, to - from) : to - from;
+  }
+
+  /** Posts a range of the input that has just been passed to {@link #encode}. */
+  private void post(
+      final URL url, final Buffers buffers, final int from, final int to, final int length)
+      throws IOException {
+    if (buffers.gzip != null) {
+      post(url, buffers.gzip.getOutput(), 0, length, buffers.scratch);
+    } else {
+      post(url, buffers.input, from, length, buffers.scratch);
+    }
+    buffers.posted = to;
+  }
+
+  /**
+   * Returns the end of the last line that ends at or before a target, or of the first line after
+   * it if there's none.
+   */
+  private static int lineEnd(final byte[] b, final int from, final int target, final int to) {
+    if (target >= to) {
+      return to;
+    }
+    for (int i = target - 1; i >= from; --i) {
+      if (b[i] == '\n') {
+        return i + 1;
+      }
+    }
+    for (int i = target; i < to; ++i) {
+      if (b[i] == '\n') {
+        return i + 1;
+      }
+    }
+    return to;
+  }
+
+  private static int countLines(final byte[] b, final int to) {
+    int n = 0;
+    for (int i = 0; i < to; ++i) {
+      if (b[i] == '\n') {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /** Returns the start of the line closest to the middle of a range, or {@code from} if none. */
+  private static int lineBoundary(final byte[] b, final int from, final int to) {
+    final int mid = from + (to - from) / 2;
+    for (int i = mid; i < to - 1; ++i) {
+      if (b[i] == '\n') {
+        return i + 1;
+      }
+    }
+    for (int i = mid - 1; i >= from; --i) {
+      if (b[i] == '\n') {
+        return i + 1;
+      }
+    }
+    return from;
+  }
+
+  private void post(
+      final URL url, final byte[] body, final int offset, final int length, final byte[] scratch)
+      throws IOException {
+    final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setDoOutput(true);
+    conn.setRequestMethod("POST");
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    conn.setRequestProperty("Content-Type", "application/octet-stream");
+    if (compression == Compression.GZIP) {
+      conn.setRequestProperty("Content-Encoding", "gzip");
+    }
+    conn.setRequestProperty("Authorization", authorization);
+    conn.setFixedLengthStreamingMode(length);
+    try (final OutputStream out = conn.getOutputStream()) {
+      out.write(body, offset, length);
+    }
+    bytesOut.add(length);
+    final int code = conn.getResponseCode();
+    // Read the response to the end so that the connection can be kept alive
+    try (final InputStream in = code < 400 ? conn.getInputStream() : conn.getErrorStream()) {
+      if (in != null) {
+        while (in.read(scratch) >= 0) {}
+      }
+    }
+    if (code / 100 != 2) {
+      throw new IOException("Server returned HTTP " + code + " for " + url);
+    }
+  }
+
+  /**
+   * Returns the number of bytes handed to this transport, before compression.
+   *
+   * @return
+   */
+  long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  /**
+   * Returns the number of bytes posted, after compression.
+   *
+   * @return
+   */
+  long getBytesOut() {
+    return bytesOut.sum();
+  }
+
+  @Override
+  public void flush() {
+    // Nothing is buffered
+  }
+
+  @Override
+  public void close() {
+    // Connections are pooled by the JDK, but the deflaters hold native memory
+    Buffers b;
+    while ((b = idle.poll()) != null) {
+      idleCount.decrementAndGet();
+      b.end();
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An append-only sequence of bytes made up of pooled direct {@link ByteBuffer} chunks. Lines may
+ * span chunk boundaries, which is fine since the chunks are always written out back to back. Once
+ * the contents have been sent, {@link #release()} must be called to give the chunks back to the
+ * pool.
+ */
+final class EncodedBatch {
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private final ByteBufferPool pool;
+
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+
+  private final byte[] digits = new byte[20];
+
+  private ByteBuffer current;
+
+  private int count;
+
+  /**
+   * Creates a new, empty {@link EncodedBatch}
+   *
+   * @param pool The pool to take chunks from
+   */
+  EncodedBatch(final ByteBufferPool pool) {
+    this.pool = pool;
+  }
+
+  private ByteBuffer next() {
+    current = pool.acquire();
+    chunks.add(current);
+    return current;
+  }
+
+  /**
+   * Appends a single byte.
+   *
+   * @param b The byte to append
+   */
+  void put(final int b) {
+    ByteBuffer c = current;
+    if (c == null || !c.hasRemaining()) {
+      c = next();
+    }
+    c.put((byte) b);
+  }
+
+  /**
+   * Appends a byte array.
+   *
+   * @param bytes The bytes to append
+   */
+  void put(final byte[] bytes) {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ByteBuffer c = current;
+      if (c == null || !c.hasRemaining()) {
+        c = next();
+      }
+      final int n = Math.min(c.remaining(), bytes.length - offset);
+      c.put(bytes, offset, n);
+      offset += n;
+    }
+  }
+
+  /**
+   * Appends the remaining bytes of a buffer. The position of the source buffer is not changed.
+   *
+   * @param src The buffer to copy from
+   */
+  void put(final ByteBuffer src) {
+    final ByteBuffer d = src.duplicate();
+    while (d.hasRemaining()) {
+      ByteBuffer c = current;
+      if (c == null || !c.hasRemaining()) {
+        c = next();
+      }
+      final int n = Math.min(c.remaining(), d.remaining());
+      final ByteBuffer slice = d.duplicate();
+      slice.limit(slice.position() + n);
+      c.put(slice);
+      d.position(d.position() + n);
+    }
+  }
+
+  /**
+   * Appends a string that is known to contain only ASCII characters.
+   *
+   * @param s The string to append
+   */
+  void putAscii(final String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      put(s.charAt(i));
+    }
+  }
+
+  /**
+   * Appends a Unicode code point in UTF-8 encoding.
+   *
+   * @param cp The code point to append
+   */
+  void putCodePoint(final int cp) {
+    if (cp < 0x80) {
+      put(cp);
+    } else if (cp < 0x800) {
+      put(0xc0 | (cp >> 6));
+      put(0x80 | (cp & 0x3f));
+    } else if (cp < 0x10000) {
+      put(0xe0 | (cp >> 12));
+      put(0x80 | ((cp >> 6) & 0x3f));
+      put(0x80 | (cp & 0x3f));
+    } else {
+      put(0xf0 | (cp >> 18));
+      put(0x80 | ((cp >> 12) & 0x3f));
+      put(0x80 | ((cp >> 6) & 0x3f));
+      put(0x80 | (cp & 0x3f));
+    }
+  }
+
+  /**
+   * Appends the decimal representation of a long.
+   *
+   * @param value The value to append
+   */
+  void putLong(final long value) {
+    if (value == Long.MIN_VALUE) {
+      putAscii(Long.toString(value));
+      return;
+    }
+    long v = value;
+    if (v < 0) {
+      put('-');
+      v = -v;
+    }
+    int i = digits.length;
+    do {
+      digits[--i] = (byte) ('0' + (v % 10));
+      v /= 10;
+    } while (v != 0);
+    while (i < digits.length) {
+      put(digits[i++]);
+    }
+  }
+
+  /**
+   * Appends a {@link UUID} in its canonical 8-4-4-4-12 form.
+   *
+   * @param uuid The UUID to append
+   */
+  void putUUID(final UUID uuid) {
+    putUUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+  }
+
+  /**
+   * Appends a UUID given as its two halves in its canonical 8-4-4-4-12 form.
+   *
+   * @param msb The most significant bits
+   * @param lsb The least significant bits
+   */
+  void putUUID(final long msb, final long lsb) {
+    putHex(msb >>> 32, 8);
+    put('-');
+    putHex(msb >>> 16, 4);
+    put('-');
+    putHex(msb, 4);
+    put('-');
+    putHex(lsb >>> 48, 4);
+    put('-');
+    putHex(lsb, 12);
+  }
+
+  private void putHex(final long value, final int nDigits) {
+    for (int shift = (nDigits - 1) * 4; shift >= 0; shift -= 4) {
+      put(HEX[(int) (value >>> shift) & 0xf]);
+    }
+  }
+
+  /**
+   * Returns a marker for the current end of the batch that can be passed to {@link
+   * #truncate(long)}.
+   *
+   * @return
+   */
+  long mark() {
+    if (current == null) {
+      return 0;
+    }
+    return ((long) chunks.size() << 32) | current.position();
+  }
+
+  /**
+   * Discards everything written after a mark. Used to back out a partially encoded span.
+   *
+   * @param mark A value previously returned by {@link #mark()}
+   */
+  void truncate(final long mark) {
+    final int nChunks = (int) (mark >>> 32);
+    final int position = (int) mark;
+    while (chunks.size() > Math.max(nChunks, 0)) {
+      pool.release(chunks.remove(chunks.size() - 1));
+    }
+    if (chunks.isEmpty()) {
+      current = null;
+    } else {
+      current = chunks.get(chunks.size() - 1);
+      current.position(position);
+    }
+  }
+
+  /**
+   * Moves the contents of another batch to the end of this one. The other batch is left empty.
+   * A batch smaller than a chunk is copied into this one's last chunk rather than moved, so that
+   * many small batches don't each hold on to a mostly empty chunk.
+   *
+   * @param other The batch to take the contents of
+   */
+  void append(final EncodedBatch other) {
+    if (other.chunks.isEmpty()) {
+      return;
+    }
+    if (other.chunks.size() == 1 && current != null) {
+      final ByteBuffer src = other.current.duplicate();
+      src.flip();
+      put(src);
+      count += other.count;
+      other.release();
+      return;
+    }
+    chunks.addAll(other.chunks);
+    current = other.current;
+    count += other.count;
+    other.chunks.clear();
+    other.current = null;
+    other.count = 0;
+  }
+
+  /**
+   * Discards bytes from the start of the batch, such as lines that have already been delivered.
+   *
+   * @param bytes The number of bytes to discard
+   * @param items The number of items they hold
+   */
+  void skip(final int bytes, final int items) {
+    int remaining = bytes;
+    while (remaining > 0 && !chunks.isEmpty()) {
+      final ByteBuffer c = chunks.get(0);
+      if (c.position() <= remaining && chunks.size() > 1) {
+        remaining -= c.position();
+        pool.release(chunks.remove(0));
+      } else {
+        // Move what's left of the chunk to its start, leaving it ready for writing
+        c.flip();
+        c.position(Math.min(remaining, c.limit()));
+        c.compact();
+        remaining = 0;
+      }
+    }
+    count = Math.max(0, count - items);
+  }
+
+  /** Records that one more item has been encoded into this batch. */
+  void incrementCount() {
+    ++count;
+  }
+
+  /**
+   * Records that items copied in as raw bytes have been added to this batch.
+   *
+   * @param n The number of items
+   */
+  void addCount(final int n) {
+    count += n;
+  }
+
+  /**
+   * Returns the number of items (spans or span logs) encoded into this batch.
+   *
+   * @return
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * Returns the number of bytes in this batch.
+   *
+   * @return
+   */
+  int size() {
+    int size = 0;
+    for (final ByteBuffer b : chunks) {
+      size += b.position();
+    }
+    return size;
+  }
+
+  /**
+   * Returns the memory held by this batch in bytes, that is, the size of its chunks.
+   *
+   * @return
+   */
+  long capacity() {
+    long capacity = 0;
+    for (final ByteBuffer b : chunks) {
+      capacity += b.capacity();
+    }
+    return capacity;
+  }
+
+  /**
+   * Returns true if nothing has been written to the batch.
+   *
+   * @return
+   */
+  boolean isEmpty() {
+    return chunks.isEmpty() || (chunks.size() == 1 && current.position() == 0);
+  }
+
+  /**
+   * Returns read-only views of the chunks, ready for a gathering write. The views share content
+   * with the batch, so they are only valid until the batch is released.
+   *
+   * @return
+   */
+  ByteBuffer[] readBuffers() {
+    final ByteBuffer[] result = new ByteBuffer[chunks.size()];
+    for (int i = 0; i < result.length; ++i) {
+      final ByteBuffer d = chunks.get(i).asReadOnlyBuffer();
+      d.flip();
+      result[i] = d;
+    }
+    return result;
+  }
+
+  /**
+   * Copies the contents of the batch into a buffer.
+   *
+   * @param dest The buffer to copy into. Must have room for {@link #size()} bytes.
+   */
+  void copyTo(final ByteBuffer dest) {
+    for (final ByteBuffer chunk : chunks) {
+      final ByteBuffer d = chunk.duplicate();
+      d.flip();
+      dest.put(d);
+    }
+  }
+
+  /**
+   * Writes the contents of the batch to a stream.
+   *
+   * @param out The stream to write to
+   * @param scratch A buffer used to copy data out of the direct chunks
+   * @throws IOException If the stream fails
+   */
+  void writeTo(final OutputStream out, final byte[] scratch) throws IOException {
+    for (final ByteBuffer chunk : chunks) {
+      final ByteBuffer d = chunk.duplicate();
+      d.flip();
+      while (d.hasRemaining()) {
+        final int n = Math.min(d.remaining(), scratch.length);
+        d.get(scratch, 0, n);
+        out.write(scratch, 0, n);
+      }
+    }
+  }
+
+  /**
+   * Hands the chunks over to the caller, flipped and ready for reading, and leaves the batch
+   * empty. The caller becomes responsible for returning the chunks to {@link #getPool()}.
+   *
+   * @return
+   */
+  ByteBuffer[] detach() {
+    final ByteBuffer[] result = chunks.toArray(new ByteBuffer[0]);
+    for (final ByteBuffer b : result) {
+      b.flip();
+    }
+    chunks.clear();
+    current = null;
+    count = 0;
+    return result;
+  }
+
+  /**
+   * Returns the pool the chunks of this batch are taken from.
+   *
+   * @return
+   */
+  ByteBufferPool getPool() {
+    return pool;
+  }
+
+  /** Returns all chunks to the pool and empties the batch. */
+  void release() {
+    for (final ByteBuffer b : chunks) {
+      pool.release(b);
+    }
+    chunks.clear();
+    current = null;
+    count = 0;
+  }
+}
@@ -0,0 +1,720 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The exporter's own metrics. Counters are {@link LongAdder}s and timings go into {@link
+ * ConcurrentHistogram}s, so recording is cheap and doesn't contend across exporting threads. Use
+ * {@link WavefrontSpanExporter#getMetrics()} to get a consistent snapshot. Components such as the
+ * retry queue add their own values to each snapshot as {@link MetricSource}s.
+ */
+public final class ExporterMetrics implements MetricSource {
+  private final LongAdder spansExported = new LongAdder();
+
+  private final LongAdder spansFailed = new LongAdder();
+
+  private final LongAdder spansRetrySent = new LongAdder();
+
+  private final LongAdder spansDuplicated = new LongAdder();
+
+  private final LongAdder spansUnsendable = new LongAdder();
+
+  private final LongAdder exportsContended = new LongAdder();
+
+  private final LongAdder batchesExported = new LongAdder();
+
+  private final LongAdder batchesFailed = new LongAdder();
+
+  private final ConcurrentHistogram batchSize = new ConcurrentHistogram();
+
+  private final ConcurrentHistogram exportNanos = new ConcurrentHistogram();
+
+  private final ConcurrentHistogram conversionNanos = new ConcurrentHistogram();
+
+  private final ConcurrentHistogram sendNanos = new ConcurrentHistogram();
+
+  private final int shard;
+
+  /**
+   * Creates a new {@link ExporterMetrics}
+   *
+   * @param shard The index of the exporter's shard, or -1 if it isn't sharded
+   */
+  ExporterMetrics(final int shard) {
+    this.shard = shard;
+  }
+
+  /**
+   * Records the outcome of exporting a batch.
+   *
+   * @param spans The number of spans in the batch
+   * @param sent The number of spans that were sent
+   * @param failed The number of spans that were neither sent nor queued for retrying
+   * @param success Whether the export succeeded
+   * @param nanos The time it took to export the batch
+   */
+  void recordExport(
+      final int spans, final int sent, final int failed, final boolean success, final long nanos) {
+    spansExported.add(sent);
+    spansFailed.add(failed);
+    if (success) {
+      batchesExported.increment();
+    } else {
+      batchesFailed.increment();
+    }
+    batchSize.record(spans);
+    exportNanos.record(nanos);
+  }
+
+  /**
+   * Records spans that had been accepted for sending but were then dropped, such as those of a
+   * failed flush that could not be kept for retrying.
+   *
+   * @param spans The number of spans
+   */
+  void recordFailed(final int spans) {
+    spansFailed.add(spans);
+  }
+
+  /**
+   * Records spans sent by the retry queue.
+   *
+   * @param sent The number of spans that were sent
+   */
+  void recordRetry(final int sent) {
+    spansExported.add(sent);
+    spansRetrySent.add(sent);
+  }
+
+  /**
+   * Records spans that were sent as part of a batch whose export failed, and that the span
+   * processor may therefore send again.
+   *
+   * @param spans The number of spans
+   */
+  void recordDuplicates(final int spans) {
+    spansDuplicated.add(spans);
+  }
+
+  /**
+   * Records spans dropped because they could not be converted, encoded or sent for reasons that
+   * retrying wouldn't fix.
+   *
+   * @param spans The number of spans
+   */
+  void recordUnsendable(final int spans) {
+    spansUnsendable.add(spans);
+  }
+
+  /** Records an export that started while another one was still sending. */
+  void recordContended() {
+    exportsContended.increment();
+  }
+
+  /**
+   * Records the time spent converting or encoding a batch.
+   *
+   * @param nanos The conversion time in nanoseconds
+   */
+  void recordConversion(final long nanos) {
+    conversionNanos.record(nanos);
+  }
+
+  /**
+   * Records the time spent handing a batch to the sender or transport.
+   *
+   * @param nanos The send time in nanoseconds
+   */
+  void recordSend(final long nanos) {
+    sendNanos.record(nanos);
+  }
+
+  @Override
+  public void addMetrics(final Values values) {
+    values.add("spans.exported", spansExported.sum());
+    values.add("spans.failed", spansFailed.sum());
+    values.add("spans.retry.sent", spansRetrySent.sum());
+    values.add("spans.duplicated", spansDuplicated.sum());
+    values.add("spans.unsendable", spansUnsendable.sum());
+    values.add("exports.contended", exportsContended.sum());
+    values.add("batches.exported", batchesExported.sum());
+    values.add("batches.failed", batchesFailed.sum());
+    values.addDistribution("batch.size", batchSize.snapshot());
+    values.addTiming("export.time", exportNanos.snapshot());
+    values.addTiming("conversion.time", conversionNanos.snapshot());
+    values.addTiming("send.time", sendNanos.snapshot());
+  }
+
+  /**
+   * Takes a snapshot of the metrics.
+   *
+   * @param sources The sources of the values, including this
+   * @return
+   */
+  Snapshot snapshot(final List<MetricSource> sources) {
+    final Values values = new Values();
+    for (final MetricSource source : sources) {
+      source.addMetrics(values);
+    }
+    return new Snapshot(System.currentTimeMillis(), shard, values);
+  }
+
+  /** The named values collected from the sources while a snapshot is taken. */
+  static final class Values {
+    private final Map<String, Number> values = new LinkedHashMap<>();
+
+    private final Map<String, ConcurrentHistogram.Snapshot> timings = new LinkedHashMap<>();
+
+    private final Map<String, ConcurrentHistogram.Snapshot> distributions = new LinkedHashMap<>();
+
+    /**
+     * Adds a counter or gauge.
+     *
+     * @param name The name of the value
+     * @param value The value
+     */
+    void add(final String name, final long value) {
+      values.put(name, value);
+    }
+
+    /**
+     * Adds a gauge that isn't a whole number, such as a ratio or a rate.
+     *
+     * @param name The name of the value
+     * @param value The value
+     */
+    void add(final String name, final double value) {
+      values.put(name, value);
+    }
+
+    /**
+     * Adds a distribution of durations in nanoseconds.
+     *
+     * @param name The name of the distribution
+     * @param nanos The distribution
+     */
+    void addTiming(final String name, final ConcurrentHistogram.Snapshot nanos) {
+      timings.put(name, nanos);
+    }
+
+    /**
+     * Adds a distribution of values other than durations, such as sizes.
+     *
+     * @param name The name of the distribution
+     * @param distribution The distribution
+     */
+    void addDistribution(final String name, final ConcurrentHistogram.Snapshot distribution) {
+      distributions.put(name, distribution);
+    }
+  }
+
+  /**
+   * A point-in-time copy of the exporter metrics. Every value is available by name from {@link
+   * #getValues()}, {@link #getTimings()} and {@link #getDistributions()}; the getters for
+   * individual values return zero, or an empty distribution, for components that aren't enabled.
+   */
+  public static final class Snapshot {
+    private static final ConcurrentHistogram.Snapshot EMPTY = new ConcurrentHistogram().snapshot();
+
+    private final long timestamp;
+
+    private final int shard;
+
+    private final Map<String, Number> values;
+
+    private final Map<String, ConcurrentHistogram.Snapshot> timings;
+
+    private final Map<String, ConcurrentHistogram.Snapshot> distributions;
+
+    private Snapshot(final long timestamp, final int shard, final Values v) {
+      this.timestamp = timestamp;
+      this.shard = shard;
+      values = Collections.unmodifiableMap(v.values);
+      timings = Collections.unmodifiableMap(v.timings);
+      distributions = Collections.unmodifiableMap(v.distributions);
+    }
+
+    private long getLong(final String name) {
+      return getLong(name, 0);
+    }
+
+    private long getLong(final String name, final long absent) {
+      final Number value = values.get(name);
+      return value != null ? value.longValue() : absent;
+    }
+
+    private double getDouble(final String name) {
+      final Number value = values.get(name);
+      return value != null ? value.doubleValue() : 0;
+    }
+
+    private ConcurrentHistogram.Snapshot getTiming(final String name) {
+      final ConcurrentHistogram.Snapshot timing = timings.get(name);
+      return timing != null ? timing : EMPTY;
+    }
+
+    private ConcurrentHistogram.Snapshot getDistribution(final String name) {
+      final ConcurrentHistogram.Snapshot distribution = distributions.get(name);
+      return distribution != null ? distribution : EMPTY;
+    }
+
+    /**
+     * Returns the counters and gauges by name, in the order they were added.
+     *
+     * @return
+     */
+    public Map<String, Number> getValues() {
+      return values;
+    }
+
+    /**
+     * Returns the distributions of durations by name, in nanoseconds.
+     *
+     * @return
+     */
+    public Map<String, ConcurrentHistogram.Snapshot> getTimings() {
+      return timings;
+    }
+
+    /**
+     * Returns the distributions of values other than durations by name, such as batch sizes.
+     *
+     * @return
+     */
+    public Map<String, ConcurrentHistogram.Snapshot> getDistributions() {
+      return distributions;
+    }
+
+    /**
+     * Returns the time the snapshot was taken in milliseconds since the epoch.
+     *
+     * @return
+     */
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    /**
+     * Returns the index of the shard the metrics are for, or -1 if the exporter isn't sharded.
+     *
+     * @return
+     */
+    public int getShard() {
+      return shard;
+    }
+
+    /**
+     * Returns the number of spans successfully handed to the sender or transport (or spooled).
+     *
+     * @return
+     */
+    public long getSpansExported() {
+      return getLong("spans.exported");
+    }
+
+    /**
+     * Returns the number of spans that could not be sent and were not queued for retrying. When
+     * only part of a batch fails, only the spans that weren't sent are counted.
+     *
+     * @return
+     */
+    public long getSpansFailed() {
+      return getLong("spans.failed");
+    }
+
+    /**
+     * Returns the number of spans dropped by the asynchronous pipeline.
+     *
+     * @return
+     */
+    public long getSpansDropped() {
+      return getLong("spans.dropped");
+    }
+
+    /**
+     * Returns the number of span send attempts made by the retry queue.
+     *
+     * @return
+     */
+    public long getSpansRetried() {
+      return getLong("spans.retried");
+    }
+
+    /**
+     * Returns the number of spans the retry queue managed to send. They're also counted as
+     * exported.
+     *
+     * @return
+     */
+    public long getSpansRetrySent() {
+      return getLong("spans.retry.sent");
+    }
+
+    /**
+     * Returns the number of spans dropped by the retry queue, either because it was full or
+     * because they were still queued at shutdown.
+     *
+     * @return
+     */
+    public long getSpansRetryDropped() {
+      return getLong("spans.retry.dropped");
+    }
+
+    /**
+     * Returns the number of spans that were sent as part of a batch whose export failed. The span
+     * processor may send them again. Only happens without a retry queue.
+     *
+     * @return
+     */
+    public long getSpansDuplicated() {
+      return getLong("spans.duplicated");
+    }
+
+    /**
+     * Returns the number of spans dropped because they could not be converted, encoded or sent
+     * for reasons other than I/O errors.
+     *
+     * @return
+     */
+    public long getSpansUnsendable() {
+      return getLong("spans.unsendable");
+    }
+
+    /**
+     * Returns the number of exports that started while another export was still sending. A high
+     * count relative to the number of batches means exporting threads are contending for the
+     * sender, and that sharding the exporter may help.
+     *
+     * @return
+     */
+    public long getExportsContended() {
+      return getLong("exports.contended");
+    }
+
+    /**
+     * Returns the number of spans waiting to be retried.
+     *
+     * @return
+     */
+    public long getRetryPendingSpans() {
+      return getLong("retry.pending.spans");
+    }
+
+    /**
+     * Returns the estimated memory used by spans waiting to be retried, in bytes.
+     *
+     * @return
+     */
+    public long getRetryPendingBytes() {
+      return getLong("retry.pending.bytes");
+    }
+
+    /**
+     * Returns the size of the off-heap staging buffer in bytes, or zero if it isn't enabled.
+     *
+     * @return
+     */
+    public long getStagingCapacityBytes() {
+      return getLong("staging.capacity.bytes");
+    }
+
+    /**
+     * Returns the number of bytes in use in the off-heap staging buffer.
+     *
+     * @return
+     */
+    public long getStagingUsedBytes() {
+      return getLong("staging.used.bytes");
+    }
+
+    /**
+     * Returns how full the off-heap staging buffer is, between 0 and 1.
+     *
+     * @return
+     */
+    public double getStagingFill() {
+      return getDouble("staging.fill");
+    }
+
+    /**
+     * Returns the number of spans waiting in the off-heap staging buffer.
+     *
+     * @return
+     */
+    public long getStagingPendingSpans() {
+      return getLong("staging.pending.spans");
+    }
+
+    /**
+     * Returns the number of spans dropped by the off-heap staging buffer, either because they
+     * didn't fit or because they could not be sent at shutdown.
+     *
+     * @return
+     */
+    public long getStagingDropped() {
+      return getLong("staging.dropped");
+    }
+
+    /**
+     * Returns the number of spans held by the trace index.
+     *
+     * @return
+     */
+    public long getTraceGraphSpans() {
+      return getLong("tracegraph.spans");
+    }
+
+    /**
+     * Returns the number of traces held by the trace index.
+     *
+     * @return
+     */
+    public long getTraceGraphTraces() {
+      return getLong("tracegraph.traces");
+    }
+
+    /**
+     * Returns the number of local root spans tagged with a trace summary.
+     *
+     * @return
+     */
+    public long getTraceSummaries() {
+      return getLong("tracegraph.summaries");
+    }
+
+    /**
+     * Returns the number of spans left out of the trace index because it was full.
+     *
+     * @return
+     */
+    public long getTraceGraphOverflow() {
+      return getLong("tracegraph.overflow");
+    }
+
+    /**
+     * Returns the number of spans dropped because they had already been sent.
+     *
+     * @return
+     */
+    public long getSpansDeduplicated() {
+      return getLong("compaction.duplicates");
+    }
+
+    /**
+     * Returns the number of spans merged into rolled-up spans. Each rolled-up span is sent in
+     * place of the spans merged into it, so the number of spans saved is this less the number of
+     * rollups.
+     *
+     * @return
+     */
+    public long getSpansRolledUp() {
+      return getLong("compaction.rolledup");
+    }
+
+    /**
+     * Returns the number of rolled-up spans created from identical siblings.
+     *
+     * @return
+     */
+    public long getRollups() {
+      return getLong("compaction.rollups");
+    }
+
+    /**
+     * Returns the number of batches successfully exported.
+     *
+     * @return
+     */
+    public long getBatchesExported() {
+      return getLong("batches.exported");
+    }
+
+    /**
+     * Returns the number of batches that could not be sent.
+     *
+     * @return
+     */
+    public long getBatchesFailed() {
+      return getLong("batches.failed");
+    }
+
+    /**
+     * Returns the distribution of batch sizes in spans.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getBatchSize() {
+      return getDistribution("batch.size");
+    }
+
+    /**
+     * Returns the distribution of the total time taken to export a batch, in nanoseconds.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getExportNanos() {
+      return getTiming("export.time");
+    }
+
+    /**
+     * Returns the distribution of the time spent converting or encoding a batch, in nanoseconds.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getConversionNanos() {
+      return getTiming("conversion.time");
+    }
+
+    /**
+     * Returns the distribution of the time spent handing a batch to the sender or transport, in
+     * nanoseconds. The Wavefront SDK senders buffer internally, so with them this is the time to
+     * enqueue rather than the network time.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getSendNanos() {
+      return getTiming("send.time");
+    }
+
+    /**
+     * Returns the number of spans waiting in the spool, or zero if spooling isn't enabled.
+     *
+     * @return
+     */
+    public long getSpoolPendingSpans() {
+      return getLong("spool.pending.spans");
+    }
+
+    /**
+     * Returns the number of bytes waiting in the spool, or zero if spooling isn't enabled.
+     *
+     * @return
+     */
+    public long getSpoolPendingBytes() {
+      return getLong("spool.pending.bytes");
+    }
+
+    /**
+     * Returns the spans per second achieved by the most recent spool replay.
+     *
+     * @return
+     */
+    public double getSpoolReplayRate() {
+      return getDouble("spool.replay.rate");
+    }
+
+    /**
+     * Returns the number of traces kept by the tail sampler.
+     *
+     * @return
+     */
+    public long getTracesKept() {
+      return getLong("sampler.traces.kept");
+    }
+
+    /**
+     * Returns the number of traces dropped by the tail sampler.
+     *
+     * @return
+     */
+    public long getTracesDropped() {
+      return getLong("sampler.traces.dropped");
+    }
+
+    /**
+     * Returns the number of spans buffered by the tail sampler, or zero if it isn't enabled.
+     *
+     * @return
+     */
+    public long getSamplerBufferedSpans() {
+      return getLong("sampler.buffered.spans");
+    }
+
+    /**
+     * Returns the estimated memory used by spans buffered by the tail sampler, in bytes.
+     *
+     * @return
+     */
+    public long getSamplerBufferedBytes() {
+      return getLong("sampler.buffered.bytes");
+    }
+
+    /**
+     * Returns the distribution of the time from a trace's first span arriving at the tail sampler
+     * until the trace was decided, in nanoseconds.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getSamplerDecisionNanos() {
+      return getTiming("sampler.decision.time");
+    }
+
+    /**
+     * Returns the current batch size chosen by adaptive flushing, or zero if it isn't enabled.
+     *
+     * @return
+     */
+    public int getFlushBatchSpans() {
+      return (int) getLong("flush.batch.size");
+    }
+
+    /**
+     * Returns the distribution of the time taken by adaptive flushes, in nanoseconds.
+     *
+     * @return
+     */
+    public ConcurrentHistogram.Snapshot getFlushNanos() {
+      return getTiming("flush.time");
+    }
+
+    /**
+     * Returns the number of endpoints spans are spread across.
+     *
+     * @return
+     */
+    public int getEndpoints() {
+      return (int) getLong("endpoints", 1);
+    }
+
+    /**
+     * Returns the number of endpoints that are currently in rotation, that is, whose circuit
+     * breakers are closed.
+     *
+     * @return
+     */
+    public int getHealthyEndpoints() {
+      return (int) getLong("endpoints.healthy", 1);
+    }
+
+    /**
+     * Returns the number of batches that were sent to another endpoint than their first choice.
+     *
+     * @return
+     */
+    public long getEndpointFailovers() {
+      return getLong("endpoints.failovers");
+    }
+
+    /**
+     * Returns the number of span names found in the span name cache.
+     *
+     * @return
+     */
+    public long getSpanNameCacheHits() {
+      return getLong("spanname.cache.hits");
+    }
+
+    /**
+     * Returns the number of span names that had to be derived from the template.
+     *
+     * @return
+     */
+    public long getSpanNameCacheMisses() {
+      return getLong("spanname.cache.misses");
+    }
+  }
+}
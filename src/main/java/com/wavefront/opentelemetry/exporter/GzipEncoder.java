@@ -0,0 +1,94 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses byte ranges into gzip format. Unlike {@link java.util.zip.GZIPOutputStream}, the
+ * {@link Deflater} and the output buffer are reused from one payload to the next, so an encoder
+ * should be pooled rather than created per request. Not thread safe.
+ */
+final class GzipEncoder {
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private static final int TRAILER_SIZE = 8;
+
+  private final Deflater deflater;
+
+  private final CRC32 crc = new CRC32();
+
+  private byte[] output;
+
+  /**
+   * Creates a new {@link GzipEncoder}
+   *
+   * @param level The compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+   * @param initialCapacity The initial size of the output buffer in bytes
+   */
+  GzipEncoder(final int level, final int initialCapacity) {
+    deflater = new Deflater(level, true);
+    output = new byte[Math.max(HEADER.length + TRAILER_SIZE + 64, initialCapacity)];
+  }
+
+  /**
+   * Compresses a range of bytes. The result is left in {@link #getOutput()}.
+   *
+   * @param input The bytes to compress
+   * @param offset Where the range starts
+   * @param length The length of the range
+   * @return The length of the compressed data
+   */
+  int encode(final byte[] input, final int offset, final int length) {
+    deflater.reset();
+    crc.reset();
+    crc.update(input, offset, length);
+    System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+    int n = HEADER.length;
+    deflater.setInput(input, offset, length);
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (n == output.length) {
+        output = Arrays.copyOf(output, output.length * 2);
+      }
+      n += deflater.deflate(output, n, output.length - n);
+    }
+    if (output.length - n < TRAILER_SIZE) {
+      output = Arrays.copyOf(output, n + TRAILER_SIZE);
+    }
+    n = putIntLE(output, n, (int) crc.getValue());
+    return putIntLE(output, n, length);
+  }
+
+  private static int putIntLE(final byte[] b, final int offset, final int value) {
+    b[offset] = (byte) value;
+    b[offset + 1] = (byte) (value >>> 8);
+    b[offset + 2] = (byte) (value >>> 16);
+    b[offset + 3] = (byte) (value >>> 24);
+    return offset + 4;
+  }
+
+  /**
+   * Returns the buffer holding the result of the last call to {@link #encode}. The buffer may be
+   * replaced by a larger one on the next call.
+   *
+   * @return
+   */
+  byte[] getOutput() {
+    return output;
+  }
+
+  /**
+   * Returns the size of the output buffer, which grows to fit the largest payload seen so far.
+   *
+   * @return
+   */
+  int getCapacity() {
+    return output.length;
+  }
+
+  /** Releases the native memory held by the {@link Deflater}. */
+  void end() {
+    deflater.end();
+  }
+}
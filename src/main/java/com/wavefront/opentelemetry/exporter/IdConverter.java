@@ -0,0 +1,121 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.TraceId;
+import java.util.UUID;
+
+/**
+ * Converts OpenTelemetry trace and span IDs into the {@link UUID}s used by Wavefront. The IDs are
+ * read as raw bytes rather than through their hex representation, so no intermediate strings are
+ * created. Recently converted IDs are kept in a small direct-mapped cache, since the same trace
+ * and parent IDs tend to show up many times within a batch.
+ */
+final class IdConverter {
+  private static final ThreadLocal<byte[]> scratch =
+      ThreadLocal.withInitial(() -> new byte[TraceId.getSize()]);
+
+  private final UUID[] cache;
+
+  private final int mask;
+
+  /**
+   * Creates a new {@link IdConverter}
+   *
+   * @param cacheSize The number of cache slots. Rounded up to the nearest power of two. Zero
+   *     disables caching.
+   */
+  IdConverter(final int cacheSize) {
+    if (cacheSize <= 0) {
+      cache = null;
+      mask = 0;
+    } else {
+      final int size = Integer.highestOneBit(cacheSize - 1) << 1;
+      cache = new UUID[Math.max(size, 1)];
+      mask = cache.length - 1;
+    }
+  }
+
+  /**
+   * Returns the {@link UUID} for a trace ID, using the cache if possible.
+   *
+   * @param traceId The trace ID
+   * @return
+   */
+  UUID traceId(final TraceId traceId) {
+    final byte[] b = scratch.get();
+    traceId.copyBytesTo(b, 0);
+    return lookup(getLong(b, 0), getLong(b, 8));
+  }
+
+  /**
+   * Returns the {@link UUID} for a span ID, using the cache if possible.
+   *
+   * @param spanId The span ID
+   * @return
+   */
+  UUID spanId(final SpanId spanId) {
+    final byte[] b = scratch.get();
+    spanId.copyBytesTo(b, 0);
+    return lookup(0, getLong(b, 0));
+  }
+
+  private UUID lookup(final long hi, final long lo) {
+    if (cache == null) {
+      return new UUID(hi, lo);
+    }
+    // Slots are overwritten without locking. That's safe since UUIDs are immutable and we
+    // always verify the contents of a slot before we use it.
+    final int slot = (int) (hi ^ lo ^ (lo >>> 32)) & mask;
+    final UUID cached = cache[slot];
+    if (cached != null
+        && cached.getLeastSignificantBits() == lo
+        && cached.getMostSignificantBits() == hi) {
+      return cached;
+    }
+    final UUID uuid = new UUID(hi, lo);
+    cache[slot] = uuid;
+    return uuid;
+  }
+
+  /**
+   * Converts a trace ID into a {@link UUID} without caching.
+   *
+   * @param traceId The trace ID
+   * @return
+   */
+  static UUID toUUID(final TraceId traceId) {
+    final byte[] b = scratch.get();
+    traceId.copyBytesTo(b, 0);
+    return new UUID(getLong(b, 0), getLong(b, 8));
+  }
+
+  /**
+   * Converts a span ID into a {@link UUID} without caching.
+   *
+   * @param spanId The span ID
+   * @return
+   */
+  static UUID toUUID(final SpanId spanId) {
+    final byte[] b = scratch.get();
+    spanId.copyBytesTo(b, 0);
+    return new UUID(0, getLong(b, 0));
+  }
+
+  /**
+   * Reads a big-endian long from a byte array.
+   *
+   * @param b The array to read from
+   * @param offset The offset of the first byte
+   * @return
+   */
+  static long getLong(final byte[] b, final int offset) {
+    return ((b[offset] & 0xffL) << 56)
+        | ((b[offset + 1] & 0xffL) << 48)
+        | ((b[offset + 2] & 0xffL) << 40)
+        | ((b[offset + 3] & 0xffL) << 32)
+        | ((b[offset + 4] & 0xffL) << 24)
+        | ((b[offset + 5] & 0xffL) << 16)
+        | ((b[offset + 6] & 0xffL) << 8)
+        | (b[offset + 7] & 0xffL);
+  }
+}
@@ -0,0 +1,10 @@
+package com.wavefront.opentelemetry.exporter;
+
+/** Determines how spans are spread across several endpoints. */
+public enum LoadBalancing {
+  /** Hash the trace ID onto a ring of endpoints, so all spans of a trace go to the same one. */
+  TRACE_ID,
+
+  /** Send each batch to the endpoint with the fewest bytes still on their way. */
+  LEAST_OUTSTANDING
+}
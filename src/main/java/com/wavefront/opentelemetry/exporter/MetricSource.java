@@ -0,0 +1,16 @@
+package com.wavefront.opentelemetry.exporter;
+
+/**
+ * A part of the exporter that contributes values to the exporter's own metrics, such as the retry
+ * queue or the tail sampler. Each source adds its values under its own names when a snapshot is
+ * taken, and sinks report whatever values they find, so a new component only needs to implement
+ * this interface to have its metrics reported.
+ */
+interface MetricSource {
+  /**
+   * Adds the source's current values to a snapshot being taken.
+   *
+   * @param values The values of the snapshot
+   */
+  void addMetrics(ExporterMetrics.Values values);
+}
@@ -0,0 +1,18 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+
+/**
+ * Receives periodic snapshots of the exporter's own metrics. By default they are sent to
+ * Wavefront, but any other monitoring system can be plugged in through {@link
+ * WavefrontSpanExporter.Builder#metricsSink(MetricsSink)}.
+ */
+public interface MetricsSink {
+  /**
+   * Reports a snapshot. Called from a single background thread.
+   *
+   * @param snapshot The metrics to report
+   * @throws IOException If the metrics could not be reported
+   */
+  void report(ExporterMetrics.Snapshot snapshot) throws IOException;
+}
@@ -0,0 +1,460 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.trace.TraceId;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Spreads encoded spans across several endpoints, such as a number of Wavefront proxies. Batches
+ * are either routed by trace ID using consistent hashing, so that a trace stays on one endpoint and
+ * only a small share of traces move when an endpoint comes or goes, or sent to the endpoint with
+ * the fewest bytes still on their way.
+ *
+ * <p>Each endpoint has a circuit breaker. After a number of consecutive failures the endpoint is
+ * taken out of rotation, and its batches fail over to the remaining endpoints. When routing by
+ * trace ID, the traces of an endpoint that's out of rotation go to the next endpoint after them on
+ * the ring, so they are spread over the others rather than all landing on one. Once the retry
+ * interval has passed, a single batch is let through to probe the endpoint. If that succeeds the
+ * endpoint is back in rotation, otherwise it stays out for twice as long, up to a limit.
+ */
+final class MultiEndpointSpanTransport implements SpanTransport, MetricSource {
+  private static final Logger logger =
+      Logger.getLogger(MultiEndpointSpanTransport.class.getCanonicalName());
+
+  private static final int VIRTUAL_NODES = 128;
+
+  private static final long MAX_RETRY_MILLIS = 60000;
+
+  private final Endpoint[] endpoints;
+
+  private final LoadBalancing loadBalancing;
+
+  private final long[] ring;
+
+  private final int[] ringOwners;
+
+  // For each endpoint, the others in order of the share of its traces they take over
+  private final int[][] failoverOrder;
+
+  private final LongAdder failovers = new LongAdder();
+
+  /** An endpoint and the state of its circuit breaker. */
+  private static final class Endpoint {
+    final SpanTransport transport;
+
+    final String name;
+
+    final AtomicLong inFlightBytes = new AtomicLong();
+
+    final int failureThreshold;
+
+    final long minRetryNanos;
+
+    final long maxRetryNanos;
+
+    // Guarded by this
+    int failures;
+
+    long retryNanos;
+
+    long openUntil;
+
+    boolean probing;
+
+    Endpoint(
+        final SpanTransport transport,
+        final String name,
+        final int failureThreshold,
+        final long retryMillis) {
+      this.transport = transport;
+      this.name = name;
+      this.failureThreshold = Math.max(1, failureThreshold);
+      this.minRetryNanos = retryMillis * 1000000;
+      this.maxRetryNanos = Math.max(retryMillis, MAX_RETRY_MILLIS) * 1000000;
+      this.retryNanos = minRetryNanos;
+    }
+
+    /** Returns true if a batch may be sent to this endpoint now. */
+    synchronized boolean tryAcquire(final long now) {
+      if (failures < failureThreshold) {
+        return true;
+      }
+      if (probing || now - openUntil < 0) {
+        return false;
+      }
+      // Half open. Let one batch through to see if the endpoint is back.
+      probing = true;
+      return true;
+    }
+
+    synchronized boolean isHealthy() {
+      return failures < failureThreshold;
+    }
+
+    /** Returns true if the endpoint is in rotation or due to be probed. */
+    synchronized boolean isAvailable(final long now) {
+      return failures < failureThreshold || (!probing && now - openUntil >= 0);
+    }
+
+    synchronized void succeeded() {
+      if (failures >= failureThreshold) {
+        logger.info("Endpoint " + name + " is back in rotation");
+      }
+      failures = 0;
+      probing = false;
+      retryNanos = minRetryNanos;
+    }
+
+    synchronized void failed(final long now) {
+      if (probing) {
+        probing = false;
+        retryNanos = Math.min(maxRetryNanos, retryNanos * 2);
+      } else if (++failures == failureThreshold) {
+        logger.warning(
+            "Taking endpoint " + name + " out of rotation after " + failures + " failures");
+      }
+      if (failures >= failureThreshold) {
+        openUntil = now + retryNanos;
+      }
+    }
+
+    long outstandingBytes() {
+      final long backlog =
+          transport instanceof NioProxySpanTransport
+              ? ((NioProxySpanTransport) transport).getBacklogBytes()
+              : 0;
+      return inFlightBytes.get() + backlog;
+    }
+  }
+
+  /**
+   * Creates a new {@link MultiEndpointSpanTransport}
+   *
+   * @param transports The transports of the individual endpoints
+   * @param names The names of the endpoints. These determine their places on the hash ring, so
+   *     they should be stable across restarts.
+   * @param loadBalancing How to pick an endpoint for a batch
+   * @param failureThreshold The number of consecutive failures that takes an endpoint out of
+   *     rotation
+   * @param retryMillis How long to wait before probing an endpoint that's out of rotation
+   */
+  MultiEndpointSpanTransport(
+      final List<? extends SpanTransport> transports,
+      final List<String> names,
+      final LoadBalancing loadBalancing,
+      final int failureThreshold,
+      final long retryMillis) {
+    if (transports.isEmpty() || transports.size() != names.size()) {
+      throw new IllegalArgumentException("Need one name for each of at least one transport");
+    }
+    this.loadBalancing = loadBalancing;
+    endpoints = new Endpoint[transports.size()];
+    for (int i = 0; i < endpoints.length; ++i) {
+      endpoints[i] =
+          new Endpoint(transports.get(i), names.get(i), failureThreshold, retryMillis);
+    }
+
+    // Place each endpoint on the ring a number of times to even out the share of each
+    final long[] points = new long[endpoints.length * VIRTUAL_NODES];
+    for (int i = 0; i < endpoints.length; ++i) {
+      final long base = hash(names.get(i));
+      for (int j = 0; j < VIRTUAL_NODES; ++j) {
+        // Low bits hold the owner so that sorting keeps it attached to its point
+        points[i * VIRTUAL_NODES + j] =
+            (mix(base + j * 0x9e3779b97f4a7c15L) & ~0xffffL) | i;
+      }
+    }
+    Arrays.sort(points);
+    ring = points;
+    ringOwners = new int[points.length];
+    for (int i = 0; i < points.length; ++i) {
+      ringOwners[i] = (int) (points[i] & 0xffff);
+    }
+
+    // Count how many points of each endpoint are followed by each of the others, since that's
+    // where its traces go when it's out of rotation
+    final int n = endpoints.length;
+    final int[][] shares = new int[n][n];
+    for (int i = 0; i < points.length; ++i) {
+      final int owner = ringOwners[i];
+      for (int j = 1; j < points.length; ++j) {
+        final int next = ringOwners[(i + j) % points.length];
+        if (next != owner) {
+          ++shares[owner][next];
+          break;
+        }
+      }
+    }
+    failoverOrder = new int[n][];
+    for (int i = 0; i < n; ++i) {
+      final int[] share = shares[i];
+      final Integer[] others = new Integer[n - 1];
+      for (int j = 0, k = 0; j < n; ++j) {
+        if (j != i) {
+          others[k++] = j;
+        }
+      }
+      Arrays.sort(others, (a, b) -> share[a] != share[b] ? share[b] - share[a] : a - b);
+      failoverOrder[i] = new int[n - 1];
+      for (int j = 0; j < n - 1; ++j) {
+        failoverOrder[i][j] = others[j];
+      }
+    }
+  }
+
+  private static long hash(final String s) {
+    // FNV-1a
+    long h = 0xcbf29ce484222325L;
+    for (final byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    return mix(h);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Returns true if batches should be routed by trace ID, that is, if the caller should split its
+   * spans by {@link #route(TraceId)} and send them using {@link #send(int, EncodedBatch,
+   * EncodedBatch)}.
+   *
+   * @return
+   */
+  boolean isRoutingByTrace() {
+    return loadBalancing == LoadBalancing.TRACE_ID;
+  }
+
+  /**
+   * Returns the number of endpoints.
+   *
+   * @return
+   */
+  int getEndpointCount() {
+    return endpoints.length;
+  }
+
+  /**
+   * Returns the endpoint a trace belongs to. That's the first endpoint after the trace on the
+   * ring that is in rotation or due to be probed, so the traces of an endpoint that's out of
+   * rotation are spread over the others.
+   *
+   * @param traceId The trace ID
+   * @return The index of the endpoint
+   */
+  int route(final TraceId traceId) {
+    final long h = mix(traceId.hashCode()) & ~0xffffL;
+    int i = Arrays.binarySearch(ring, h);
+    if (i < 0) {
+      i = -i - 1;
+    }
+    if (i == ring.length) {
+      i = 0;
+    }
+    final int first = ringOwners[i];
+    final long now = System.nanoTime();
+    if (endpoints[first].isAvailable(now)) {
+      return first;
+    }
+    final boolean[] checked = new boolean[endpoints.length];
+    checked[first] = true;
+    int remaining = endpoints.length - 1;
+    for (int j = 1; j < ring.length && remaining > 0; ++j) {
+      final int owner = ringOwners[(i + j) % ring.length];
+      if (!checked[owner]) {
+        if (endpoints[owner].isAvailable(now)) {
+          return owner;
+        }
+        checked[owner] = true;
+        --remaining;
+      }
+    }
+    // None are available, so stick with the owner and let the send fail
+    return first;
+  }
+
+  /**
+   * Sends a batch to the endpoint with the fewest outstanding bytes, failing over to the others in
+   * turn.
+   */
+  @Override
+  public void send(final EncodedBatch spans, final EncodedBatch spanLogs) throws IOException {
+    final long now = System.nanoTime();
+    final boolean[] tried = new boolean[endpoints.length];
+    IOException error = null;
+    for (int attempt = 0; attempt < endpoints.length; ++attempt) {
+      int best = -1;
+      long bestBytes = Long.MAX_VALUE;
+      for (int i = 0; i < endpoints.length; ++i) {
+        if (!tried[i]) {
+          final long bytes = endpoints[i].outstandingBytes();
+          if (bytes < bestBytes) {
+            best = i;
+            bestBytes = bytes;
+          }
+        }
+      }
+      tried[best] = true;
+      final Endpoint e = endpoints[best];
+      if (!e.tryAcquire(now)) {
+        continue;
+      }
+      if (error != null) {
+        failovers.increment();
+      }
+      try {
+        sendTo(e, spans, spanLogs);
+        return;
+      } catch (final IOException ex) {
+        error = ex;
+      }
+    }
+    throw unavailable(error);
+  }
+
+  /**
+   * Sends a batch to an endpoint. If that endpoint is out of rotation or fails, the batch goes to
+   * the endpoint that takes over most of its traces on the ring, then to the others in turn. The
+   * order is the same for all batches of that endpoint, so the spans of a trace still end up in
+   * one place.
+   *
+   * @param endpoint The index of the endpoint, as returned by {@link #route(TraceId)}
+   * @param spans The spans to send
+   * @param spanLogs The span logs to send
+   * @throws IOException If none of the endpoints could take the batch
+   */
+  void send(final int endpoint, final EncodedBatch spans, final EncodedBatch spanLogs)
+      throws IOException {
+    final long now = System.nanoTime();
+    IOException error = null;
+    for (int attempt = 0; attempt < endpoints.length; ++attempt) {
+      final Endpoint e =
+          endpoints[attempt == 0 ? endpoint : failoverOrder[endpoint][attempt - 1]];
+      if (!e.tryAcquire(now)) {
+        continue;
+      }
+      if (attempt > 0) {
+        failovers.increment();
+      }
+      try {
+        sendTo(e, spans, spanLogs);
+        return;
+      } catch (final IOException ex) {
+        error = ex;
+      }
+    }
+    throw unavailable(error);
+  }
+
+  private void sendTo(final Endpoint e, final EncodedBatch spans, final EncodedBatch spanLogs)
+      throws IOException {
+    final long size = (long) spans.size() + spanLogs.size();
+    e.inFlightBytes.addAndGet(size);
+    try {
+      e.transport.send(spans, spanLogs);
+      e.succeeded();
+    } catch (final IOException ex) {
+      logger.log(Level.FINE, "Error while sending spans to " + e.name, ex);
+      e.failed(System.nanoTime());
+      throw ex;
+    } catch (final RuntimeException ex) {
+      // Counts as a failure too, otherwise a probe that throws would leave the breaker stuck
+      e.failed(System.nanoTime());
+      throw ex;
+    } finally {
+      e.inFlightBytes.addAndGet(-size);
+    }
+  }
+
+  private IOException unavailable(final IOException cause) {
+    return new IOException(
+        "None of the " + endpoints.length + " endpoints could take the spans", cause);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    IOException error = null;
+    for (final Endpoint e : endpoints) {
+      if (!e.isHealthy()) {
+        continue;
+      }
+      try {
+        e.transport.flush();
+      } catch (final IOException ex) {
+        error = ex;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException error = null;
+    for (final Endpoint e : endpoints) {
+      try {
+        e.transport.close();
+      } catch (final IOException ex) {
+        error = ex;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Returns the endpoints a batch of an endpoint fails over to, in the order they are tried.
+   *
+   * @param endpoint The index of the endpoint
+   * @return
+   */
+  int[] getFailoverOrder(final int endpoint) {
+    return failoverOrder[endpoint].clone();
+  }
+
+  /**
+   * Returns the number of endpoints currently in rotation.
+   *
+   * @return
+   */
+  int getHealthyEndpoints() {
+    int n = 0;
+    for (final Endpoint e : endpoints) {
+      if (e.isHealthy()) {
+        ++n;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Returns the number of batches that were sent to another endpoint than the first choice.
+   *
+   * @return
+   */
+  long getFailovers() {
+    return failovers.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("endpoints", getEndpointCount());
+    values.add("endpoints.healthy", getHealthyEndpoints());
+    values.add("endpoints.failovers", getFailovers());
+  }
+}
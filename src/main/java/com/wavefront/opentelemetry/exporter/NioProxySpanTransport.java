@@ -0,0 +1,388 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends encoded spans to the tracing port of a Wavefront proxy over a non-blocking {@link
+ * SocketChannel}. {@link #send} never touches the network. It takes over the encoded buffers,
+ * appends them to a bounded backlog and returns. A dedicated I/O thread writes the backlog using
+ * gathering writes, picking up where it left off after partial writes.
+ *
+ * <p>If the connection fails, the I/O thread reconnects with jittered exponential backoff while
+ * the backlog is kept. A batch that was only partly written when the connection broke is resent
+ * from its beginning, so a proxy restart may cause duplicates but no truncated lines. Batches are
+ * released once they have been written to the socket, though, so whatever is still in the kernel's
+ * socket buffer when the proxy goes away is lost. Once the backlog is full, {@link #send} fails so
+ * the caller can retry later.
+ */
+final class NioProxySpanTransport implements SpanTransport {
+  private static final Logger logger =
+      Logger.getLogger(NioProxySpanTransport.class.getCanonicalName());
+
+  private static final int MAX_BUFFERS_PER_WRITE = 256;
+
+  private final String host;
+
+  private final int port;
+
+  private final long maxBacklogBytes;
+
+  private final long minBackoffNanos;
+
+  private final long maxBackoffNanos;
+
+  private final Selector selector;
+
+  private final Thread ioThread;
+
+  private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+
+  private final AtomicLong backlogBytes = new AtomicLong();
+
+  private final LongAdder sentBatches = new LongAdder();
+
+  private final LongAdder rejectedBatches = new LongAdder();
+
+  private final LongAdder reconnects = new LongAdder();
+
+  // The fields below are only touched by the I/O thread
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+  private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+
+  private SocketChannel channel;
+
+  private SelectionKey key;
+
+  private long backoffNanos;
+
+  private long nextConnectNanos;
+
+  private volatile boolean connected;
+
+  private volatile boolean closed;
+
+  /** A batch handed over by {@link #send}, consisting of span lines followed by span logs. */
+  private static final class Entry {
+    final ByteBuffer[] buffers;
+
+    final long size;
+
+    final ByteBufferPool pool;
+
+    Entry(final ByteBuffer[] buffers, final long size, final ByteBufferPool pool) {
+      this.buffers = buffers;
+      this.size = size;
+      this.pool = pool;
+    }
+
+    boolean isWritten() {
+      return !buffers[buffers.length - 1].hasRemaining();
+    }
+
+    void rewind() {
+      for (final ByteBuffer b : buffers) {
+        b.rewind();
+      }
+    }
+
+    void release() {
+      for (final ByteBuffer b : buffers) {
+        pool.release(b);
+      }
+    }
+  }
+
+  /**
+   * Creates a new {@link NioProxySpanTransport} and starts its I/O thread.
+   *
+   * @param host The proxy host
+   * @param port The proxy tracing port
+   * @param maxBacklogBytes The maximum number of bytes waiting to be written
+   * @param minBackoffMillis The initial delay before reconnecting
+   * @param maxBackoffMillis The maximum delay before reconnecting
+   * @throws IOException If the selector can't be opened
+   */
+  NioProxySpanTransport(
+      final String host,
+      final int port,
+      final long maxBacklogBytes,
+      final long minBackoffMillis,
+      final long maxBackoffMillis)
+      throws IOException {
+    this.host = host;
+    this.port = port;
+    this.maxBacklogBytes = maxBacklogBytes;
+    this.minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minBackoffMillis);
+    this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    this.backoffNanos = minBackoffNanos;
+    this.nextConnectNanos = System.nanoTime();
+    selector = Selector.open();
+    ioThread = new Thread(this::run, "wavefront-proxy-io-" + host + ":" + port);
+    ioThread.setDaemon(true);
+    ioThread.start();
+  }
+
+  @Override
+  public void send(final EncodedBatch spans, final EncodedBatch spanLogs) throws IOException {
+    if (closed) {
+      throw new IOException("Transport is closed");
+    }
+    final long size = spans.size() + spanLogs.size();
+    if (backlogBytes.addAndGet(size) > maxBacklogBytes) {
+      backlogBytes.addAndGet(-size);
+      rejectedBatches.increment();
+      throw new IOException(
+          "Proxy backlog is full (" + backlogBytes.get() + " bytes). Is the proxy down?");
+    }
+    final ByteBuffer[] lines = spans.detach();
+    final ByteBuffer[] logs = spanLogs.detach();
+    final ByteBuffer[] all = new ByteBuffer[lines.length + logs.length];
+    System.arraycopy(lines, 0, all, 0, lines.length);
+    System.arraycopy(logs, 0, all, lines.length, logs.length);
+    if (all.length == 0) {
+      return;
+    }
+    incoming.add(new Entry(all, size, spans.getPool()));
+    selector.wakeup();
+  }
+
+  private void run() {
+    while (!closed) {
+      try {
+        if (channel == null && System.nanoTime() - nextConnectNanos >= 0) {
+          startConnect();
+        }
+        long timeoutMillis = 0; // Wait until woken up
+        if (channel == null) {
+          timeoutMillis =
+              Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextConnectNanos - System.nanoTime()));
+        }
+        selector.select(timeoutMillis);
+        selector.selectedKeys().clear();
+        if (connected && key.isValid() && key.isReadable()) {
+          checkClosed();
+        }
+        Entry e;
+        while ((e = incoming.poll()) != null) {
+          pending.add(e);
+        }
+        if (channel != null && channel.isConnectionPending()) {
+          if (!channel.finishConnect()) {
+            continue;
+          }
+          connected = true;
+          backoffNanos = minBackoffNanos;
+          logger.log(Level.FINE, "Connected to proxy at " + host + ":" + port);
+        }
+        if (connected) {
+          write();
+        }
+      } catch (final IOException e) {
+        // Expected while the proxy is restarting, so keep it short
+        logger.log(
+            Level.WARNING,
+            "Error talking to proxy at " + host + ":" + port + ": " + e + ". Reconnecting");
+        disconnect();
+      } catch (final RuntimeException e) {
+        logger.log(Level.WARNING, "Unexpected error in proxy transport", e);
+        disconnect();
+      }
+    }
+    disconnect();
+    releaseAll();
+  }
+
+  private void startConnect() throws IOException {
+    final SocketChannel ch = SocketChannel.open();
+    try {
+      ch.configureBlocking(false);
+      ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      ch.connect(new InetSocketAddress(host, port));
+      key = ch.register(selector, SelectionKey.OP_CONNECT);
+      channel = ch;
+      if (ch.isConnected()) {
+        connected = true;
+        backoffNanos = minBackoffNanos;
+      }
+    } catch (final IOException e) {
+      ch.close();
+      throw e;
+    }
+  }
+
+  /**
+   * The proxy never sends anything on the tracing port, so the channel becoming readable means
+   * that the proxy has closed the connection or that it has failed. Detecting this early keeps us
+   * from writing the next batch into a dead connection.
+   */
+  private void checkClosed() throws IOException {
+    readBuffer.clear();
+    if (channel.read(readBuffer) < 0) {
+      throw new IOException("Connection closed by proxy");
+    }
+  }
+
+  private void write() throws IOException {
+    while (!pending.isEmpty()) {
+      // Gather as many buffers as we can into a single write
+      int n = 0;
+      for (final Entry e : pending) {
+        for (final ByteBuffer b : e.buffers) {
+          if (b.hasRemaining() && n < writeBuffers.length) {
+            writeBuffers[n++] = b;
+          }
+        }
+        if (n == writeBuffers.length) {
+          break;
+        }
+      }
+      final long written = channel.write(writeBuffers, 0, n);
+      for (int i = 0; i < n; ++i) {
+        writeBuffers[i] = null;
+      }
+      while (!pending.isEmpty() && pending.peek().isWritten()) {
+        final Entry e = pending.poll();
+        backlogBytes.addAndGet(-e.size);
+        sentBatches.increment();
+        e.release();
+      }
+      if (written == 0) {
+        // The socket buffer is full. Wait until the proxy catches up.
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return;
+      }
+    }
+    key.interestOps(SelectionKey.OP_READ);
+  }
+
+  private void disconnect() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        // Nothing we can do about it
+      }
+      channel = null;
+      key = null;
+      reconnects.increment();
+    }
+    connected = false;
+    // Anything partially written may have been cut off mid-line, so start that batch over
+    final Entry head = pending.peek();
+    if (head != null) {
+      head.rewind();
+    }
+    final long jittered =
+        backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+    nextConnectNanos = System.nanoTime() + jittered;
+    backoffNanos = Math.min(maxBackoffNanos, backoffNanos * 2);
+  }
+
+  private void releaseAll() {
+    Entry e;
+    while ((e = incoming.poll()) != null) {
+      pending.add(e);
+    }
+    while ((e = pending.poll()) != null) {
+      backlogBytes.addAndGet(-e.size);
+      e.release();
+    }
+  }
+
+  /**
+   * Waits for the backlog to be written, for at most a few seconds.
+   *
+   * @throws IOException If the backlog could not be written in time
+   */
+  @Override
+  public void flush() throws IOException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (backlogBytes.get() > 0) {
+      if (System.currentTimeMillis() > deadline || closed) {
+        throw new IOException(
+            "Timed out flushing " + backlogBytes.get() + " bytes to proxy at " + host + ":" + port);
+      }
+      try {
+        Thread.sleep(10);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while flushing");
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      ioThread.join(5000);
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    selector.close();
+  }
+
+  /**
+   * Returns the number of bytes waiting to be written.
+   *
+   * @return
+   */
+  long getBacklogBytes() {
+    return backlogBytes.get();
+  }
+
+  /**
+   * Returns the number of batches fully written to the proxy.
+   *
+   * @return
+   */
+  long getSentBatches() {
+    return sentBatches.sum();
+  }
+
+  /**
+   * Returns the number of batches rejected because the backlog was full.
+   *
+   * @return
+   */
+  long getRejectedBatches() {
+    return rejectedBatches.sum();
+  }
+
+  /**
+   * Returns the number of times the connection was lost or failed to open.
+   *
+   * @return
+   */
+  long getReconnects() {
+    return reconnects.sum();
+  }
+
+  /**
+   * Returns true if the transport currently has a connection to the proxy.
+   *
+   * @return
+   */
+  boolean isConnected() {
+    return connected;
+  }
+}
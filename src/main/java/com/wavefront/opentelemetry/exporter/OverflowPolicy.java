@@ -0,0 +1,13 @@
+package com.wavefront.opentelemetry.exporter;
+
+/** Determines what the asynchronous exporter does when its queue is full. */
+public enum OverflowPolicy {
+  /** Drop the span that's being added. */
+  DROP_NEWEST,
+
+  /** Drop the oldest queued span to make room for the new one. */
+  DROP_OLDEST,
+
+  /** Wait for room in the queue, dropping spans once the blocking timeout has passed. */
+  BLOCK
+}
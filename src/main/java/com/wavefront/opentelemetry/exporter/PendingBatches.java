@@ -0,0 +1,188 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Encoded spans waiting for an {@link AdaptiveFlusher} to send them. Batches added between two
+ * flushes are combined, with one pair of batches per endpoint when routing by trace, since those
+ * are sent to different places.
+ *
+ * <p>Spans that can't be sent are put back in front of those that arrived meanwhile, to be
+ * flushed again after a backoff. The memory held per endpoint is capped. Past the cap, new spans
+ * are refused and spans from failed flushes are dropped and counted as failed.
+ */
+final class PendingBatches implements AdaptiveFlusher.Action {
+  private static final Logger logger = Logger.getLogger(PendingBatches.class.getCanonicalName());
+
+  private final boolean routed;
+
+  private final long maxBytes;
+
+  private final ByteBufferPool pool;
+
+  private final StagingBuffer.Sender sender;
+
+  private final ExporterMetrics metrics;
+
+  private final AdaptiveFlusher flusher;
+
+  // Guarded by lines
+  private final EncodedBatch[] lines;
+
+  private final EncodedBatch[] logs;
+
+  /**
+   * Creates a new {@link PendingBatches}
+   *
+   * @param routes The number of endpoints spans are routed to by trace, or 0 if there's only one
+   * @param maxBytes The most memory to hold per endpoint
+   * @param pool The pool to take buffers from
+   * @param sender Sends the combined batches
+   * @param metrics Where to count sends and dropped spans
+   * @param newFlusher Creates the flusher that decides when to send, given what it should run
+   */
+  PendingBatches(
+      final int routes,
+      final long maxBytes,
+      final ByteBufferPool pool,
+      final StagingBuffer.Sender sender,
+      final ExporterMetrics metrics,
+      final Function<AdaptiveFlusher.Action, AdaptiveFlusher> newFlusher) {
+    this.routed = routes > 0;
+    this.maxBytes = maxBytes;
+    this.pool = pool;
+    this.sender = sender;
+    this.metrics = metrics;
+    final int n = Math.max(1, routes);
+    lines = new EncodedBatch[n];
+    logs = new EncodedBatch[n];
+    for (int i = 0; i < n; ++i) {
+      lines[i] = new EncodedBatch(pool);
+      logs[i] = new EncodedBatch(pool);
+    }
+    flusher = newFlusher.apply(this);
+  }
+
+  /**
+   * Adds encoded spans, taking over the contents of the batches, and lets the flusher know.
+   *
+   * @param route The endpoint to send to, or -1 if there's only one
+   * @param spans The span lines
+   * @param spanLogs The span logs
+   * @return False if too many spans are waiting already, in which case the batches are left as
+   *     they were
+   */
+  boolean add(final int route, final EncodedBatch spans, final EncodedBatch spanLogs) {
+    final int count = spans.count();
+    final long bytes = (long) spans.size() + spanLogs.size();
+    final int i = Math.max(route, 0);
+    synchronized (lines) {
+      // Failed flushes are retried, so refuse more spans while too many are waiting. The memory
+      // held counts, which can be more than the bytes written.
+      if (lines[i].capacity() + logs[i].capacity() + bytes > maxBytes && !lines[i].isEmpty()) {
+        return false;
+      }
+      lines[i].append(spans);
+      logs[i].append(spanLogs);
+    }
+    flusher.added(count, bytes);
+    return true;
+  }
+
+  /**
+   * Sends the pending spans. Only to be called by the flusher.
+   *
+   * @throws IOException If some of the spans could not be sent
+   */
+  @Override
+  public void flush() throws IOException {
+    final int n = lines.length;
+    final EncodedBatch[] l = new EncodedBatch[n];
+    final EncodedBatch[] g = new EncodedBatch[n];
+    for (int i = 0; i < n; ++i) {
+      l[i] = new EncodedBatch(pool);
+      g[i] = new EncodedBatch(pool);
+    }
+    synchronized (lines) {
+      for (int i = 0; i < n; ++i) {
+        l[i].append(lines[i]);
+        g[i].append(logs[i]);
+      }
+    }
+    IOException error = null;
+    try {
+      for (int i = 0; i < n; ++i) {
+        if (l[i].isEmpty() && g[i].isEmpty()) {
+          continue;
+        }
+        final long start = System.nanoTime();
+        try {
+          sender.send(routed ? i : -1, l[i], g[i]);
+        } catch (final IOException e) {
+          error = e;
+          requeue(i, l[i], g[i]);
+        } finally {
+          metrics.recordSend(System.nanoTime() - start);
+        }
+      }
+    } finally {
+      for (int i = 0; i < n; ++i) {
+        l[i].release();
+        g[i].release();
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /** Puts spans from a failed flush back in front of the pending ones, if there's room. */
+  private void requeue(final int route, final EncodedBatch spans, final EncodedBatch spanLogs) {
+    final int count = spans.count();
+    final long bytes = (long) spans.size() + spanLogs.size();
+    final long held = spans.capacity() + spanLogs.capacity();
+    synchronized (lines) {
+      if (held + lines[route].capacity() + logs[route].capacity() <= maxBytes) {
+        spans.append(lines[route]);
+        spanLogs.append(logs[route]);
+        lines[route].append(spans);
+        logs[route].append(spanLogs);
+        flusher.requeued(count, bytes);
+        return;
+      }
+    }
+    logger.log(Level.WARNING, "Too many spans waiting to be flushed, dropping " + count);
+    metrics.recordFailed(count);
+  }
+
+  /**
+   * Returns the flusher that decides when the pending spans are sent.
+   *
+   * @return
+   */
+  AdaptiveFlusher getFlusher() {
+    return flusher;
+  }
+
+  /**
+   * Flushes what's pending one last time and drops whatever still can't be sent, counting it as
+   * failed.
+   */
+  void close() {
+    flusher.close();
+    synchronized (lines) {
+      for (int i = 0; i < lines.length; ++i) {
+        final int count = lines[i].count();
+        if (count > 0) {
+          logger.log(Level.WARNING, "Could not flush " + count + " spans at shutdown");
+          metrics.recordFailed(count);
+        }
+        lines[i].release();
+        logs[i].release();
+      }
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import javax.net.SocketFactory;
+
+/**
+ * Sends encoded spans to the tracing port of a Wavefront proxy over a plain socket. The connection
+ * is opened on first use and reopened on the next send after a failure.
+ */
+final class ProxySpanTransport implements SpanTransport {
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  private final String host;
+
+  private final int port;
+
+  private final SocketFactory socketFactory;
+
+  private final byte[] scratch = new byte[8192];
+
+  private Socket socket;
+
+  private OutputStream out;
+
+  /**
+   * Creates a new {@link ProxySpanTransport}
+   *
+   * @param host The proxy host
+   * @param port The proxy tracing port
+   * @param socketFactory The socket factory to use. If null, the default factory is used.
+   */
+  ProxySpanTransport(final String host, final int port, final SocketFactory socketFactory) {
+    this.host = host;
+    this.port = port;
+    this.socketFactory = socketFactory != null ? socketFactory : SocketFactory.getDefault();
+  }
+
+  @Override
+  public synchronized void send(final EncodedBatch spans, final EncodedBatch spanLogs)
+      throws IOException {
+    try {
+      if (out == null) {
+        connect();
+      }
+      spans.writeTo(out, scratch);
+      spanLogs.writeTo(out, scratch);
+      out.flush();
+    } catch (final IOException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  private void connect() throws IOException {
+    final Socket s = socketFactory.createSocket();
+    try {
+      s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      out = s.getOutputStream();
+      socket = s;
+    } catch (final IOException e) {
+      s.close();
+      throw e;
+    }
+  }
+
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (final IOException e) {
+        // Nothing we can do about it
+      }
+    }
+    socket = null;
+    out = null;
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    disconnect();
+  }
+}
@@ -0,0 +1,229 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates request rate, errors and duration (RED metrics) per operation from exported spans
+ * and periodically flushes them to Wavefront, using the same metric names as the other Wavefront
+ * tracing integrations. For every operation and error state, the invocation count, the total time
+ * and a duration histogram are sent, tagged with application, service, operation and error.
+ *
+ * <p>Recording is lock-free. The number of distinct operations is bounded; once the limit is
+ * reached, spans of new operations are counted under {@link #OVERFLOW_OPERATION}. Operations that
+ * have been idle for two flushes are forgotten to make room for new ones.
+ */
+final class RedMetricsAggregator {
+  static final String OVERFLOW_OPERATION = "(other)";
+
+  private static final String PREFIX = "tracing.derived.";
+
+  private static final long MAX_DURATION_MICROS = 1L << 36; // About 19 hours
+
+  private static final int BUCKETS = ConcurrentHistogram.bucket(MAX_DURATION_MICROS) + 1;
+
+  private static final int MAX_IDLE_FLUSHES = 2;
+
+  private static final Set<HistogramGranularity> GRANULARITY =
+      Collections.singleton(HistogramGranularity.MINUTE);
+
+  private final ConcurrentMap<String, Stats> ok = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, Stats> errors = new ConcurrentHashMap<>();
+
+  // The operation names tracked in either map, which the limit applies to
+  private final Set<String> operations = ConcurrentHashMap.newKeySet();
+
+  private final int maxOperations;
+
+  private final String application;
+
+  private final String service;
+
+  private final String source;
+
+  private final String prefix;
+
+  private final String shard;
+
+  /** Counters and a log-linear duration histogram for one operation and error state. */
+  private static final class Stats {
+    final LongAdder count = new LongAdder();
+
+    final LongAdder totalMicros = new LongAdder();
+
+    final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    // Only touched by the flushing task, which never runs concurrently with itself
+    int idleFlushes;
+
+    void record(final long durationMicros) {
+      final long d = Math.min(Math.max(0, durationMicros), MAX_DURATION_MICROS);
+      count.increment();
+      totalMicros.add(d);
+      buckets.incrementAndGet(ConcurrentHistogram.bucket(d));
+    }
+  }
+
+  /**
+   * Creates a new {@link RedMetricsAggregator}
+   *
+   * @param application The application tag
+   * @param service The service tag
+   * @param source The source (host) name
+   * @param maxOperations The maximum number of distinct operations to track
+   */
+  RedMetricsAggregator(
+      final String application,
+      final String service,
+      final String source,
+      final int maxOperations) {
+    this(application, service, source, maxOperations, -1);
+  }
+
+  /**
+   * Creates a new {@link RedMetricsAggregator} for one shard of a sharded exporter. Each shard
+   * sees only its share of the traces, so its metrics are tagged with the shard index and need to
+   * be summed across shards.
+   *
+   * @param application The application tag
+   * @param service The service tag
+   * @param source The source (host) name
+   * @param maxOperations The maximum number of distinct operations to track
+   * @param shard The index of the shard, or -1 if the exporter isn't sharded
+   */
+  RedMetricsAggregator(
+      final String application,
+      final String service,
+      final String source,
+      final int maxOperations,
+      final int shard) {
+    this.application = application;
+    this.service = service;
+    this.source = source;
+    this.maxOperations = maxOperations;
+    this.prefix = PREFIX + application + "." + service + ".";
+    this.shard = shard >= 0 ? Integer.toString(shard) : null;
+  }
+
+  /**
+   * Records a span.
+   *
+   * @param operation The span name
+   * @param error Whether the span represents a failed operation
+   * @param durationMicros The duration of the span in microseconds
+   */
+  void record(final String operation, final boolean error, final long durationMicros) {
+    final ConcurrentMap<String, Stats> map = error ? errors : ok;
+    Stats s = map.get(operation);
+    if (s == null) {
+      s = add(map, operation);
+    }
+    s.record(durationMicros);
+  }
+
+  private Stats add(final ConcurrentMap<String, Stats> map, final String operation) {
+    // An operation with both successful and failed spans counts once towards the limit. Threads
+    // adding new operations at the same time may go slightly over it.
+    if (!operations.contains(operation)) {
+      if (operations.size() >= maxOperations) {
+        return map.computeIfAbsent(OVERFLOW_OPERATION, k -> new Stats());
+      }
+      operations.add(operation);
+    }
+    return map.computeIfAbsent(operation, k -> new Stats());
+  }
+
+  /**
+   * Sends the metrics aggregated since the last flush and resets them. Must not be called
+   * concurrently.
+   *
+   * @param sender The sender to send the metrics through
+   * @throws IOException If the metrics could not be sent
+   */
+  void flush(final WavefrontSender sender) throws IOException {
+    final long timestamp = System.currentTimeMillis();
+    flush(sender, ok, errors, false, timestamp);
+    flush(sender, errors, ok, true, timestamp);
+  }
+
+  private void flush(
+      final WavefrontSender sender,
+      final ConcurrentMap<String, Stats> map,
+      final ConcurrentMap<String, Stats> other,
+      final boolean error,
+      final long timestamp)
+      throws IOException {
+    final Iterator<Map.Entry<String, Stats>> it = map.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, Stats> e = it.next();
+      final String operation = e.getKey();
+      final Stats s = e.getValue();
+      final long count = s.count.sumThenReset();
+      if (count == 0) {
+        // A span recorded right as the entry is removed may be lost. That's acceptable for an
+        // operation that has been idle for a while.
+        if (++s.idleFlushes >= MAX_IDLE_FLUSHES) {
+          it.remove();
+          if (!other.containsKey(operation)) {
+            operations.remove(operation);
+          }
+        }
+        continue;
+      }
+      s.idleFlushes = 0;
+      final long totalMicros = s.totalMicros.sumThenReset();
+      final List<Pair<Double, Integer>> centroids = new ArrayList<>();
+      for (int i = 0; i < BUCKETS; ++i) {
+        final long c = s.buckets.getAndSet(i, 0);
+        if (c > 0) {
+          centroids.add(new Pair<>(midpoint(i), (int) Math.min(Integer.MAX_VALUE, c)));
+        }
+      }
+      final Map<String, String> tags = new HashMap<>();
+      tags.put("application", application);
+      tags.put("service", service);
+      tags.put("operationName", operation);
+      tags.put("error", Boolean.toString(error));
+      if (shard != null) {
+        tags.put("shard", shard);
+      }
+      final String name = prefix + operation;
+      sender.sendMetric(name + ".invocation.count", count, timestamp, source, tags);
+      if (error) {
+        sender.sendMetric(name + ".error.count", count, timestamp, source, tags);
+      }
+      sender.sendMetric(name + ".total_time.millis", totalMicros / 1000.0, timestamp, source, tags);
+      sender.sendDistribution(
+          name + ".duration.micros", centroids, GRANULARITY, timestamp, source, tags);
+    }
+  }
+
+  private static double midpoint(final int bucket) {
+    final long upper = ConcurrentHistogram.upperBound(bucket);
+    final long lower = bucket > 0 ? ConcurrentHistogram.upperBound(bucket - 1) + 1 : 0;
+    return (lower + upper) / 2.0;
+  }
+
+  /**
+   * Returns the number of distinct operations currently tracked, not counting the overflow.
+   *
+   * @return
+   */
+  int getOperationCount() {
+    return operations.size();
+  }
+}
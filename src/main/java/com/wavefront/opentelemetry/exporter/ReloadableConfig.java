@@ -0,0 +1,111 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.auto.exportersupport.ConfigProvider;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of the exporter configuration, made up of the settings in a properties file laid
+ * over those of the auto instrumenter. It remembers every setting read from it, so that a later
+ * snapshot can be checked for changes to the settings the exporter actually uses.
+ */
+final class ReloadableConfig implements ConfigProvider {
+  private final ConfigProvider base;
+
+  private final Map<String, String> overrides;
+
+  // Empty for settings that weren't given, since the map can't hold nulls
+  private final Map<String, Optional<String>> read = new ConcurrentHashMap<>();
+
+  private ReloadableConfig(final ConfigProvider base, final Map<String, String> overrides) {
+    this.base = base;
+    this.overrides = overrides;
+  }
+
+  /**
+   * Takes a snapshot of the configuration.
+   *
+   * @param base The configuration of the auto instrumenter
+   * @param file The properties file with settings that take precedence. It's fine if it doesn't
+   *     exist.
+   * @return
+   * @throws IOException If the file exists but could not be read
+   */
+  static ReloadableConfig load(final ConfigProvider base, final File file) throws IOException {
+    if (!file.exists()) {
+      return new ReloadableConfig(base, Collections.emptyMap());
+    }
+    final Properties props = new Properties();
+    try (final InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    final Map<String, String> overrides = new HashMap<>();
+    for (final String key : props.stringPropertyNames()) {
+      overrides.put(key, props.getProperty(key).trim());
+    }
+    return new ReloadableConfig(base, overrides);
+  }
+
+  /**
+   * Returns the settings read from this snapshot that have a different value in a newer one.
+   *
+   * @param newer The newer snapshot
+   * @return
+   */
+  Set<String> changed(final ReloadableConfig newer) {
+    final Set<String> changed = new HashSet<>();
+    for (final Map.Entry<String, Optional<String>> e : read.entrySet()) {
+      // Also records the setting as read from the newer snapshot, so it's checked next time
+      final String value = newer.getString(e.getKey(), null);
+      if (!Objects.equals(value, e.getValue().orElse(null))) {
+        changed.add(e.getKey());
+      }
+    }
+    return changed;
+  }
+
+  @Override
+  public String getString(final String key, final String defaultValue) {
+    String value = overrides.get(key);
+    if (value == null) {
+      value = base.getString(key, null);
+    }
+    read.put(key, Optional.ofNullable(value));
+    return value != null ? value : defaultValue;
+  }
+
+  @Override
+  public int getInt(final String key, final int defaultValue) {
+    final String value = getString(key, null);
+    return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+  }
+
+  @Override
+  public long getLong(final String key, final int defaultValue) {
+    final String value = getString(key, null);
+    return value != null ? Long.parseLong(value.trim()) : defaultValue;
+  }
+
+  @Override
+  public boolean getBoolean(final String key, final boolean defaultValue) {
+    final String value = getString(key, null);
+    return value != null ? Boolean.parseBoolean(value.trim()) : defaultValue;
+  }
+
+  @Override
+  public double getDouble(final String key, final double defaultValue) {
+    final String value = getString(key, null);
+    return value != null ? Double.parseDouble(value.trim()) : defaultValue;
+  }
+}
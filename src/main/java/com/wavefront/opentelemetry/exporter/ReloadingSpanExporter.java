@@ -0,0 +1,202 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.auto.exportersupport.ConfigProvider;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-reads the exporter configuration while the application is running and applies changes
+ * without a restart. Settings are read from a properties file laid over the auto instrumenter's
+ * configuration, and both are checked for changes periodically.
+ *
+ * <p>Changes to the tag policy, the span log limits and the tail sampling rate and threshold are
+ * applied to the running exporter in place. Any other change, such as a new endpoint or flush
+ * interval, results in a new exporter with its own sender. New exports go to it right away, while
+ * the old exporter finishes the exports in progress, drains its queues and shuts down in the
+ * background.
+ *
+ * <p>If the new configuration is invalid, the error is logged and the exporter keeps running with
+ * the old one.
+ */
+final class ReloadingSpanExporter implements SpanExporter {
+  private static final Logger logger =
+      Logger.getLogger(ReloadingSpanExporter.class.getCanonicalName());
+
+  private static final long DRAIN_POLL_MILLIS = 10;
+
+  private final ConfigProvider base;
+
+  private final File file;
+
+  private final WavefrontSpanExporterFactory factory;
+
+  private final Workers workers = Workers.dedicated();
+
+  private final Workers.Repeating reloader;
+
+  private final List<Generation> retiring = new CopyOnWriteArrayList<>();
+
+  private volatile Generation current;
+
+  // Only touched by the reloading task, or by shutdown once it has stopped
+  private ReloadableConfig config;
+
+  /** An exporter built from one version of the configuration. */
+  private static final class Generation {
+    final SpanExporter exporter;
+
+    final AtomicInteger active = new AtomicInteger();
+
+    volatile boolean retired;
+
+    // Guarded by this
+    boolean closed;
+
+    Generation(final SpanExporter exporter) {
+      this.exporter = exporter;
+    }
+  }
+
+  /**
+   * Creates a new {@link ReloadingSpanExporter}
+   *
+   * @param base The configuration of the auto instrumenter
+   * @param file The properties file with settings that take precedence
+   * @param intervalMillis How often to check for changes
+   * @param factory Builds the exporters
+   * @throws IOException If the properties file exists but could not be read
+   */
+  ReloadingSpanExporter(
+      final ConfigProvider base,
+      final File file,
+      final long intervalMillis,
+      final WavefrontSpanExporterFactory factory)
+      throws IOException {
+    this.base = base;
+    this.file = file;
+    this.factory = factory;
+    config = ReloadableConfig.load(base, file);
+    current = new Generation(factory.create(config));
+    reloader = workers.repeat(this::reload, intervalMillis);
+  }
+
+  /**
+   * Checks the configuration for changes and applies them.
+   *
+   * @return True if anything changed
+   */
+  boolean reload() {
+    final ReloadableConfig next;
+    try {
+      next = ReloadableConfig.load(base, file);
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Could not read exporter settings from " + file, e);
+      return false;
+    }
+    final Set<String> changed = config.changed(next);
+    if (changed.isEmpty()) {
+      return false;
+    }
+    // Remembered even if they can't be applied, so that a bad setting is only reported once
+    config = next;
+    logger.log(Level.INFO, "Exporter settings changed: " + changed);
+    boolean tunable = true;
+    for (final String key : changed) {
+      tunable &= factory.isTunable(key);
+    }
+    try {
+      final SpanExporter exporter = current.exporter;
+      if (tunable && exporter instanceof WavefrontSpanExporter) {
+        ((WavefrontSpanExporter) exporter).retune(factory.builder(next));
+      } else if (tunable && exporter instanceof ShardedSpanExporter) {
+        ((ShardedSpanExporter) exporter).retune(factory.builder(next));
+      } else {
+        replace(factory.create(next));
+      }
+      return true;
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Could not apply new exporter settings. Keeping the old ones", e);
+      return false;
+    }
+  }
+
+  private void replace(final SpanExporter exporter) {
+    final Generation old = current;
+    current = new Generation(exporter);
+    old.retired = true;
+    retiring.add(old);
+    workers.execute(() -> close(old));
+  }
+
+  /** Waits for the exports in progress on a generation to finish, then shuts its exporter down. */
+  private void close(final Generation g) {
+    synchronized (g) {
+      if (g.closed) {
+        return;
+      }
+      try {
+        while (g.active.get() > 0) {
+          Thread.sleep(DRAIN_POLL_MILLIS);
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {
+        g.exporter.shutdown();
+      } catch (final RuntimeException e) {
+        logger.log(Level.WARNING, "Error shutting down replaced exporter", e);
+      }
+      g.closed = true;
+    }
+    retiring.remove(g);
+  }
+
+  /**
+   * Returns the exporter that new exports go to.
+   *
+   * @return
+   */
+  SpanExporter getExporter() {
+    return current.exporter;
+  }
+
+  @Override
+  public ResultCode export(final List<SpanData> spans) {
+    for (; ; ) {
+      final Generation g = current;
+      g.active.incrementAndGet();
+      try {
+        if (!g.retired) {
+          return g.exporter.export(spans);
+        }
+        // Replaced since we looked, and its exporter may already be shutting down. Unless we've
+        // been shut down ourselves, the next one takes the spans.
+        if (g == current) {
+          return ResultCode.FAILED_NOT_RETRYABLE;
+        }
+      } finally {
+        g.active.decrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    reloader.cancel();
+    final Generation g = current;
+    g.retired = true;
+    close(g);
+    for (final Generation old : retiring) {
+      close(old);
+    }
+    workers.shutdown();
+  }
+}
@@ -0,0 +1,266 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds spans that could not be sent and retries them in the background, so that a failed
+ * export doesn't have to be retried by the span processor. Only the spans that weren't sent are
+ * queued, which avoids sending the rest of their batch twice.
+ *
+ * <p>Retries back off exponentially while the backend keeps failing and the backoff is reset by
+ * the first successful retry. The estimated memory used by queued spans is capped. Spans that
+ * don't fit are dropped, as are spans still queued when the exporter shuts down and a last
+ * attempt to send them fails.
+ */
+final class RetryQueue implements MetricSource {
+  private static final Logger logger = Logger.getLogger(RetryQueue.class.getCanonicalName());
+
+  /** Sends spans. */
+  interface Action {
+    /**
+     * Tries to send spans.
+     *
+     * @param spans The spans to send
+     * @return The spans that could not be sent, in their original order
+     */
+    List<SpanData> send(List<SpanData> spans);
+  }
+
+  /** A batch of queued spans and its estimated size. */
+  private static final class Entry {
+    final List<SpanData> spans;
+
+    final long bytes;
+
+    Entry(final List<SpanData> spans) {
+      this.spans = spans;
+      this.bytes = SpanSize.estimate(spans);
+    }
+  }
+
+  private final Action action;
+
+  private final long maxBytes;
+
+  private final long initialBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final Workers.Drain drain;
+
+  private final LongAdder retried = new LongAdder();
+
+  private final LongAdder dropped = new LongAdder();
+
+  // Guarded by this
+  private final Deque<Entry> queue = new ArrayDeque<>();
+
+  private long pendingSpans;
+
+  private long pendingBytes;
+
+  private long backoffMillis;
+
+  private long nextAttempt;
+
+  private boolean closed;
+
+  /**
+   * Creates a new {@link RetryQueue}
+   *
+   * @param action How to send spans
+   * @param maxBytes The maximum estimated memory used by queued spans
+   * @param initialBackoffMillis The time to wait before the first retry
+   * @param maxBackoffMillis The longest time to wait between retries
+   * @param workers Where to run the retries
+   */
+  RetryQueue(
+      final Action action,
+      final long maxBytes,
+      final long initialBackoffMillis,
+      final long maxBackoffMillis,
+      final Workers workers) {
+    this.action = action;
+    this.maxBytes = maxBytes;
+    this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+    this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    this.backoffMillis = this.initialBackoffMillis;
+    this.drain = workers.drain(this::retryNext);
+  }
+
+  /**
+   * Queues spans for retrying. If they don't fit, they're dropped.
+   *
+   * @param spans The spans
+   * @return True if the spans were queued
+   */
+  boolean offer(final List<SpanData> spans) {
+    final Entry e = new Entry(spans);
+    synchronized (this) {
+      if (closed || pendingBytes + e.bytes > maxBytes) {
+        dropped.add(spans.size());
+        return false;
+      }
+      if (queue.isEmpty()) {
+        nextAttempt = System.nanoTime() + backoffMillis * 1000000;
+      }
+      queue.addLast(e);
+      pendingSpans += spans.size();
+      pendingBytes += e.bytes;
+    }
+    drain.start();
+    return true;
+  }
+
+  /**
+   * Returns true if spans are waiting to be retried. New spans should then be queued behind them
+   * rather than sent, since the backend is likely still failing.
+   *
+   * @return
+   */
+  synchronized boolean hasBacklog() {
+    return !queue.isEmpty();
+  }
+
+  /** Retries the batch at the head of the queue if it's due, or returns how long until it is. */
+  private long retryNext() {
+    final Entry head;
+    synchronized (this) {
+      if (queue.isEmpty()) {
+        return Workers.Step.DONE;
+      }
+      final long waitNanos = nextAttempt - System.nanoTime();
+      if (waitNanos > 0) {
+        return waitNanos / 1000000 + 1;
+      }
+      head = queue.peekFirst();
+    }
+    retry(head);
+    return 0;
+  }
+
+  /** Retries the batch at the head of the queue and puts back whatever still couldn't be sent. */
+  private void retry(final Entry head) {
+    retried.add(head.spans.size());
+    List<SpanData> unsent;
+    try {
+      unsent = action.send(head.spans);
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while retrying spans", e);
+      unsent = head.spans;
+    }
+    final Entry rest = unsent.isEmpty() ? null : new Entry(unsent);
+    synchronized (this) {
+      queue.removeFirst();
+      pendingSpans -= head.spans.size();
+      pendingBytes -= head.bytes;
+      if (rest == null) {
+        backoffMillis = initialBackoffMillis;
+        nextAttempt = System.nanoTime();
+        return;
+      }
+      queue.addFirst(rest);
+      pendingSpans += rest.spans.size();
+      pendingBytes += rest.bytes;
+      nextAttempt = System.nanoTime() + backoffMillis * 1000000;
+      backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+    }
+  }
+
+  /**
+   * Returns the number of spans waiting to be retried.
+   *
+   * @return
+   */
+  synchronized long getPendingSpans() {
+    return pendingSpans;
+  }
+
+  /**
+   * Returns the estimated memory used by spans waiting to be retried, in bytes.
+   *
+   * @return
+   */
+  synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Returns the current time to wait between retries, in milliseconds.
+   *
+   * @return
+   */
+  synchronized long getBackoffMillis() {
+    return backoffMillis;
+  }
+
+  /**
+   * Returns the number of span send attempts made by retries.
+   *
+   * @return
+   */
+  long getRetried() {
+    return retried.sum();
+  }
+
+  /**
+   * Returns the number of spans dropped because they didn't fit or were still queued at shutdown.
+   *
+   * @return
+   */
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("spans.retried", getRetried());
+    values.add("spans.retry.dropped", getDropped());
+    values.add("retry.pending.spans", getPendingSpans());
+    values.add("retry.pending.bytes", getPendingBytes());
+  }
+
+  /**
+   * Stops retrying, waiting for a retry in progress to finish. The queued spans get one last
+   * attempt without waiting for the backoff and whatever still can't be sent is dropped.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    drain.close();
+    final List<Entry> remaining;
+    synchronized (this) {
+      remaining = new ArrayList<>(queue);
+      queue.clear();
+      pendingSpans = 0;
+      pendingBytes = 0;
+    }
+    boolean failing = false;
+    long lost = 0;
+    for (final Entry e : remaining) {
+      List<SpanData> unsent = e.spans;
+      if (!failing) {
+        retried.add(e.spans.size());
+        try {
+          unsent = action.send(e.spans);
+        } catch (final RuntimeException ex) {
+          logger.log(Level.WARNING, "Error while retrying spans", ex);
+        }
+        failing = !unsent.isEmpty();
+      }
+      dropped.add(unsent.size());
+      lost += unsent.size();
+    }
+    if (lost > 0) {
+      logger.log(Level.WARNING, "Dropped " + lost + " spans that could not be sent at shutdown");
+    }
+  }
+}
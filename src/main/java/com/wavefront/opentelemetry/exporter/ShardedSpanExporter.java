@@ -0,0 +1,144 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads spans across several independent {@link WavefrontSpanExporter}s, each with its own
+ * sender or transport, buffers and connections, so that threads exporting at the same time don't
+ * all contend for one sender. Spans are routed by a hash of their trace ID, which keeps the spans
+ * of a trace together and in order on one shard.
+ *
+ * <p>An export call hands each shard its share of the batch in turn. To send on several shards at
+ * once from a single span processor, give the shards an asynchronous queue. The export fails if
+ * any shard fails, in which case the span processor may send the spans of the other shards again.
+ *
+ * <p>Each shard reports its own metrics, tagged with the shard index, so that the load and
+ * contention of each can be compared. Use {@link
+ * WavefrontSpanExporter.ProxyClientBuilder#buildSharded(int)} or {@link
+ * WavefrontSpanExporter.DirectClientBuilder#buildSharded(int)} to create one.
+ */
+public final class ShardedSpanExporter implements SpanExporter {
+  private final WavefrontSpanExporter[] shards;
+
+  /**
+   * Creates a new {@link ShardedSpanExporter}
+   *
+   * @param shards The shards
+   */
+  ShardedSpanExporter(final List<WavefrontSpanExporter> shards) {
+    this.shards = shards.toArray(new WavefrontSpanExporter[0]);
+  }
+
+  /**
+   * Returns the shard a trace belongs to.
+   *
+   * @param traceId The trace ID
+   * @param shards The number of shards
+   * @return
+   */
+  static int shardOf(final TraceId traceId, final int shards) {
+    return (int) Long.remainderUnsigned(mix(traceId.hashCode()), shards);
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public ResultCode export(final List<SpanData> spans) {
+    final int n = shards.length;
+    if (n == 1) {
+      return shards[0].export(spans);
+    }
+    final List<SpanData>[] parts = new List[n];
+    for (final SpanData span : spans) {
+      final int shard = shardOf(span.getTraceId(), n);
+      if (parts[shard] == null) {
+        parts[shard] = new ArrayList<>(spans.size() / n + 1);
+      }
+      parts[shard].add(span);
+    }
+    ResultCode rc = ResultCode.SUCCESS;
+    for (int i = 0; i < n; ++i) {
+      if (parts[i] != null) {
+        rc = combine(rc, shards[i].export(parts[i]));
+      }
+    }
+    return rc;
+  }
+
+  /**
+   * Combines the results of two shards. A retryable failure wins over one that isn't, since the
+   * spans it failed on may get through when the batch is sent again.
+   */
+  private static ResultCode combine(final ResultCode a, final ResultCode b) {
+    if (a == ResultCode.FAILED_RETRYABLE || b == ResultCode.FAILED_RETRYABLE) {
+      return ResultCode.FAILED_RETRYABLE;
+    }
+    return a == ResultCode.SUCCESS ? b : a;
+  }
+
+  /**
+   * Applies new tag, span log and tail sampling settings to all shards.
+   *
+   * @param config The new settings
+   * @see WavefrontSpanExporter#retune(WavefrontSpanExporter.Builder)
+   */
+  void retune(final WavefrontSpanExporter.Builder config) {
+    for (final WavefrontSpanExporter shard : shards) {
+      shard.retune(config);
+    }
+  }
+
+  /**
+   * Returns the number of shards.
+   *
+   * @return
+   */
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns the total number of spans dropped by the asynchronous pipelines of the shards.
+   *
+   * @return
+   */
+  public long getDroppedSpanCount() {
+    long dropped = 0;
+    for (final WavefrontSpanExporter shard : shards) {
+      dropped += shard.getDroppedSpanCount();
+    }
+    return dropped;
+  }
+
+  /**
+   * Returns a snapshot of the metrics of each shard, in shard order.
+   *
+   * @return
+   */
+  public List<ExporterMetrics.Snapshot> getMetrics() {
+    final List<ExporterMetrics.Snapshot> snapshots = new ArrayList<>(shards.length);
+    for (final WavefrontSpanExporter shard : shards) {
+      snapshots.add(shard.getMetrics());
+    }
+    return snapshots;
+  }
+
+  @Override
+  public void shutdown() {
+    for (final WavefrontSpanExporter shard : shards) {
+      shard.shutdown();
+    }
+  }
+}
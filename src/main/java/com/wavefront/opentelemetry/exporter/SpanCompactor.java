@@ -0,0 +1,576 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cuts the number of spans sent by dropping spans that have already been sent and by rolling up
+ * identical sibling spans into one.
+ *
+ * <p>Span processors send a whole batch again when its export fails, even if part of it got
+ * through, and retried requests upstream can produce the same span twice. The compactor remembers
+ * the trace and span IDs of the spans it has let through for at least the dedup window and drops
+ * any span it sees again. The IDs are held in two primitive hash sets that take turns, so memory
+ * is bounded by the maximum number of spans remembered. When a set fills up before the window has
+ * passed, it is rotated early and the oldest IDs are forgotten sooner. Spans of an export that
+ * fails and may be retried are forgotten again, so the retry isn't mistaken for a duplicate.
+ *
+ * <p>A loop calling the same operation many times produces many spans that differ only in their
+ * IDs and timing. Spans in a batch with the same trace, parent, name, kind, status, library and
+ * attributes, and without events, links or children of their own, are rolled up into one once
+ * there are enough of them. Children usually end, and so are exported, before their parents, so
+ * the compactor remembers which spans were parents of the spans it has seen, bounded like the IDs
+ * remembered for deduplication, and doesn't roll those up. The rolled-up span keeps the IDs of
+ * the first one, covers the time from the earliest start to the latest end and is tagged with the
+ * number of spans merged ({@code compaction.count}) and the shortest and longest of their
+ * durations in microseconds ({@code compaction.min.micros} and {@code compaction.max.micros}).
+ */
+final class SpanCompactor implements MetricSource {
+  static final String COUNT_TAG = "compaction.count";
+
+  static final String MIN_TAG = "compaction.min.micros";
+
+  static final String MAX_TAG = "compaction.max.micros";
+
+  private final long windowNanos;
+
+  private final int rollupMinSpans;
+
+  private final LongAdder duplicates = new LongAdder();
+
+  private final LongAdder rolledUp = new LongAdder();
+
+  private final LongAdder rollups = new LongAdder();
+
+  private final byte[] idBuffer = new byte[16];
+
+  // Guarded by this
+  private IdSet seen;
+
+  private IdSet previouslySeen;
+
+  private long rotated;
+
+  // The parents of recently seen spans, guarded by this
+  private IdSet parents;
+
+  private IdSet previousParents;
+
+  /**
+   * Creates a new {@link SpanCompactor}
+   *
+   * @param windowMillis How long to remember spans for deduplication, or 0 to not deduplicate
+   * @param maxSpans The maximum number of spans remembered, and of parents remembered for rolling
+   *     up
+   * @param rollupMinSpans The smallest number of identical siblings rolled up, or 0 to not roll
+   *     up
+   */
+  SpanCompactor(final long windowMillis, final int maxSpans, final int rollupMinSpans) {
+    this.windowNanos = windowMillis * 1000000;
+    this.rollupMinSpans = rollupMinSpans;
+    if (windowMillis > 0) {
+      // Each set holds half, since the previous one is still consulted
+      final int capacity = Math.max(1, maxSpans / 2);
+      seen = new IdSet(capacity);
+      previouslySeen = new IdSet(capacity);
+      rotated = System.nanoTime();
+    }
+    if (rollupMinSpans > 1) {
+      final int capacity = Math.max(1, maxSpans / 2);
+      parents = new IdSet(capacity);
+      previousParents = new IdSet(capacity);
+    }
+  }
+
+  /**
+   * Drops the spans that have been let through before, or that appear twice in the batch, and
+   * remembers the rest.
+   *
+   * @param spans The spans
+   * @return The spans that haven't been seen, which may be the same list
+   */
+  List<SpanData> deduplicate(final List<SpanData> spans) {
+    if (windowNanos == 0) {
+      return spans;
+    }
+    List<SpanData> result = null;
+    synchronized (this) {
+      final long now = System.nanoTime();
+      if (now - rotated >= windowNanos) {
+        rotate(now);
+      }
+      for (int i = 0; i < spans.size(); ++i) {
+        final SpanData span = spans.get(i);
+        final long spanId = spanId(span);
+        boolean duplicate = false;
+        if (spanId != 0) {
+          final long hi = traceIdHigh(span);
+          final long lo = IdConverter.getLong(idBuffer, 8);
+          duplicate = previouslySeen.contains(hi, lo, spanId) || !add(hi, lo, spanId, now);
+        }
+        if (duplicate && result == null) {
+          result = new ArrayList<>(spans.subList(0, i));
+        } else if (!duplicate && result != null) {
+          result.add(span);
+        }
+      }
+    }
+    if (result == null) {
+      return spans;
+    }
+    duplicates.add(spans.size() - result.size());
+    return result;
+  }
+
+  private boolean add(final long hi, final long lo, final long spanId, final long now) {
+    if (seen.isFull()) {
+      rotate(now);
+    }
+    return seen.add(hi, lo, spanId);
+  }
+
+  private void rotate(final long now) {
+    final IdSet oldest = previouslySeen;
+    previouslySeen = seen;
+    oldest.clear();
+    seen = oldest;
+    rotated = now;
+  }
+
+  /**
+   * Forgets spans that were let through but could not be sent, so that they aren't taken for
+   * duplicates when the span processor sends them again.
+   *
+   * @param spans The spans
+   */
+  void forget(final List<SpanData> spans) {
+    if (windowNanos == 0) {
+      return;
+    }
+    synchronized (this) {
+      for (final SpanData span : spans) {
+        final long spanId = spanId(span);
+        if (spanId != 0) {
+          final long hi = traceIdHigh(span);
+          final long lo = IdConverter.getLong(idBuffer, 8);
+          seen.remove(hi, lo, spanId);
+          previouslySeen.remove(hi, lo, spanId);
+        }
+      }
+    }
+  }
+
+  // These must be called with the lock held, since they share the buffer
+  private long spanId(final SpanData span) {
+    span.getSpanId().copyBytesTo(idBuffer, 0);
+    return IdConverter.getLong(idBuffer, 0);
+  }
+
+  private long parentId(final SpanData span) {
+    span.getParentSpanId().copyBytesTo(idBuffer, 0);
+    return IdConverter.getLong(idBuffer, 0);
+  }
+
+  /** Returns true if a span is known to have children. Must be called with the lock held. */
+  private boolean isParent(final SpanData span) {
+    final long spanId = spanId(span);
+    if (spanId == 0) {
+      return false;
+    }
+    final long hi = traceIdHigh(span);
+    final long lo = IdConverter.getLong(idBuffer, 8);
+    return parents.contains(hi, lo, spanId) || previousParents.contains(hi, lo, spanId);
+  }
+
+  /** Returns the high half of the trace ID. The low half is left in the buffer at offset 8. */
+  private long traceIdHigh(final SpanData span) {
+    span.getTraceId().copyBytesTo(idBuffer, 0);
+    return IdConverter.getLong(idBuffer, 0);
+  }
+
+  /**
+   * Rolls up identical sibling spans.
+   *
+   * @param spans The spans
+   * @return The spans to send and the spans rolled up into each of them
+   */
+  RollUp rollUp(final List<SpanData> spans) {
+    if (rollupMinSpans < 2) {
+      return new RollUp(spans, Collections.emptyMap());
+    }
+    final Map<Siblings, List<SpanData>> groups = new LinkedHashMap<>();
+    boolean any = false;
+    synchronized (this) {
+      // Every batch counts, since the children of a span may arrive well before it
+      for (final SpanData span : spans) {
+        final long parentId = parentId(span);
+        if (parentId != 0) {
+          if (parents.isFull()) {
+            final IdSet oldest = previousParents;
+            previousParents = parents;
+            oldest.clear();
+            parents = oldest;
+          }
+          parents.add(traceIdHigh(span), IdConverter.getLong(idBuffer, 8), parentId);
+        }
+      }
+      if (spans.size() < rollupMinSpans) {
+        return new RollUp(spans, Collections.emptyMap());
+      }
+      for (final SpanData span : spans) {
+        if (span.getParentSpanId().isValid()
+            && span.getTimedEvents().isEmpty()
+            && span.getLinks().isEmpty()
+            && !isParent(span)) {
+          final List<SpanData> group =
+              groups.computeIfAbsent(new Siblings(span), k -> new ArrayList<>());
+          group.add(span);
+          any |= group.size() == rollupMinSpans;
+        }
+      }
+    }
+    if (!any) {
+      return new RollUp(spans, Collections.emptyMap());
+    }
+    final Map<SpanData, List<SpanData>> members = new IdentityHashMap<>();
+    final Map<SpanData, SpanData> firsts = new IdentityHashMap<>();
+    final Set<SpanData> merged = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (final List<SpanData> group : groups.values()) {
+      if (group.size() >= rollupMinSpans) {
+        final SpanData combined = combine(group);
+        members.put(combined, group);
+        firsts.put(group.get(0), combined);
+        merged.addAll(group);
+        rolledUp.add(group.size());
+        rollups.increment();
+      }
+    }
+    // The rolled-up span takes the place of the first span of its group
+    final List<SpanData> result = new ArrayList<>(spans.size() - merged.size() + members.size());
+    for (final SpanData span : spans) {
+      final SpanData combined = firsts.get(span);
+      if (combined != null) {
+        result.add(combined);
+      } else if (!merged.contains(span)) {
+        result.add(span);
+      }
+    }
+    return new RollUp(result, members);
+  }
+
+  private static SpanData combine(final List<SpanData> group) {
+    final SpanData first = group.get(0);
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (final SpanData span : group) {
+      start = Math.min(start, span.getStartEpochNanos());
+      end = Math.max(end, span.getEndEpochNanos());
+      final long duration = span.getEndEpochNanos() - span.getStartEpochNanos();
+      min = Math.min(min, duration);
+      max = Math.max(max, duration);
+    }
+    final Map<String, AttributeValue> attrs = new HashMap<>(first.getAttributes());
+    attrs.put(COUNT_TAG, AttributeValue.longAttributeValue(group.size()));
+    attrs.put(MIN_TAG, AttributeValue.longAttributeValue(min / 1000));
+    attrs.put(MAX_TAG, AttributeValue.longAttributeValue(max / 1000));
+    return SpanData.newBuilder()
+        .setTraceId(first.getTraceId())
+        .setSpanId(first.getSpanId())
+        .setParentSpanId(first.getParentSpanId())
+        .setResource(first.getResource())
+        .setInstrumentationLibraryInfo(first.getInstrumentationLibraryInfo())
+        .setName(first.getName())
+        .setKind(first.getKind())
+        .setStartEpochNanos(start)
+        .setEndEpochNanos(end)
+        .setAttributes(attrs)
+        .setTimedEvents(Collections.emptyList())
+        .setLinks(Collections.emptyList())
+        .setStatus(first.getStatus())
+        .setHasRemoteParent(first.getHasRemoteParent())
+        .build();
+  }
+
+  /**
+   * Returns whether spans are remembered to drop duplicates.
+   *
+   * @return
+   */
+  boolean isDeduplicating() {
+    return windowNanos > 0;
+  }
+
+  /**
+   * Returns the number of spans dropped as duplicates.
+   *
+   * @return
+   */
+  long getDuplicates() {
+    return duplicates.sum();
+  }
+
+  /**
+   * Returns the number of spans merged into rolled-up spans.
+   *
+   * @return
+   */
+  long getRolledUp() {
+    return rolledUp.sum();
+  }
+
+  /**
+   * Returns the number of rolled-up spans created.
+   *
+   * @return
+   */
+  long getRollups() {
+    return rollups.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("compaction.duplicates", getDuplicates());
+    values.add("compaction.rolledup", getRolledUp());
+    values.add("compaction.rollups", getRollups());
+  }
+
+  /** The spans of a batch after rolling up, and the spans each rolled-up span stands for. */
+  static final class RollUp {
+    private final List<SpanData> spans;
+
+    private final Map<SpanData, List<SpanData>> members;
+
+    private RollUp(final List<SpanData> spans, final Map<SpanData, List<SpanData>> members) {
+      this.spans = spans;
+      this.members = members;
+    }
+
+    /**
+     * Returns the spans to send.
+     *
+     * @return
+     */
+    List<SpanData> getSpans() {
+      return spans;
+    }
+
+    /**
+     * Replaces the rolled-up spans in a list with the spans they stand for.
+     *
+     * @param spans Some of the spans to send
+     * @return
+     */
+    List<SpanData> expand(final List<SpanData> spans) {
+      if (members.isEmpty()) {
+        return spans;
+      }
+      final List<SpanData> expanded = new ArrayList<>(spans.size());
+      for (final SpanData span : spans) {
+        final List<SpanData> group = members.get(span);
+        if (group != null) {
+          expanded.addAll(group);
+        } else {
+          expanded.add(span);
+        }
+      }
+      return expanded;
+    }
+  }
+
+  /** What sibling spans must have in common to be rolled up. */
+  private static final class Siblings {
+    final TraceId traceId;
+
+    final SpanId parentId;
+
+    final String name;
+
+    final Span.Kind kind;
+
+    final Status status;
+
+    final InstrumentationLibraryInfo library;
+
+    final Map<String, AttributeValue> attributes;
+
+    final int hash;
+
+    Siblings(final SpanData span) {
+      traceId = span.getTraceId();
+      parentId = span.getParentSpanId();
+      name = span.getName();
+      kind = span.getKind();
+      status = span.getStatus();
+      library = span.getInstrumentationLibraryInfo();
+      attributes = span.getAttributes();
+      hash = Objects.hash(traceId, parentId, name, kind, status, library, attributes);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof Siblings)) {
+        return false;
+      }
+      final Siblings s = (Siblings) o;
+      return hash == s.hash
+          && traceId.equals(s.traceId)
+          && parentId.equals(s.parentId)
+          && Objects.equals(name, s.name)
+          && kind == s.kind
+          && Objects.equals(status, s.status)
+          && Objects.equals(library, s.library)
+          && Objects.equals(attributes, s.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  /**
+   * A set of span identities, each made up of the two halves of a trace ID and a span ID, in an
+   * open addressing table of primitive longs. Invalid span IDs are zero, which marks empty slots.
+   */
+  static final class IdSet {
+    // Three longs per slot: trace ID high and low, span ID
+    private final long[] table;
+
+    private final int mask;
+
+    private final int capacity;
+
+    private int size;
+
+    /**
+     * Creates a new {@link IdSet}
+     *
+     * @param capacity The maximum number of IDs held
+     */
+    IdSet(final int capacity) {
+      // At most half full, so probe sequences stay short
+      final int slots = Integer.highestOneBit(Math.max(2, capacity) - 1) << 2;
+      this.table = new long[slots * 3];
+      this.mask = slots - 1;
+      this.capacity = capacity;
+    }
+
+    private int slot(final long hi, final long lo, final long spanId) {
+      long h = hi * 0x9e3779b97f4a7c15L ^ lo * 0xc2b2ae3d27d4eb4fL ^ spanId;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      return (int) h & mask;
+    }
+
+    private int find(final long hi, final long lo, final long spanId) {
+      int i = slot(hi, lo, spanId);
+      for (; ; ) {
+        final long s = table[i * 3 + 2];
+        if (s == 0 || (s == spanId && table[i * 3] == hi && table[i * 3 + 1] == lo)) {
+          return i;
+        }
+        i = (i + 1) & mask;
+      }
+    }
+
+    /**
+     * Returns true if the set holds an ID.
+     *
+     * @param hi The high half of the trace ID
+     * @param lo The low half of the trace ID
+     * @param spanId The span ID, which must not be zero
+     * @return
+     */
+    boolean contains(final long hi, final long lo, final long spanId) {
+      return table[find(hi, lo, spanId) * 3 + 2] != 0;
+    }
+
+    /**
+     * Adds an ID unless the set is full.
+     *
+     * @param hi The high half of the trace ID
+     * @param lo The low half of the trace ID
+     * @param spanId The span ID, which must not be zero
+     * @return False if the set already held the ID
+     */
+    boolean add(final long hi, final long lo, final long spanId) {
+      final int i = find(hi, lo, spanId);
+      if (table[i * 3 + 2] != 0) {
+        return false;
+      }
+      if (size < capacity) {
+        table[i * 3] = hi;
+        table[i * 3 + 1] = lo;
+        table[i * 3 + 2] = spanId;
+        ++size;
+      }
+      return true;
+    }
+
+    /**
+     * Removes an ID, moving later entries of its probe sequence back so that no gaps are left.
+     *
+     * @param hi The high half of the trace ID
+     * @param lo The low half of the trace ID
+     * @param spanId The span ID, which must not be zero
+     */
+    void remove(final long hi, final long lo, final long spanId) {
+      int gap = find(hi, lo, spanId);
+      if (table[gap * 3 + 2] == 0) {
+        return;
+      }
+      --size;
+      int i = gap;
+      for (; ; ) {
+        i = (i + 1) & mask;
+        final long s = table[i * 3 + 2];
+        if (s == 0) {
+          break;
+        }
+        final int home = slot(table[i * 3], table[i * 3 + 1], s);
+        // Move the entry into the gap unless its home slot lies cyclically in (gap, i]
+        if (((i - home) & mask) >= ((i - gap) & mask)) {
+          System.arraycopy(table, i * 3, table, gap * 3, 3);
+          gap = i;
+        }
+      }
+      table[gap * 3 + 2] = 0;
+    }
+
+    /**
+     * Returns true if the set holds as many IDs as it may.
+     *
+     * @return
+     */
+    boolean isFull() {
+      return size >= capacity;
+    }
+
+    /** Removes all IDs. */
+    void clear() {
+      if (size > 0) {
+        Arrays.fill(table, 0);
+        size = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,560 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Link;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Serializes {@link SpanData} straight into the Wavefront span line format and span log JSON,
+ * without building the intermediate objects used by the Wavefront SDK. Names, keys and values are
+ * sanitized by the same rules as the SDK, but the escaping happens as the characters are written.
+ * Tags with blank keys or values are skipped rather than failing the whole span.
+ *
+ * <p>Span line format: {@code <name> source=<source> traceId=<uuid> spanId=<uuid> [parent=<uuid>]
+ * [followsFrom=<uuid>...] <tags> <startMillis> <durationMillis>}. Root spans have no parent.
+ */
+final class SpanLineEncoder {
+  private static final byte[] SOURCE = ascii(" source=");
+  private static final byte[] TRACE_ID = ascii(" traceId=");
+  private static final byte[] SPAN_ID = ascii(" spanId=");
+  private static final byte[] PARENT = ascii(" parent=");
+  private static final byte[] FOLLOWS_FROM = ascii(" followsFrom=");
+  private static final byte[] SPAN_LOGS_TAG = ascii(" \"_spanLogs\"=\"true\"");
+  private static final byte[] TRUE = ascii("\"true\"");
+  private static final byte[] FALSE = ascii("\"false\"");
+  private static final byte[] ERROR_TRUE_TAG = ascii(" \"error\"=\"true\"");
+  private static final byte[] ERROR_FALSE_TAG = ascii(" \"error\"=\"false\"");
+  private static final byte[][] STATUS_TAGS = makeStatusTags();
+  private static final byte[] LOG_TRACE_ID = ascii("{\"traceId\":\"");
+  private static final byte[] LOG_SPAN_ID = ascii("\",\"spanId\":\"");
+  private static final byte[] LOG_LOGS = ascii("\",\"logs\":[");
+  private static final byte[] LOG_TIMESTAMP = ascii("{\"timestamp\":");
+  private static final byte[] LOG_FIELDS = ascii(",\"fields\":{");
+  private static final byte[] LOG_END = ascii("]}\n");
+
+  private static final int MAX_CACHED_LIBRARIES = 256;
+
+  private static final ThreadLocal<byte[]> idScratch =
+      ThreadLocal.withInitial(() -> new byte[TraceId.getSize()]);
+
+  private final byte[] source;
+
+  private final String application;
+
+  private final String service;
+
+  private final TagPolicy tagPolicy;
+
+  private final int maxSpanLogs;
+
+  private final int maxSpanLogValueLength;
+
+  private final SpanNamer namer;
+
+  private final TraceGraph traceGraph;
+
+  private final ConcurrentMap<InstrumentationLibraryInfo, byte[]> libraryTags =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new {@link SpanLineEncoder}
+   *
+   * @param source The source (host) name. If null, the local host name is used.
+   * @param application The application tag
+   * @param service The service tag
+   */
+  SpanLineEncoder(final String source, final String application, final String service) {
+    this(source, application, service, TagPolicy.KEEP_ALL);
+  }
+
+  /**
+   * Creates a new {@link SpanLineEncoder}
+   *
+   * @param source The source (host) name. If null, the local host name is used.
+   * @param application The application tag
+   * @param service The service tag
+   * @param tagPolicy The policy applied to span attributes
+   */
+  SpanLineEncoder(
+      final String source,
+      final String application,
+      final String service,
+      final TagPolicy tagPolicy) {
+    this(source, application, service, tagPolicy, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Creates a new {@link SpanLineEncoder}
+   *
+   * @param source The source (host) name. If null, the local host name is used.
+   * @param application The application tag
+   * @param service The service tag
+   * @param tagPolicy The policy applied to span attributes
+   * @param maxSpanLogs The maximum number of span logs per span. Further events are dropped.
+   * @param maxSpanLogValueLength The maximum length of span log field values. Longer string
+   *     values are truncated.
+   */
+  SpanLineEncoder(
+      final String source,
+      final String application,
+      final String service,
+      final TagPolicy tagPolicy,
+      final int maxSpanLogs,
+      final int maxSpanLogValueLength) {
+    this(
+        source,
+        application,
+        service,
+        tagPolicy,
+        maxSpanLogs,
+        maxSpanLogValueLength,
+        new SpanNamer(SpanNamer.DEFAULT_TEMPLATE, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Creates a new {@link SpanLineEncoder}
+   *
+   * @param source The source (host) name. If null, the local host name is used.
+   * @param application The application tag
+   * @param service The service tag
+   * @param tagPolicy The policy applied to span attributes
+   * @param maxSpanLogs The maximum number of span logs per span. Further events are dropped.
+   * @param maxSpanLogValueLength The maximum length of span log field values. Longer string
+   *     values are truncated.
+   * @param namer Derives span names
+   */
+  SpanLineEncoder(
+      final String source,
+      final String application,
+      final String service,
+      final TagPolicy tagPolicy,
+      final int maxSpanLogs,
+      final int maxSpanLogValueLength,
+      final SpanNamer namer) {
+    this(source, application, service, tagPolicy, maxSpanLogs, maxSpanLogValueLength, namer, null);
+  }
+
+  /**
+   * Creates a new {@link SpanLineEncoder}
+   *
+   * @param source The source (host) name. If null, the local host name is used.
+   * @param application The application tag
+   * @param service The service tag
+   * @param tagPolicy The policy applied to span attributes
+   * @param maxSpanLogs The maximum number of span logs per span. Further events are dropped.
+   * @param maxSpanLogValueLength The maximum length of span log field values. Longer string
+   *     values are truncated.
+   * @param namer Derives span names
+   * @param traceGraph Supplies trace summaries for local root spans, or null for none
+   */
+  SpanLineEncoder(
+      final String source,
+      final String application,
+      final String service,
+      final TagPolicy tagPolicy,
+      final int maxSpanLogs,
+      final int maxSpanLogValueLength,
+      final SpanNamer namer,
+      final TraceGraph traceGraph) {
+    this.namer = namer;
+    this.traceGraph = traceGraph;
+    this.source = utf8(quoteValue(source != null ? source : defaultSource()));
+    this.application = application;
+    this.service = service;
+    this.tagPolicy = tagPolicy;
+    this.maxSpanLogs = maxSpanLogs;
+    this.maxSpanLogValueLength = maxSpanLogValueLength;
+  }
+
+  static String defaultSource() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (final UnknownHostException e) {
+      return "unknown";
+    }
+  }
+
+  private static byte[] ascii(final String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] utf8(final String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[][] makeStatusTags() {
+    final Status.CanonicalCode[] codes = Status.CanonicalCode.values();
+    final byte[][] tags = new byte[codes.length][];
+    for (final Status.CanonicalCode code : codes) {
+      tags[code.ordinal()] = ascii(" \"opentelemetry.status\"=\"" + code.name() + "\"");
+    }
+    return tags;
+  }
+
+  /**
+   * Encodes a span and its span logs. If encoding fails, anything written so far is backed out
+   * and both batches are left as they were.
+   *
+   * @param span The span to encode
+   * @param spans The batch receiving the span line
+   * @param spanLogs The batch receiving the span logs, if the span has any
+   * @return True if the span was encoded
+   */
+  boolean encode(final SpanData span, final EncodedBatch spans, final EncodedBatch spanLogs) {
+    final long spansMark = spans.mark();
+    final long logsMark = spanLogs.mark();
+    try {
+      encodeSpan(span, spans);
+      spans.incrementCount();
+      if (hasSpanLogs(span)) {
+        encodeSpanLogs(span, spanLogs);
+        spanLogs.incrementCount();
+      }
+      return true;
+    } catch (final RuntimeException e) {
+      spans.truncate(spansMark);
+      spanLogs.truncate(logsMark);
+      throw e;
+    }
+  }
+
+  private void encodeSpan(final SpanData span, final EncodedBatch out) {
+    final byte[] scratch = idScratch.get();
+
+    // Span name, already quoted and escaped
+    out.put(namer.name(span).getQuoted());
+
+    out.put(SOURCE);
+    out.put(source);
+    out.put(TRACE_ID);
+    span.getTraceId().copyBytesTo(scratch, 0);
+    out.putUUID(IdConverter.getLong(scratch, 0), IdConverter.getLong(scratch, 8));
+    out.put(SPAN_ID);
+    putSpanId(out, span.getSpanId(), scratch);
+    final SpanId parent = span.getParentSpanId();
+    if (parent.isValid()) {
+      out.put(PARENT);
+      putSpanId(out, parent, scratch);
+    }
+    for (final Link link : span.getLinks()) {
+      if (TraceGraph.isFollowsFrom(span, link)) {
+        out.put(FOLLOWS_FROM);
+        putSpanId(out, link.getContext().getSpanId(), scratch);
+      }
+    }
+
+    // Tags
+    out.put(libraryTags(span.getInstrumentationLibraryInfo()));
+    final Status status = span.getStatus();
+    out.put(STATUS_TAGS[status.getCanonicalCode().ordinal()]);
+    out.put(status.isOk() ? ERROR_FALSE_TAG : ERROR_TRUE_TAG);
+    final int maxTags = tagPolicy.getMaxTags();
+    int n = 0;
+    for (final Map.Entry<String, AttributeValue> attr : span.getAttributes().entrySet()) {
+      if (n >= maxTags) {
+        break;
+      }
+      if (putTag(out, attr.getKey(), attr.getValue())) {
+        ++n;
+      }
+    }
+    final Map<String, AttributeValue> summary =
+        traceGraph != null ? traceGraph.summary(span) : null;
+    if (summary != null) {
+      for (final Map.Entry<String, AttributeValue> tag : summary.entrySet()) {
+        putTag(out, tag.getKey(), tag.getValue());
+      }
+    }
+    if (hasSpanLogs(span)) {
+      out.put(SPAN_LOGS_TAG);
+    }
+
+    // Timing
+    out.put(' ');
+    out.putLong(span.getStartEpochNanos() / 1000000);
+    out.put(' ');
+    out.putLong((span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000000);
+    out.put('\n');
+  }
+
+  private static void putSpanId(final EncodedBatch out, final SpanId id, final byte[] scratch) {
+    id.copyBytesTo(scratch, 0);
+    out.putUUID(0, IdConverter.getLong(scratch, 0));
+  }
+
+  private boolean hasSpanLogs(final SpanData span) {
+    return maxSpanLogs > 0 && !span.getTimedEvents().isEmpty();
+  }
+
+  private void encodeSpanLogs(final SpanData span, final EncodedBatch out) {
+    final byte[] scratch = idScratch.get();
+    out.put(LOG_TRACE_ID);
+    span.getTraceId().copyBytesTo(scratch, 0);
+    out.putUUID(IdConverter.getLong(scratch, 0), IdConverter.getLong(scratch, 8));
+    out.put(LOG_SPAN_ID);
+    putSpanId(out, span.getSpanId(), scratch);
+    out.put(LOG_LOGS);
+    final List<SpanData.TimedEvent> events = span.getTimedEvents();
+    final int n = Math.min(events.size(), maxSpanLogs);
+    for (int i = 0; i < n; ++i) {
+      final SpanData.TimedEvent event = events.get(i);
+      if (i > 0) {
+        out.put(',');
+      }
+      out.put(LOG_TIMESTAMP);
+      out.putLong(event.getEpochNanos() / 1000); // Span log timestamps are in microseconds
+      out.put(LOG_FIELDS);
+      boolean first = true;
+      for (final Map.Entry<String, AttributeValue> attr : event.getAttributes().entrySet()) {
+        if (!first) {
+          out.put(',');
+        }
+        first = false;
+        out.put('"');
+        putJsonEscaped(out, attr.getKey());
+        out.put('"');
+        out.put(':');
+        out.put('"');
+        putJsonValue(out, attr.getValue());
+        out.put('"');
+      }
+      out.put('}');
+      out.put('}');
+    }
+    out.put(LOG_END);
+  }
+
+  private byte[] libraryTags(final InstrumentationLibraryInfo lib) {
+    final byte[] cached = libraryTags.get(lib);
+    if (cached != null) {
+      return cached;
+    }
+    final StringBuilder sb = new StringBuilder();
+    appendTag(sb, "application", application);
+    appendTag(sb, "service", service);
+    if (lib.name() != null) {
+      appendTag(sb, "instrumentation.name", lib.name());
+    }
+    if (lib.version() != null) {
+      appendTag(sb, "instrumentation.version", lib.version());
+    }
+    final byte[] result = utf8(sb.toString());
+    if (libraryTags.size() < MAX_CACHED_LIBRARIES) {
+      libraryTags.putIfAbsent(lib, result);
+    }
+    return result;
+  }
+
+  private static void appendTag(final StringBuilder sb, final String key, final String value) {
+    if (isBlank(value)) {
+      return;
+    }
+    sb.append(' ').append(quoteKey(key)).append('=').append(quoteValue(value));
+  }
+
+  private boolean putTag(final EncodedBatch out, final String key, final AttributeValue value) {
+    if (isBlank(key)) {
+      return false;
+    }
+    final TagPolicy.Action action = tagPolicy.action(key);
+    if (action == TagPolicy.Action.DROP) {
+      return false;
+    }
+    switch (value.getType()) {
+      case STRING:
+        {
+          final String s = tagPolicy.stringValue(action, value.getStringValue());
+          if (isBlank(s)) {
+            return false;
+          }
+          putKey(out, key);
+          out.put('"');
+          putEscapedValue(out, s);
+          out.put('"');
+          break;
+        }
+      case LONG:
+        putKey(out, key);
+        out.put('"');
+        out.putLong(value.getLongValue());
+        out.put('"');
+        break;
+      case BOOLEAN:
+        putKey(out, key);
+        out.put(value.getBooleanValue() ? TRUE : FALSE);
+        break;
+      case DOUBLE:
+        putKey(out, key);
+        out.put('"');
+        out.putAscii(Double.toString(value.getDoubleValue()));
+        out.put('"');
+        break;
+      default:
+        // Unknown types are skipped
+        return false;
+    }
+    return true;
+  }
+
+  private static void putKey(final EncodedBatch out, final String key) {
+    out.put(' ');
+    out.put('"');
+    for (int i = 0; i < key.length(); ++i) {
+      out.put(isLegalKeyChar(key.charAt(i)) ? key.charAt(i) : '-');
+    }
+    out.put('"');
+    out.put('=');
+  }
+
+  /**
+   * Writes a tag value or span name, escaping quotes and newlines and trimming surrounding
+   * whitespace, the same way the Wavefront SDK does. Surrounding quotes are not written.
+   */
+  private static void putEscapedValue(final EncodedBatch out, final String s) {
+    int start = 0;
+    int end = s.length();
+    while (start < end && isTrimmable(s.charAt(start))) {
+      ++start;
+    }
+    while (end > start && isTrimmable(s.charAt(end - 1))) {
+      --end;
+    }
+    for (int i = start; i < end; ++i) {
+      final char c = s.charAt(i);
+      if (c == '"') {
+        out.put('\\');
+        out.put('"');
+      } else if (c == '\n') {
+        out.put('\\');
+        out.put('n');
+      } else if (c < 0x80) {
+        out.put(c);
+      } else {
+        i = putNonAscii(out, s, i);
+      }
+    }
+  }
+
+  private void putJsonValue(final EncodedBatch out, final AttributeValue value) {
+    switch (value.getType()) {
+      case STRING:
+        putJsonEscaped(out, TagPolicy.truncate(value.getStringValue(), maxSpanLogValueLength));
+        break;
+      case LONG:
+        out.putLong(value.getLongValue());
+        break;
+      case BOOLEAN:
+        out.putAscii(value.getBooleanValue() ? "true" : "false");
+        break;
+      case DOUBLE:
+        out.putAscii(Double.toString(value.getDoubleValue()));
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** Writes a string with JSON escaping. Surrounding quotes are not written. */
+  static void putJsonEscaped(final EncodedBatch out, final String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      final char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          out.put('\\');
+          out.put('"');
+          break;
+        case '\\':
+          out.put('\\');
+          out.put('\\');
+          break;
+        case '\n':
+          out.put('\\');
+          out.put('n');
+          break;
+        case '\r':
+          out.put('\\');
+          out.put('r');
+          break;
+        case '\t':
+          out.put('\\');
+          out.put('t');
+          break;
+        default:
+          if (c < 0x20) {
+            out.putAscii("\\u00");
+            out.put(Character.forDigit(c >> 4, 16));
+            out.put(Character.forDigit(c & 0xf, 16));
+          } else if (c < 0x80) {
+            out.put(c);
+          } else {
+            i = putNonAscii(out, s, i);
+          }
+      }
+    }
+  }
+
+  /**
+   * Writes the non-ASCII character at the given index, combining surrogate pairs.
+   *
+   * @return The index of the last char consumed
+   */
+  private static int putNonAscii(final EncodedBatch out, final String s, final int i) {
+    final char c = s.charAt(i);
+    if (Character.isHighSurrogate(c)
+        && i + 1 < s.length()
+        && Character.isLowSurrogate(s.charAt(i + 1))) {
+      out.putCodePoint(Character.toCodePoint(c, s.charAt(i + 1)));
+      return i + 1;
+    }
+    out.putCodePoint(Character.isSurrogate(c) ? '?' : c);
+    return i;
+  }
+
+  private static boolean isTrimmable(final char c) {
+    return c <= ' ' && c != '\n';
+  }
+
+  private static boolean isLegalKeyChar(final char c) {
+    return (c >= 44 && c <= 57) || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+  }
+
+  private static boolean isBlank(final String s) {
+    return s == null || s.trim().isEmpty();
+  }
+
+  /**
+   * Quotes and sanitizes a tag key the same way as the Wavefront SDK.
+   *
+   * @param key The key
+   * @return
+   */
+  static String quoteKey(final String key) {
+    final StringBuilder sb = new StringBuilder(key.length() + 2).append('"');
+    for (int i = 0; i < key.length(); ++i) {
+      final char c = key.charAt(i);
+      sb.append(isLegalKeyChar(c) ? c : '-');
+    }
+    return sb.append('"').toString();
+  }
+
+  /**
+   * Quotes and escapes a tag value the same way as the Wavefront SDK.
+   *
+   * @param value The value
+   * @return
+   */
+  static String quoteValue(final String value) {
+    return "\"" + value.replace("\"", "\\\"").replace("\n", "\\n").trim() + "\"";
+  }
+}
@@ -0,0 +1,339 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Derives the Wavefront operation name of a span from a template and caches the result, since a
+ * service only has a small number of distinct names. The template may contain these placeholders:
+ *
+ * <ul>
+ *   <li>{@code {name}} The name of the span
+ *   <li>{@code {kind}} The span kind in lower case, e.g. {@code server}
+ *   <li>{@code {<attribute>}} The value of an attribute, e.g. {@code {http.method}}
+ * </ul>
+ *
+ * Missing attributes are left empty, except that text in square brackets is left out entirely
+ * unless all attributes inside it are present. The default
+ * template, {@value #DEFAULT_TEMPLATE}, appends the resource name in parentheses if there is one.
+ *
+ * <p>Lookups are keyed by the values the template refers to and don't allocate once a name is
+ * cached. The name is quoted and escaped by the rules of the Wavefront wire format when it's first
+ * cached, so that the native encoder can copy it as it is. The cache is bounded. Once it's full,
+ * new names are still derived but no longer cached.
+ */
+final class SpanNamer implements MetricSource {
+  /** The default template, which gives the same names as earlier versions of the exporter. */
+  static final String DEFAULT_TEMPLATE = "{name}[({resource.name})]";
+
+  private static final String NAME = "name";
+
+  private static final String KIND = "kind";
+
+  // Slots in the lookup key. Attributes follow.
+  private static final int NAME_SLOT = 0;
+
+  private static final int KIND_SLOT = 1;
+
+  private static final int FIRST_ATTRIBUTE_SLOT = 2;
+
+  private final Part[] parts;
+
+  private final String[] attributes;
+
+  private final boolean usesName;
+
+  private final boolean usesKind;
+
+  private final int maxEntries;
+
+  private final ConcurrentMap<Key, Name> cache = new ConcurrentHashMap<>();
+
+  private final ThreadLocal<Key> probes;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  /** A derived name, both as it is and quoted for the wire format. */
+  static final class Name {
+    private final String name;
+
+    private final byte[] quoted;
+
+    Name(final String name) {
+      this.name = name;
+      this.quoted = SpanLineEncoder.quoteValue(name).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the name.
+     *
+     * @return
+     */
+    String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the name in quotes, escaped and encoded as UTF-8.
+     *
+     * @return
+     */
+    byte[] getQuoted() {
+      return quoted;
+    }
+  }
+
+  /** A piece of the template: literal text, a placeholder or an optional group. */
+  private static final class Part {
+    final String text;
+
+    final int slot;
+
+    final Part[] group;
+
+    Part(final String text, final int slot, final Part[] group) {
+      this.text = text;
+      this.slot = slot;
+      this.group = group;
+    }
+  }
+
+  /**
+   * The values a name is derived from. A mutable instance per thread is used to probe the cache,
+   * and copied only when a new entry is added.
+   */
+  private static final class Key {
+    final Object[] values;
+
+    int hash;
+
+    Key(final Object[] values, final int hash) {
+      this.values = values;
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      return o instanceof Key && ((Key) o).hash == hash && Arrays.equals(((Key) o).values, values);
+    }
+  }
+
+  /**
+   * Creates a new {@link SpanNamer}
+   *
+   * @param template The naming template
+   * @param maxEntries The maximum number of names to cache
+   */
+  SpanNamer(final String template, final int maxEntries) {
+    final List<String> attrs = new ArrayList<>();
+    final int[] pos = {0};
+    parts = parse(template, pos, attrs, false);
+    attributes = attrs.toArray(new String[0]);
+    usesName = uses(parts, NAME_SLOT);
+    usesKind = uses(parts, KIND_SLOT);
+    this.maxEntries = maxEntries;
+    final int slots = FIRST_ATTRIBUTE_SLOT + attributes.length;
+    probes = ThreadLocal.withInitial(() -> new Key(new Object[slots], 0));
+  }
+
+  private static Part[] parse(
+      final String template, final int[] pos, final List<String> attrs, final boolean inGroup) {
+    final List<Part> result = new ArrayList<>();
+    final StringBuilder literal = new StringBuilder();
+    while (pos[0] < template.length()) {
+      final char c = template.charAt(pos[0]++);
+      if (c == '{') {
+        final int end = template.indexOf('}', pos[0]);
+        if (end < 0) {
+          throw new IllegalArgumentException("Unterminated placeholder in " + template);
+        }
+        flush(literal, result);
+        result.add(new Part(null, slot(template.substring(pos[0], end).trim(), attrs), null));
+        pos[0] = end + 1;
+      } else if (c == '[') {
+        if (inGroup) {
+          throw new IllegalArgumentException("Nested optional text in " + template);
+        }
+        flush(literal, result);
+        result.add(new Part(null, -1, parse(template, pos, attrs, true)));
+      } else if (c == ']' && inGroup) {
+        flush(literal, result);
+        return result.toArray(new Part[0]);
+      } else {
+        literal.append(c);
+      }
+    }
+    if (inGroup) {
+      throw new IllegalArgumentException("Unterminated optional text in " + template);
+    }
+    flush(literal, result);
+    return result.toArray(new Part[0]);
+  }
+
+  private static void flush(final StringBuilder literal, final List<Part> result) {
+    if (literal.length() > 0) {
+      result.add(new Part(literal.toString(), -1, null));
+      literal.setLength(0);
+    }
+  }
+
+  private static int slot(final String placeholder, final List<String> attrs) {
+    switch (placeholder) {
+      case NAME:
+        return NAME_SLOT;
+      case KIND:
+        return KIND_SLOT;
+      default:
+        int i = attrs.indexOf(placeholder);
+        if (i < 0) {
+          i = attrs.size();
+          attrs.add(placeholder);
+        }
+        return FIRST_ATTRIBUTE_SLOT + i;
+    }
+  }
+
+  private static boolean uses(final Part[] parts, final int slot) {
+    for (final Part p : parts) {
+      if (p.slot == slot || (p.group != null && uses(p.group, slot))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the name of a span.
+   *
+   * @param span The span
+   * @return
+   */
+  Name name(final SpanData span) {
+    final Key probe = probes.get();
+    final Object[] values = probe.values;
+    values[NAME_SLOT] = usesName ? span.getName() : null;
+    values[KIND_SLOT] = usesKind ? span.getKind() : null;
+    final Map<String, AttributeValue> attrs = span.getAttributes();
+    for (int i = 0; i < attributes.length; ++i) {
+      values[FIRST_ATTRIBUTE_SLOT + i] = attrs.get(attributes[i]);
+    }
+    probe.hash = Arrays.hashCode(values);
+    final Name cached = cache.get(probe);
+    // Don't keep references to the span around in the probe
+    Arrays.fill(values, null);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+    misses.increment();
+    final Object[] copy = new Object[values.length];
+    copy[NAME_SLOT] = usesName ? span.getName() : null;
+    copy[KIND_SLOT] = usesKind ? span.getKind() : null;
+    for (int i = 0; i < attributes.length; ++i) {
+      copy[FIRST_ATTRIBUTE_SLOT + i] = attrs.get(attributes[i]);
+    }
+    final StringBuilder sb = new StringBuilder();
+    render(parts, copy, sb, false);
+    final Name name = new Name(sb.toString());
+    if (cache.size() < maxEntries) {
+      final Name existing = cache.putIfAbsent(new Key(copy, probe.hash), name);
+      return existing != null ? existing : name;
+    }
+    return name;
+  }
+
+  /** Renders parts of the template. Returns false if an optional group is missing attributes. */
+  private static boolean render(
+      final Part[] parts, final Object[] values, final StringBuilder sb, final boolean optional) {
+    for (final Part p : parts) {
+      if (p.text != null) {
+        sb.append(p.text);
+      } else if (p.group != null) {
+        final int mark = sb.length();
+        if (!render(p.group, values, sb, true)) {
+          sb.setLength(mark);
+        }
+      } else {
+        // Only attributes can be missing
+        final Object v = values[p.slot];
+        if (v != null) {
+          sb.append(toString(v));
+        } else if (optional) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static String toString(final Object v) {
+    if (v instanceof String) {
+      return (String) v;
+    }
+    if (v instanceof Enum) {
+      return ((Enum<?>) v).name().toLowerCase(Locale.ROOT);
+    }
+    final AttributeValue attr = (AttributeValue) v;
+    switch (attr.getType()) {
+      case STRING:
+        return attr.getStringValue();
+      case LONG:
+        return Long.toString(attr.getLongValue());
+      case BOOLEAN:
+        return Boolean.toString(attr.getBooleanValue());
+      case DOUBLE:
+        return Double.toString(attr.getDoubleValue());
+      default:
+        return "";
+    }
+  }
+
+  /**
+   * Returns the number of lookups answered from the cache.
+   *
+   * @return
+   */
+  long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of lookups that had to derive the name.
+   *
+   * @return
+   */
+  long getMisses() {
+    return misses.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("spanname.cache.hits", getHits());
+    values.add("spanname.cache.misses", getMisses());
+  }
+
+  /**
+   * Returns the number of cached names.
+   *
+   * @return
+   */
+  int getSize() {
+    return cache.size();
+  }
+}
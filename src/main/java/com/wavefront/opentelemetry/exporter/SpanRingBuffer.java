@@ -0,0 +1,112 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free, multi-producer multi-consumer ring buffer. Each slot carries a sequence
+ * number that tells producers and consumers whether the slot is ready to be written or read, so
+ * neither side ever blocks on the other.
+ *
+ * @param <E> The element type
+ */
+final class SpanRingBuffer<E> {
+  private final Object[] buffer;
+
+  private final AtomicLongArray sequences;
+
+  private final int mask;
+
+  private final AtomicLong head = new AtomicLong();
+
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Creates a new {@link SpanRingBuffer}
+   *
+   * @param capacity The capacity. Rounded up to the nearest power of two.
+   */
+  SpanRingBuffer(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    buffer = new Object[size];
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; ++i) {
+      sequences.set(i, i);
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Attempts to add an element to the tail of the buffer.
+   *
+   * @param e The element to add
+   * @return True if the element was added, false if the buffer was full
+   */
+  boolean offer(final E e) {
+    long pos = tail.get();
+    for (; ; ) {
+      final int idx = (int) pos & mask;
+      final long diff = sequences.get(idx) - pos;
+      if (diff == 0) {
+        if (tail.compareAndSet(pos, pos + 1)) {
+          buffer[idx] = e;
+          sequences.lazySet(idx, pos + 1);
+          return true;
+        }
+        pos = tail.get();
+      } else if (diff < 0) {
+        return false;
+      } else {
+        pos = tail.get();
+      }
+    }
+  }
+
+  /**
+   * Removes the element at the head of the buffer.
+   *
+   * @return The removed element or null if the buffer was empty
+   */
+  @SuppressWarnings("unchecked")
+  E poll() {
+    long pos = head.get();
+    for (; ; ) {
+      final int idx = (int) pos & mask;
+      final long diff = sequences.get(idx) - (pos + 1);
+      if (diff == 0) {
+        if (head.compareAndSet(pos, pos + 1)) {
+          final E e = (E) buffer[idx];
+          buffer[idx] = null;
+          sequences.lazySet(idx, pos + mask + 1);
+          return e;
+        }
+        pos = head.get();
+      } else if (diff < 0) {
+        return null;
+      } else {
+        pos = head.get();
+      }
+    }
+  }
+
+  /**
+   * Returns the approximate number of elements in the buffer.
+   *
+   * @return
+   */
+  int size() {
+    return (int) Math.max(0, Math.min(tail.get() - head.get(), buffer.length));
+  }
+
+  /**
+   * Returns the capacity of the buffer.
+   *
+   * @return
+   */
+  int capacity() {
+    return buffer.length;
+  }
+}
@@ -0,0 +1,45 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import java.util.List;
+
+/**
+ * Estimates the heap footprint of spans, for the components that buffer spans and cap the memory
+ * they use.
+ */
+final class SpanSize {
+  // Rough heap footprint of a span and its parts
+  private static final int SPAN_BYTES = 512;
+
+  private static final int ATTRIBUTE_BYTES = 96;
+
+  private static final int EVENT_BYTES = 256;
+
+  private SpanSize() {}
+
+  /**
+   * Estimates the memory used by a span.
+   *
+   * @param span The span
+   * @return The estimated size in bytes
+   */
+  static long estimate(final SpanData span) {
+    return SPAN_BYTES
+        + (long) span.getAttributes().size() * ATTRIBUTE_BYTES
+        + (long) span.getTimedEvents().size() * EVENT_BYTES;
+  }
+
+  /**
+   * Estimates the memory used by a list of spans.
+   *
+   * @param spans The spans
+   * @return The estimated size in bytes
+   */
+  static long estimate(final List<SpanData> spans) {
+    long bytes = 0;
+    for (final SpanData span : spans) {
+      bytes += estimate(span);
+    }
+    return bytes;
+  }
+}
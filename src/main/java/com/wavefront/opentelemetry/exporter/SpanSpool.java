@@ -0,0 +1,626 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A durable first-in-first-out queue of encoded batches, kept in memory-mapped segment files in a
+ * directory. Batches that could not be sent are appended to the newest segment and a background
+ * replayer sends them, oldest first, once the backend is reachable again.
+ *
+ * <p>Each segment is a preallocated file holding a sequence of records. A record consists of a
+ * header (magic, span and span log lengths, span count, timestamp, a CRC32 of the payload and the
+ * route the batch was meant for) followed by the encoded span lines and span logs. Replay sends
+ * each batch to the same route, so spans that are routed by trace ID stay together. The magic is
+ * written last, so a record that was cut short by a crash is either all zeros or fails its
+ * checksum. On startup, each segment is scanned up to the first invalid record and anything after
+ * it is discarded. Replayed records are marked as consumed in place and segments are deleted once
+ * everything in them has been replayed.
+ *
+ * <p>Writes go to the page cache and are forced to disk when a segment is rotated and when the
+ * spool is closed. This survives a crash of the process but not necessarily a crash of the host.
+ */
+final class SpanSpool implements Closeable, MetricSource {
+  private static final Logger logger = Logger.getLogger(SpanSpool.class.getCanonicalName());
+
+  static final int RECORD_MAGIC = 0x57465350;
+
+  static final int CONSUMED_MAGIC = 0x57465358;
+
+  static final int HEADER_SIZE = 32;
+
+  private static final String SEGMENT_PREFIX = "spool-";
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final String LOCK_FILE = "spool.lock";
+
+  private final File directory;
+
+  private final int segmentBytes;
+
+  private final int maxSegments;
+
+  private final long maxAgeMillis;
+
+  private final RandomAccessFile lockFile;
+
+  private final FileLock lock;
+
+  private final CRC32 crc = new CRC32();
+
+  // Guarded by this
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+  private long nextSequence;
+
+  private long pendingBatches;
+
+  private long pendingSpans;
+
+  private long pendingBytes;
+
+  private final LongAdder spooledSpans = new LongAdder();
+
+  private final LongAdder replayedSpans = new LongAdder();
+
+  private final LongAdder expiredSpans = new LongAdder();
+
+  private final LongAdder overflowedSpans = new LongAdder();
+
+  private volatile double replayRate;
+
+  private volatile Workers.Repeating replayer;
+
+  private volatile boolean closed;
+
+  /** A memory-mapped segment file. */
+  private static final class Segment {
+    final File file;
+
+    final MappedByteBuffer buffer;
+
+    int readPosition;
+
+    int writePosition;
+
+    Segment(final File file, final MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    int capacity() {
+      return buffer.capacity();
+    }
+  }
+
+  /** A record returned by {@link #next()}, waiting to be replayed and committed. */
+  static final class Record {
+    final Segment segment;
+
+    final int position;
+
+    final int spansLength;
+
+    final int logsLength;
+
+    final int spanCount;
+
+    final int route;
+
+    Record(
+        final Segment segment,
+        final int position,
+        final int spansLength,
+        final int logsLength,
+        final int spanCount,
+        final int route) {
+      this.segment = segment;
+      this.position = position;
+      this.spansLength = spansLength;
+      this.logsLength = logsLength;
+      this.spanCount = spanCount;
+      this.route = route;
+    }
+
+    int size() {
+      return HEADER_SIZE + spansLength + logsLength;
+    }
+
+    /**
+     * Copies the contents of the record into batches.
+     *
+     * @param spans The batch to receive the span lines
+     * @param spanLogs The batch to receive the span logs
+     */
+    void copyTo(final EncodedBatch spans, final EncodedBatch spanLogs) {
+      final ByteBuffer b = segment.buffer.duplicate();
+      final int start = position + HEADER_SIZE;
+      b.limit(start + spansLength).position(start);
+      spans.put(b);
+      b.limit(start + spansLength + logsLength).position(start + spansLength);
+      spanLogs.put(b);
+    }
+  }
+
+  /**
+   * Opens a spool, recovering any batches left behind by a previous process.
+   *
+   * @param directory The directory holding the segment files. Created if needed.
+   * @param segmentBytes The size of each segment file. Also the largest batch that can be spooled.
+   * @param maxBytes The maximum total size of the segment files. The oldest segment is discarded
+   *     when a new one would exceed this.
+   * @param maxAgeMillis The maximum age of a batch. Older batches are discarded rather than
+   *     replayed.
+   * @throws IOException If the directory can't be used
+   */
+  SpanSpool(
+      final File directory, final int segmentBytes, final long maxBytes, final long maxAgeMillis)
+      throws IOException {
+    if (segmentBytes <= HEADER_SIZE) {
+      throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+    this.maxAgeMillis = maxAgeMillis;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+    lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+    FileLock l;
+    try {
+      l = lockFile.getChannel().tryLock();
+    } catch (final OverlappingFileLockException e) {
+      l = null;
+    }
+    if (l == null) {
+      lockFile.close();
+      throw new IOException("Spool directory " + directory + " is in use by another exporter");
+    }
+    lock = l;
+    try {
+      recover();
+    } catch (final IOException | RuntimeException e) {
+      lock.release();
+      lockFile.close();
+      throw e;
+    }
+  }
+
+  private synchronized void recover() throws IOException {
+    final File[] files =
+        directory.listFiles(
+            (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if (files == null) {
+      throw new IOException("Could not list spool directory " + directory);
+    }
+    Arrays.sort(files);
+    for (final File f : files) {
+      final long sequence;
+      try {
+        sequence =
+            Long.parseLong(
+                f.getName()
+                    .substring(
+                        SEGMENT_PREFIX.length(), f.getName().length() - SEGMENT_SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        continue;
+      }
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      final Segment s = new Segment(f, map(f, 0));
+      scan(s);
+      if (s.readPosition == s.writePosition) {
+        delete(s);
+      } else {
+        segments.add(s);
+      }
+    }
+    while (segments.size() > maxSegments) {
+      dropOldest();
+    }
+    if (pendingBatches > 0) {
+      logger.log(
+          Level.INFO,
+          "Recovered "
+              + pendingSpans
+              + " spooled spans in "
+              + segments.size()
+              + " segments from "
+              + directory);
+    }
+  }
+
+  /**
+   * Finds the valid records in a segment, i.e. everything up to the first record that is
+   * incomplete or fails its checksum, and counts the ones that haven't been replayed.
+   */
+  private void scan(final Segment s) {
+    final MappedByteBuffer b = s.buffer;
+    int pos = 0;
+    int readPosition = -1;
+    while (pos + HEADER_SIZE <= s.capacity()) {
+      final int magic = b.getInt(pos);
+      if (magic != RECORD_MAGIC && magic != CONSUMED_MAGIC) {
+        break;
+      }
+      final int spansLength = b.getInt(pos + 4);
+      final int logsLength = b.getInt(pos + 8);
+      if (spansLength < 0
+          || logsLength < 0
+          || (long) pos + HEADER_SIZE + spansLength + logsLength > s.capacity()
+          || checksum(b, pos + HEADER_SIZE, spansLength + logsLength) != b.getInt(pos + 24)) {
+        logger.log(
+            Level.WARNING,
+            "Discarding partially written record at offset " + pos + " in " + s.file);
+        break;
+      }
+      if (magic == RECORD_MAGIC) {
+        if (readPosition < 0) {
+          readPosition = pos;
+        }
+        ++pendingBatches;
+        pendingSpans += b.getInt(pos + 12);
+        pendingBytes += HEADER_SIZE + spansLength + logsLength;
+      }
+      pos += HEADER_SIZE + spansLength + logsLength;
+    }
+    s.writePosition = pos;
+    s.readPosition = readPosition < 0 ? pos : readPosition;
+  }
+
+  private int checksum(final ByteBuffer b, final int offset, final int length) {
+    final ByteBuffer d = b.duplicate();
+    d.limit(offset + length).position(offset);
+    crc.reset();
+    crc.update(d);
+    return (int) crc.getValue();
+  }
+
+  private static MappedByteBuffer map(final File f, final int size) throws IOException {
+    try (final RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      if (size > 0) {
+        raf.setLength(size);
+      }
+      // The mapping stays valid after the channel is closed
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+  }
+
+  private void delete(final Segment s) {
+    if (!s.file.delete()) {
+      logger.log(Level.WARNING, "Could not delete spool segment " + s.file);
+    }
+  }
+
+  private void dropOldest() {
+    final Segment s = segments.pollFirst();
+    final MappedByteBuffer b = s.buffer;
+    long spans = 0;
+    int pos = s.readPosition;
+    while (pos < s.writePosition) {
+      final int length = HEADER_SIZE + b.getInt(pos + 4) + b.getInt(pos + 8);
+      if (b.getInt(pos) == RECORD_MAGIC) {
+        spans += b.getInt(pos + 12);
+        --pendingBatches;
+        pendingBytes -= length;
+      }
+      pos += length;
+    }
+    pendingSpans -= spans;
+    overflowedSpans.add(spans);
+    logger.log(
+        Level.WARNING, "Spool is full. Discarding " + spans + " spans in segment " + s.file);
+    delete(s);
+  }
+
+  private Segment rotate() throws IOException {
+    final Segment last = segments.peekLast();
+    if (last != null) {
+      last.buffer.force();
+    }
+    while (segments.size() >= maxSegments) {
+      dropOldest();
+    }
+    final long sequence = nextSequence++;
+    final File f =
+        new File(
+            directory,
+            SEGMENT_PREFIX + String.format(Locale.ROOT, "%019d", sequence) + SEGMENT_SUFFIX);
+    final Segment s = new Segment(f, map(f, segmentBytes));
+    segments.add(s);
+    return s;
+  }
+
+  /**
+   * Appends a batch to the spool. The batches are left untouched.
+   *
+   * @param route The endpoint the batch was meant for, or -1 if there's only one
+   * @param spans The encoded span lines
+   * @param spanLogs The encoded span logs
+   * @throws IOException If the batch is too large for a segment or the segment can't be created
+   */
+  synchronized void append(
+      final int route, final EncodedBatch spans, final EncodedBatch spanLogs) throws IOException {
+    if (closed) {
+      throw new IOException("Spool is closed");
+    }
+    final int spansLength = spans.size();
+    final int logsLength = spanLogs.size();
+    final long size = (long) HEADER_SIZE + spansLength + logsLength;
+    if (size > segmentBytes) {
+      throw new IOException(
+          "Batch of " + size + " bytes does not fit in a " + segmentBytes + " byte spool segment");
+    }
+    Segment s = segments.peekLast();
+    if (s == null || s.writePosition + size > s.capacity()) {
+      s = rotate();
+    }
+    final int pos = s.writePosition;
+    final MappedByteBuffer b = s.buffer;
+    final ByteBuffer d = b.duplicate();
+    d.position(pos + HEADER_SIZE);
+    spans.copyTo(d);
+    spanLogs.copyTo(d);
+    b.putInt(pos + 4, spansLength);
+    b.putInt(pos + 8, logsLength);
+    b.putInt(pos + 12, spans.count());
+    b.putLong(pos + 16, System.currentTimeMillis());
+    b.putInt(pos + 24, checksum(b, pos + HEADER_SIZE, spansLength + logsLength));
+    b.putInt(pos + 28, route);
+    // Written last, so the record only becomes visible once it's complete
+    b.putInt(pos, RECORD_MAGIC);
+    s.writePosition = pos + (int) size;
+    ++pendingBatches;
+    pendingSpans += spans.count();
+    pendingBytes += size;
+    spooledSpans.add(spans.count());
+  }
+
+  /**
+   * Returns the oldest record that hasn't been replayed, skipping records that are too old.
+   *
+   * @return The record or null if the spool is empty
+   */
+  synchronized Record next() {
+    final long cutoff = System.currentTimeMillis() - maxAgeMillis;
+    Segment s;
+    while ((s = segments.peekFirst()) != null) {
+      if (s.readPosition == s.writePosition) {
+        if (s == segments.peekLast()) {
+          return null;
+        }
+        segments.pollFirst();
+        delete(s);
+        continue;
+      }
+      final MappedByteBuffer b = s.buffer;
+      final int pos = s.readPosition;
+      final Record r =
+          new Record(
+              s,
+              pos,
+              b.getInt(pos + 4),
+              b.getInt(pos + 8),
+              b.getInt(pos + 12),
+              b.getInt(pos + 28));
+      if (b.getInt(pos) == CONSUMED_MAGIC) {
+        s.readPosition += r.size();
+      } else if (b.getLong(pos + 16) < cutoff) {
+        expiredSpans.add(r.spanCount);
+        consume(r);
+      } else {
+        return r;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Marks a record returned by {@link #next()} as replayed.
+   *
+   * @param r The record
+   */
+  synchronized void commit(final Record r) {
+    if (segments.peekFirst() != r.segment || r.segment.readPosition != r.position) {
+      // The segment was discarded while the record was being replayed
+      return;
+    }
+    replayedSpans.add(r.spanCount);
+    consume(r);
+  }
+
+  private void consume(final Record r) {
+    final Segment s = r.segment;
+    s.buffer.putInt(r.position, CONSUMED_MAGIC);
+    s.readPosition += r.size();
+    --pendingBatches;
+    pendingSpans -= r.spanCount;
+    pendingBytes -= r.size();
+    if (s.readPosition == s.writePosition) {
+      segments.remove(s);
+      delete(s);
+    }
+  }
+
+  /**
+   * Returns true if there are batches waiting to be replayed. New batches should then be
+   * appended to the spool rather than sent, so they don't overtake the spooled ones.
+   *
+   * @return
+   */
+  synchronized boolean hasBacklog() {
+    return pendingBatches > 0;
+  }
+
+  /**
+   * Starts a background task that periodically replays spooled batches.
+   *
+   * @param sender Sends each batch to the route it was spooled for
+   * @param pool The pool to take buffers from
+   * @param intervalMillis The delay between replay attempts while the backend is unreachable
+   * @param workers Where to run the task
+   */
+  void startReplayer(
+      final StagingBuffer.Sender sender,
+      final ByteBufferPool pool,
+      final long intervalMillis,
+      final Workers workers) {
+    replayer = workers.repeat(() -> replay(sender, pool), intervalMillis);
+  }
+
+  /**
+   * Replays spooled batches until the spool is empty or a send fails.
+   *
+   * @param sender Sends each batch to the route it was spooled for
+   * @param pool The pool to take buffers from
+   * @return The number of spans replayed
+   */
+  long replay(final StagingBuffer.Sender sender, final ByteBufferPool pool) {
+    final long start = System.nanoTime();
+    long spans = 0;
+    try {
+      Record r;
+      while (!closed && (r = next()) != null) {
+        final EncodedBatch lines = new EncodedBatch(pool);
+        final EncodedBatch logs = new EncodedBatch(pool);
+        try {
+          r.copyTo(lines, logs);
+          sender.send(r.route, lines, logs);
+        } finally {
+          lines.release();
+          logs.release();
+        }
+        commit(r);
+        spans += r.spanCount;
+      }
+    } catch (final IOException e) {
+      logger.log(Level.FINE, "Backend still unreachable, will retry spooled spans later", e);
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while replaying spooled spans", e);
+    }
+    final long elapsed = System.nanoTime() - start;
+    replayRate = spans > 0 && elapsed > 0 ? spans * 1e9 / elapsed : 0;
+    return spans;
+  }
+
+  /**
+   * Returns the number of batches waiting to be replayed.
+   *
+   * @return
+   */
+  synchronized long getPendingBatches() {
+    return pendingBatches;
+  }
+
+  /**
+   * Returns the number of spans waiting to be replayed.
+   *
+   * @return
+   */
+  synchronized long getPendingSpans() {
+    return pendingSpans;
+  }
+
+  /**
+   * Returns the number of bytes waiting to be replayed, including record headers.
+   *
+   * @return
+   */
+  synchronized long getPendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * Returns the number of segment files currently in use.
+   *
+   * @return
+   */
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Returns the total number of spans appended to the spool.
+   *
+   * @return
+   */
+  long getSpooledSpans() {
+    return spooledSpans.sum();
+  }
+
+  /**
+   * Returns the total number of spans successfully replayed.
+   *
+   * @return
+   */
+  long getReplayedSpans() {
+    return replayedSpans.sum();
+  }
+
+  /**
+   * Returns the number of spans discarded because they were older than the maximum age.
+   *
+   * @return
+   */
+  long getExpiredSpans() {
+    return expiredSpans.sum();
+  }
+
+  /**
+   * Returns the number of spans discarded because the spool reached its maximum size.
+   *
+   * @return
+   */
+  long getOverflowedSpans() {
+    return overflowedSpans.sum();
+  }
+
+  /**
+   * Returns the rate, in spans per second, achieved by the most recent replay attempt. Zero if
+   * nothing was replayed.
+   *
+   * @return
+   */
+  double getReplayRate() {
+    return replayRate;
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("spool.pending.spans", getPendingSpans());
+    values.add("spool.pending.bytes", getPendingBytes());
+    values.add("spool.replay.rate", getReplayRate());
+  }
+
+  /** Stops the replayer and forces all segments to disk. Spooled batches are kept. */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    final Workers.Repeating r = replayer;
+    if (r != null) {
+      r.cancel();
+    }
+    synchronized (this) {
+      for (final Segment s : segments) {
+        s.buffer.force();
+      }
+    }
+    lock.release();
+    lockFile.close();
+  }
+}
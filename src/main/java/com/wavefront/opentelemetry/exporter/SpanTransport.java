@@ -0,0 +1,28 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Delivers spans encoded by {@link SpanLineEncoder} to a Wavefront proxy or cluster. The caller
+ * keeps ownership of the batches and releases them once {@link #send} returns. A transport that
+ * sends a batch in several parts may, when a later part fails, remove the parts already delivered
+ * from the batches, so that the caller retries only the rest.
+ */
+interface SpanTransport extends Closeable {
+  /**
+   * Sends a batch of encoded spans and their span logs.
+   *
+   * @param spans The span lines
+   * @param spanLogs The span log lines. May be empty.
+   * @throws IOException If the data could not be delivered
+   */
+  void send(EncodedBatch spans, EncodedBatch spanLogs) throws IOException;
+
+  /**
+   * Flushes any data buffered by the transport.
+   *
+   * @throws IOException If the data could not be delivered
+   */
+  void flush() throws IOException;
+}
@@ -0,0 +1,391 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An off-heap staging area for encoded spans waiting to be sent. Batches are copied into a single
+ * direct buffer of fixed size right after they've been encoded, so that a slow backend doesn't
+ * fill the heap with spans and put pressure on the garbage collector. A background task streams
+ * them out to the backend, combining consecutive batches for the same endpoint into one send.
+ *
+ * <p>The buffer is a ring of records, each a header (endpoint, span count and the lengths of the
+ * span lines and span logs) followed by the encoded span lines and span logs. Records are never
+ * split across the end of the buffer. If a record doesn't fit in the space left at the end, that
+ * space is skipped and the record is written at the start. Batches that don't fit in the free
+ * space are rejected and counted as dropped. If a send fails, the records stay where they are and
+ * sending is retried with exponential backoff. The retry only sends what the transport reports as
+ * not delivered yet, so the part of a combined send that got through isn't sent twice.
+ */
+final class StagingBuffer implements MetricSource {
+  private static final Logger logger = Logger.getLogger(StagingBuffer.class.getCanonicalName());
+
+  static final int HEADER_SIZE = 16;
+
+  // Span count of a record marking skipped space at the end of the buffer
+  private static final int SKIP = -1;
+
+  /** Sends the staged spans. */
+  interface Sender {
+    /**
+     * Sends encoded spans.
+     *
+     * @param route The endpoint to send to, or -1 if there's only one
+     * @param lines The span lines
+     * @param logs The span logs
+     * @throws IOException If the spans could not be sent
+     */
+    void send(int route, EncodedBatch lines, EncodedBatch logs) throws IOException;
+  }
+
+  private final ByteBuffer ring;
+
+  private final int capacity;
+
+  private final ByteBufferPool pool;
+
+  private final Sender sender;
+
+  private final int maxSendBytes;
+
+  private final long minBackoffMillis;
+
+  private final long maxBackoffMillis;
+
+  private final Workers.Drain drain;
+
+  private final LongAdder dropped = new LongAdder();
+
+  private final LongAdder sent = new LongAdder();
+
+  // Guarded by this. Only the sending task moves the head.
+  private int head;
+
+  private int tail;
+
+  private int used;
+
+  private long pendingSpans;
+
+  private boolean closed;
+
+  // Only used by the one sending task there is at a time
+  private long backoffMillis;
+
+  // What's left of a failed send, and where it ends in the buffer
+  private Cursor unsent;
+
+  private int unsentRoute;
+
+  private EncodedBatch unsentLines;
+
+  private EncodedBatch unsentLogs;
+
+  /** Where a send stopped reading. */
+  private static final class Cursor {
+    int position;
+
+    int consumed;
+
+    int spans;
+  }
+
+  /**
+   * Creates a new {@link StagingBuffer}
+   *
+   * @param capacity The size of the buffer in bytes
+   * @param pool The pool to take buffers for sending from
+   * @param sender Where to send the spans
+   * @param maxSendBytes The most bytes to combine into one send
+   * @param minBackoffMillis The time to wait after the first failed send
+   * @param maxBackoffMillis The longest time to wait between failed sends
+   * @param workers Where to run the sending task
+   */
+  StagingBuffer(
+      final int capacity,
+      final ByteBufferPool pool,
+      final Sender sender,
+      final int maxSendBytes,
+      final long minBackoffMillis,
+      final long maxBackoffMillis,
+      final Workers workers) {
+    this.ring = ByteBuffer.allocateDirect(capacity);
+    this.capacity = capacity;
+    this.pool = pool;
+    this.sender = sender;
+    this.maxSendBytes = Math.max(1, maxSendBytes);
+    this.minBackoffMillis = Math.max(1, minBackoffMillis);
+    this.maxBackoffMillis = Math.max(this.minBackoffMillis, maxBackoffMillis);
+    this.backoffMillis = this.minBackoffMillis;
+    this.drain = workers.drain(this::sendStaged);
+  }
+
+  /**
+   * Copies encoded spans into the buffer.
+   *
+   * @param route The endpoint to send to, or -1 if there's only one
+   * @param lines The span lines
+   * @param logs The span logs
+   * @return False if the spans didn't fit and were dropped
+   */
+  boolean append(final int route, final EncodedBatch lines, final EncodedBatch logs) {
+    final int linesLength = lines.size();
+    final int logsLength = logs.size();
+    final long size = (long) HEADER_SIZE + linesLength + logsLength;
+    synchronized (this) {
+      final int pos = closed || size > capacity ? -1 : reserve((int) size);
+      if (pos < 0) {
+        dropped.add(lines.count());
+        return false;
+      }
+      final ByteBuffer d = ring.duplicate();
+      d.position(pos + HEADER_SIZE);
+      lines.copyTo(d);
+      logs.copyTo(d);
+      ring.putInt(pos, route);
+      ring.putInt(pos + 4, lines.count());
+      ring.putInt(pos + 8, linesLength);
+      ring.putInt(pos + 12, logsLength);
+      pendingSpans += lines.count();
+    }
+    drain.start();
+    return true;
+  }
+
+  /** Finds room for a record, marking space skipped at the end. Returns -1 if there's none. */
+  private int reserve(final int size) {
+    if (used == 0) {
+      head = 0;
+      tail = 0;
+    }
+    final int pos;
+    if (used > 0 && tail <= head) {
+      // Wrapped around, so the free space is between the tail and the head
+      if (head - tail < size) {
+        return -1;
+      }
+      pos = tail;
+    } else if (capacity - tail >= size) {
+      pos = tail;
+    } else if (head >= size) {
+      final int skipped = capacity - tail;
+      if (skipped >= HEADER_SIZE) {
+        ring.putInt(tail + 4, SKIP);
+      }
+      used += skipped;
+      pos = 0;
+    } else {
+      return -1;
+    }
+    tail = pos + size;
+    used += size;
+    return pos;
+  }
+
+  /** Sends the next records, or returns how long to back off for if that fails. */
+  private long sendStaged() {
+    final int start;
+    final int available;
+    synchronized (this) {
+      if (used == 0) {
+        return Workers.Step.DONE;
+      }
+      start = head;
+      available = used;
+    }
+    try {
+      sendNext(start, available);
+      backoffMillis = minBackoffMillis;
+      return 0;
+    } catch (final IOException e) {
+      logger.log(Level.FINE, "Error while sending staged spans, will retry", e);
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while sending staged spans, will retry", e);
+    }
+    final long delayMillis = backoffMillis;
+    backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+    return delayMillis;
+  }
+
+  /**
+   * Sends consecutive records for the same endpoint from the head of the buffer and frees them.
+   * The records are read without holding the lock, which is safe since appends never touch the
+   * space between the head and the tail. If the last send failed, what's left of it is sent
+   * instead.
+   */
+  private void sendNext(final int start, final int available) throws IOException {
+    final Cursor c;
+    final int route;
+    final EncodedBatch lines;
+    final EncodedBatch logs;
+    if (unsent != null) {
+      c = unsent;
+      route = unsentRoute;
+      lines = unsentLines;
+      logs = unsentLogs;
+      unsent = null;
+    } else {
+      c = new Cursor();
+      c.position = start;
+      lines = new EncodedBatch(pool);
+      logs = new EncodedBatch(pool);
+      route = read(c, available, lines, logs);
+    }
+    try {
+      if (!lines.isEmpty() || !logs.isEmpty()) {
+        sender.send(route, lines, logs);
+      }
+    } catch (final IOException | RuntimeException e) {
+      // Keep the records, but only retry what the transport didn't deliver
+      unsent = c;
+      unsentRoute = route;
+      unsentLines = lines;
+      unsentLogs = logs;
+      throw e;
+    }
+    lines.release();
+    logs.release();
+    sent.add(c.spans);
+    synchronized (this) {
+      head = c.position;
+      used -= c.consumed;
+      pendingSpans -= c.spans;
+      if (used == 0) {
+        notifyAll();
+      }
+    }
+  }
+
+  /** Copies records into batches, up to the send limit. Returns the endpoint they're for. */
+  private int read(
+      final Cursor c, final int available, final EncodedBatch lines, final EncodedBatch logs) {
+    int route = 0;
+    int bytes = 0;
+    while (c.consumed < available) {
+      if (capacity - c.position < HEADER_SIZE || ring.getInt(c.position + 4) == SKIP) {
+        c.consumed += capacity - c.position;
+        c.position = 0;
+        continue;
+      }
+      final int pos = c.position;
+      final int r = ring.getInt(pos);
+      final int count = ring.getInt(pos + 4);
+      final int linesLength = ring.getInt(pos + 8);
+      final int logsLength = ring.getInt(pos + 12);
+      final int size = HEADER_SIZE + linesLength + logsLength;
+      if (bytes > 0 && (r != route || bytes + size > maxSendBytes)) {
+        break;
+      }
+      route = r;
+      final ByteBuffer d = ring.duplicate();
+      d.limit(pos + HEADER_SIZE + linesLength).position(pos + HEADER_SIZE);
+      lines.put(d);
+      d.limit(pos + size).position(pos + HEADER_SIZE + linesLength);
+      logs.put(d);
+      lines.addCount(count);
+      bytes += size;
+      c.spans += count;
+      c.consumed += size;
+      c.position = pos + size;
+    }
+    return route;
+  }
+
+  /**
+   * Returns the size of the buffer in bytes.
+   *
+   * @return
+   */
+  int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Returns the number of bytes in use, including space skipped at the end of the buffer.
+   *
+   * @return
+   */
+  synchronized int getUsedBytes() {
+    return used;
+  }
+
+  /**
+   * Returns the number of spans waiting to be sent.
+   *
+   * @return
+   */
+  synchronized long getPendingSpans() {
+    return pendingSpans;
+  }
+
+  /**
+   * Returns the number of spans sent from the buffer.
+   *
+   * @return
+   */
+  long getSent() {
+    return sent.sum();
+  }
+
+  /**
+   * Returns the number of spans dropped because they didn't fit, or because they were still
+   * waiting when the buffer was closed and could not be sent.
+   *
+   * @return
+   */
+  long getDropped() {
+    return dropped.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    final int used = getUsedBytes();
+    values.add("staging.capacity.bytes", getCapacity());
+    values.add("staging.used.bytes", used);
+    values.add("staging.fill", (double) used / getCapacity());
+    values.add("staging.pending.spans", getPendingSpans());
+    values.add("staging.dropped", getDropped());
+  }
+
+  /**
+   * Stops sending in the background, waiting for a send in progress to finish. Whatever is left
+   * is sent without waiting for the backoff and anything that still can't be sent is dropped.
+   */
+  void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    drain.close();
+    try {
+      while (true) {
+        final int start;
+        final int available;
+        synchronized (this) {
+          if (used == 0) {
+            return;
+          }
+          start = head;
+          available = used;
+        }
+        sendNext(start, available);
+      }
+    } catch (final IOException | RuntimeException e) {
+      if (unsent != null) {
+        unsentLines.release();
+        unsentLogs.release();
+        unsent = null;
+      }
+      final long lost;
+      synchronized (this) {
+        lost = pendingSpans;
+        pendingSpans = 0;
+        used = 0;
+      }
+      dropped.add(lost);
+      logger.log(Level.WARNING, "Dropped " + lost + " staged spans that could not be sent: " + e);
+    }
+  }
+}
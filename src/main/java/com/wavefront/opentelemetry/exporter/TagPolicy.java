@@ -0,0 +1,409 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.trace.AttributeValue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which span attributes become Wavefront tags and what their values look like. A policy
+ * can keep or drop attributes by name, limit the number of tags per span and the length of tag
+ * values, and normalize URLs so that IDs in paths don't turn every request into a distinct tag
+ * value. The standard tags (application, service, status, error and instrumentation) are never
+ * affected.
+ *
+ * <p>Policies are compiled when built. The decision for each attribute name is computed once and
+ * cached, and converted values are kept in small per-thread LRU caches, so applying a policy on
+ * the export path costs next to nothing. A policy is immutable and may be shared between
+ * exporters.
+ */
+public final class TagPolicy {
+  /** A policy that keeps every attribute as is. */
+  public static final TagPolicy KEEP_ALL = newBuilder().build();
+
+  static final String ID_PLACEHOLDER = "{id}";
+
+  private static final int MAX_CACHED_KEYS = 4096;
+
+  private static final int MIN_ID_LENGTH = 8;
+
+  /** What to do with an attribute. */
+  enum Action {
+    KEEP,
+    NORMALIZE_URL,
+    DROP
+  }
+
+  private final Set<String> allowed;
+
+  private final String[] allowedPrefixes;
+
+  private final Set<String> denied;
+
+  private final String[] deniedPrefixes;
+
+  private final Set<String> urls;
+
+  private final String[] urlPrefixes;
+
+  private final boolean keepAll;
+
+  private final int maxTags;
+
+  private final int maxValueLength;
+
+  private final ConcurrentMap<String, Action> actions = new ConcurrentHashMap<>();
+
+  private final ThreadLocal<LruCache> valueCache;
+
+  /** A small access-ordered cache. Only used by a single thread. */
+  private static final class LruCache extends LinkedHashMap<Object, String> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    LruCache(final int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Object, String> eldest) {
+      return size() > maxSize;
+    }
+  }
+
+  private TagPolicy(final Builder b) {
+    allowed = exact(b.allow);
+    allowedPrefixes = prefixes(b.allow);
+    denied = exact(b.deny);
+    deniedPrefixes = prefixes(b.deny);
+    urls = exact(b.normalizeUrls);
+    urlPrefixes = prefixes(b.normalizeUrls);
+    keepAll = b.allow.isEmpty() && b.deny.isEmpty() && b.normalizeUrls.isEmpty();
+    maxTags = b.maxTags;
+    maxValueLength = b.maxValueLength;
+    final int cacheSize = b.valueCacheSize;
+    valueCache = cacheSize > 0 ? ThreadLocal.withInitial(() -> new LruCache(cacheSize)) : null;
+  }
+
+  private static Set<String> exact(final List<String> patterns) {
+    final Set<String> result = new HashSet<>();
+    for (final String p : patterns) {
+      if (!p.endsWith("*")) {
+        result.add(p);
+      }
+    }
+    return Collections.unmodifiableSet(result);
+  }
+
+  private static String[] prefixes(final List<String> patterns) {
+    final List<String> result = new ArrayList<>();
+    for (final String p : patterns) {
+      if (p.endsWith("*")) {
+        result.add(p.substring(0, p.length() - 1));
+      }
+    }
+    return result.toArray(new String[0]);
+  }
+
+  private static boolean matches(
+      final String key, final Set<String> exact, final String[] prefixes) {
+    if (exact.contains(key)) {
+      return true;
+    }
+    for (final String p : prefixes) {
+      if (key.startsWith(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns what to do with an attribute.
+   *
+   * @param key The attribute name
+   * @return
+   */
+  Action action(final String key) {
+    if (keepAll) {
+      return Action.KEEP;
+    }
+    Action a = actions.get(key);
+    if (a == null) {
+      a = computeAction(key);
+      if (actions.size() < MAX_CACHED_KEYS) {
+        actions.putIfAbsent(key, a);
+      }
+    }
+    return a;
+  }
+
+  private Action computeAction(final String key) {
+    if (matches(key, denied, deniedPrefixes)) {
+      return Action.DROP;
+    }
+    if ((!allowed.isEmpty() || allowedPrefixes.length > 0)
+        && !matches(key, allowed, allowedPrefixes)) {
+      return Action.DROP;
+    }
+    if (matches(key, urls, urlPrefixes)) {
+      return Action.NORMALIZE_URL;
+    }
+    return Action.KEEP;
+  }
+
+  /**
+   * Returns the maximum number of attribute tags per span.
+   *
+   * @return
+   */
+  int getMaxTags() {
+    return maxTags;
+  }
+
+  /**
+   * Converts an attribute into a tag value according to the policy.
+   *
+   * @param key The attribute name
+   * @param value The attribute value
+   * @return The tag value or null if the attribute should be dropped
+   */
+  String value(final String key, final AttributeValue value) {
+    final Action a = action(key);
+    if (a == Action.DROP) {
+      return null;
+    }
+    switch (value.getType()) {
+      case STRING:
+        return stringValue(a, value.getStringValue());
+      case BOOLEAN:
+        return value.getBooleanValue() ? "true" : "false";
+      case LONG:
+      case DOUBLE:
+        return cached(value);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Applies URL normalization, if called for, and the length limit to a string value.
+   *
+   * @param a The action for the attribute
+   * @param s The value
+   * @return
+   */
+  String stringValue(final Action a, final String s) {
+    final String v = a == Action.NORMALIZE_URL ? cached(s) : s;
+    return truncate(v, maxValueLength);
+  }
+
+  /** Converts a number or normalizes a URL, going through the per-thread cache. */
+  private String cached(final Object v) {
+    final LruCache cache = valueCache != null ? valueCache.get() : null;
+    if (cache != null) {
+      final String result = cache.get(v);
+      if (result != null) {
+        return result;
+      }
+    }
+    final String result = v instanceof String ? normalizeUrl((String) v) : toString(v);
+    if (cache != null) {
+      cache.put(v, result);
+    }
+    return result;
+  }
+
+  private static String toString(final Object v) {
+    final AttributeValue av = (AttributeValue) v;
+    return av.getType() == AttributeValue.Type.LONG
+        ? Long.toString(av.getLongValue())
+        : Double.toString(av.getDoubleValue());
+  }
+
+  static String truncate(final String s, final int maxLength) {
+    if (s.length() <= maxLength) {
+      return s;
+    }
+    int end = maxLength;
+    // Don't split a surrogate pair
+    if (end > 0 && Character.isHighSurrogate(s.charAt(end - 1))) {
+      --end;
+    }
+    return s.substring(0, end);
+  }
+
+  /**
+   * Turns a URL or path into a template by dropping the query string and fragment and replacing
+   * path segments that look like IDs (numbers, UUIDs and long hex strings) with {@value
+   * #ID_PLACEHOLDER}. The scheme and authority, if any, are kept.
+   *
+   * @param url The URL or path
+   * @return
+   */
+  static String normalizeUrl(final String url) {
+    int end = url.length();
+    for (int i = 0; i < end; ++i) {
+      final char c = url.charAt(i);
+      if (c == '?' || c == '#') {
+        end = i;
+      }
+    }
+    int pathStart = 0;
+    final int scheme = url.indexOf("://");
+    if (scheme >= 0 && scheme < end) {
+      pathStart = url.indexOf('/', scheme + 3);
+      if (pathStart < 0 || pathStart > end) {
+        return url.substring(0, end);
+      }
+    }
+    final StringBuilder sb = new StringBuilder(end);
+    sb.append(url, 0, pathStart);
+    int segStart = pathStart;
+    while (segStart <= end) {
+      int segEnd = url.indexOf('/', segStart);
+      if (segEnd < 0 || segEnd > end) {
+        segEnd = end;
+      }
+      if (isId(url, segStart, segEnd)) {
+        sb.append(ID_PLACEHOLDER);
+      } else {
+        sb.append(url, segStart, segEnd);
+      }
+      if (segEnd < end) {
+        sb.append('/');
+      }
+      segStart = segEnd + 1;
+    }
+    return sb.toString();
+  }
+
+  private static boolean isId(final String s, final int start, final int end) {
+    final int length = end - start;
+    if (length == 0) {
+      return false;
+    }
+    boolean allDigits = true;
+    boolean hasDigit = false;
+    boolean hex = true;
+    for (int i = start; i < end; ++i) {
+      final char c = s.charAt(i);
+      final boolean digit = c >= '0' && c <= '9';
+      hasDigit |= digit;
+      allDigits &= digit;
+      hex &= digit || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F') || c == '-';
+    }
+    return allDigits || (hex && hasDigit && length >= MIN_ID_LENGTH);
+  }
+
+  /**
+   * Creates a new {@link Builder}
+   *
+   * @return
+   */
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** Builds a {@link TagPolicy}. */
+  public static final class Builder {
+    private final List<String> allow = new ArrayList<>();
+    private final List<String> deny = new ArrayList<>();
+    private final List<String> normalizeUrls = new ArrayList<>();
+    private int maxTags = Integer.MAX_VALUE;
+    private int maxValueLength = Integer.MAX_VALUE;
+    private int valueCacheSize = 256;
+
+    private Builder() {}
+
+    /**
+     * Adds attributes to keep. If any are given, all other attributes are dropped. A name ending
+     * in {@code *} matches every attribute starting with what comes before it.
+     *
+     * @param names The attribute names or prefixes
+     * @return
+     */
+    public Builder allow(final String... names) {
+      Collections.addAll(allow, names);
+      return this;
+    }
+
+    /**
+     * Adds attributes to drop. Takes precedence over {@link #allow(String...)}. A name ending in
+     * {@code *} matches every attribute starting with what comes before it.
+     *
+     * @param names The attribute names or prefixes
+     * @return
+     */
+    public Builder deny(final String... names) {
+      Collections.addAll(deny, names);
+      return this;
+    }
+
+    /**
+     * Adds attributes holding URLs or paths that should be normalized into templates, e.g.
+     * {@code /users/1234/orders?page=2} becomes {@code /users/{id}/orders}. A name ending in
+     * {@code *} matches every attribute starting with what comes before it.
+     *
+     * @param names The attribute names or prefixes
+     * @return
+     */
+    public Builder normalizeUrls(final String... names) {
+      Collections.addAll(normalizeUrls, names);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of attribute tags per span. Further attributes are dropped. The
+     * default is unlimited.
+     *
+     * @param maxTags The maximum number of tags
+     * @return
+     */
+    public Builder maxTags(final int maxTags) {
+      this.maxTags = maxTags;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of string tag values. Longer values are truncated. The default is
+     * unlimited.
+     *
+     * @param maxValueLength The maximum length in characters
+     * @return
+     */
+    public Builder maxValueLength(final int maxValueLength) {
+      this.maxValueLength = maxValueLength;
+      return this;
+    }
+
+    /**
+     * Sets the number of converted values (numbers and normalized URLs) cached per thread. Zero
+     * disables the cache. The default is 256.
+     *
+     * @param valueCacheSize The cache size
+     * @return
+     */
+    public Builder valueCacheSize(final int valueCacheSize) {
+      this.valueCacheSize = valueCacheSize;
+      return this;
+    }
+
+    /**
+     * Compiles the policy.
+     *
+     * @return
+     */
+    public TagPolicy build() {
+      return new TagPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers spans per trace and decides whether to keep each trace once it's complete, so that the
+ * decision can take the whole trace into account. A trace is considered complete when its root
+ * span has been seen and no new spans have arrived for a while, or when it has been buffered for
+ * the decision wait, whichever comes first.
+ *
+ * <p>Traces containing an error are always kept, as are traces that take longer than the latency
+ * threshold. All other traces are kept at a limited rate. Decisions are remembered for a while so
+ * that spans arriving after their trace has been decided follow the same decision.
+ *
+ * <p>The memory used by buffered spans is estimated and capped. A trace that doesn't fit is decided
+ * right away based on the spans seen so far.
+ */
+final class TailSampler implements MetricSource {
+  private static final long SETTLE_NANOS = 1000000000L;
+
+  private static final int MAX_REMEMBERED_DECISIONS = 100000;
+
+  private final ConcurrentMap<TraceId, Trace> traces = new ConcurrentHashMap<>();
+
+  private volatile ConcurrentMap<TraceId, Boolean> decisions = new ConcurrentHashMap<>();
+
+  private volatile ConcurrentMap<TraceId, Boolean> previousDecisions = new ConcurrentHashMap<>();
+
+  private final AtomicLong bufferedBytes = new AtomicLong();
+
+  private final AtomicLong bufferedSpans = new AtomicLong();
+
+  private final LongAdder tracesKept = new LongAdder();
+
+  private final LongAdder tracesDropped = new LongAdder();
+
+  private final ConcurrentHistogram decisionNanos = new ConcurrentHistogram();
+
+  private final long decisionWaitNanos;
+
+  private final long settleNanos;
+
+  private final long maxBytes;
+
+  private volatile long latencyThresholdNanos;
+
+  // Guarded by this, along with the tokens
+  private double tracesPerSecond;
+
+  private double burst;
+
+  private double tokens;
+
+  private long lastRefill = System.nanoTime();
+
+  /** The spans of a trace seen so far, along with what's needed to decide on it. */
+  private static final class Trace {
+    final List<SpanData> spans = new ArrayList<>();
+
+    final long firstSeen;
+
+    long lastSeen;
+
+    long bytes;
+
+    long minStart = Long.MAX_VALUE;
+
+    long maxEnd = Long.MIN_VALUE;
+
+    boolean rootSeen;
+
+    boolean error;
+
+    // Set once the trace has been decided. Spans can no longer be added after that.
+    boolean decided;
+
+    Trace(final long now) {
+      firstSeen = now;
+      lastSeen = now;
+    }
+
+    void add(final SpanData span, final long size, final long now) {
+      spans.add(span);
+      bytes += size;
+      lastSeen = now;
+      minStart = Math.min(minStart, span.getStartEpochNanos());
+      maxEnd = Math.max(maxEnd, span.getEndEpochNanos());
+      rootSeen |= !span.getParentSpanId().isValid();
+      error |= isError(span);
+    }
+  }
+
+  /**
+   * Creates a new {@link TailSampler}
+   *
+   * @param decisionWaitMillis The maximum time a trace is buffered before it's decided
+   * @param maxBytes The maximum estimated memory used by buffered spans
+   * @param latencyThresholdMillis Traces taking at least this long are always kept. Zero disables
+   *     the latency rule.
+   * @param tracesPerSecond The rate at which traces without errors or high latency are kept
+   */
+  TailSampler(
+      final long decisionWaitMillis,
+      final long maxBytes,
+      final long latencyThresholdMillis,
+      final double tracesPerSecond) {
+    this.decisionWaitNanos = decisionWaitMillis * 1000000;
+    this.settleNanos = Math.min(SETTLE_NANOS, decisionWaitNanos / 2);
+    this.maxBytes = maxBytes;
+    setLimits(latencyThresholdMillis, tracesPerSecond);
+    this.tokens = burst;
+  }
+
+  /**
+   * Changes the latency threshold and the rate at which other traces are kept. Traces already
+   * decided are not affected.
+   *
+   * @param latencyThresholdMillis Traces taking at least this long are always kept. Zero disables
+   *     the latency rule.
+   * @param tracesPerSecond The rate at which traces without errors or high latency are kept
+   */
+  synchronized void setLimits(final long latencyThresholdMillis, final double tracesPerSecond) {
+    this.latencyThresholdNanos =
+        latencyThresholdMillis > 0 ? latencyThresholdMillis * 1000000 : Long.MAX_VALUE;
+    this.tracesPerSecond = tracesPerSecond;
+    this.burst = Math.max(1, tracesPerSecond);
+    this.tokens = Math.min(tokens, burst);
+  }
+
+  private static boolean isError(final SpanData span) {
+    if (!span.getStatus().isOk()) {
+      return true;
+    }
+    final AttributeValue error = span.getAttributes().get("error");
+    return error != null
+        && error.getType() == AttributeValue.Type.BOOLEAN
+        && error.getBooleanValue();
+  }
+
+  /**
+   * Buffers a batch of spans. Spans of traces that have already been decided, and traces that had
+   * to be decided early because the buffer is full, are not buffered but handed back right away if
+   * they are to be kept. Spans of such a trace that came with earlier batches are handed back
+   * separately, since they are no longer the responsibility of whoever exported those.
+   *
+   * @param spans The spans
+   * @param released Where to add kept spans of earlier batches
+   * @return The spans of this batch to export now
+   */
+  List<SpanData> add(final List<SpanData> spans, final List<SpanData> released) {
+    final long now = System.nanoTime();
+    List<SpanData> result = Collections.emptyList();
+    Set<SpanData> batch = null;
+    for (final SpanData span : spans) {
+      final List<SpanData> kept = add(span, now);
+      if (kept == null) {
+        continue;
+      }
+      if (result.isEmpty()) {
+        result = new ArrayList<>();
+      }
+      if (kept.size() == 1 && kept.get(0) == span) {
+        result.add(span);
+        continue;
+      }
+      if (batch == null) {
+        batch = Collections.newSetFromMap(new IdentityHashMap<>());
+        batch.addAll(spans);
+      }
+      for (final SpanData s : kept) {
+        (batch.contains(s) ? result : released).add(s);
+      }
+    }
+    return result;
+  }
+
+  private List<SpanData> add(final SpanData span, final long now) {
+    final TraceId traceId = span.getTraceId();
+    final long size = SpanSize.estimate(span);
+    for (; ; ) {
+      final Boolean decision = decision(traceId);
+      if (decision != null) {
+        return decision ? Collections.singletonList(span) : null;
+      }
+      final Trace trace = traces.computeIfAbsent(traceId, k -> new Trace(now));
+      synchronized (trace) {
+        if (trace.decided) {
+          // Decided since we looked. The decision has been recorded, so try again.
+          continue;
+        }
+        trace.add(span, size, now);
+        bufferedSpans.incrementAndGet();
+        if (bufferedBytes.addAndGet(size) <= maxBytes) {
+          return null;
+        }
+        // Out of room. Decide this trace now to free up its memory.
+        final List<SpanData> kept = decide(traceId, trace, now);
+        traces.remove(traceId, trace);
+        return kept;
+      }
+    }
+  }
+
+  private Boolean decision(final TraceId traceId) {
+    final Boolean d = decisions.get(traceId);
+    return d != null ? d : previousDecisions.get(traceId);
+  }
+
+  /**
+   * Decides on the traces that are complete or have waited long enough.
+   *
+   * @param now The current time as given by {@link System#nanoTime()}
+   * @param all Whether to decide on all buffered traces, e.g. when shutting down
+   * @return The spans to export
+   */
+  List<SpanData> sweep(final long now, final boolean all) {
+    final List<SpanData> result = new ArrayList<>();
+    final Iterator<Map.Entry<TraceId, Trace>> it = traces.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<TraceId, Trace> e = it.next();
+      final Trace trace = e.getValue();
+      synchronized (trace) {
+        if (trace.decided || !(all || isReady(trace, now))) {
+          continue;
+        }
+        final List<SpanData> kept = decide(e.getKey(), trace, now);
+        it.remove();
+        if (kept != null) {
+          result.addAll(kept);
+        }
+      }
+    }
+    return result;
+  }
+
+  private boolean isReady(final Trace trace, final long now) {
+    return now - trace.firstSeen >= decisionWaitNanos
+        || (trace.rootSeen && now - trace.lastSeen >= settleNanos);
+  }
+
+  /**
+   * Must be called holding the trace's lock, before removing it from the map, so that a span
+   * arriving meanwhile finds either the trace or the decision.
+   */
+  private List<SpanData> decide(final TraceId traceId, final Trace trace, final long now) {
+    final boolean keep =
+        trace.error || trace.maxEnd - trace.minStart >= latencyThresholdNanos || acquire(now);
+    remember(traceId, keep);
+    trace.decided = true;
+    bufferedBytes.addAndGet(-trace.bytes);
+    bufferedSpans.addAndGet(-trace.spans.size());
+    decisionNanos.record(now - trace.firstSeen);
+    if (keep) {
+      tracesKept.increment();
+      return trace.spans;
+    }
+    tracesDropped.increment();
+    return null;
+  }
+
+  private void remember(final TraceId traceId, final boolean keep) {
+    // Two generations, so a decision is remembered for at least MAX_REMEMBERED_DECISIONS more
+    // decisions without having to track the age of each
+    ConcurrentMap<TraceId, Boolean> current = decisions;
+    if (current.size() >= MAX_REMEMBERED_DECISIONS) {
+      synchronized (this) {
+        if (decisions == current) {
+          previousDecisions = current;
+          decisions = new ConcurrentHashMap<>();
+        }
+        current = decisions;
+      }
+    }
+    current.put(traceId, keep);
+  }
+
+  /** Takes a token from the rate limiter, if there is one. */
+  private synchronized boolean acquire(final long now) {
+    tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * tracesPerSecond);
+    lastRefill = Math.max(lastRefill, now);
+    if (tokens >= 1) {
+      tokens -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the number of traces kept.
+   *
+   * @return
+   */
+  long getTracesKept() {
+    return tracesKept.sum();
+  }
+
+  /**
+   * Returns the number of traces dropped.
+   *
+   * @return
+   */
+  long getTracesDropped() {
+    return tracesDropped.sum();
+  }
+
+  /**
+   * Returns the number of spans currently buffered.
+   *
+   * @return
+   */
+  long getBufferedSpans() {
+    return bufferedSpans.get();
+  }
+
+  /**
+   * Returns the estimated memory used by buffered spans in bytes.
+   *
+   * @return
+   */
+  long getBufferedBytes() {
+    return bufferedBytes.get();
+  }
+
+  /**
+   * Returns the number of traces currently buffered.
+   *
+   * @return
+   */
+  int getBufferedTraces() {
+    return traces.size();
+  }
+
+  /**
+   * Returns the distribution of the time from a trace's first span arriving until the trace was
+   * decided, in nanoseconds.
+   *
+   * @return
+   */
+  ConcurrentHistogram.Snapshot getDecisionNanos() {
+    return decisionNanos.snapshot();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("sampler.traces.kept", getTracesKept());
+    values.add("sampler.traces.dropped", getTracesDropped());
+    values.add("sampler.buffered.spans", getBufferedSpans());
+    values.add("sampler.buffered.bytes", getBufferedBytes());
+    values.addTiming("sampler.decision.time", getDecisionNanos());
+  }
+}
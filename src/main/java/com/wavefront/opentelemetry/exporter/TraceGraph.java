@@ -0,0 +1,339 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Link;
+import io.opentelemetry.trace.SpanContext;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Assembles the part of each trace that passes through this exporter, so that a summary of the
+ * trace can be attached to its local root span. A local root is a span without a parent or with a
+ * parent in another process. Its children normally end, and are exported, before it does, so by
+ * the time it's exported the graph below it is known.
+ *
+ * <p>The summary has the number of spans below and including the root, the time from the earliest
+ * start to the latest end among them and the critical path, found by following the child that
+ * ended last from the root down. Summaries are remembered for as long as their trace, so that a
+ * root that is sent again gets the same tags.
+ *
+ * <p>Traces are forgotten once no spans have arrived for the maximum age. The number of spans held
+ * is capped. Spans that don't fit are not recorded and their trace gets no summaries, since they
+ * would be incomplete.
+ */
+final class TraceGraph implements MetricSource {
+  static final String SPANS_TAG = "trace.spans";
+
+  static final String DURATION_TAG = "trace.duration";
+
+  static final String CRITICAL_PATH_TAG = "trace.critical.path";
+
+  // Keeps the critical path tag to a sensible length in deep traces
+  private static final int MAX_PATH_SPANS = 16;
+
+  private static final String PATH_SEPARATOR = " > ";
+
+  private final ConcurrentMap<TraceId, Trace> traces = new ConcurrentHashMap<>();
+
+  private final AtomicLong spans = new AtomicLong();
+
+  private final LongAdder summaries = new LongAdder();
+
+  private final LongAdder overflow = new LongAdder();
+
+  private final long maxSpans;
+
+  private final long maxAgeNanos;
+
+  private final SpanNamer namer;
+
+  /** A span as far as the graph is concerned. */
+  private static final class Node {
+    final SpanId spanId;
+
+    final SpanId parentId;
+
+    final long startNanos;
+
+    final long endNanos;
+
+    final String name;
+
+    Node(final SpanData span, final String name) {
+      this.spanId = span.getSpanId();
+      this.parentId = span.getParentSpanId();
+      this.startNanos = span.getStartEpochNanos();
+      this.endNanos = span.getEndEpochNanos();
+      this.name = name;
+    }
+  }
+
+  /**
+   * The spans of a trace seen so far and the summaries of its local roots. The spans are indexed
+   * by their parents as they arrive, so summarizing a root only looks at the spans below it.
+   */
+  private static final class Trace {
+    final Map<SpanId, Node> nodes = new HashMap<>();
+
+    final Map<SpanId, List<Node>> children = new HashMap<>();
+
+    final Map<SpanId, Map<String, AttributeValue>> summaries = new HashMap<>();
+
+    long lastSeen;
+
+    boolean incomplete;
+
+    // Set once the trace has been forgotten. Spans can no longer be added after that.
+    boolean removed;
+  }
+
+  /**
+   * Creates a new {@link TraceGraph}
+   *
+   * @param maxSpans The maximum number of spans held
+   * @param maxAgeMillis Forget a trace once no spans have arrived for this long
+   * @param namer Derives the span names used in the critical path
+   */
+  TraceGraph(final long maxSpans, final long maxAgeMillis, final SpanNamer namer) {
+    this.maxSpans = maxSpans;
+    this.maxAgeNanos = maxAgeMillis * 1000000;
+    this.namer = namer;
+  }
+
+  /**
+   * Returns true if a span is the root of the part of its trace that passes through this process.
+   *
+   * @param span The span
+   * @return
+   */
+  static boolean isLocalRoot(final SpanData span) {
+    return !span.getParentSpanId().isValid() || span.getHasRemoteParent();
+  }
+
+  /**
+   * Returns true if a link of a span should be sent as a follows-from reference. Wavefront has no
+   * way to refer to a span in another trace, so only links within the same trace qualify.
+   *
+   * @param span The span
+   * @param link One of its links
+   * @return
+   */
+  static boolean isFollowsFrom(final SpanData span, final Link link) {
+    final SpanContext context = link.getContext();
+    return context.getSpanId().isValid() && context.getTraceId().equals(span.getTraceId());
+  }
+
+  /**
+   * Records a batch of spans and summarizes the traces below any local roots among them. The whole
+   * batch is recorded first, so children in the same batch are counted whatever their order.
+   *
+   * @param batch The spans
+   */
+  void record(final List<SpanData> batch) {
+    final long now = System.nanoTime();
+    for (final SpanData span : batch) {
+      add(span, now);
+    }
+    for (final SpanData span : batch) {
+      if (isLocalRoot(span)) {
+        summarize(span);
+      }
+    }
+  }
+
+  private void add(final SpanData span, final long now) {
+    final TraceId traceId = span.getTraceId();
+    final Node node = new Node(span, namer.name(span).getName());
+    for (; ; ) {
+      final Trace trace = traces.computeIfAbsent(traceId, k -> new Trace());
+      synchronized (trace) {
+        if (trace.removed) {
+          // Forgotten since we looked it up. Start a new one.
+          continue;
+        }
+        trace.lastSeen = now;
+        if (trace.nodes.containsKey(node.spanId)) {
+          // Sent again
+          return;
+        }
+        if (spans.incrementAndGet() > maxSpans) {
+          spans.decrementAndGet();
+          overflow.increment();
+          trace.incomplete = true;
+        } else {
+          trace.nodes.put(node.spanId, node);
+          if (node.parentId.isValid()) {
+            trace.children.computeIfAbsent(node.parentId, k -> new ArrayList<>(2)).add(node);
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  private void summarize(final SpanData root) {
+    final Trace trace = traces.get(root.getTraceId());
+    if (trace == null) {
+      return;
+    }
+    synchronized (trace) {
+      if (trace.removed || trace.incomplete || trace.summaries.containsKey(root.getSpanId())) {
+        return;
+      }
+      final Map<String, AttributeValue> summary = summarize(trace, root.getSpanId());
+      if (summary != null) {
+        trace.summaries.put(root.getSpanId(), summary);
+        summaries.increment();
+      }
+    }
+  }
+
+  /** Summarizes the graph below a span, or returns null if the span isn't in it. */
+  private static Map<String, AttributeValue> summarize(final Trace trace, final SpanId rootId) {
+    final Node root = trace.nodes.get(rootId);
+    if (root == null) {
+      return null;
+    }
+    final Map<SpanId, List<Node>> children = trace.children;
+
+    long count = 0;
+    long start = Long.MAX_VALUE;
+    long end = Long.MIN_VALUE;
+    // Guards against cycles from bad parent IDs
+    final Set<SpanId> visited = new HashSet<>();
+    final Deque<Node> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      final Node n = pending.pop();
+      if (!visited.add(n.spanId)) {
+        continue;
+      }
+      ++count;
+      start = Math.min(start, n.startNanos);
+      end = Math.max(end, n.endNanos);
+      for (final Node child : children.getOrDefault(n.spanId, Collections.emptyList())) {
+        pending.push(child);
+      }
+    }
+
+    final StringBuilder path = new StringBuilder(root.name);
+    Node n = root;
+    for (int depth = 1; depth < Math.min(MAX_PATH_SPANS, count); ++depth) {
+      Node last = null;
+      for (final Node child : children.getOrDefault(n.spanId, Collections.emptyList())) {
+        if (last == null || child.endNanos > last.endNanos) {
+          last = child;
+        }
+      }
+      if (last == null) {
+        break;
+      }
+      path.append(PATH_SEPARATOR).append(last.name);
+      n = last;
+    }
+
+    final Map<String, AttributeValue> summary = new LinkedHashMap<>();
+    summary.put(SPANS_TAG, AttributeValue.longAttributeValue(count));
+    summary.put(DURATION_TAG, AttributeValue.longAttributeValue((end - start) / 1000000));
+    summary.put(CRITICAL_PATH_TAG, AttributeValue.stringAttributeValue(path.toString()));
+    return summary;
+  }
+
+  /**
+   * Returns the summary tags of a local root span, or null if there are none.
+   *
+   * @param span The span
+   * @return
+   */
+  Map<String, AttributeValue> summary(final SpanData span) {
+    if (!isLocalRoot(span)) {
+      return null;
+    }
+    final Trace trace = traces.get(span.getTraceId());
+    if (trace == null) {
+      return null;
+    }
+    synchronized (trace) {
+      return trace.summaries.get(span.getSpanId());
+    }
+  }
+
+  /**
+   * Forgets the traces no spans have arrived for in the maximum age.
+   *
+   * @param now The current time as given by {@link System#nanoTime()}
+   */
+  void sweep(final long now) {
+    final Iterator<Trace> it = traces.values().iterator();
+    while (it.hasNext()) {
+      final Trace trace = it.next();
+      synchronized (trace) {
+        if (now - trace.lastSeen >= maxAgeNanos) {
+          it.remove();
+          trace.removed = true;
+          spans.addAndGet(-trace.nodes.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of spans held.
+   *
+   * @return
+   */
+  long getSpans() {
+    return spans.get();
+  }
+
+  /**
+   * Returns the number of traces held.
+   *
+   * @return
+   */
+  int getTraces() {
+    return traces.size();
+  }
+
+  /**
+   * Returns the number of local roots summarized.
+   *
+   * @return
+   */
+  long getSummaries() {
+    return summaries.sum();
+  }
+
+  /**
+   * Returns the number of spans that weren't recorded because too many were held.
+   *
+   * @return
+   */
+  long getOverflow() {
+    return overflow.sum();
+  }
+
+  @Override
+  public void addMetrics(final ExporterMetrics.Values values) {
+    values.add("tracegraph.spans", getSpans());
+    values.add("tracegraph.traces", getTraces());
+    values.add("tracegraph.summaries", getSummaries());
+    values.add("tracegraph.overflow", getOverflow());
+  }
+}
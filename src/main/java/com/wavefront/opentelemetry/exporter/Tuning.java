@@ -0,0 +1,37 @@
+package com.wavefront.opentelemetry.exporter;
+
+/**
+ * The settings that shape individual spans and can be changed while the exporter is running. An
+ * instance is never modified. Changing the settings replaces it as a whole, so the exporting
+ * threads see either the old settings or the new ones, never a mix, and read them with a single
+ * volatile load.
+ */
+final class Tuning {
+  final TagPolicy tagPolicy;
+
+  final int maxSpanLogs;
+
+  final int maxSpanLogValueLength;
+
+  // Null unless spans are encoded natively
+  final SpanLineEncoder encoder;
+
+  /**
+   * Creates a new {@link Tuning}
+   *
+   * @param tagPolicy The policy applied to span attributes
+   * @param maxSpanLogs The maximum number of span logs per span
+   * @param maxSpanLogValueLength The maximum length of span log field values
+   * @param encoder The encoder built from these settings, or null without native encoding
+   */
+  Tuning(
+      final TagPolicy tagPolicy,
+      final int maxSpanLogs,
+      final int maxSpanLogValueLength,
+      final SpanLineEncoder encoder) {
+    this.tagPolicy = tagPolicy;
+    this.maxSpanLogs = maxSpanLogs;
+    this.maxSpanLogValueLength = maxSpanLogValueLength;
+    this.encoder = encoder;
+  }
+}
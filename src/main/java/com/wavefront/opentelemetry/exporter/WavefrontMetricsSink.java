@@ -0,0 +1,89 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.WavefrontSender;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reports the exporter's own metrics to Wavefront as plain metrics through a {@link
+ * WavefrontSender}, sending every value a snapshot holds under its name. Counters are reported as
+ * running totals. Distributions are reported per reporting interval, covering only the values
+ * recorded since the previous report, as mean, median, 99th percentile and maximum. Timings are
+ * reported in milliseconds.
+ */
+final class WavefrontMetricsSink implements MetricsSink {
+  static final String PREFIX = "otel.exporter.wavefront.";
+
+  private final WavefrontSender sender;
+
+  private final String source;
+
+  private final Map<String, String> tags;
+
+  // The distributions as of the previous report. Only used from the reporting thread.
+  private final Map<String, ConcurrentHistogram.Snapshot> previous = new HashMap<>();
+
+  /**
+   * Creates a new {@link WavefrontMetricsSink}
+   *
+   * @param sender The sender to report through
+   * @param source The source (host) name
+   * @param application The application tag
+   * @param service The service tag
+   * @param shard The index of the exporter's shard, added as a tag, or -1 if it isn't sharded
+   */
+  WavefrontMetricsSink(
+      final WavefrontSender sender,
+      final String source,
+      final String application,
+      final String service,
+      final int shard) {
+    this.sender = sender;
+    this.source = source;
+    final Map<String, String> t = new HashMap<>();
+    t.put("application", application);
+    t.put("service", service);
+    if (shard >= 0) {
+      t.put("shard", Integer.toString(shard));
+    }
+    this.tags = t;
+  }
+
+  @Override
+  public synchronized void report(final ExporterMetrics.Snapshot s) throws IOException {
+    final long ts = s.getTimestamp();
+    for (final Map.Entry<String, Number> value : s.getValues().entrySet()) {
+      send(value.getKey(), value.getValue().doubleValue(), ts);
+    }
+    for (final Map.Entry<String, ConcurrentHistogram.Snapshot> timing :
+        s.getTimings().entrySet()) {
+      sendDistribution(timing.getKey(), interval(timing.getKey(), timing.getValue()), 1e-6, ts);
+    }
+    for (final Map.Entry<String, ConcurrentHistogram.Snapshot> distribution :
+        s.getDistributions().entrySet()) {
+      final String name = distribution.getKey();
+      sendDistribution(name, interval(name, distribution.getValue()), 1, ts);
+    }
+  }
+
+  /** Returns the part of a distribution recorded since the previous report. */
+  private ConcurrentHistogram.Snapshot interval(
+      final String name, final ConcurrentHistogram.Snapshot total) {
+    final ConcurrentHistogram.Snapshot earlier = previous.put(name, total);
+    return earlier != null ? total.since(earlier) : total;
+  }
+
+  private void sendDistribution(
+      final String name, final ConcurrentHistogram.Snapshot h, final double scale, final long ts)
+      throws IOException {
+    send(name + ".mean", h.getMean() * scale, ts);
+    send(name + ".p50", h.getPercentile(50) * scale, ts);
+    send(name + ".p99", h.getPercentile(99) * scale, ts);
+    send(name + ".max", h.getMax() * scale, ts);
+  }
+
+  private void send(final String name, final double value, final long ts) throws IOException {
+    sender.sendMetric(PREFIX + name, value, ts, source, tags);
+  }
+}
@@ -6,17 +6,38 @@ import com.wavefront.sdk.common.WavefrontSender;
 import com.wavefront.sdk.direct.ingestion.WavefrontDirectIngestionClient;
 import com.wavefront.sdk.entities.tracing.SpanLog;
 import com.wavefront.sdk.proxy.WavefrontProxyClient;
+import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
 import io.opentelemetry.sdk.trace.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
 import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Link;
 import io.opentelemetry.trace.Status;
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.net.SocketFactory;
@@ -30,223 +51,2020 @@ public class WavefrontSpanExporter implements SpanExporter {
   private static final String INSTRUMENTATION_VERSION_TAG = "instrumentation.version";
 
   private static final int TAGS_HEADROOM = 7;
+  private static final int ID_CACHE_SIZE = 1024;
+  private static final int MIN_CHUNK_SIZE = 64;
+  private static final int MAX_CACHED_LIBRARIES = 256;
+  private static final int ENCODER_BUFFER_SIZE = 64 * 1024;
+  private static final int ENCODER_MAX_IDLE_BUFFERS = 64;
+  private static final long MIN_RECONNECT_MILLIS = 100;
+  private static final long MAX_RECONNECT_MILLIS = 30000;
+  private static final long SPOOL_REPLAY_INTERVAL_MILLIS = 1000;
+  private static final long TAIL_SAMPLING_SWEEP_MILLIS = 250;
+  private static final long TRACE_GRAPH_SWEEP_MILLIS = 1000;
+  // Spans waiting for the adaptive flusher are capped at this many byte budgets per endpoint
+  private static final int MAX_PENDING_FLUSHES = 4;
+  private static final Pair<String, String> ERROR_TRUE_TAG = new Pair<>(ERROR_TAG, "true");
+  private static final Pair<String, String> ERROR_FALSE_TAG = new Pair<>(ERROR_TAG, "false");
+  private static final Pair<String, String>[] STATUS_TAGS = makeStatusTags();
+  private static final ThreadLocal<ArrayList<Pair<String, String>>> tagBuffers =
+      ThreadLocal.withInitial(ArrayList::new);
   private static final Logger logger =
       Logger.getLogger(WavefrontSpanExporter.class.getCanonicalName());
   private final WavefrontSender sender;
   private final String host;
   private final String application;
   private final String service;
+  private final Pair<String, String> applicationTag;
+  private final Pair<String, String> serviceTag;
+  private final ConcurrentMap<InstrumentationLibraryInfo, List<Pair<String, String>>> libraryTags =
+      new ConcurrentHashMap<>();
+  private final IdConverter ids = new IdConverter(ID_CACHE_SIZE);
+  private final AsyncSpanDispatcher dispatcher;
+  private final ExecutorService conversionExecutor;
+  private final int conversionParallelism;
+  private final int parallelThreshold;
+  private final SpanTransport transport;
+  private final MultiEndpointSpanTransport router;
+  private final ByteBufferPool bufferPool;
+  private final SpanNamer namer;
+  private final TraceGraph traceGraph;
+  private final SpanCompactor compactor;
+  private volatile Tuning tuning;
+  private final SpanSpool spool;
+  private final ExporterMetrics metrics;
+  private final AtomicInteger exportsInFlight = new AtomicInteger();
+  private final MetricsSink metricsSink;
+  private final RedMetricsAggregator redMetrics;
+  private final TailSampler tailSampler;
+  private final AdaptiveFlusher flusher;
+  private final RetryQueue retryQueue;
+  private final StagingBuffer staging;
+  private final PendingBatches pending;
+  private final Workers workers;
+  private final List<Workers.Repeating> periodicTasks = new ArrayList<>();
+  private final List<MetricSource> metricSources = new ArrayList<>();
 
+  /**
+   * Creates a new {@link WavefrontSpanExporter}.
+   *
+   * <p>The tag list passed to {@link WavefrontSender#sendSpan} may be a per-thread buffer that is
+   * cleared and refilled for the next span once the call returns. The SDK's senders format the
+   * span before returning; any other sender must copy the list if it keeps it.
+   *
+   * @param sender The sender to hand spans to
+   * @param host The source reported with each span
+   * @param application The application tag
+   * @param service The service tag
+   */
   protected WavefrontSpanExporter(
       final WavefrontSender sender,
       final String host,
       final String application,
       final String service) {
+    this(sender, Builder.newBuilder().host(host).application(application).service(service));
+  }
+
+  @VisibleForTesting
+  WavefrontSpanExporter(final WavefrontSender sender, final Builder config) {
+    this(sender, null, config);
+  }
+
+  @VisibleForTesting
+  WavefrontSpanExporter(
+      final WavefrontSender sender, final SpanTransport transport, final Builder config) {
     this.sender = sender;
-    this.application = application;
-    this.service = service;
-    this.host = host;
+    this.transport = transport;
+    this.metrics = new ExporterMetrics(config.shard);
+    this.router =
+        transport instanceof MultiEndpointSpanTransport
+                && ((MultiEndpointSpanTransport) transport).isRoutingByTrace()
+            ? (MultiEndpointSpanTransport) transport
+            : null;
+    this.namer = new SpanNamer(config.spanNameTemplate, config.spanNameCacheSize);
+    this.traceGraph =
+        config.traceSummaries
+            ? new TraceGraph(config.traceGraphMaxSpans, config.traceGraphMaxAgeMillis, namer)
+            : null;
+    this.compactor =
+        config.dedupWindowMillis > 0 || config.rollupMinSpans > 1
+            ? new SpanCompactor(
+                config.dedupWindowMillis, config.dedupMaxSpans, config.rollupMinSpans)
+            : null;
+    this.workers = Workers.create(config.executor, config.scheduler, config.virtualThreads);
+    this.tuning = tuning(config);
+    this.bufferPool =
+        transport != null
+            ? new ByteBufferPool(ENCODER_BUFFER_SIZE, ENCODER_MAX_IDLE_BUFFERS)
+            : null;
+    this.application = config.application;
+    this.service = config.service;
+    this.host = config.host;
+    this.applicationTag = new Pair<>(APPLICATION_TAG, application);
+    this.serviceTag = new Pair<>(SERVICE_TAG, service);
+    this.conversionExecutor = config.conversionExecutor;
+    this.conversionParallelism = Math.max(1, config.conversionParallelism);
+    this.parallelThreshold = config.parallelThreshold;
+    if (config.spoolDirectory != null) {
+      if (transport == null) {
+        throw new IllegalArgumentException("Spooling requires native encoding");
+      }
+      try {
+        // Shards must not share spool files
+        spool =
+            new SpanSpool(
+                config.shard >= 0
+                    ? new File(config.spoolDirectory, "shard-" + config.shard)
+                    : config.spoolDirectory,
+                config.spoolSegmentBytes,
+                config.spoolMaxBytes,
+                config.spoolMaxAgeMillis);
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Could not open spool", e);
+      }
+      spool.startReplayer(this::send, bufferPool, SPOOL_REPLAY_INTERVAL_MILLIS, workers);
+    } else {
+      spool = null;
+    }
+    if (config.stagingBufferBytes > 0) {
+      if (transport == null) {
+        throw new IllegalArgumentException("Off-heap staging requires native encoding");
+      }
+      staging =
+          new StagingBuffer(
+              config.stagingBufferBytes,
+              bufferPool,
+              this::sendEncoded,
+              (int) Math.min(config.flushMaxBatchBytes, Integer.MAX_VALUE),
+              config.retryInitialBackoffMillis,
+              config.retryMaxBackoffMillis,
+              workers);
+    } else {
+      staging = null;
+    }
+    if (config.asyncQueueSize > 0) {
+      dispatcher =
+          new AsyncSpanDispatcher(
+              this,
+              config.asyncQueueSize,
+              config.drainThreads,
+              config.overflowPolicy,
+              config.blockTimeoutMillis,
+              workers);
+    } else {
+      dispatcher = null;
+    }
+    final String source = host != null ? host : SpanLineEncoder.defaultSource();
+    if (config.redMetrics && sender != null) {
+      redMetrics =
+          new RedMetricsAggregator(
+              application, service, source, config.redMaxOperations, config.shard);
+    } else {
+      if (config.redMetrics) {
+        logger.log(Level.WARNING, "No sender for RED metrics. Not computing them");
+      }
+      redMetrics = null;
+    }
+    if (config.selfMetricsIntervalSeconds > 0
+        && (config.metricsSink != null || sender != null)) {
+      metricsSink =
+          config.metricsSink != null
+              ? config.metricsSink
+              : new WavefrontMetricsSink(sender, source, application, service, config.shard);
+    } else {
+      if (config.selfMetricsIntervalSeconds > 0) {
+        logger.log(Level.WARNING, "No sender or sink for exporter metrics. Not reporting them");
+      }
+      metricsSink = null;
+    }
+    if (config.adaptiveFlush && transport != null) {
+      pending =
+          new PendingBatches(
+              router != null ? router.getEndpointCount() : 0,
+              MAX_PENDING_FLUSHES * Math.max(1, config.flushMaxBatchBytes),
+              bufferPool,
+              this::sendEncoded,
+              metrics,
+              action -> newFlusher(action, config));
+      flusher = pending.getFlusher();
+    } else if (config.adaptiveFlush && sender != null) {
+      pending = null;
+      flusher = newFlusher(sender::flush, config);
+    } else {
+      pending = null;
+      flusher = null;
+    }
+    if (config.retryQueue) {
+      retryQueue =
+          new RetryQueue(
+              this::retry,
+              config.retryQueueMaxBytes,
+              config.retryInitialBackoffMillis,
+              config.retryMaxBackoffMillis,
+              workers);
+    } else {
+      retryQueue = null;
+    }
+    if (config.tailSampling) {
+      tailSampler =
+          new TailSampler(
+              config.tailSamplingDecisionWaitMillis,
+              config.tailSamplingMaxBytes,
+              config.tailSamplingLatencyThresholdMillis,
+              config.tailSamplingTracesPerSecond);
+    } else {
+      tailSampler = null;
+    }
+    // Each enabled component adds its own values to the exporter metrics
+    for (final Object component :
+        Arrays.asList(
+            metrics,
+            dispatcher,
+            retryQueue,
+            staging,
+            traceGraph,
+            compactor,
+            spool,
+            tailSampler,
+            flusher,
+            transport,
+            namer)) {
+      if (component instanceof MetricSource) {
+        metricSources.add((MetricSource) component);
+      }
+    }
+    if (metricsSink != null) {
+      periodicTasks.add(
+          workers.repeat(
+              this::reportMetrics, TimeUnit.SECONDS.toMillis(config.selfMetricsIntervalSeconds)));
+    }
+    if (redMetrics != null) {
+      periodicTasks.add(
+          workers.repeat(
+              this::flushRedMetrics, TimeUnit.SECONDS.toMillis(config.redMetricsIntervalSeconds)));
+    }
+    if (tailSampler != null) {
+      periodicTasks.add(workers.repeat(this::sampleTraces, TAIL_SAMPLING_SWEEP_MILLIS));
+    }
+    if (traceGraph != null) {
+      periodicTasks.add(
+          workers.repeat(() -> traceGraph.sweep(System.nanoTime()), TRACE_GRAPH_SWEEP_MILLIS));
+    }
+  }
+
+  private Tuning tuning(final Builder config) {
+    return new Tuning(
+        config.tagPolicy,
+        config.maxSpanLogs,
+        config.maxSpanLogValueLength,
+        transport != null
+            ? new SpanLineEncoder(
+                config.host,
+                config.application,
+                config.service,
+                config.tagPolicy,
+                config.maxSpanLogs,
+                config.maxSpanLogValueLength,
+                namer,
+                traceGraph)
+            : null);
+  }
+
+  /**
+   * Applies new tag, span log and tail sampling settings without interrupting exports. Spans
+   * being converted keep the settings they started with. All other settings are ignored, since
+   * changing them requires a new exporter.
+   *
+   * @param config The new settings
+   */
+  void retune(final Builder config) {
+    tuning = tuning(config);
+    if (tailSampler != null) {
+      tailSampler.setLimits(
+          config.tailSamplingLatencyThresholdMillis, config.tailSamplingTracesPerSecond);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Pair<String, String>[] makeStatusTags() {
+    final Status.CanonicalCode[] codes = Status.CanonicalCode.values();
+    final Pair<String, String>[] tags = new Pair[codes.length];
+    for (final Status.CanonicalCode code : codes) {
+      tags[code.ordinal()] = new Pair<>(OTEL_STATUS_TAG, code.name());
+    }
+    return tags;
+  }
+
+  @VisibleForTesting
+  protected static long parseHex(final String s) {
+    final int l = s.length();
+    if (l > 16) {
+      throw new NumberFormatException("Too many characters in " + s);
+    }
+    if (l == 16 && s.charAt(0) > '7') {
+      return (Long.parseLong(s.substring(0, 8), 16) << 32) | (Long.parseLong(s.substring(8), 16));
+    }
+    return Long.parseLong(s, 16);
+  }
+
+  @VisibleForTesting
+  static UUID makeUUID(final String s) {
+    if (s.length() <= 16) {
+      return new UUID(0, parseHex(s));
+    }
+    return new UUID(parseHex(s.substring(0, 16)), parseHex(s.substring(16)));
+  }
+
+  private static String attrToString(final AttributeValue attr) {
+    switch (attr.getType()) {
+      case LONG:
+        return Long.toString(attr.getLongValue());
+      case BOOLEAN:
+        return Boolean.toString(attr.getBooleanValue());
+      case DOUBLE:
+        return Double.toString(attr.getDoubleValue());
+      case STRING:
+        return attr.getStringValue();
+      default:
+        logger.log(Level.WARNING, "Unknown attribute type: " + attr.getType() + ". Skipping!");
+        return null;
+    }
+  }
+
+  /**
+   * Returns the tags that are shared by every span from an instrumentation library, i.e.
+   * application, service and the instrumentation name and version. These are computed once per
+   * library and then reused.
+   *
+   * @param lib The instrumentation library
+   * @return
+   */
+  private List<Pair<String, String>> libraryTags(final InstrumentationLibraryInfo lib) {
+    final List<Pair<String, String>> cached = libraryTags.get(lib);
+    if (cached != null) {
+      return cached;
+    }
+    final List<Pair<String, String>> tags = new ArrayList<>(4);
+    tags.add(applicationTag);
+    tags.add(serviceTag);
+    final String instLibName = lib.name();
+    if (instLibName != null) {
+      tags.add(new Pair<>(INSTRUMENTATION_NAME_TAG, instLibName));
+    }
+    final String instLibVer = lib.version();
+    if (instLibVer != null) {
+      tags.add(new Pair<>(INSTRUMENTATION_VERSION_TAG, instLibVer));
+    }
+    final List<Pair<String, String>> result = Collections.unmodifiableList(tags);
+    if (libraryTags.size() < MAX_CACHED_LIBRARIES) {
+      libraryTags.putIfAbsent(lib, result);
+    }
+    return result;
+  }
+
+  /**
+   * Builds the tag list for a span.
+   *
+   * @param span The span
+   * @param reuseBuffer Whether the list may be a per-thread buffer. Only safe if the span is sent
+   *     on the current thread before the next span is converted.
+   * @return
+   */
+  @VisibleForTesting
+  List<Pair<String, String>> extractTags(final SpanData span, final boolean reuseBuffer) {
+    final Map<String, AttributeValue> attrs = span.getAttributes();
+    final List<Pair<String, String>> tags;
+    if (reuseBuffer) {
+      tags = tagBuffers.get();
+      tags.clear();
+    } else {
+      tags = new ArrayList<>(attrs.size() + TAGS_HEADROOM);
+    }
+
+    // Add certain standard attributes such as application, service and status
+    tags.addAll(libraryTags(span.getInstrumentationLibraryInfo()));
+
+    // Handle status code
+    final Status status = span.getStatus();
+    tags.add(STATUS_TAGS[status.getCanonicalCode().ordinal()]);
+    tags.add(status.isOk() ? ERROR_FALSE_TAG : ERROR_TRUE_TAG);
+
+    // Add the attributes allowed by the tag policy
+    final TagPolicy tagPolicy = tuning.tagPolicy;
+    final int maxTags = tagPolicy.getMaxTags();
+    int n = 0;
+    for (final Map.Entry<String, AttributeValue> attr : attrs.entrySet()) {
+      if (n >= maxTags) {
+        break;
+      }
+      final String value = tagPolicy.value(attr.getKey(), attr.getValue());
+      if (value != null) {
+        tags.add(new Pair<>(attr.getKey(), value));
+        ++n;
+      }
+    }
+
+    // Summarize the trace on its local root
+    final Map<String, AttributeValue> summary =
+        traceGraph != null ? traceGraph.summary(span) : null;
+    if (summary != null) {
+      for (final Map.Entry<String, AttributeValue> tag : summary.entrySet()) {
+        final String value = tagPolicy.value(tag.getKey(), tag.getValue());
+        if (value != null) {
+          tags.add(new Pair<>(tag.getKey(), value));
+        }
+      }
+    }
+    return tags;
+  }
+
+  @Override
+  public ResultCode export(final List<SpanData> spans) {
+    if (dispatcher != null) {
+      return dispatcher.submit(spans);
+    }
+    return exportBatch(spans);
+  }
+
+  /**
+   * Exports a batch of spans. Spans that have already been sent are dropped first, if
+   * deduplication is enabled. RED metrics are computed from the spans that are handed off, so
+   * that a batch the span processor sends again isn't counted twice. Spans held back by the tail
+   * sampler, if any, count as handed off whether or not their traces end up kept. Spans of
+   * earlier exports that the sampler releases along the way are sent separately, so that the
+   * result only speaks for the spans of this export.
+   *
+   * @param batch The spans to export
+   * @return
+   */
+  ResultCode exportBatch(final List<SpanData> batch) {
+    final List<SpanData> spans = compactor != null ? compactor.deduplicate(batch) : batch;
+    if (spans.isEmpty()) {
+      return ResultCode.SUCCESS;
+    }
+    if (tailSampler != null) {
+      final List<SpanData> released = new ArrayList<>();
+      final List<SpanData> kept = tailSampler.add(spans, released);
+      sendSampled(released);
+      if (kept.isEmpty()) {
+        recordRedMetrics(spans, Collections.emptyList());
+        return ResultCode.SUCCESS;
+      }
+      return sendBatch(kept, spans);
+    }
+    return sendBatch(spans, spans);
+  }
+
+  /**
+   * Records RED metrics for spans, except those that weren't handed off.
+   *
+   * @param spans The spans
+   * @param unsent The spans among them that weren't handed off
+   */
+  private void recordRedMetrics(final List<SpanData> spans, final List<SpanData> unsent) {
+    if (redMetrics == null || spans.isEmpty()) {
+      return;
+    }
+    final Set<SpanData> skip;
+    if (unsent.isEmpty()) {
+      skip = Collections.emptySet();
+    } else {
+      skip = Collections.newSetFromMap(new IdentityHashMap<>());
+      skip.addAll(unsent);
+    }
+    for (final SpanData span : spans) {
+      if (!skip.contains(span)) {
+        redMetrics.record(
+            spanName(span),
+            !span.getStatus().isOk(),
+            (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000);
+      }
+    }
+  }
+
+  /**
+   * Converts and sends a batch of spans. Large batches are converted in parallel if a conversion
+   * executor has been configured, but spans are always sent in their original order.
+   *
+   * <p>If only part of the batch could be sent and a retry queue is configured, the rest is
+   * queued for retrying and the export succeeds, so that the span processor doesn't send the
+   * whole batch again. Without a retry queue, the export fails and the spans already sent are
+   * counted as duplicates, since the span processor may retry the batch. While spans are waiting
+   * to be retried, new batches are queued behind them rather than sent.
+   *
+   * <p>Identical siblings are rolled up, if enabled, after the trace index has recorded them, so
+   * that trace summaries still count every span.
+   *
+   * <p>RED metrics are recorded for the spans of the export that were sent or queued for
+   * retrying, unless the span processor is going to export them again.
+   *
+   * @param batch The spans to send
+   * @param exported The spans of the export being handled, to record RED metrics for, or an empty
+   *     list if they have been recorded already
+   * @return
+   */
+  private ResultCode sendBatch(final List<SpanData> batch, final List<SpanData> exported) {
+    final long start = System.nanoTime();
+    if (traceGraph != null) {
+      traceGraph.record(batch);
+    }
+    final SpanCompactor.RollUp rollUp = compactor != null ? compactor.rollUp(batch) : null;
+    final List<SpanData> spans = rollUp != null ? rollUp.getSpans() : batch;
+    final List<SpanData> unsent;
+    if (retryQueue != null && retryQueue.hasBacklog()) {
+      unsent = spans;
+    } else {
+      unsent = trySend(spans, start);
+    }
+    final int sent = spans.size() - unsent.size();
+    final ResultCode rc;
+    int failed = 0;
+    if (unsent.isEmpty()) {
+      rc = ResultCode.SUCCESS;
+    } else if (retryQueue != null) {
+      rc = retryQueue.offer(unsent) ? ResultCode.SUCCESS : ResultCode.FAILED_NOT_RETRYABLE;
+    } else {
+      rc = ResultCode.FAILED_RETRYABLE;
+      failed = unsent.size();
+      metrics.recordDuplicates(sent);
+      if (rollUp != null) {
+        compactor.forget(rollUp.expand(unsent));
+      }
+    }
+    metrics.recordExport(
+        spans.size(), sent, failed, rc == ResultCode.SUCCESS, System.nanoTime() - start);
+    // Spans the span processor will export again are counted then. Unless duplicates are
+    // dropped, that's the whole export, since the spans already sent are sent again too.
+    if (rc == ResultCode.SUCCESS) {
+      recordRedMetrics(exported, Collections.emptyList());
+    } else if (rc == ResultCode.FAILED_NOT_RETRYABLE
+        || (compactor != null && compactor.isDeduplicating())) {
+      recordRedMetrics(exported, rollUp != null ? rollUp.expand(unsent) : unsent);
+    }
+    return rc;
+  }
+
+  /**
+   * Sends spans that were queued for retrying.
+   *
+   * @param spans The spans to send
+   * @return The spans that still could not be sent
+   */
+  private List<SpanData> retry(final List<SpanData> spans) {
+    final List<SpanData> unsent = trySend(spans, System.nanoTime());
+    metrics.recordRetry(spans.size() - unsent.size());
+    return unsent;
+  }
+
+  /**
+   * Converts and sends spans, stopping at the first I/O error. Calls that overlap with another
+   * one are counted as contended, since they compete for the same sender or transport.
+   *
+   * @param spans The spans to send
+   * @param start The time the export started, as given by {@link System#nanoTime()}
+   * @return The spans that could not be sent
+   */
+  private List<SpanData> trySend(final List<SpanData> spans, final long start) {
+    if (exportsInFlight.getAndIncrement() > 0) {
+      metrics.recordContended();
+    }
+    final List<SpanData> unsent;
+    try {
+      if (transport != null) {
+        unsent = exportEncoded(spans, start);
+      } else if (conversionExecutor != null && spans.size() >= parallelThreshold) {
+        unsent = exportParallel(spans, start);
+      } else {
+        unsent = exportSequential(spans, start);
+      }
+    } finally {
+      exportsInFlight.decrementAndGet();
+    }
+    if (flusher != null && transport == null && unsent.size() < spans.size()) {
+      flusher.added(spans.size() - unsent.size(), 0);
+    }
+    return unsent;
+  }
+
+  /** Returns a copy of the spans from an index on, which the caller is free to reuse. */
+  private static List<SpanData> remainder(final List<SpanData> spans, final int from) {
+    return new ArrayList<>(spans.subList(from, spans.size()));
+  }
+
+  private List<SpanData> exportSequential(final List<SpanData> spans, final long start) {
+    long conversionNanos = 0;
+    long sendNanos = 0;
+    long t0 = start;
+    List<SpanData> unsent = Collections.emptyList();
+    for (int i = 0; i < spans.size(); ++i) {
+      final ConvertedSpan converted = convert(spans.get(i), true);
+      final long t1 = System.nanoTime();
+      final boolean sent = send(converted);
+      final long t2 = System.nanoTime();
+      conversionNanos += t1 - t0;
+      sendNanos += t2 - t1;
+      t0 = t2;
+      if (!sent) {
+        unsent = remainder(spans, i);
+        break;
+      }
+    }
+    metrics.recordConversion(conversionNanos);
+    metrics.recordSend(sendNanos);
+    return unsent;
+  }
+
+  private int chunkSize(final int n) {
+    return Math.max(MIN_CHUNK_SIZE, (n + conversionParallelism - 1) / conversionParallelism);
+  }
+
+  private List<SpanData> exportParallel(final List<SpanData> spans, final long start) {
+    // Split the batch into one chunk per worker and start converting all of them. We then send
+    // the chunks in order as they complete, so sending overlaps with the remaining conversions.
+    final int n = spans.size();
+    final int chunkSize = chunkSize(n);
+    final int chunkCount = (n + chunkSize - 1) / chunkSize;
+    final ConvertedSpan[] converted = new ConvertedSpan[n];
+    final List<Future<?>> futures = new ArrayList<>(chunkCount);
+    long sendNanos = 0;
+    for (int i = 0; i < chunkCount; ++i) {
+      final int from = i * chunkSize;
+      final int to = Math.min(n, from + chunkSize);
+      final Runnable task = () -> convertRange(spans, converted, from, to);
+      Future<?> f;
+      try {
+        f = conversionExecutor.submit(task);
+      } catch (final RejectedExecutionException e) {
+        // The executor is saturated or shutting down. Do the work ourselves.
+        task.run();
+        f = null;
+      }
+      futures.add(f);
+    }
+    for (int i = 0; i < chunkCount; ++i) {
+      final int from = i * chunkSize;
+      final int to = Math.min(n, from + chunkSize);
+      final Future<?> f = futures.get(i);
+      if (f != null) {
+        try {
+          f.get();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          cancelAll(futures);
+          return remainder(spans, from);
+        } catch (final ExecutionException e) {
+          logger.log(Level.WARNING, "Error while converting spans", e.getCause());
+        }
+      }
+      final long sendStart = System.nanoTime();
+      for (int j = from; j < to; ++j) {
+        if (!send(converted[j])) {
+          cancelAll(futures);
+          return remainder(spans, j);
+        }
+      }
+      sendNanos += System.nanoTime() - sendStart;
+    }
+    // Conversion overlaps with sending, so count the time we weren't sending as conversion
+    metrics.recordConversion(System.nanoTime() - start - sendNanos);
+    metrics.recordSend(sendNanos);
+    return Collections.emptyList();
+  }
+
+  /**
+   * Encodes a batch of spans directly into the Wavefront wire format and hands it to the
+   * transport in one piece. If a spool is configured, batches that can't be sent are spooled to
+   * disk, as are all batches while older ones are still waiting to be replayed. When routing by
+   * trace across several endpoints, the batch is split into one batch per endpoint first.
+   *
+   * @param spans The spans to send
+   * @param start The time the export started, as given by {@link System#nanoTime()}
+   * @return The spans that could not be sent
+   */
+  private List<SpanData> exportEncoded(final List<SpanData> spans, final long start) {
+    if (router == null) {
+      return exportEncoded(spans, -1, start);
+    }
+    final List<List<SpanData>> routes = new ArrayList<>(router.getEndpointCount());
+    for (int i = 0; i < router.getEndpointCount(); ++i) {
+      routes.add(null);
+    }
+    for (final SpanData span : spans) {
+      final int route = router.route(span.getTraceId());
+      List<SpanData> l = routes.get(route);
+      if (l == null) {
+        l = new ArrayList<>();
+        routes.set(route, l);
+      }
+      l.add(span);
+    }
+    // Only the spans of the endpoints that failed need to be retried
+    List<SpanData> unsent = Collections.emptyList();
+    for (int i = 0; i < routes.size(); ++i) {
+      final List<SpanData> l = routes.get(i);
+      if (l == null) {
+        continue;
+      }
+      final List<SpanData> u = exportEncoded(l, i, System.nanoTime());
+      if (!u.isEmpty()) {
+        if (unsent.isEmpty()) {
+          unsent = new ArrayList<>();
+        }
+        unsent.addAll(u);
+      }
+    }
+    return unsent;
+  }
+
+  private List<SpanData> exportEncoded(
+      final List<SpanData> spans, final int route, final long start) {
+    final boolean[] unsendable = new boolean[spans.size()];
+    final EncodedBatch lines = new EncodedBatch(bufferPool);
+    final EncodedBatch logs = new EncodedBatch(bufferPool);
+    try {
+      if (conversionExecutor != null && spans.size() >= parallelThreshold) {
+        encodeParallel(spans, lines, logs, unsendable);
+      } else {
+        encodeRange(spans, 0, spans.size(), lines, logs, unsendable);
+      }
+      final long encoded = System.nanoTime();
+      metrics.recordConversion(encoded - start);
+      if (lines.isEmpty()) {
+        return Collections.emptyList();
+      }
+      if (staging != null) {
+        // Copied off the heap and sent by the staging task
+        return staging.append(route, lines, logs)
+            ? Collections.emptyList()
+            : unsent(spans, unsendable, lines.count());
+      }
+      if (pending != null) {
+        // Leave it to the flusher to send, together with whatever else is pending
+        return pending.add(route, lines, logs)
+            ? Collections.emptyList()
+            : unsent(spans, unsendable, lines.count());
+      }
+      try {
+        sendEncoded(route, lines, logs);
+      } finally {
+        metrics.recordSend(System.nanoTime() - encoded);
+      }
+      return Collections.emptyList();
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error while sending spans", e);
+      // The transport removes what it did deliver, so only the spans still in the batch are left
+      return unsent(spans, unsendable, lines.count());
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return spans;
+    } finally {
+      lines.release();
+      logs.release();
+    }
+  }
+
+  /**
+   * Returns the spans behind the encoded lines that weren't sent. Those are the last lines of the
+   * batch, as a transport only removes the parts it delivered from the front.
+   *
+   * @param spans The spans that were encoded
+   * @param unsendable Which of the spans could not be encoded and are already counted as dropped
+   * @param remaining The number of span lines left in the batch
+   * @return The spans to send again
+   */
+  private static List<SpanData> unsent(
+      final List<SpanData> spans, final boolean[] unsendable, final int remaining) {
+    final ArrayList<SpanData> result = new ArrayList<>(remaining);
+    for (int i = spans.size() - 1; i >= 0 && result.size() < remaining; --i) {
+      if (!unsendable[i]) {
+        result.add(spans.get(i));
+      }
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  private void sendEncoded(final int route, final EncodedBatch lines, final EncodedBatch logs)
+      throws IOException {
+    if (spool == null) {
+      send(route, lines, logs);
+    } else if (spool.hasBacklog()) {
+      // Don't overtake the spans that are already spooled
+      spool.append(route, lines, logs);
+    } else {
+      try {
+        send(route, lines, logs);
+      } catch (final IOException e) {
+        logger.log(Level.WARNING, "Error while sending spans, spooling them: " + e);
+        spool.append(route, lines, logs);
+      }
+    }
+  }
+
+  private void send(final int route, final EncodedBatch lines, final EncodedBatch logs)
+      throws IOException {
+    if (route >= 0) {
+      router.send(route, lines, logs);
+    } else {
+      transport.send(lines, logs);
+    }
+  }
+
+  private AdaptiveFlusher newFlusher(final AdaptiveFlusher.Action action, final Builder config) {
+    return new AdaptiveFlusher(
+        action,
+        config.flushMinBatchSpans,
+        config.flushMaxBatchSpans,
+        config.flushMaxBatchBytes,
+        config.flushMaxLatencyMillis,
+        config.flushTargetSendMillis,
+        config.retryInitialBackoffMillis,
+        config.retryMaxBackoffMillis,
+        workers);
+  }
+
+  private void encodeParallel(
+      final List<SpanData> spans,
+      final EncodedBatch lines,
+      final EncodedBatch logs,
+      final boolean[] unsendable)
+      throws InterruptedException {
+    final int n = spans.size();
+    final int chunkSize = chunkSize(n);
+    final List<FutureTask<EncodedBatch[]>> tasks = new ArrayList<>();
+    for (int from = 0; from < n; from += chunkSize) {
+      final int start = from;
+      final int end = Math.min(n, from + chunkSize);
+      final FutureTask<EncodedBatch[]> task =
+          new FutureTask<>(
+              () -> {
+                final EncodedBatch[] result = {
+                  new EncodedBatch(bufferPool), new EncodedBatch(bufferPool)
+                };
+                encodeRange(spans, start, end, result[0], result[1], unsendable);
+                return result;
+              });
+      try {
+        conversionExecutor.execute(task);
+      } catch (final RejectedExecutionException e) {
+        // The executor is saturated or shutting down. Do the work ourselves.
+        task.run();
+      }
+      tasks.add(task);
+    }
+    // Stitch the chunks together in their original order
+    for (int i = 0; i < tasks.size(); ++i) {
+      try {
+        final EncodedBatch[] result = tasks.get(i).get();
+        lines.append(result[0]);
+        logs.append(result[1]);
+      } catch (final ExecutionException e) {
+        logger.log(Level.WARNING, "Error while encoding spans", e.getCause());
+        final int from = i * chunkSize;
+        final int to = Math.min(n, from + chunkSize);
+        Arrays.fill(unsendable, from, to, true);
+        metrics.recordUnsendable(to - from);
+      }
+    }
+  }
+
+  private void encodeRange(
+      final List<SpanData> spans,
+      final int from,
+      final int to,
+      final EncodedBatch lines,
+      final EncodedBatch logs,
+      final boolean[] unsendable) {
+    final SpanLineEncoder encoder = tuning.encoder;
+    for (int i = from; i < to; ++i) {
+      try {
+        encoder.encode(spans.get(i), lines, logs);
+      } catch (final RuntimeException e) {
+        logger.log(Level.WARNING, "Error while encoding span", e);
+        unsendable[i] = true;
+        metrics.recordUnsendable(1);
+      }
+    }
+  }
+
+  private void convertRange(
+      final List<SpanData> spans, final ConvertedSpan[] converted, final int from, final int to) {
+    for (int i = from; i < to; ++i) {
+      converted[i] = convert(spans.get(i), false);
+    }
+  }
+
+  private static void cancelAll(final List<Future<?>> futures) {
+    for (final Future<?> f : futures) {
+      if (f != null) {
+        f.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Converts a span into the form expected by the sender.
+   *
+   * @param span The span to convert
+   * @param reuseBuffers Whether per-thread buffers may be used. Only safe if the span is sent on
+   *     the current thread before the next span is converted.
+   * @return The converted span or null if the span could not be converted
+   */
+  private ConvertedSpan convert(final SpanData span, final boolean reuseBuffers) {
+    try {
+      if (logger.isLoggable(Level.FINE)) {
+        logger.log(Level.FINE, "SPAN: " + span.getName());
+      }
+
+      return new ConvertedSpan(
+          spanName(span),
+          span.getStartEpochNanos() / 1000000,
+          (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000000,
+          ids.traceId(span.getTraceId()),
+          ids.spanId(span.getSpanId()),
+          span.getParentSpanId().isValid()
+              ? Collections.singletonList(ids.spanId(span.getParentSpanId()))
+              : Collections.emptyList(),
+          followsFrom(span),
+          extractTags(span, reuseBuffers),
+          spanLogs(span));
+    } catch (final Throwable t) {
+      logger.log(Level.WARNING, "Error while converting span", t);
+      metrics.recordUnsendable(1);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the spans a span follows from, as given by its links within the same trace.
+   *
+   * @param span The span
+   * @return The span IDs, or null if there are none
+   */
+  private List<UUID> followsFrom(final SpanData span) {
+    List<UUID> result = null;
+    for (final Link link : span.getLinks()) {
+      if (TraceGraph.isFollowsFrom(span, link)) {
+        if (result == null) {
+          result = new ArrayList<>(span.getLinks().size());
+        }
+        result.add(ids.spanId(link.getContext().getSpanId()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Converts the timed events of a span into span logs, each stamped with the time of its event.
+   * Events beyond the span log limit are dropped and long string values are truncated.
+   *
+   * @param span The span
+   * @return
+   */
+  @VisibleForTesting
+  List<SpanLog> spanLogs(final SpanData span) {
+    final List<SpanData.TimedEvent> events = span.getTimedEvents();
+    final Tuning t = tuning;
+    if (events.isEmpty() || t.maxSpanLogs <= 0) {
+      return Collections.emptyList();
+    }
+    final int n = Math.min(events.size(), t.maxSpanLogs);
+    final List<SpanLog> spanLogs = new ArrayList<>(n);
+    for (int i = 0; i < n; ++i) {
+      final SpanData.TimedEvent event = events.get(i);
+      final Map<String, AttributeValue> attrs = event.getAttributes();
+      final Map<String, String> fields;
+      if (attrs.isEmpty()) {
+        fields = Collections.emptyMap();
+      } else {
+        // Sized so the map never needs to grow
+        fields = new HashMap<>(attrs.size() * 4 / 3 + 1);
+        for (final Map.Entry<String, AttributeValue> attr : attrs.entrySet()) {
+          final String value = attrToString(attr.getValue());
+          if (value != null) {
+            fields.put(attr.getKey(), TagPolicy.truncate(value, t.maxSpanLogValueLength));
+          }
+        }
+      }
+      // Span log timestamps are in microseconds
+      spanLogs.add(new SpanLog(event.getEpochNanos() / 1000, fields));
+    }
+    return spanLogs;
+  }
+
+  /**
+   * Returns the name of a span as given by the span name template. By default, that's its name
+   * followed by the resource name, if any.
+   *
+   * @param span The span
+   * @return
+   */
+  private String spanName(final SpanData span) {
+    return namer.name(span).getName();
+  }
+
+  /**
+   * Hands a converted span to the sender. Spans that fail for reasons other than I/O errors would
+   * fail again if retried, so they're dropped and counted as unsendable.
+   *
+   * @param span The span, or null if it could not be converted
+   * @return False if the span should be retried
+   */
+  private boolean send(final ConvertedSpan span) {
+    if (span == null) {
+      return true;
+    }
+    try {
+      span.sendTo(sender, host);
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error while sending span", e);
+      return false;
+    } catch (final Throwable t) {
+      logger.log(Level.WARNING, "Error while sending span", t);
+      metrics.recordUnsendable(1);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the total number of spans dropped by the asynchronous pipeline, either because the
+   * queue overflowed or because they could not be sent. Always zero in synchronous mode.
+   *
+   * @return
+   */
+  public long getDroppedSpanCount() {
+    return dispatcher != null ? dispatcher.getDropped() : 0;
+  }
+
+  /**
+   * Returns a snapshot of the exporter's own metrics, such as the number of spans exported and
+   * the time spent converting and sending them.
+   *
+   * @return
+   */
+  public ExporterMetrics.Snapshot getMetrics() {
+    return metrics.snapshot(metricSources);
+  }
+
+
+  private void reportMetrics() {
+    try {
+      metricsSink.report(getMetrics());
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error while reporting exporter metrics: " + e);
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while reporting exporter metrics", e);
+    }
+  }
+
+  /**
+   * Sends the spans of the traces the tail sampler has decided to keep.
+   *
+   * @param all Whether to decide on all buffered traces
+   */
+  private void sampleTraces(final boolean all) {
+    try {
+      sendSampled(tailSampler.sweep(System.nanoTime(), all));
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while sampling traces", e);
+    }
   }
 
-  @VisibleForTesting
-  protected static long parseHex(final String s) {
-    final int l = s.length();
-    if (l > 16) {
-      throw new NumberFormatException("Too many characters in " + s);
+  /** Sends spans of kept traces that no export is waiting for. */
+  private void sendSampled(final List<SpanData> kept) {
+    if (!kept.isEmpty() && sendBatch(kept, Collections.emptyList()) != ResultCode.SUCCESS) {
+      logger.log(Level.WARNING, "Could not send " + kept.size() + " sampled spans");
+    }
+  }
+
+  private void sampleTraces() {
+    sampleTraces(false);
+  }
+
+  private void flushRedMetrics() {
+    try {
+      redMetrics.flush(sender);
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error while sending RED metrics: " + e);
+    } catch (final RuntimeException e) {
+      logger.log(Level.WARNING, "Error while sending RED metrics", e);
+    }
+  }
+
+  /**
+   * Returns the spool, or null if spooling isn't enabled.
+   *
+   * @return
+   */
+  @VisibleForTesting
+  SpanSpool getSpool() {
+    return spool;
+  }
+
+  @Override
+  public void shutdown() {
+    if (dispatcher != null) {
+      dispatcher.shutdown();
+    }
+    for (final Workers.Repeating task : periodicTasks) {
+      task.cancel();
+    }
+    // Decide on the remaining traces before the last retries
+    if (tailSampler != null) {
+      sampleTraces(true);
+    }
+    if (retryQueue != null) {
+      retryQueue.close();
+    }
+    if (staging != null) {
+      staging.close();
+    }
+    if (pending != null) {
+      pending.close();
+    } else if (flusher != null) {
+      flusher.close();
+    }
+    // Report one last time so the final counts aren't lost
+    if (redMetrics != null) {
+      flushRedMetrics();
+    }
+    if (metricsSink != null) {
+      reportMetrics();
+    }
+    try {
+      if (spool != null) {
+        spool.close();
+      }
+      if (sender != null) {
+        sender.flush();
+        sender.close();
+      }
+      if (transport != null) {
+        transport.flush();
+        transport.close();
+      }
+    } catch (final IOException e) {
+      logger.log(Level.WARNING, "Error closing Wavefront sender", e);
+    }
+    workers.shutdown();
+  }
+
+  /** Builds and configures a {@link WavefrontSpanExporter} */
+  public static class Builder {
+    private String host = null;
+    private String application = "(unknown application)";
+    private String service = "(unknown service)";
+    private int asyncQueueSize = 0;
+    private int drainThreads = 1;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private long blockTimeoutMillis = 100;
+    private ExecutorService conversionExecutor = null;
+    private int conversionParallelism = 1;
+    private int parallelThreshold = 512;
+    private File spoolDirectory = null;
+    private int spoolSegmentBytes = 16 * 1024 * 1024;
+    private long spoolMaxBytes = 1024L * 1024 * 1024;
+    private long spoolMaxAgeMillis = 24L * 60 * 60 * 1000;
+    private int selfMetricsIntervalSeconds = 0;
+    private MetricsSink metricsSink = null;
+    private boolean redMetrics = false;
+    private int redMetricsIntervalSeconds = 60;
+    private int redMaxOperations = 1000;
+    private TagPolicy tagPolicy = TagPolicy.KEEP_ALL;
+    private boolean tailSampling = false;
+    private long tailSamplingDecisionWaitMillis = 30000;
+    private long tailSamplingMaxBytes = 64L * 1024 * 1024;
+    private long tailSamplingLatencyThresholdMillis = 0;
+    private double tailSamplingTracesPerSecond = 10;
+    private boolean retryQueue = false;
+    private long retryQueueMaxBytes = 64L * 1024 * 1024;
+    private long retryInitialBackoffMillis = 100;
+    private long retryMaxBackoffMillis = 30000;
+    private int stagingBufferBytes = 0;
+    private Executor executor = null;
+    private ScheduledExecutorService scheduler = null;
+    private boolean virtualThreads = false;
+    private boolean traceSummaries = false;
+    private int traceGraphMaxSpans = 100000;
+    private long traceGraphMaxAgeMillis = 60000;
+    private long dedupWindowMillis = 0;
+    private int dedupMaxSpans = 100000;
+    private int rollupMinSpans = 0;
+    private int maxSpanLogs = 128;
+    private boolean adaptiveFlush = false;
+    private int flushMinBatchSpans = 100;
+    private int flushMaxBatchSpans = 10000;
+    private long flushMaxBatchBytes = 4L * 1024 * 1024;
+    private long flushMaxLatencyMillis = 1000;
+    private long flushTargetSendMillis = 500;
+    private int maxSpanLogValueLength = 32 * 1024;
+    private String spanNameTemplate = SpanNamer.DEFAULT_TEMPLATE;
+    private int spanNameCacheSize = 10000;
+    // Set while the shards of a sharded exporter are being built
+    private int shard = -1;
+    private LoadBalancing loadBalancing = LoadBalancing.TRACE_ID;
+    private int endpointFailureThreshold = 3;
+    private long endpointRetryMillis = 1000;
+    private WavefrontDirectIngestionClient.Builder directBuilder;
+    private WavefrontProxyClient.Builder proxyBuilder;
+
+    /**
+     * Creates a new {@link Builder}
+     *
+     * @return
+     */
+    public static Builder newBuilder() {
+      return new Builder();
+    }
+
+    /**
+     * Creates a builder for a proxy client. Several proxies can be given as a comma-separated
+     * list, in which case spans are spread across them according to the load balancing policy and
+     * native encoding is implied. Each entry may carry its own tracing port as {@code host:port}.
+     * The exporter's own metrics and RED metrics go to the first proxy.
+     *
+     * @param host The name or IP address of the proxy host, or a comma-separated list of them
+     * @return
+     */
+    public ProxyClientBuilder proxyClient(final String host) {
+      return new ProxyClientBuilder(host, this);
+    }
+
+    /**
+     * Creates a builder for a direct ingestion client. Several URLs sharing the same token can be
+     * given as a comma-separated list, in which case spans are spread across them according to
+     * the load balancing policy and native encoding is implied.
+     *
+     * @param wavefrontURL The full URL of the Wavefront endpoint, or a comma-separated list
+     * @param token The API token to use for authentication
+     * @return
+     */
+    public DirectClientBuilder directClient(final String wavefrontURL, final String token) {
+      return new DirectClientBuilder(wavefrontURL, token, this);
+    }
+
+    /**
+     * Sets the service name to be used for the "service" tag on spans.
+     *
+     * @param service
+     * @return
+     */
+    public Builder service(final String service) {
+      this.service = service;
+      return this;
+    }
+
+    /**
+     * Sets the application name to be used for the "application" tag on spans.
+     *
+     * @param application The application name
+     * @return
+     */
+    public Builder application(final String application) {
+      this.application = application;
+      return this;
+    }
+
+    /**
+     * Sets the originating host name for spans. If not specified, the exporter will automatically
+     * infer the host name.
+     *
+     * @param host The host name
+     * @return
+     */
+    public Builder host(final String host) {
+      this.host = host;
+      return this;
+    }
+
+    /**
+     * Enables asynchronous exporting. Spans passed to the exporter are placed in a bounded queue
+     * and sent by background drain tasks, so the caller never waits for the network. A queue size
+     * of zero (the default) disables asynchronous exporting.
+     *
+     * @param asyncQueueSize The maximum number of queued spans. Rounded up to a power of two.
+     * @return
+     */
+    public Builder asyncQueueSize(final int asyncQueueSize) {
+      this.asyncQueueSize = asyncQueueSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of tasks draining the asynchronous queue at once, each of which
+     * occupies a thread of the executor while it runs. The default is 1.
+     *
+     * @param drainThreads The number of drain tasks
+     * @return
+     */
+    public Builder drainThreads(final int drainThreads) {
+      this.drainThreads = drainThreads;
+      return this;
+    }
+
+    /**
+     * Sets what to do when the asynchronous queue is full. The default is {@link
+     * OverflowPolicy#DROP_NEWEST}.
+     *
+     * @param overflowPolicy The overflow policy
+     * @return
+     */
+    public Builder overflowPolicy(final OverflowPolicy overflowPolicy) {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the maximum time an export call waits for room in the queue when the overflow policy is
+     * {@link OverflowPolicy#BLOCK}. The default is 100ms.
+     *
+     * @param blockTimeoutMillis The timeout in milliseconds
+     * @return
+     */
+    public Builder blockTimeoutMillis(final long blockTimeoutMillis) {
+      this.blockTimeoutMillis = blockTimeoutMillis;
+      return this;
+    }
+
+    /**
+     * Enables parallel conversion of large batches on a {@link ForkJoinPool}. Spans are still
+     * sent in their original order. The pool is owned by the caller and is not shut down with the
+     * exporter.
+     *
+     * @param pool The pool to run conversions on
+     * @return
+     */
+    public Builder parallelConversion(final ForkJoinPool pool) {
+      return parallelConversion(pool, pool.getParallelism());
+    }
+
+    /**
+     * Enables parallel conversion of large batches on an arbitrary executor. Spans are still sent
+     * in their original order. The executor is owned by the caller and is not shut down with the
+     * exporter.
+     *
+     * @param executor The executor to run conversions on
+     * @param parallelism The number of chunks to split each batch into
+     * @return
+     */
+    public Builder parallelConversion(final ExecutorService executor, final int parallelism) {
+      this.conversionExecutor = executor;
+      this.conversionParallelism = parallelism;
+      return this;
+    }
+
+    /**
+     * Sets the smallest batch that will be converted in parallel. Smaller batches are converted
+     * on the exporting thread. The default is 512.
+     *
+     * @param parallelThreshold The minimum batch size for parallel conversion
+     * @return
+     */
+    public Builder parallelThreshold(final int parallelThreshold) {
+      this.parallelThreshold = parallelThreshold;
+      return this;
+    }
+
+    /**
+     * Enables the disk spool, which implies native encoding. Batches that can't be sent are
+     * written to memory-mapped segment files in the given directory and replayed in order by a
+     * background thread once the backend is reachable again. Batches left in the spool when the
+     * process stops are replayed on the next start. Only one exporter may use a directory at a
+     * time.
+     *
+     * @param spoolDirectory The spool directory. Created if it doesn't exist.
+     * @return
+     */
+    public Builder spoolDirectory(final File spoolDirectory) {
+      this.spoolDirectory = spoolDirectory;
+      return this;
+    }
+
+    /**
+     * Sets the size of each spool segment file. This is also the largest batch that can be
+     * spooled. The default is 16MB.
+     *
+     * @param spoolSegmentBytes The segment size in bytes
+     * @return
+     */
+    public Builder spoolSegmentBytes(final int spoolSegmentBytes) {
+      this.spoolSegmentBytes = spoolSegmentBytes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum disk space used by the spool. Once it's reached, the oldest segment is
+     * discarded to make room. The default is 1GB.
+     *
+     * @param spoolMaxBytes The maximum spool size in bytes
+     * @return
+     */
+    public Builder spoolMaxBytes(final long spoolMaxBytes) {
+      this.spoolMaxBytes = spoolMaxBytes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum age of spooled batches. Older batches are discarded instead of replayed.
+     * The default is 24 hours.
+     *
+     * @param spoolMaxAgeMillis The maximum age in milliseconds
+     * @return
+     */
+    public Builder spoolMaxAgeMillis(final long spoolMaxAgeMillis) {
+      this.spoolMaxAgeMillis = spoolMaxAgeMillis;
+      return this;
+    }
+
+    /**
+     * Enables periodic reporting of the exporter's own metrics. Unless a custom sink is set, they
+     * are sent to Wavefront on the metrics port of the proxy, or to the direct ingestion endpoint.
+     * Zero (the default) disables reporting. The metrics are always available through {@link
+     * WavefrontSpanExporter#getMetrics()}.
+     *
+     * @param selfMetricsIntervalSeconds The reporting interval in seconds
+     * @return
+     */
+    public Builder selfMetricsIntervalSeconds(final int selfMetricsIntervalSeconds) {
+      this.selfMetricsIntervalSeconds = selfMetricsIntervalSeconds;
+      return this;
+    }
+
+    /**
+     * Sets a custom sink for the exporter's own metrics, replacing the default of sending them to
+     * Wavefront. Has no effect unless a reporting interval is set.
+     *
+     * @param metricsSink The sink
+     * @return
+     */
+    public Builder metricsSink(final MetricsSink metricsSink) {
+      this.metricsSink = metricsSink;
+      return this;
+    }
+
+    /**
+     * Enables RED metrics. The exporter counts spans and their errors and keeps duration
+     * histograms per operation, and periodically sends them to Wavefront as the same {@code
+     * tracing.derived} metrics and histograms that other Wavefront tracing integrations produce.
+     * This removes the need for a separate aggregation tier.
+     *
+     * @param redMetrics True to enable RED metrics
+     * @return
+     */
+    public Builder redMetrics(final boolean redMetrics) {
+      this.redMetrics = redMetrics;
+      return this;
+    }
+
+    /**
+     * Sets how often RED metrics are sent. The default is 60 seconds.
+     *
+     * @param redMetricsIntervalSeconds The interval in seconds
+     * @return
+     */
+    public Builder redMetricsIntervalSeconds(final int redMetricsIntervalSeconds) {
+      this.redMetricsIntervalSeconds = redMetricsIntervalSeconds;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of distinct operations tracked for RED metrics. Spans of further
+     * operations are counted under {@value RedMetricsAggregator#OVERFLOW_OPERATION}. The default
+     * is 1000.
+     *
+     * @param redMaxOperations The maximum number of operations
+     * @return
+     */
+    public Builder redMaxOperations(final int redMaxOperations) {
+      this.redMaxOperations = redMaxOperations;
+      return this;
+    }
+
+    /**
+     * Sets the policy deciding which span attributes are sent as tags and how their values are
+     * limited and normalized. The default keeps all attributes as they are.
+     *
+     * @param tagPolicy The tag policy
+     * @return
+     */
+    public Builder tagPolicy(final TagPolicy tagPolicy) {
+      this.tagPolicy = tagPolicy;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of span logs sent per span. Further timed events are dropped. The
+     * default is 128.
+     *
+     * @param maxSpanLogs The maximum number of span logs
+     * @return
+     */
+    public Builder maxSpanLogs(final int maxSpanLogs) {
+      this.maxSpanLogs = maxSpanLogs;
+      return this;
+    }
+
+    /**
+     * Sets the maximum length of span log field values, such as exception stack traces. Longer
+     * values are truncated. The default is 32768 characters.
+     *
+     * @param maxSpanLogValueLength The maximum length in characters
+     * @return
+     */
+    public Builder maxSpanLogValueLength(final int maxSpanLogValueLength) {
+      this.maxSpanLogValueLength = maxSpanLogValueLength;
+      return this;
+    }
+
+    /**
+     * Sets the template span names are derived from. {@code {name}} stands for the name of the
+     * span, {@code {kind}} for the span kind in lower case and any other placeholder, such as
+     * {@code {http.method}}, for the value of that attribute. Text in square brackets is left out
+     * unless all attributes inside it are present. The default is {@value
+     * SpanNamer#DEFAULT_TEMPLATE}, which appends the resource name in parentheses if there is one.
+     *
+     * @param spanNameTemplate The template
+     * @return
+     */
+    public Builder spanNameTemplate(final String spanNameTemplate) {
+      this.spanNameTemplate = spanNameTemplate;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of derived span names to cache. Names beyond that are derived for
+     * every span. The default is 10000.
+     *
+     * @param spanNameCacheSize The maximum number of cached names
+     * @return
+     */
+    public Builder spanNameCacheSize(final int spanNameCacheSize) {
+      this.spanNameCacheSize = spanNameCacheSize;
+      return this;
+    }
+
+    /**
+     * Sets how spans are spread when there are several endpoints. The default is {@link
+     * LoadBalancing#TRACE_ID}, which keeps the spans of a trace on one endpoint.
+     *
+     * @param loadBalancing The load balancing policy
+     * @return
+     */
+    public Builder loadBalancing(final LoadBalancing loadBalancing) {
+      this.loadBalancing = loadBalancing;
+      return this;
+    }
+
+    /**
+     * Sets the number of consecutive failures after which an endpoint is taken out of rotation
+     * when there are several endpoints. The default is 3.
+     *
+     * @param endpointFailureThreshold The number of failures
+     * @return
+     */
+    public Builder endpointFailureThreshold(final int endpointFailureThreshold) {
+      this.endpointFailureThreshold = endpointFailureThreshold;
+      return this;
+    }
+
+    /**
+     * Sets how long an endpoint that has been taken out of rotation is left alone before a batch
+     * is sent to see if it's back. The wait doubles on every failed attempt, up to a minute. The
+     * default is one second.
+     *
+     * @param endpointRetryMillis The initial retry interval in milliseconds
+     * @return
+     */
+    public Builder endpointRetryMillis(final long endpointRetryMillis) {
+      this.endpointRetryMillis = endpointRetryMillis;
+      return this;
+    }
+
+    /**
+     * Enables adaptive flushing. Spans are flushed as soon as a batch is full, the byte budget is
+     * used up or the oldest pending span has waited for the maximum latency, rather than only at
+     * the sender's fixed flush interval. The batch size grows when the backlog grows faster than
+     * it's sent and shrinks when sends get slow. With native encoding, spans from several export
+     * calls are combined into one send, and a failed send is retried with the retry backoff. While
+     * more than four byte budgets' worth of spans are waiting, new spans are refused. The default
+     * is false.
+     *
+     * @param adaptiveFlush Whether to flush adaptively
+     * @return
+     */
+    public Builder adaptiveFlush(final boolean adaptiveFlush) {
+      this.adaptiveFlush = adaptiveFlush;
+      return this;
+    }
+
+    /**
+     * Sets the smallest batch size used by adaptive flushing, which is also the initial size. The
+     * default is 100 spans.
+     *
+     * @param flushMinBatchSpans The minimum batch size in spans
+     * @return
+     */
+    public Builder flushMinBatchSpans(final int flushMinBatchSpans) {
+      this.flushMinBatchSpans = flushMinBatchSpans;
+      return this;
+    }
+
+    /**
+     * Sets the largest batch size used by adaptive flushing. The default is 10000 spans.
+     *
+     * @param flushMaxBatchSpans The maximum batch size in spans
+     * @return
+     */
+    public Builder flushMaxBatchSpans(final int flushMaxBatchSpans) {
+      this.flushMaxBatchSpans = flushMaxBatchSpans;
+      return this;
+    }
+
+    /**
+     * Sets the number of pending bytes that triggers a flush. Only applies with native encoding,
+     * since the size of spans buffered by the Wavefront SDK isn't known. The default is 4MB.
+     *
+     * @param flushMaxBatchBytes The byte budget
+     * @return
+     */
+    public Builder flushMaxBatchBytes(final long flushMaxBatchBytes) {
+      this.flushMaxBatchBytes = flushMaxBatchBytes;
+      return this;
+    }
+
+    /**
+     * Sets the longest time a span waits to be flushed. The default is one second.
+     *
+     * @param flushMaxLatencyMillis The maximum latency in milliseconds
+     * @return
+     */
+    public Builder flushMaxLatencyMillis(final long flushMaxLatencyMillis) {
+      this.flushMaxLatencyMillis = flushMaxLatencyMillis;
+      return this;
+    }
+
+    /**
+     * Sets the send time above which adaptive flushing shrinks the batch size. The default is
+     * 500ms.
+     *
+     * @param flushTargetSendMillis The target send time in milliseconds
+     * @return
+     */
+    public Builder flushTargetSendMillis(final long flushTargetSendMillis) {
+      this.flushTargetSendMillis = flushTargetSendMillis;
+      return this;
+    }
+
+    /**
+     * Enables tail-based sampling. Spans are buffered per trace and each trace is kept or dropped
+     * as a whole once it's complete. Traces with errors are always kept, as are traces taking
+     * longer than {@link #tailSamplingLatencyThresholdMillis(long)}. Other traces are kept at the
+     * rate given by {@link #tailSamplingTracesPerSecond(double)}. RED metrics are still computed
+     * from all spans. The default is false.
+     *
+     * @param tailSampling Whether to sample traces
+     * @return
+     */
+    public Builder tailSampling(final boolean tailSampling) {
+      this.tailSampling = tailSampling;
+      return this;
+    }
+
+    /**
+     * Sets the maximum time a trace is buffered before it's decided, even if it doesn't look
+     * complete. The default is 30 seconds.
+     *
+     * @param tailSamplingDecisionWaitMillis The decision wait in milliseconds
+     * @return
+     */
+    public Builder tailSamplingDecisionWaitMillis(final long tailSamplingDecisionWaitMillis) {
+      this.tailSamplingDecisionWaitMillis = tailSamplingDecisionWaitMillis;
+      return this;
     }
-    if (l == 16 && s.charAt(0) > '7') {
-      return (Long.parseLong(s.substring(0, 8), 16) << 32) | (Long.parseLong(s.substring(8), 16));
+
+    /**
+     * Sets the maximum estimated memory used by buffered spans. Traces that don't fit are decided
+     * early. The default is 64MB.
+     *
+     * @param tailSamplingMaxBytes The maximum memory in bytes
+     * @return
+     */
+    public Builder tailSamplingMaxBytes(final long tailSamplingMaxBytes) {
+      this.tailSamplingMaxBytes = tailSamplingMaxBytes;
+      return this;
     }
-    return Long.parseLong(s, 16);
-  }
 
-  private static UUID makeUUID(final String s) {
-    if (s.length() <= 16) {
-      return new UUID(0, parseHex(s));
+    /**
+     * Sets the duration at or above which traces are always kept. Zero, the default, disables
+     * the latency rule.
+     *
+     * @param tailSamplingLatencyThresholdMillis The threshold in milliseconds
+     * @return
+     */
+    public Builder tailSamplingLatencyThresholdMillis(
+        final long tailSamplingLatencyThresholdMillis) {
+      this.tailSamplingLatencyThresholdMillis = tailSamplingLatencyThresholdMillis;
+      return this;
     }
-    return new UUID(parseHex(s.substring(0, 16)), parseHex(s.substring(16)));
-  }
 
-  private static String attrToString(final AttributeValue attr) {
-    switch (attr.getType()) {
-      case LONG:
-        return Long.toString(attr.getLongValue());
-      case BOOLEAN:
-        return Boolean.toString(attr.getBooleanValue());
-      case DOUBLE:
-        return Double.toString(attr.getDoubleValue());
-      case STRING:
-        return attr.getStringValue();
-      default:
-        logger.log(Level.WARNING, "Unknown attribute type: " + attr.getType() + ". Skipping!");
-        return null;
+    /**
+     * Sets the rate at which traces without errors or high latency are kept. The default is 10
+     * traces per second.
+     *
+     * @param tailSamplingTracesPerSecond The rate in traces per second
+     * @return
+     */
+    public Builder tailSamplingTracesPerSecond(final double tailSamplingTracesPerSecond) {
+      this.tailSamplingTracesPerSecond = tailSamplingTracesPerSecond;
+      return this;
     }
-  }
 
-  private List<Pair<String, String>> extractTags(final SpanData span) {
-    final Map<String, AttributeValue> attrs = span.getAttributes();
-    final List<Pair<String, String>> tags = new ArrayList<>(attrs.size() + TAGS_HEADROOM);
+    /**
+     * Enables the retry queue. When only part of a batch can be sent, the rest is retried by the
+     * exporter in the background and the export succeeds, so that the span processor doesn't send
+     * the spans that did make it a second time. The default is false, which fails the export and
+     * leaves retrying to the span processor.
+     *
+     * @param retryQueue Whether to retry failed spans in the exporter
+     * @return
+     */
+    public Builder retryQueue(final boolean retryQueue) {
+      this.retryQueue = retryQueue;
+      return this;
+    }
 
-    // Add certain standard attributes such as application, service and status
-    tags.add(new Pair<>(APPLICATION_TAG, application));
-    tags.add(new Pair<>(SERVICE_TAG, service));
-    final String instLibName = span.getInstrumentationLibraryInfo().name();
-    if (instLibName != null) {
-      tags.add(new Pair<>(INSTRUMENTATION_NAME_TAG, instLibName));
+    /**
+     * Sets the maximum estimated memory used by spans waiting to be retried. Spans that don't fit
+     * are dropped. The default is 64MB.
+     *
+     * @param retryQueueMaxBytes The maximum memory in bytes
+     * @return
+     */
+    public Builder retryQueueMaxBytes(final long retryQueueMaxBytes) {
+      this.retryQueueMaxBytes = retryQueueMaxBytes;
+      return this;
     }
-    final String instLibVer = span.getInstrumentationLibraryInfo().version();
-    if (instLibVer != null) {
-      tags.add(new Pair<>(INSTRUMENTATION_VERSION_TAG, instLibVer));
+
+    /**
+     * Sets the time to wait before the first retry. The wait doubles with every failed retry. The
+     * default is 100 milliseconds.
+     *
+     * @param retryInitialBackoffMillis The initial backoff in milliseconds
+     * @return
+     */
+    public Builder retryInitialBackoffMillis(final long retryInitialBackoffMillis) {
+      this.retryInitialBackoffMillis = retryInitialBackoffMillis;
+      return this;
     }
 
-    // Handle status code
-    final Status status = span.getStatus();
-    tags.add(new Pair<>(OTEL_STATUS_TAG, status.getCanonicalCode().name()));
-    tags.add(new Pair<>(ERROR_TAG, Boolean.toString(!status.isOk())));
+    /**
+     * Sets the longest time to wait between retries. The default is 30 seconds.
+     *
+     * @param retryMaxBackoffMillis The maximum backoff in milliseconds
+     * @return
+     */
+    public Builder retryMaxBackoffMillis(final long retryMaxBackoffMillis) {
+      this.retryMaxBackoffMillis = retryMaxBackoffMillis;
+      return this;
+    }
 
-    // Add all normal attributes
-    {
-      for (final Map.Entry<String, AttributeValue> attr : attrs.entrySet()) {
-        tags.add(new Pair<>(attr.getKey(), attrToString(attr.getValue())));
-      }
+    /**
+     * Enables off-heap staging with a buffer of the given size. Encoded spans are copied into a
+     * direct buffer right after encoding and sent from there in the background, so that spans
+     * waiting for a slow backend don't occupy the heap. Batches that don't fit are rejected. Sends
+     * combine up to {@link #flushMaxBatchBytes(long)} of staged spans and failed sends are retried
+     * with the backoff of the retry queue. Takes the place of adaptive flushing and requires
+     * native encoding. Zero, the default, disables staging.
+     *
+     * @param stagingBufferBytes The size of the staging buffer in bytes
+     * @return
+     */
+    public Builder stagingBufferBytes(final int stagingBufferBytes) {
+      this.stagingBufferBytes = stagingBufferBytes;
+      return this;
     }
-    return tags;
-  }
 
-  @Override
-  public ResultCode export(final List<SpanData> spans) {
-    for (final SpanData span : spans) {
-      logger.log(Level.FINE, "SPAN: " + span.getName());
-
-      // Convert TimedEvents into span logs
-      final List<SpanLog> spanLogs = new ArrayList<>(spans.size());
-      for (final SpanData.TimedEvent event : span.getTimedEvents()) {
-        final Map<String, String> wfAttrs = new HashMap<>(event.getAttributes().size());
-        for (final Map.Entry<String, AttributeValue> attr : event.getAttributes().entrySet()) {
-          wfAttrs.put(attr.getKey(), attrToString(attr.getValue()));
-        }
-        spanLogs.add(new SpanLog(span.getStartEpochNanos() / 1000000, wfAttrs));
-      }
-      // Construct span name from span name and resource name
-      String spanName = span.getName();
-      final AttributeValue resValue = span.getAttributes().get("resource.name");
-      if (resValue != null && resValue.getType() == AttributeValue.Type.STRING) {
-        spanName += "(" + resValue.getStringValue() + ")";
-      }
-      try {
-        sender.sendSpan(
-            spanName,
-            span.getStartEpochNanos() / 1000000,
-            (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000000,
-            host,
-            makeUUID(span.getTraceId().toLowerBase16()),
-            makeUUID(span.getSpanId().toLowerBase16()),
-            Collections.singletonList(makeUUID(span.getParentSpanId().toLowerBase16())),
-            null, // TODO: Populate followsFrom
-            extractTags(span),
-            spanLogs);
-      } catch (final IOException e) {
-        logger.log(Level.WARNING, "Error while sending span", e);
-        return ResultCode.FAILED_RETRYABLE;
-      } catch (final Throwable t) {
-        logger.log(Level.WARNING, "Error while sending span", t);
-      }
+    /**
+     * Sets the executor that background work such as draining the asynchronous queue, flushing,
+     * retrying and reporting metrics runs on. The work runs as short tasks that don't occupy a
+     * thread while idle, so many exporters can share one small pool. The exporter never shuts it
+     * down. By default, each exporter has its own pool of threads that are started on demand.
+     *
+     * @param executor The executor
+     * @return
+     */
+    public Builder executor(final Executor executor) {
+      this.executor = executor;
+      return this;
     }
-    return ResultCode.SUCCESS;
-  }
 
-  @Override
-  public void shutdown() {
-    try {
-      sender.flush();
-      sender.close();
-    } catch (final IOException e) {
-      logger.log(Level.WARNING, "Error closing Wavefront sender", e);
+    /**
+     * Sets the scheduler used for timers, such as retry backoffs and periodic reporting. Timers
+     * only hand their work over to the executor, so one scheduler thread can serve any number of
+     * exporters. The exporter never shuts it down. By default, all exporters share one scheduler
+     * thread.
+     *
+     * @param scheduler The scheduler
+     * @return
+     */
+    public Builder scheduler(final ScheduledExecutorService scheduler) {
+      this.scheduler = scheduler;
+      return this;
     }
-  }
 
-  /** Builds and configures a {@link WavefrontSpanExporter} */
-  public static class Builder {
-    private String host = null;
-    private String application = "(unknown application)";
-    private String service = "(unknown service)";
-    private WavefrontDirectIngestionClient.Builder directBuilder;
-    private WavefrontProxyClient.Builder proxyBuilder;
+    /**
+     * Runs each background task on a new virtual thread, unless an executor has been set. Falls
+     * back to the default pool, with a warning, on JVMs without virtual threads.
+     *
+     * @param virtualThreads Whether to use virtual threads
+     * @return
+     */
+    public Builder virtualThreads(final boolean virtualThreads) {
+      this.virtualThreads = virtualThreads;
+      return this;
+    }
 
     /**
-     * Creates a new {@link Builder}
+     * Enables trace summaries. The exporter keeps an index of the spans it has seen per trace and
+     * tags each local root span, one without a parent or with a parent in another process, with
+     * the number of spans below it ({@code trace.spans}), the time they cover in milliseconds
+     * ({@code trace.duration}) and the names along the critical path ({@code
+     * trace.critical.path}). The tags are subject to the tag policy. The default is false.
      *
+     * @param traceSummaries Whether to tag local roots with trace summaries
      * @return
      */
-    public static Builder newBuilder() {
-      return new Builder();
+    public Builder traceSummaries(final boolean traceSummaries) {
+      this.traceSummaries = traceSummaries;
+      return this;
     }
 
     /**
-     * Creates a builder for a proxy client
+     * Sets the maximum number of spans held by the trace index. Traces with spans that didn't fit
+     * get no summary. The default is 100000.
      *
-     * @param host The name or IP address of the proxy host.
+     * @param traceGraphMaxSpans The maximum number of spans
      * @return
      */
-    public ProxyClientBuilder proxyClient(final String host) {
-      return new ProxyClientBuilder(host, this);
+    public Builder traceGraphMaxSpans(final int traceGraphMaxSpans) {
+      this.traceGraphMaxSpans = traceGraphMaxSpans;
+      return this;
     }
 
     /**
-     * Creates a builder for a direct ingestion client
+     * Sets how long the trace index remembers a trace after its last span arrived. Spans arriving
+     * later start over. The default is 60000 milliseconds.
      *
-     * @param wavefrontURL The full URL of the Wavefront endpoint
-     * @param token The API token to use for authentication
+     * @param traceGraphMaxAgeMillis The time in milliseconds
      * @return
      */
-    public DirectClientBuilder directClient(final String wavefrontURL, final String token) {
-      return new DirectClientBuilder(wavefrontURL, token, this);
+    public Builder traceGraphMaxAgeMillis(final long traceGraphMaxAgeMillis) {
+      this.traceGraphMaxAgeMillis = traceGraphMaxAgeMillis;
+      return this;
     }
 
     /**
-     * Sets the service name to be used for the "service" tag on spans.
+     * Drops spans that have already been sent, such as those of a batch the span processor sends
+     * again after a partial failure. Spans are remembered by trace and span ID for at least this
+     * long, unless more than the maximum number of spans arrive in the meantime. The default is
+     * 0, which disables deduplication.
      *
-     * @param service
+     * @param dedupWindowMillis The time in milliseconds
      * @return
      */
-    public Builder service(final String service) {
-      this.service = service;
+    public Builder dedupWindowMillis(final long dedupWindowMillis) {
+      this.dedupWindowMillis = dedupWindowMillis;
       return this;
     }
 
     /**
-     * Sets the application name to be used for the "application" tag on spans.
+     * Sets the maximum number of spans remembered for deduplication. Each takes up to 96 bytes.
+     * The default is 100000.
      *
-     * @param application The application name
+     * @param dedupMaxSpans The maximum number of spans
      * @return
      */
-    public Builder application(final String application) {
-      this.application = application;
+    public Builder dedupMaxSpans(final int dedupMaxSpans) {
+      this.dedupMaxSpans = dedupMaxSpans;
       return this;
     }
 
     /**
-     * Sets the originating host name for spans. If not specified, the exporter will automatically
-     * infer the host name.
+     * Rolls up identical sibling spans in a batch into one, once there are at least this many.
+     * Siblings are identical if they have the same name, kind, status and attributes, and no
+     * events, links or children in the batch. The rolled-up span covers them all and is tagged
+     * with their number ({@code compaction.count}) and their shortest and longest durations in
+     * microseconds ({@code compaction.min.micros} and {@code compaction.max.micros}). The default
+     * is 0, which disables roll-ups.
      *
-     * @param host The host name
+     * @param rollupMinSpans The smallest number of siblings rolled up
      * @return
      */
-    public Builder host(final String host) {
-      this.host = host;
+    public Builder rollupMinSpans(final int rollupMinSpans) {
+      this.rollupMinSpans = rollupMinSpans;
       return this;
     }
+
+    private SpanTransport endpoints(
+        final List<SpanTransport> transports, final List<String> names) {
+      return new MultiEndpointSpanTransport(
+          transports, names, loadBalancing, endpointFailureThreshold, endpointRetryMillis);
+    }
+
+    private boolean needsMetricsSender() {
+      return (selfMetricsIntervalSeconds > 0 && metricsSink == null) || redMetrics;
+    }
+
+    /**
+     * Builds the shards of a {@link ShardedSpanExporter}. If one of them can't be built, the
+     * ones already built are shut down.
+     *
+     * @param shards The number of shards
+     * @param build Builds one shard with its own sender or transport
+     * @return
+     */
+    private ShardedSpanExporter sharded(
+        final int shards, final Supplier<WavefrontSpanExporter> build) {
+      if (shards < 1) {
+        throw new IllegalArgumentException("Number of shards must be positive");
+      }
+      final List<WavefrontSpanExporter> built = new ArrayList<>(shards);
+      try {
+        for (int i = 0; i < shards; ++i) {
+          shard = i;
+          built.add(build.get());
+        }
+      } catch (final RuntimeException e) {
+        for (final WavefrontSpanExporter exporter : built) {
+          exporter.shutdown();
+        }
+        throw e;
+      } finally {
+        shard = -1;
+      }
+      return new ShardedSpanExporter(built);
+    }
   }
 
   public static class ProxyClientBuilder {
     private final Builder parent;
+    private final String host;
+    private final List<String> endpoints = new ArrayList<>();
+    private final List<String[]> directEndpoints = new ArrayList<>();
     private WavefrontProxyClient.Builder wfBuilder;
+    private int tracingPort = 30000;
+    private SocketFactory socketFactory = null;
+    private boolean nativeEncoding = false;
+    private boolean nonBlocking = false;
+    private long maxBacklogBytes = 64L * 1024 * 1024;
+    private int metricsPort = 2878;
+    private Integer distributionPort = null;
+    private int flushIntervalSeconds = 5;
 
     private ProxyClientBuilder(final String host, final Builder parent) {
-      wfBuilder = new WavefrontProxyClient.Builder(host);
+      for (final String endpoint : host.split(",")) {
+        if (!endpoint.trim().isEmpty()) {
+          endpoints.add(endpoint.trim());
+        }
+      }
+      if (endpoints.isEmpty()) {
+        throw new IllegalArgumentException("No proxy host given");
+      }
+      this.host = hostOf(endpoints.get(0));
+      wfBuilder = new WavefrontProxyClient.Builder(this.host);
       this.parent = parent;
     }
 
+    private static String hostOf(final String endpoint) {
+      final int colon = endpoint.lastIndexOf(':');
+      // More than one colon means an IPv6 address without a port
+      return colon > 0 && colon == endpoint.indexOf(':') ? endpoint.substring(0, colon) : endpoint;
+    }
+
+    private int portOf(final String endpoint) {
+      final int colon = endpoint.lastIndexOf(':');
+      if (colon > 0 && colon == endpoint.indexOf(':')) {
+        try {
+          return Integer.parseInt(endpoint.substring(colon + 1));
+        } catch (final NumberFormatException e) {
+          throw new IllegalArgumentException("Invalid port in proxy endpoint: " + endpoint, e);
+        }
+      }
+      return tracingPort;
+    }
+
+    /**
+     * Adds a direct ingestion endpoint that takes a share of the spans alongside the proxies.
+     * This implies native encoding.
+     *
+     * @param wavefrontURL The full URL of the Wavefront endpoint
+     * @param token The API token to use for authentication
+     * @return
+     */
+    public ProxyClientBuilder directEndpoint(final String wavefrontURL, final String token) {
+      directEndpoints.add(new String[] {wavefrontURL, token});
+      return this;
+    }
+
     /**
      * Specifies the metrics port. Default is 2878
      *
@@ -255,6 +2073,7 @@ public class WavefrontSpanExporter implements SpanExporter {
      */
     public ProxyClientBuilder metricsPort(final int metricsPort) {
       wfBuilder = wfBuilder.metricsPort(metricsPort);
+      this.metricsPort = metricsPort;
       return this;
     }
 
@@ -266,6 +2085,7 @@ public class WavefrontSpanExporter implements SpanExporter {
      */
     public ProxyClientBuilder distributionPort(final int distributionPort) {
       wfBuilder = wfBuilder.distributionPort(distributionPort);
+      this.distributionPort = distributionPort;
       return this;
     }
 
@@ -277,6 +2097,7 @@ public class WavefrontSpanExporter implements SpanExporter {
      */
     public ProxyClientBuilder tracingPort(final int tracingPort) {
       wfBuilder = wfBuilder.tracingPort(tracingPort);
+      this.tracingPort = tracingPort;
       return this;
     }
 
@@ -288,6 +2109,47 @@ public class WavefrontSpanExporter implements SpanExporter {
      */
     public ProxyClientBuilder socketFactory(final SocketFactory socketFactory) {
       wfBuilder = wfBuilder.socketFactory(socketFactory);
+      this.socketFactory = socketFactory;
+      return this;
+    }
+
+    /**
+     * Enables native encoding. Spans are serialized straight into the Wavefront wire format in
+     * pooled direct buffers and written to the tracing port, bypassing the Wavefront SDK sender.
+     * The flush interval does not apply in this mode, since every export call is sent right away.
+     *
+     * @param nativeEncoding True to enable native encoding
+     * @return
+     */
+    public ProxyClientBuilder nativeEncoding(final boolean nativeEncoding) {
+      this.nativeEncoding = nativeEncoding;
+      return this;
+    }
+
+    /**
+     * Enables the non-blocking transport, which implies native encoding. Encoded batches are
+     * handed to a dedicated I/O thread that writes them to the proxy over a non-blocking channel,
+     * so export calls never wait for the network. If the proxy goes away, batches are kept in a
+     * bounded backlog while the transport reconnects with jittered backoff. The socket factory
+     * does not apply to this transport.
+     *
+     * @param nonBlocking True to enable the non-blocking transport
+     * @return
+     */
+    public ProxyClientBuilder nonBlocking(final boolean nonBlocking) {
+      this.nonBlocking = nonBlocking;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes the non-blocking transport keeps while waiting for the
+     * proxy. Exports fail with a retryable error once the backlog is full. The default is 64MB.
+     *
+     * @param maxBacklogBytes The maximum backlog in bytes
+     * @return
+     */
+    public ProxyClientBuilder maxBacklogBytes(final long maxBacklogBytes) {
+      this.maxBacklogBytes = maxBacklogBytes;
       return this;
     }
 
@@ -300,6 +2162,7 @@ public class WavefrontSpanExporter implements SpanExporter {
      */
     public ProxyClientBuilder flushIntervalSeconds(final int flushIntervalSeconds) {
       wfBuilder = wfBuilder.flushIntervalSeconds(flushIntervalSeconds);
+      this.flushIntervalSeconds = flushIntervalSeconds;
       return this;
     }
 
@@ -309,18 +2172,99 @@ public class WavefrontSpanExporter implements SpanExporter {
      * @return
      */
     public WavefrontSpanExporter build() {
-      return new WavefrontSpanExporter(
-          wfBuilder.build(), parent.host, parent.application, parent.service);
+      if (endpoints.size() > 1 || !directEndpoints.isEmpty()) {
+        final List<SpanTransport> transports = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        for (final String endpoint : endpoints) {
+          final String h = hostOf(endpoint);
+          final int port = portOf(endpoint);
+          transports.add(transport(h, port));
+          names.add(h + ":" + port);
+        }
+        for (final String[] d : directEndpoints) {
+          try {
+            transports.add(new DirectIngestionSpanTransport(d[0], d[1]));
+          } catch (final MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid Wavefront URL: " + d[0], e);
+          }
+          names.add(d[0]);
+        }
+        return new WavefrontSpanExporter(
+            metricsSender(), parent.endpoints(transports, names), parent);
+      }
+      final int port = portOf(endpoints.get(0));
+      if (nonBlocking || nativeEncoding || parent.spoolDirectory != null) {
+        return new WavefrontSpanExporter(metricsSender(), transport(host, port), parent);
+      }
+      return new WavefrontSpanExporter(wfBuilder.tracingPort(port).build(), parent);
+    }
+
+    /**
+     * Builds a {@link ShardedSpanExporter} made up of the given number of exporters, each with
+     * its own sender or transport and therefore its own buffers and connections.
+     *
+     * @param shards The number of shards
+     * @return
+     */
+    public ShardedSpanExporter buildSharded(final int shards) {
+      return parent.sharded(shards, this::build);
+    }
+
+    private SpanTransport transport(final String host, final int port) {
+      if (nonBlocking) {
+        try {
+          return new NioProxySpanTransport(
+              host, port, maxBacklogBytes, MIN_RECONNECT_MILLIS, MAX_RECONNECT_MILLIS);
+        } catch (final IOException e) {
+          throw new UncheckedIOException("Could not create proxy transport", e);
+        }
+      }
+      return new ProxySpanTransport(host, port, socketFactory);
+    }
+
+    /**
+     * Spans bypass the Wavefront SDK in native mode, so the exporter's own metrics and RED
+     * metrics need a sender of their own. It only talks to the metrics and distribution ports.
+     */
+    private WavefrontSender metricsSender() {
+      if (!parent.needsMetricsSender()) {
+        return null;
+      }
+      WavefrontProxyClient.Builder b =
+          new WavefrontProxyClient.Builder(host)
+              .metricsPort(metricsPort)
+              .flushIntervalSeconds(flushIntervalSeconds);
+      if (distributionPort != null) {
+        b = b.distributionPort(distributionPort);
+      }
+      if (socketFactory != null) {
+        b = b.socketFactory(socketFactory);
+      }
+      return b.build();
     }
   }
 
   public static class DirectClientBuilder {
     private final Builder parent;
+    private final List<String> wavefrontURLs = new ArrayList<>();
+    private final String token;
     private WavefrontDirectIngestionClient.Builder wfBuilder;
+    private boolean nativeEncoding = false;
+    private Compression compression = Compression.GZIP;
+    private int messageSizeBytes = Integer.MAX_VALUE;
 
     private DirectClientBuilder(
         final String wavefrontURL, final String token, final Builder parent) {
-      wfBuilder = new WavefrontDirectIngestionClient.Builder(wavefrontURL, token);
+      for (final String url : wavefrontURL.split(",")) {
+        if (!url.trim().isEmpty()) {
+          wavefrontURLs.add(url.trim());
+        }
+      }
+      if (wavefrontURLs.isEmpty()) {
+        throw new IllegalArgumentException("No Wavefront URL given");
+      }
+      wfBuilder = new WavefrontDirectIngestionClient.Builder(wavefrontURLs.get(0), token);
+      this.token = token;
       this.parent = parent;
     }
 
@@ -359,19 +2303,75 @@ public class WavefrontSpanExporter implements SpanExporter {
     }
 
     /**
-     * Sets the maximum message size in bytes that will be transmitted to the backend.
+     * Sets the maximum message size in bytes that will be transmitted to the backend. With native
+     * encoding, this is the size after compression, and larger batches are split into several
+     * requests.
      *
      * @param bytes The maximum message in bytes
      * @return
      */
     public DirectClientBuilder messageSizeBytes(final int bytes) {
       wfBuilder = wfBuilder.messageSizeBytes(bytes);
+      this.messageSizeBytes = bytes;
+      return this;
+    }
+
+    /**
+     * Sets how payloads are compressed with native encoding. The Wavefront SDK always compresses
+     * its payloads. The default is {@link Compression#GZIP}.
+     *
+     * @param compression The compression to use
+     * @return
+     */
+    public DirectClientBuilder compression(final Compression compression) {
+      this.compression = compression;
+      return this;
+    }
+
+    /**
+     * Enables native encoding. Spans are serialized straight into the Wavefront wire format in
+     * pooled direct buffers and posted to the direct ingestion endpoint, bypassing the Wavefront
+     * SDK sender. Every export call results in one request for spans and, if needed, one for span
+     * logs.
+     *
+     * @param nativeEncoding True to enable native encoding
+     * @return
+     */
+    public DirectClientBuilder nativeEncoding(final boolean nativeEncoding) {
+      this.nativeEncoding = nativeEncoding;
       return this;
     }
 
     public WavefrontSpanExporter build() {
-      return new WavefrontSpanExporter(
-          wfBuilder.build(), parent.host, parent.application, parent.service);
+      if (nativeEncoding || parent.spoolDirectory != null || wavefrontURLs.size() > 1) {
+        final List<SpanTransport> transports = new ArrayList<>();
+        for (final String url : wavefrontURLs) {
+          try {
+            transports.add(
+                new DirectIngestionSpanTransport(url, token, compression, messageSizeBytes));
+          } catch (final MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid Wavefront URL: " + url, e);
+          }
+        }
+        final SpanTransport transport =
+            transports.size() == 1
+                ? transports.get(0)
+                : parent.endpoints(transports, wavefrontURLs);
+        return new WavefrontSpanExporter(
+            parent.needsMetricsSender() ? wfBuilder.build() : null, transport, parent);
+      }
+      return new WavefrontSpanExporter(wfBuilder.build(), parent);
+    }
+
+    /**
+     * Builds a {@link ShardedSpanExporter} made up of the given number of exporters, each with
+     * its own sender or transport and therefore its own buffers and connections.
+     *
+     * @param shards The number of shards
+     * @return
+     */
+    public ShardedSpanExporter buildSharded(final int shards) {
+      return parent.sharded(shards, this::build);
     }
   }
 }
@@ -3,6 +3,12 @@ package com.wavefront.opentelemetry.exporter;
 import io.opentelemetry.auto.exportersupport.ConfigProvider;
 import io.opentelemetry.auto.exportersupport.ExporterFactory;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Implements an {@link ExporterFactory} that is called from the Java Auto Instrumenter.
@@ -14,11 +20,79 @@ public class WavefrontSpanExporterFactory implements ExporterFactory {
   private final String WAVEFRONT_URL = "wavefront.url";
   private final String TRACEPORT = "wavefront.traceport";
   private final String METRICSPORT = "wavefront.metricsport";
+  private final String DISTRIBUTIONPORT = "wavefront.distributionport";
   private final String FLUSH_INTERVAL = "wavefront.flushinterval";
   private final String TOKEN = "wavefront.token";
   private final String HOST = "wavefront.host";
   private final String APPLICAITION = "application";
   private final String SERVICE = "service";
+  private final String ASYNC_QUEUE_SIZE = "wavefront.async.queuesize";
+  private final String ASYNC_THREADS = "wavefront.async.threads";
+  private final String ASYNC_OVERFLOW = "wavefront.async.overflow";
+  private final String ASYNC_BLOCK_TIMEOUT = "wavefront.async.blocktimeout";
+  private final String NATIVE_ENCODING = "wavefront.nativeencoding";
+  private final String NON_BLOCKING = "wavefront.nonblocking";
+  private final String MAX_BACKLOG_BYTES = "wavefront.maxbacklogbytes";
+  private final String SPOOL_DIR = "wavefront.spool.dir";
+  private final String SPOOL_SEGMENT_BYTES = "wavefront.spool.segmentbytes";
+  private final String SPOOL_MAX_BYTES = "wavefront.spool.maxbytes";
+  private final String SPOOL_MAX_AGE = "wavefront.spool.maxage";
+  private final String SELF_METRICS_INTERVAL = "wavefront.selfmetrics.interval";
+  private final String RED_METRICS = "wavefront.redmetrics";
+  private final String RED_METRICS_INTERVAL = "wavefront.redmetrics.interval";
+  private final String RED_MAX_OPERATIONS = "wavefront.redmetrics.maxoperations";
+  private final String TAGS_ALLOW = "wavefront.tags.allow";
+  private final String TAGS_DENY = "wavefront.tags.deny";
+  private final String TAGS_NORMALIZE_URLS = "wavefront.tags.normalizeurls";
+  private final String TAGS_MAX = "wavefront.tags.max";
+  private final String TAGS_MAX_VALUE_LENGTH = "wavefront.tags.maxvaluelength";
+  private final String SPAN_LOGS_MAX = "wavefront.spanlogs.max";
+  private final String SPAN_LOGS_MAX_VALUE_LENGTH = "wavefront.spanlogs.maxvaluelength";
+  private final String BATCH_SIZE = "wavefront.batchsize";
+  private final String MAX_QUEUE_SIZE = "wavefront.maxqueuesize";
+  private final String MESSAGE_SIZE_BYTES = "wavefront.messagesizebytes";
+  private final String COMPRESSION = "wavefront.compression";
+  private final String ADAPTIVE_FLUSH = "wavefront.flush.adaptive";
+  private final String FLUSH_MIN_BATCH = "wavefront.flush.minbatch";
+  private final String FLUSH_MAX_BATCH = "wavefront.flush.maxbatch";
+  private final String FLUSH_MAX_BYTES = "wavefront.flush.maxbytes";
+  private final String FLUSH_MAX_LATENCY = "wavefront.flush.maxlatency";
+  private final String FLUSH_TARGET_SEND_TIME = "wavefront.flush.targetsendtime";
+  private final String SPAN_NAME_TEMPLATE = "wavefront.spanname.template";
+  private final String SPAN_NAME_CACHE_SIZE = "wavefront.spanname.cachesize";
+  private final String LOAD_BALANCING = "wavefront.loadbalancing";
+  private final String ENDPOINT_FAILURE_THRESHOLD = "wavefront.endpoint.failurethreshold";
+  private final String ENDPOINT_RETRY_INTERVAL = "wavefront.endpoint.retryinterval";
+  private final String TAIL_SAMPLING = "wavefront.tailsampling";
+  private final String TAIL_SAMPLING_DECISION_WAIT = "wavefront.tailsampling.decisionwait";
+  private final String TAIL_SAMPLING_MAX_BYTES = "wavefront.tailsampling.maxbytes";
+  private final String TAIL_SAMPLING_LATENCY = "wavefront.tailsampling.latencythreshold";
+  private final String TAIL_SAMPLING_RATE = "wavefront.tailsampling.tracespersecond";
+  private final String RETRY_QUEUE = "wavefront.retry";
+  private final String RETRY_MAX_BYTES = "wavefront.retry.maxbytes";
+  private final String RETRY_INITIAL_BACKOFF = "wavefront.retry.initialbackoff";
+  private final String RETRY_MAX_BACKOFF = "wavefront.retry.maxbackoff";
+  private final String STAGING_BYTES = "wavefront.staging.bytes";
+  private final String VIRTUAL_THREADS = "wavefront.virtualthreads";
+  private final String TRACE_SUMMARIES = "wavefront.tracesummary";
+  private final String TRACE_GRAPH_MAX_SPANS = "wavefront.tracesummary.maxspans";
+  private final String TRACE_GRAPH_MAX_AGE = "wavefront.tracesummary.maxage";
+  private final String DEDUP_WINDOW = "wavefront.dedup.window";
+  private final String DEDUP_MAX_SPANS = "wavefront.dedup.maxspans";
+  private final String ROLLUP_MIN_SPANS = "wavefront.rollup.minspans";
+  private final String SHARDS = "wavefront.shards";
+  private final String RELOAD_FILE = "wavefront.reload.file";
+  private final String RELOAD_INTERVAL = "wavefront.reload.interval";
+
+  private static String[] list(final String s) {
+    final List<String> result = new ArrayList<>();
+    for (final String item : s.split(",")) {
+      if (!item.trim().isEmpty()) {
+        result.add(item.trim());
+      }
+    }
+    return result.toArray(new String[0]);
+  }
 
   /**
    * Called from the Java Auto Instrumenter to create a new {@link WavefrontSpanExporter}
@@ -28,12 +102,114 @@ public class WavefrontSpanExporterFactory implements ExporterFactory {
    */
   @Override
   public SpanExporter fromConfig(final ConfigProvider config) {
+    final String reloadFile = config.getString(RELOAD_FILE, null);
+    if (reloadFile != null) {
+      try {
+        return new ReloadingSpanExporter(
+            config, new File(reloadFile), config.getLong(RELOAD_INTERVAL, 10000), this);
+      } catch (final IOException e) {
+        throw new UncheckedIOException("Could not read exporter settings from " + reloadFile, e);
+      }
+    }
+    return create(config);
+  }
+
+  /**
+   * Returns true if a setting can be changed on a running exporter, without building a new one.
+   *
+   * @param key The setting
+   * @return
+   * @see WavefrontSpanExporter#retune(WavefrontSpanExporter.Builder)
+   */
+  boolean isTunable(final String key) {
+    return key.startsWith("wavefront.tags.")
+        || key.startsWith("wavefront.spanlogs.")
+        || key.equals(TAIL_SAMPLING_LATENCY)
+        || key.equals(TAIL_SAMPLING_RATE);
+  }
+
+  /**
+   * Creates an exporter builder with all settings except the endpoints.
+   *
+   * @param config The configuration to use
+   * @return
+   */
+  WavefrontSpanExporter.Builder builder(final ConfigProvider config) {
     WavefrontSpanExporter.Builder b = WavefrontSpanExporter.Builder.newBuilder();
     b =
         b.application(config.getString(APPLICAITION, "(unknown application)"))
             .service(config.getString(SERVICE, "(unknown service)"))
-            .host(config.getString(HOST, null));
+            .host(config.getString(HOST, null))
+            .asyncQueueSize(config.getInt(ASYNC_QUEUE_SIZE, 0))
+            .drainThreads(config.getInt(ASYNC_THREADS, 1))
+            .overflowPolicy(
+                OverflowPolicy.valueOf(
+                    config.getString(ASYNC_OVERFLOW, "drop_newest").toUpperCase(Locale.ROOT)))
+            .blockTimeoutMillis(config.getLong(ASYNC_BLOCK_TIMEOUT, 100))
+            .spoolSegmentBytes(config.getInt(SPOOL_SEGMENT_BYTES, 16 * 1024 * 1024))
+            .spoolMaxBytes(config.getLong(SPOOL_MAX_BYTES, 1024 * 1024 * 1024))
+            .spoolMaxAgeMillis(config.getLong(SPOOL_MAX_AGE, 24 * 60 * 60) * 1000)
+            .selfMetricsIntervalSeconds(config.getInt(SELF_METRICS_INTERVAL, 0))
+            .redMetrics(config.getBoolean(RED_METRICS, false))
+            .redMetricsIntervalSeconds(config.getInt(RED_METRICS_INTERVAL, 60))
+            .redMaxOperations(config.getInt(RED_MAX_OPERATIONS, 1000))
+            .tagPolicy(
+                TagPolicy.newBuilder()
+                    .allow(list(config.getString(TAGS_ALLOW, "")))
+                    .deny(list(config.getString(TAGS_DENY, "")))
+                    .normalizeUrls(list(config.getString(TAGS_NORMALIZE_URLS, "")))
+                    .maxTags(config.getInt(TAGS_MAX, Integer.MAX_VALUE))
+                    .maxValueLength(config.getInt(TAGS_MAX_VALUE_LENGTH, Integer.MAX_VALUE))
+                    .build())
+            .maxSpanLogs(config.getInt(SPAN_LOGS_MAX, 128))
+            .maxSpanLogValueLength(config.getInt(SPAN_LOGS_MAX_VALUE_LENGTH, 32 * 1024))
+            .adaptiveFlush(config.getBoolean(ADAPTIVE_FLUSH, false))
+            .flushMinBatchSpans(config.getInt(FLUSH_MIN_BATCH, 100))
+            .flushMaxBatchSpans(config.getInt(FLUSH_MAX_BATCH, 10000))
+            .flushMaxBatchBytes(config.getLong(FLUSH_MAX_BYTES, 4 * 1024 * 1024))
+            .flushMaxLatencyMillis(config.getLong(FLUSH_MAX_LATENCY, 1000))
+            .flushTargetSendMillis(config.getLong(FLUSH_TARGET_SEND_TIME, 500))
+            .spanNameTemplate(config.getString(SPAN_NAME_TEMPLATE, SpanNamer.DEFAULT_TEMPLATE))
+            .spanNameCacheSize(config.getInt(SPAN_NAME_CACHE_SIZE, 10000))
+            .loadBalancing(
+                LoadBalancing.valueOf(
+                    config.getString(LOAD_BALANCING, "trace_id").toUpperCase(Locale.ROOT)))
+            .endpointFailureThreshold(config.getInt(ENDPOINT_FAILURE_THRESHOLD, 3))
+            .endpointRetryMillis(config.getLong(ENDPOINT_RETRY_INTERVAL, 1000))
+            .tailSampling(config.getBoolean(TAIL_SAMPLING, false))
+            .tailSamplingDecisionWaitMillis(config.getLong(TAIL_SAMPLING_DECISION_WAIT, 30000))
+            .tailSamplingMaxBytes(config.getLong(TAIL_SAMPLING_MAX_BYTES, 64 * 1024 * 1024))
+            .tailSamplingLatencyThresholdMillis(config.getLong(TAIL_SAMPLING_LATENCY, 0))
+            .tailSamplingTracesPerSecond(config.getDouble(TAIL_SAMPLING_RATE, 10))
+            .retryQueue(config.getBoolean(RETRY_QUEUE, false))
+            .retryQueueMaxBytes(config.getLong(RETRY_MAX_BYTES, 64 * 1024 * 1024))
+            .retryInitialBackoffMillis(config.getLong(RETRY_INITIAL_BACKOFF, 100))
+            .retryMaxBackoffMillis(config.getLong(RETRY_MAX_BACKOFF, 30000))
+            .stagingBufferBytes(config.getInt(STAGING_BYTES, 0))
+            .virtualThreads(config.getBoolean(VIRTUAL_THREADS, false))
+            .traceSummaries(config.getBoolean(TRACE_SUMMARIES, false))
+            .traceGraphMaxSpans(config.getInt(TRACE_GRAPH_MAX_SPANS, 100000))
+            .traceGraphMaxAgeMillis(config.getLong(TRACE_GRAPH_MAX_AGE, 60000))
+            .dedupWindowMillis(config.getLong(DEDUP_WINDOW, 0))
+            .dedupMaxSpans(config.getInt(DEDUP_MAX_SPANS, 100000))
+            .rollupMinSpans(config.getInt(ROLLUP_MIN_SPANS, 0));
+    final String spoolDir = config.getString(SPOOL_DIR, null);
+    if (spoolDir != null) {
+      b = b.spoolDirectory(new File(spoolDir));
+    }
+    return b;
+  }
 
+  /**
+   * Creates an exporter.
+   *
+   * @param config The configuration to use
+   * @return
+   */
+  SpanExporter create(final ConfigProvider config) {
+    final WavefrontSpanExporter.Builder b = builder(config);
+
+    final int shards = config.getInt(SHARDS, 1);
     final String proxy = config.getString(PROXY, null);
     final String url = config.getString(WAVEFRONT_URL, null);
     if (proxy != null) {
@@ -43,9 +219,16 @@ public class WavefrontSpanExporterFactory implements ExporterFactory {
       }
       final WavefrontSpanExporter.ProxyClientBuilder pb = b.proxyClient(proxy);
       pb.metricsPort(config.getInt(METRICSPORT, 2878));
+      final int distributionPort = config.getInt(DISTRIBUTIONPORT, 0);
+      if (distributionPort != 0) {
+        pb.distributionPort(distributionPort);
+      }
       pb.tracingPort(config.getInt(TRACEPORT, 30000));
       pb.flushIntervalSeconds(config.getInt(FLUSH_INTERVAL, 5));
-      return pb.build();
+      pb.nativeEncoding(config.getBoolean(NATIVE_ENCODING, false));
+      pb.nonBlocking(config.getBoolean(NON_BLOCKING, false));
+      pb.maxBacklogBytes(config.getLong(MAX_BACKLOG_BYTES, 64 * 1024 * 1024));
+      return shards > 1 ? pb.buildSharded(shards) : pb.build();
     } else if (url != null) {
       final String token = config.getString(TOKEN, null);
       if (token == null) {
@@ -54,7 +237,22 @@ public class WavefrontSpanExporterFactory implements ExporterFactory {
       }
       final WavefrontSpanExporter.DirectClientBuilder db = b.directClient(url, token);
       db.flushIntervalSeconds(config.getInt(FLUSH_INTERVAL, 5));
-      return db.build();
+      final int batchSize = config.getInt(BATCH_SIZE, 0);
+      if (batchSize > 0) {
+        db.batchSize(batchSize);
+      }
+      final int maxQueueSize = config.getInt(MAX_QUEUE_SIZE, 0);
+      if (maxQueueSize > 0) {
+        db.maxQueueSize(maxQueueSize);
+      }
+      final int messageSizeBytes = config.getInt(MESSAGE_SIZE_BYTES, 0);
+      if (messageSizeBytes > 0) {
+        db.messageSizeBytes(messageSizeBytes);
+      }
+      db.compression(
+          Compression.valueOf(config.getString(COMPRESSION, "gzip").toUpperCase(Locale.ROOT)));
+      db.nativeEncoding(config.getBoolean(NATIVE_ENCODING, false));
+      return shards > 1 ? db.buildSharded(shards) : db.build();
     } else {
       throw new IllegalArgumentException(
           "Either " + PROXY + " or " + WAVEFRONT_URL + " need to be specified");
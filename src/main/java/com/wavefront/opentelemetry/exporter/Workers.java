@@ -0,0 +1,416 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the exporter's background work. Work that may block, such as sending and flushing, runs
+ * as short tasks on an {@link Executor} and never holds on to a thread while it's idle. Timers
+ * run on a {@link ScheduledExecutorService} and only hand their tasks over to the executor, so
+ * one scheduler thread can serve any number of exporters.
+ *
+ * <p>Unless the application supplies its own, each exporter gets a pool of daemon threads that
+ * are started on demand and retired when idle, and all exporters share one scheduler thread.
+ * Executors supplied by the application are never shut down by the exporter. If the executor
+ * rejects a task handed over by a timer, the task runs on a shared fallback pool instead, so that
+ * it never holds up the scheduler thread.
+ */
+final class Workers {
+  private static final Logger logger = Logger.getLogger(Workers.class.getCanonicalName());
+
+  private static final long IDLE_WORKER_SECONDS = 60;
+
+  private final Executor executor;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final boolean ownsExecutor;
+
+  /** Created the first time it's needed. */
+  private static final class SharedScheduler {
+    static final ScheduledExecutorService INSTANCE = newScheduler();
+  }
+
+  /** Created the first time an executor rejects a task handed over by a timer. */
+  private static final class SharedFallback {
+    static final ExecutorService INSTANCE = newPool("wavefront-exporter-fallback-");
+  }
+
+  /**
+   * Drains work in the background, such as a queue of spans to send. A run calls the step until
+   * there's nothing left to do. If the step has to back off, the run ends and another one starts
+   * after the delay. Requests for a run made in the meantime are remembered but don't cut the
+   * backoff short. There's at most one run at a time.
+   */
+  final class Drain {
+    private final Step step;
+
+    // Guarded by this
+    // A run is scheduled or in progress
+    private boolean active;
+
+    // The step is running
+    private boolean running;
+
+    // A run was requested since the step last started
+    private boolean requested;
+
+    private boolean closed;
+
+    private ScheduledFuture<?> next;
+
+    private Drain(final Step step) {
+      this.step = step;
+    }
+
+    /** Requests a run. Starts one unless one is already scheduled or in progress. */
+    void start() {
+      synchronized (this) {
+        requested = true;
+        if (closed || active) {
+          return;
+        }
+        active = true;
+      }
+      execute(this::run);
+    }
+
+    private void run() {
+      while (true) {
+        synchronized (this) {
+          if (closed) {
+            active = false;
+            return;
+          }
+          running = true;
+          requested = false;
+        }
+        long delayMillis;
+        try {
+          delayMillis = step.run();
+        } catch (final RuntimeException e) {
+          logger.log(Level.WARNING, "Error in background task", e);
+          delayMillis = Step.DONE;
+        }
+        synchronized (this) {
+          running = false;
+          notifyAll();
+          if (closed) {
+            active = false;
+            return;
+          }
+          if (delayMillis < 0) {
+            if (requested) {
+              continue;
+            }
+            active = false;
+            return;
+          }
+          if (delayMillis == 0) {
+            continue;
+          }
+        }
+        final ScheduledFuture<?> f = schedule(this::run, delayMillis);
+        synchronized (this) {
+          next = f;
+          if (closed) {
+            f.cancel(false);
+          }
+        }
+        return;
+      }
+    }
+
+    /**
+     * Stops draining and waits for a step in progress to finish. The step isn't called again.
+     *
+     * @param timeoutMillis The longest time to wait
+     */
+    void close(final long timeoutMillis) {
+      synchronized (this) {
+        closed = true;
+        if (next != null) {
+          next.cancel(false);
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+          while (running && remaining > 0) {
+            final long start = System.nanoTime();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining -= System.nanoTime() - start;
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    /** Stops draining and waits for a step in progress to finish. */
+    void close() {
+      close(Long.MAX_VALUE);
+    }
+  }
+
+  /** One step of draining. */
+  interface Step {
+    /** Returned when there's nothing left to do until the next request. */
+    long DONE = -1;
+
+    /**
+     * Does some of the work.
+     *
+     * @return 0 to be called again right away, {@link #DONE} if there's nothing left to do, or
+     *     the time to back off for in milliseconds
+     */
+    long run();
+  }
+
+  /** A task that runs repeatedly until it's cancelled. */
+  final class Repeating implements Runnable {
+    private final Runnable task;
+
+    private final long periodMillis;
+
+    // Guarded by this
+    private boolean cancelled;
+
+    private boolean running;
+
+    private ScheduledFuture<?> next;
+
+    private Repeating(final Runnable task, final long periodMillis) {
+      this.task = task;
+      this.periodMillis = periodMillis;
+    }
+
+    private void scheduleNext() {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+      }
+      final ScheduledFuture<?> f = schedule(this, periodMillis);
+      synchronized (this) {
+        next = f;
+        if (cancelled) {
+          next.cancel(false);
+        }
+      }
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (cancelled) {
+          return;
+        }
+        running = true;
+      }
+      try {
+        task.run();
+      } catch (final RuntimeException e) {
+        logger.log(Level.WARNING, "Error in background task", e);
+      } finally {
+        synchronized (this) {
+          running = false;
+          notifyAll();
+        }
+      }
+      // Scheduled from the end of a run, so that runs never overlap
+      scheduleNext();
+    }
+
+    /** Stops the task, waiting for a run in progress to finish. */
+    synchronized void cancel() {
+      cancelled = true;
+      if (next != null) {
+        next.cancel(false);
+      }
+      try {
+        while (running) {
+          wait();
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private Workers(
+      final Executor executor,
+      final boolean ownsExecutor,
+      final ScheduledExecutorService scheduler) {
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Creates a {@link Workers} with its own pool of threads and the shared scheduler.
+   *
+   * @return
+   */
+  static Workers dedicated() {
+    return create(null, null, false);
+  }
+
+  /**
+   * Creates a new {@link Workers}
+   *
+   * @param executor The executor to run tasks on, or null for one owned by the exporter
+   * @param scheduler The scheduler to run timers on, or null for the shared one
+   * @param virtualThreads If no executor is given, run each task on a new virtual thread if the
+   *     JDK supports it
+   * @return
+   */
+  static Workers create(
+      final Executor executor,
+      final ScheduledExecutorService scheduler,
+      final boolean virtualThreads) {
+    final ScheduledExecutorService s = scheduler != null ? scheduler : SharedScheduler.INSTANCE;
+    if (executor != null) {
+      return new Workers(executor, false, s);
+    }
+    if (virtualThreads) {
+      final ExecutorService v = virtualThreadExecutor();
+      if (v != null) {
+        return new Workers(v, true, s);
+      }
+      logger.log(Level.WARNING, "Virtual threads are not supported by this JVM. Not using them");
+    }
+    return new Workers(newPool("wavefront-exporter-worker-"), true, s);
+  }
+
+  private static ThreadFactory daemonThreads(final String prefix) {
+    final AtomicInteger n = new AtomicInteger();
+    return r -> {
+      final Thread t = new Thread(r, prefix + n.getAndIncrement());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  private static ExecutorService newPool(final String prefix) {
+    return new ThreadPoolExecutor(
+        0,
+        Integer.MAX_VALUE,
+        IDLE_WORKER_SECONDS,
+        TimeUnit.SECONDS,
+        new SynchronousQueue<>(),
+        daemonThreads(prefix));
+  }
+
+  private static ScheduledExecutorService newScheduler() {
+    final ScheduledThreadPoolExecutor s =
+        new ScheduledThreadPoolExecutor(1, daemonThreads("wavefront-exporter-scheduler-"));
+    s.setRemoveOnCancelPolicy(true);
+    return s;
+  }
+
+  /**
+   * Returns an executor that starts a new virtual thread for each task, or null if the JDK
+   * doesn't have virtual threads. It's looked up reflectively so that the exporter still runs on
+   * Java 8.
+   *
+   * @return
+   */
+  static ExecutorService virtualThreadExecutor() {
+    try {
+      final Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) m.invoke(null);
+    } catch (final ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Runs a task on the executor. If the executor rejects it, for instance because the
+   * application has shut it down, the task runs on the calling thread so that no work is lost.
+   *
+   * @param task The task
+   */
+  void execute(final Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (final RejectedExecutionException e) {
+      logger.log(Level.FINE, "Executor rejected task. Running it on the calling thread", e);
+      task.run();
+    }
+  }
+
+  /**
+   * Runs a task on the executor after a delay. If the scheduler rejects it, for instance because
+   * the application has shut it down, the shared scheduler is used instead. If the executor
+   * rejects it, it runs on the shared fallback pool, never on the scheduler thread.
+   *
+   * @param task The task
+   * @param delayMillis The delay in milliseconds
+   * @return A future for cancelling the task
+   */
+  ScheduledFuture<?> schedule(final Runnable task, final long delayMillis) {
+    final Runnable handOver = () -> handOver(task);
+    try {
+      return scheduler.schedule(handOver, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (final RejectedExecutionException e) {
+      logger.log(Level.FINE, "Scheduler rejected task. Using the shared scheduler", e);
+      return SharedScheduler.INSTANCE.schedule(handOver, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void handOver(final Runnable task) {
+    try {
+      executor.execute(task);
+    } catch (final RejectedExecutionException e) {
+      logger.log(Level.FINE, "Executor rejected timer task. Running it on the fallback pool", e);
+      try {
+        SharedFallback.INSTANCE.execute(task);
+      } catch (final RejectedExecutionException e2) {
+        logger.log(Level.WARNING, "Could not run background task. Dropping it", e2);
+      }
+    }
+  }
+
+  /**
+   * Creates a background drain of work that runs on the executor.
+   *
+   * @param step What to do in each step
+   * @return A handle for requesting runs and for stopping
+   */
+  Drain drain(final Step step) {
+    return new Drain(step);
+  }
+
+  /**
+   * Runs a task on the executor repeatedly, waiting for the period between the end of one run and
+   * the start of the next.
+   *
+   * @param task The task
+   * @param periodMillis The period in milliseconds
+   * @return A handle for cancelling the task
+   */
+  Repeating repeat(final Runnable task, final long periodMillis) {
+    final Repeating r = new Repeating(task, periodMillis);
+    r.scheduleNext();
+    return r;
+  }
+
+  /** Shuts down the executor if it's owned by the exporter. Running tasks are allowed to finish. */
+  void shutdown() {
+    if (ownsExecutor) {
+      ((ExecutorService) executor).shutdown();
+    }
+  }
+}
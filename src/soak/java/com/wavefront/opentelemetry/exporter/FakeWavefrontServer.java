@@ -0,0 +1,397 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stands in for a Wavefront proxy and for the direct ingestion API on the loopback interface. It
+ * parses every span line and span log it receives, hands the spans to a callback and counts what
+ * it couldn't parse. Faults can be injected to see how the exporter copes: a delay before each
+ * read or request, a cap on the read rate, connections dropped after a while and, for direct
+ * ingestion, requests answered with an error.
+ *
+ * <p>A line cut short by a dropped connection is discarded rather than counted as malformed,
+ * since that is what a real proxy would do.
+ */
+final class FakeWavefrontServer implements AutoCloseable {
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  private static final int MAX_SAMPLES = 10;
+
+  private final Faults faults;
+
+  private final Consumer<WireFormat.SpanLine> onSpan;
+
+  private final ServerSocket tracing;
+
+  private final ServerSocket metrics;
+
+  private final HttpServer direct;
+
+  private final ExecutorService directWorkers =
+      Executors.newCachedThreadPool(
+          r -> {
+            final Thread t = new Thread(r, "fake-ingestion");
+            t.setDaemon(true);
+            return t;
+          });
+
+  private final LongAdder spans = new LongAdder();
+
+  private final LongAdder spanLogs = new LongAdder();
+
+  private final LongAdder malformed = new LongAdder();
+
+  private final LongAdder bytes = new LongAdder();
+
+  private final LongAdder connections = new LongAdder();
+
+  private final LongAdder disconnects = new LongAdder();
+
+  private final LongAdder errorResponses = new LongAdder();
+
+  // Guarded by itself
+  private final List<String> samples = new ArrayList<>();
+
+  /** The faults to inject. All are off by default. */
+  static final class Faults {
+    long latencyMillis;
+
+    long readBytesPerSecond;
+
+    long disconnectMillis;
+
+    double errorRate;
+  }
+
+  /**
+   * Creates a new {@link FakeWavefrontServer} listening on ephemeral ports.
+   *
+   * @param faults The faults to inject
+   * @param onSpan Called with each span received, on the thread that read it
+   * @throws IOException If a listening socket could not be opened
+   */
+  FakeWavefrontServer(final Faults faults, final Consumer<WireFormat.SpanLine> onSpan)
+      throws IOException {
+    this.faults = faults;
+    this.onSpan = onSpan;
+    final InetAddress loopback = InetAddress.getLoopbackAddress();
+    tracing = new ServerSocket(0, 50, loopback);
+    metrics = new ServerSocket(0, 50, loopback);
+    direct = HttpServer.create(new InetSocketAddress(loopback, 0), 50);
+    direct.createContext("/report", this::handle);
+    direct.setExecutor(directWorkers);
+    direct.start();
+    daemon(() -> accept(tracing, true), "fake-proxy");
+    daemon(() -> accept(metrics, false), "fake-proxy-metrics");
+  }
+
+  private static void daemon(final Runnable task, final String name) {
+    final Thread t = new Thread(task, name);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void accept(final ServerSocket server, final boolean parse) {
+    while (!server.isClosed()) {
+      try {
+        final Socket conn = server.accept();
+        connections.increment();
+        daemon(() -> read(conn, parse), "fake-proxy-reader");
+      } catch (final IOException e) {
+        // Closed
+      }
+    }
+  }
+
+  private void read(final Socket conn, final boolean parse) {
+    final long opened = System.nanoTime();
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    try (final InputStream in = conn.getInputStream()) {
+      final Throttle throttle = new Throttle(faults.readBytesPerSecond);
+      for (; ; ) {
+        if (faults.disconnectMillis > 0
+            && System.nanoTime() - opened > faults.disconnectMillis * 1000000) {
+          disconnects.increment();
+          break;
+        }
+        pause(faults.latencyMillis);
+        final int n = in.read(buffer, 0, throttle.chunk(buffer.length));
+        if (n < 0) {
+          break;
+        }
+        bytes.add(n);
+        throttle.consumed(n);
+        if (parse) {
+          lines(buffer, n, partial, true);
+        }
+      }
+    } catch (final IOException e) {
+      // Connection closed by the exporter
+    } finally {
+      try {
+        conn.close();
+      } catch (final IOException e) {
+        // Ignore
+      }
+    }
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    try {
+      pause(faults.latencyMillis);
+      final String query = exchange.getRequestURI().getQuery();
+      final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+      // The whole body is read before decompressing it, so none of it is left on the connection
+      final byte[] body = readAll(exchange.getRequestBody(), faults.readBytesPerSecond);
+      bytes.add(body.length);
+      if (faults.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < faults.errorRate) {
+        errorResponses.increment();
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      }
+      if (query != null && (query.contains("f=trace") || query.contains("f=spanLogs"))) {
+        InputStream in = new ByteArrayInputStream(body);
+        if ("gzip".equals(encoding)) {
+          in = new GZIPInputStream(in);
+        } else if ("deflate".equals(encoding)) {
+          in = new InflaterInputStream(in);
+        }
+        final byte[] content = readAll(in, 0);
+        lines(content, content.length, new ByteArrayOutputStream(), false);
+      }
+      exchange.sendResponseHeaders(202, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static byte[] readAll(final InputStream in, final long bytesPerSecond)
+      throws IOException {
+    final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Throttle throttle = new Throttle(bytesPerSecond);
+    int n;
+    while ((n = in.read(buffer, 0, throttle.chunk(buffer.length))) >= 0) {
+      out.write(buffer, 0, n);
+      throttle.consumed(n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Splits received bytes into lines and parses them. Bytes after the last line break are kept
+   * in the partial line for the next read, unless the input is complete.
+   */
+  private void lines(
+      final byte[] buffer,
+      final int length,
+      final ByteArrayOutputStream partial,
+      final boolean more) {
+    int start = 0;
+    for (int i = 0; i < length; ++i) {
+      if (buffer[i] == '\n') {
+        partial.write(buffer, start, i - start);
+        line(new String(partial.toByteArray(), StandardCharsets.UTF_8));
+        partial.reset();
+        start = i + 1;
+      }
+    }
+    partial.write(buffer, start, length - start);
+    if (!more && partial.size() > 0) {
+      line(new String(partial.toByteArray(), StandardCharsets.UTF_8));
+      partial.reset();
+    }
+  }
+
+  private void line(final String line) {
+    if (line.isEmpty()) {
+      return;
+    }
+    try {
+      if (line.charAt(0) == '{') {
+        WireFormat.parseSpanLog(line);
+        spanLogs.increment();
+      } else {
+        final WireFormat.SpanLine span = WireFormat.parseSpan(line);
+        spans.increment();
+        onSpan.accept(span);
+      }
+    } catch (final IllegalArgumentException e) {
+      malformed.increment();
+      synchronized (samples) {
+        if (samples.size() < MAX_SAMPLES) {
+          samples.add(e.getMessage() + ": " + line);
+        }
+      }
+    }
+  }
+
+  private static void pause(final long millis) {
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Keeps reads to a number of bytes per second by sleeping after each read. */
+  private static final class Throttle {
+    private final long bytesPerSecond;
+
+    private final long start = System.nanoTime();
+
+    private long total;
+
+    Throttle(final long bytesPerSecond) {
+      this.bytesPerSecond = bytesPerSecond;
+    }
+
+    int chunk(final int max) {
+      // Reads of a tenth of a second's worth keep the rate smooth
+      return bytesPerSecond > 0 ? (int) Math.max(1, Math.min(max, bytesPerSecond / 10)) : max;
+    }
+
+    void consumed(final int n) {
+      if (bytesPerSecond == 0) {
+        return;
+      }
+      total += n;
+      final long due = start + total * 1000000000 / bytesPerSecond;
+      final long ahead = due - System.nanoTime();
+      if (ahead > 0) {
+        pause(ahead / 1000000);
+      }
+    }
+  }
+
+  /**
+   * Returns the port the fake proxy takes span lines and span logs on.
+   *
+   * @return
+   */
+  int getTracingPort() {
+    return tracing.getLocalPort();
+  }
+
+  /**
+   * Returns a port that accepts and discards metrics.
+   *
+   * @return
+   */
+  int getMetricsPort() {
+    return metrics.getLocalPort();
+  }
+
+  /**
+   * Returns the base URL of the fake direct ingestion API.
+   *
+   * @return
+   */
+  String getDirectUrl() {
+    return "http://localhost:" + direct.getAddress().getPort();
+  }
+
+  /**
+   * Returns the number of span lines received and parsed.
+   *
+   * @return
+   */
+  long getSpans() {
+    return spans.sum();
+  }
+
+  /**
+   * Returns the number of span logs received and parsed.
+   *
+   * @return
+   */
+  long getSpanLogs() {
+    return spanLogs.sum();
+  }
+
+  /**
+   * Returns the number of lines that could not be parsed.
+   *
+   * @return
+   */
+  long getMalformed() {
+    return malformed.sum();
+  }
+
+  /**
+   * Returns up to ten of the lines that could not be parsed, along with what was wrong.
+   *
+   * @return
+   */
+  List<String> getMalformedSamples() {
+    synchronized (samples) {
+      return new ArrayList<>(samples);
+    }
+  }
+
+  /**
+   * Returns the number of bytes received, as sent over the wire.
+   *
+   * @return
+   */
+  long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * Returns the number of connections accepted by the fake proxy.
+   *
+   * @return
+   */
+  long getConnections() {
+    return connections.sum();
+  }
+
+  /**
+   * Returns the number of connections the fake proxy dropped on purpose.
+   *
+   * @return
+   */
+  long getDisconnects() {
+    return disconnects.sum();
+  }
+
+  /**
+   * Returns the number of direct ingestion requests answered with an error on purpose.
+   *
+   * @return
+   */
+  long getErrorResponses() {
+    return errorResponses.sum();
+  }
+
+  @Override
+  public void close() throws IOException {
+    tracing.close();
+    metrics.close();
+    direct.stop(0);
+    directWorkers.shutdown();
+  }
+}
@@ -0,0 +1,420 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.auto.exportersupport.ConfigProvider;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives the exporter at a steady rate against a {@link FakeWavefrontServer} for minutes at a
+ * time, to see how it behaves under sustained load and when the backend misbehaves. Every span
+ * carries a sequence number and the time it was handed to the exporter, so the fake server can
+ * tell which spans arrived, which arrived twice and how long each took from export to the wire.
+ *
+ * <p>Progress is reported periodically and a summary at the end: throughput, end-to-end latency
+ * percentiles, heap growth, spans rejected by the exporter and spans lost after it accepted them.
+ * The run fails if any line received was malformed or if more spans were lost than allowed.
+ *
+ * <p>Settings of the harness are system properties prefixed with {@code soak.}, see {@link
+ * #main(String[])}. Exporter settings are given as the same {@code ota.exporter.} system
+ * properties the auto instrumenter reads, except for the endpoint, which is always the fake
+ * server. Settings that drop or merge spans, such as tail sampling or tag filtering of the {@code
+ * soak.} tags, show up as loss.
+ */
+public final class SoakTest {
+  private static final String SEQ_TAG = "soak.seq";
+
+  private static final String SENT_TAG = "soak.sent";
+
+  private static final String EXPORTER_PREFIX = "ota.exporter.";
+
+  private final long rate;
+
+  private final long durationSeconds;
+
+  private final int batchSize;
+
+  private final int threads;
+
+  private final int traceSpans;
+
+  private final long reportSeconds;
+
+  private final long drainSeconds;
+
+  private final double maxLoss;
+
+  private final boolean direct;
+
+  private final FakeWavefrontServer.Faults faults = new FakeWavefrontServer.Faults();
+
+  private final AtomicLong nextSeq = new AtomicLong();
+
+  private final LongAdder generated = new LongAdder();
+
+  private final LongAdder rejected = new LongAdder();
+
+  private final LongAdder duplicates = new LongAdder();
+
+  private final LongAdder unknown = new LongAdder();
+
+  // Microseconds from export to arrival
+  private final ConcurrentHistogram latency = new ConcurrentHistogram();
+
+  // Guarded by itself
+  private final BitSet received = new BitSet();
+
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  /** Exporter settings as the auto instrumenter would supply them. */
+  private static final class MapConfig implements ConfigProvider {
+    final Map<String, String> map = new HashMap<>();
+
+    @Override
+    public String getString(final String key, final String defaultValue) {
+      return map.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public int getInt(final String key, final int defaultValue) {
+      return map.containsKey(key) ? Integer.parseInt(map.get(key).trim()) : defaultValue;
+    }
+
+    @Override
+    public long getLong(final String key, final int defaultValue) {
+      return map.containsKey(key) ? Long.parseLong(map.get(key).trim()) : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defaultValue) {
+      return map.containsKey(key) ? Boolean.parseBoolean(map.get(key).trim()) : defaultValue;
+    }
+
+    @Override
+    public double getDouble(final String key, final double defaultValue) {
+      return map.containsKey(key) ? Double.parseDouble(map.get(key).trim()) : defaultValue;
+    }
+  }
+
+  private SoakTest() {
+    rate = Long.getLong("soak.rate", 10000);
+    durationSeconds = Long.getLong("soak.duration", 300);
+    batchSize = Integer.getInteger("soak.batch", 512);
+    threads = Integer.getInteger("soak.threads", 2);
+    traceSpans = Integer.getInteger("soak.tracespans", 10);
+    reportSeconds = Long.getLong("soak.report", 10);
+    drainSeconds = Long.getLong("soak.drain", 30);
+    maxLoss = Double.parseDouble(System.getProperty("soak.maxloss", "0.001"));
+    direct = "direct".equals(System.getProperty("soak.endpoint", "proxy"));
+    faults.latencyMillis = Long.getLong("soak.latency", 0);
+    faults.readBytesPerSecond = Long.getLong("soak.readrate", 0);
+    faults.disconnectMillis = TimeUnit.SECONDS.toMillis(Long.getLong("soak.disconnect", 0));
+    faults.errorRate = Double.parseDouble(System.getProperty("soak.errorrate", "0"));
+  }
+
+  /**
+   * Runs a soak test. Settings are read from system properties:
+   *
+   * <ul>
+   *   <li>{@code soak.rate}: target spans per second (default 10000)
+   *   <li>{@code soak.duration}: how long to generate load, in seconds (default 300)
+   *   <li>{@code soak.batch}: spans per export call (default 512)
+   *   <li>{@code soak.threads}: threads calling the exporter, sharing the rate (default 2)
+   *   <li>{@code soak.tracespans}: spans per trace (default 10)
+   *   <li>{@code soak.endpoint}: {@code proxy} or {@code direct} (default proxy)
+   *   <li>{@code soak.latency}: delay before each read or request, in milliseconds (default 0)
+   *   <li>{@code soak.readrate}: cap on bytes read per second and connection (default 0, none)
+   *   <li>{@code soak.disconnect}: drop proxy connections after this many seconds (default 0)
+   *   <li>{@code soak.errorrate}: fraction of direct ingestion requests failed (default 0)
+   *   <li>{@code soak.report}: seconds between progress reports (default 10)
+   *   <li>{@code soak.drain}: longest wait for spans after shutdown, in seconds (default 30)
+   *   <li>{@code soak.maxloss}: fraction of accepted spans that may be lost (default 0.001)
+   * </ul>
+   *
+   * @param args Not used
+   * @throws Exception If the run could not be set up
+   */
+  public static void main(final String[] args) throws Exception {
+    System.exit(new SoakTest().run() ? 0 : 1);
+  }
+
+  private boolean run() throws IOException, InterruptedException {
+    try (final FakeWavefrontServer server = new FakeWavefrontServer(faults, this::arrived)) {
+      final SpanExporter exporter = new WavefrontSpanExporterFactory().create(config(server));
+      final long heapBefore = usedHeapAfterGc();
+      final long start = System.nanoTime();
+      final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+      final List<Thread> generators = new ArrayList<>(threads);
+      for (int i = 0; i < threads; ++i) {
+        final Thread t = new Thread(() -> generate(exporter, end), "soak-generator-" + i);
+        t.start();
+        generators.add(t);
+      }
+      long lastReceived = 0;
+      long lastReport = start;
+      while (System.nanoTime() < end) {
+        Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds), millisUntil(end)));
+        final long now = System.nanoTime();
+        final long arrived = server.getSpans();
+        report(now - start, (arrived - lastReceived) * 1e9 / (now - lastReport), server);
+        lastReceived = arrived;
+        lastReport = now;
+      }
+      for (final Thread t : generators) {
+        t.join();
+      }
+      final long heapAfter = usedHeapAfterGc();
+      final long loadNanos = System.nanoTime() - start;
+      exporter.shutdown();
+      awaitArrivals(server);
+      return summarize(server, loadNanos, heapBefore, heapAfter);
+    }
+  }
+
+  private MapConfig config(final FakeWavefrontServer server) {
+    final MapConfig config = new MapConfig();
+    for (final String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith(EXPORTER_PREFIX)) {
+        config.map.put(name.substring(EXPORTER_PREFIX.length()), System.getProperty(name));
+      }
+    }
+    config.map.remove("wavefront.proxy");
+    config.map.remove("wavefront.url");
+    config.map.putIfAbsent("application", "soak");
+    config.map.putIfAbsent("service", "soak");
+    config.map.putIfAbsent("wavefront.flushinterval", "1");
+    if (direct) {
+      config.map.put("wavefront.url", server.getDirectUrl());
+      config.map.put("wavefront.token", "soak");
+    } else {
+      config.map.put("wavefront.proxy", "localhost");
+      config.map.put("wavefront.traceport", Integer.toString(server.getTracingPort()));
+      config.map.put("wavefront.metricsport", Integer.toString(server.getMetricsPort()));
+    }
+    return config;
+  }
+
+  /** Exports batches at this thread's share of the rate until the end of the run. */
+  private void generate(final SpanExporter exporter, final long end) {
+    final double nanosPerBatch = 1e9 * batchSize * threads / rate;
+    double next = System.nanoTime();
+    while (System.nanoTime() < end) {
+      final List<SpanData> batch = batch();
+      final SpanExporter.ResultCode rc = exporter.export(batch);
+      generated.add(batch.size());
+      if (rc != SpanExporter.ResultCode.SUCCESS) {
+        rejected.add(batch.size());
+      }
+      next += nanosPerBatch;
+      final long ahead = (long) next - System.nanoTime();
+      if (ahead > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(ahead);
+        } catch (final InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates a batch of spans, grouped into traces whose first span is the parent of the others.
+   * Every fifth span has an event, so span logs are exercised too.
+   */
+  private List<SpanData> batch() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final List<SpanData> spans = new ArrayList<>(batchSize);
+    final long now = System.nanoTime();
+    final long epochNanos = System.currentTimeMillis() * 1000000;
+    TraceId traceId = null;
+    SpanId root = SpanId.getInvalid();
+    for (int i = 0; i < batchSize; ++i) {
+      final long seq = nextSeq.getAndIncrement();
+      if (i % traceSpans == 0) {
+        traceId = new TraceId(random.nextLong(), random.nextLong());
+        root = SpanId.getInvalid();
+      }
+      final SpanId spanId = new SpanId(random.nextLong(1, Long.MAX_VALUE));
+      final Map<String, AttributeValue> attrs = new HashMap<>();
+      attrs.put(SEQ_TAG, AttributeValue.longAttributeValue(seq));
+      attrs.put(SENT_TAG, AttributeValue.longAttributeValue(now));
+      attrs.put("http.method", AttributeValue.stringAttributeValue("GET"));
+      attrs.put("http.url", AttributeValue.stringAttributeValue("/api/items/" + seq % 1000));
+      attrs.put("http.status_code", AttributeValue.longAttributeValue(200));
+      final List<SpanData.TimedEvent> events =
+          seq % 5 == 0
+              ? Collections.singletonList(
+                  SpanData.TimedEvent.create(
+                      epochNanos,
+                      "log",
+                      Collections.singletonMap(
+                          "message", AttributeValue.stringAttributeValue("event " + seq))))
+              : Collections.<SpanData.TimedEvent>emptyList();
+      spans.add(
+          SpanData.newBuilder()
+              .setName(root.isValid() ? "child" : "root")
+              .setKind(root.isValid() ? Span.Kind.CLIENT : Span.Kind.SERVER)
+              .setTraceId(traceId)
+              .setSpanId(spanId)
+              .setParentSpanId(root)
+              .setAttributes(attrs)
+              .setTimedEvents(events)
+              .setStartEpochNanos(epochNanos - 2000000)
+              .setEndEpochNanos(epochNanos)
+              .setStatus(Status.OK)
+              .build());
+      if (!root.isValid()) {
+        root = spanId;
+      }
+    }
+    return spans;
+  }
+
+  /** Called by the fake server for each span it receives. */
+  private void arrived(final WireFormat.SpanLine span) {
+    final long now = System.nanoTime();
+    final String seq = span.tags.get(SEQ_TAG);
+    final String sent = span.tags.get(SENT_TAG);
+    if (seq == null || sent == null) {
+      unknown.increment();
+      return;
+    }
+    latency.record(Math.max(0, (now - Long.parseLong(sent)) / 1000));
+    final int index = (int) Long.parseLong(seq);
+    synchronized (received) {
+      if (received.get(index)) {
+        duplicates.increment();
+      } else {
+        received.set(index);
+      }
+    }
+  }
+
+  private int receivedCount() {
+    synchronized (received) {
+      return received.cardinality();
+    }
+  }
+
+  /** Waits until every accepted span has arrived, no more arrive or the drain time is up. */
+  private void awaitArrivals(final FakeWavefrontServer server) throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainSeconds);
+    long last = -1;
+    int idle = 0;
+    while (System.nanoTime() < deadline && receivedCount() < generated.sum() - rejected.sum()) {
+      Thread.sleep(500);
+      final long arrived = server.getSpans();
+      // Give up after five quiet seconds
+      idle = arrived == last ? idle + 1 : 0;
+      if (idle >= 10) {
+        break;
+      }
+      last = arrived;
+    }
+  }
+
+  private void report(
+      final long elapsedNanos, final double arrivalRate, final FakeWavefrontServer s) {
+    final ConcurrentHistogram.Snapshot l = latency.snapshot();
+    System.out.println(
+        String.format(
+            Locale.ROOT,
+            "%5ds sent=%d received=%d (%.0f/s) latency p50=%.1fms p99=%.1fms max=%.1fms"
+                + " heap=%dMB connections=%d malformed=%d",
+            TimeUnit.NANOSECONDS.toSeconds(elapsedNanos),
+            generated.sum(),
+            s.getSpans(),
+            arrivalRate,
+            l.getPercentile(50) / 1000.0,
+            l.getPercentile(99) / 1000.0,
+            l.getMax() / 1000.0,
+            memory.getHeapMemoryUsage().getUsed() >> 20,
+            s.getConnections(),
+            s.getMalformed()));
+  }
+
+  private boolean summarize(
+      final FakeWavefrontServer server,
+      final long loadNanos,
+      final long heapBefore,
+      final long heapAfter) {
+    final long sent = generated.sum();
+    final long accepted = sent - rejected.sum();
+    final long arrived = receivedCount();
+    final long lost = Math.max(0, accepted - arrived);
+    final double loss = accepted > 0 ? (double) lost / accepted : 0;
+    final ConcurrentHistogram.Snapshot l = latency.snapshot();
+    final double seconds = loadNanos / 1e9;
+    final List<String> lines = new ArrayList<>();
+    lines.add(String.format(Locale.ROOT, "Target rate:      %d spans/s", rate));
+    lines.add(String.format(Locale.ROOT, "Offered rate:     %.0f spans/s", sent / seconds));
+    lines.add(String.format(Locale.ROOT, "Received rate:    %.0f spans/s", arrived / seconds));
+    lines.add(String.format(Locale.ROOT, "Spans generated:  %d", sent));
+    lines.add(String.format(Locale.ROOT, "Spans rejected:   %d", rejected.sum()));
+    lines.add(String.format(Locale.ROOT, "Spans received:   %d", arrived));
+    lines.add(String.format(Locale.ROOT, "Spans lost:       %d (%.4f%%)", lost, loss * 100));
+    lines.add(String.format(Locale.ROOT, "Duplicates:       %d", duplicates.sum()));
+    lines.add(String.format(Locale.ROOT, "Untagged spans:   %d", unknown.sum()));
+    lines.add(String.format(Locale.ROOT, "Span logs:        %d", server.getSpanLogs()));
+    lines.add(String.format(Locale.ROOT, "Malformed lines:  %d", server.getMalformed()));
+    lines.add(
+        String.format(
+            Locale.ROOT,
+            "Latency:          p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms",
+            l.getPercentile(50) / 1000.0,
+            l.getPercentile(90) / 1000.0,
+            l.getPercentile(99) / 1000.0,
+            l.getPercentile(99.9) / 1000.0,
+            l.getMax() / 1000.0));
+    lines.add(
+        String.format(
+            Locale.ROOT,
+            "Heap after GC:    %dMB before, %dMB after (%+.1fMB/min)",
+            heapBefore >> 20,
+            heapAfter >> 20,
+            (heapAfter - heapBefore) / 1048576.0 / (seconds / 60)));
+    lines.add(
+        String.format(
+            Locale.ROOT,
+            "Connections:      %d (%d dropped on purpose), %d error responses",
+            server.getConnections(),
+            server.getDisconnects(),
+            server.getErrorResponses()));
+    for (final String line : lines) {
+      System.out.println(line);
+    }
+    for (final String sample : server.getMalformedSamples()) {
+      System.out.println("Malformed: " + sample);
+    }
+    final boolean ok = server.getMalformed() == 0 && loss <= maxLoss;
+    System.out.println(ok ? "PASSED" : "FAILED");
+    return ok;
+  }
+
+  private long usedHeapAfterGc() {
+    System.gc();
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+
+  private static long millisUntil(final long deadline) {
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+  }
+}
@@ -0,0 +1,280 @@
+package com.wavefront.opentelemetry.exporter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Parses the span lines and span log JSON received by the fake proxy, strictly enough to catch
+ * malformed output from any of the exporter's encoders. Malformed input is reported with an
+ * {@link IllegalArgumentException} saying what's wrong.
+ *
+ * <p>Span line format: {@code <name> source=<source> traceId=<uuid> spanId=<uuid>
+ * [parent=<uuid>...] [followsFrom=<uuid>...] <tags> <startMillis> <durationMillis>}, where names,
+ * keys and values are either bare or double quoted with backslash escapes.
+ */
+final class WireFormat {
+  private WireFormat() {}
+
+  /** A span line taken apart. */
+  static final class SpanLine {
+    final String name;
+
+    final String source;
+
+    final UUID traceId;
+
+    final UUID spanId;
+
+    final List<UUID> parents;
+
+    final List<UUID> followsFrom;
+
+    final Map<String, String> tags;
+
+    final long startMillis;
+
+    final long durationMillis;
+
+    private SpanLine(
+        final String name,
+        final String source,
+        final UUID traceId,
+        final UUID spanId,
+        final List<UUID> parents,
+        final List<UUID> followsFrom,
+        final Map<String, String> tags,
+        final long startMillis,
+        final long durationMillis) {
+      this.name = name;
+      this.source = source;
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.parents = parents;
+      this.followsFrom = followsFrom;
+      this.tags = tags;
+      this.startMillis = startMillis;
+      this.durationMillis = durationMillis;
+    }
+  }
+
+  /** Reads the tokens of a line one at a time. */
+  private static final class Scanner {
+    final String line;
+
+    int pos;
+
+    Scanner(final String line) {
+      this.line = line;
+    }
+
+    boolean atEnd() {
+      return pos >= line.length();
+    }
+
+    void skipSpace() {
+      while (pos < line.length() && line.charAt(pos) == ' ') {
+        ++pos;
+      }
+    }
+
+    boolean peek(final char c) {
+      return pos < line.length() && line.charAt(pos) == c;
+    }
+
+    /** Reads a quoted string, or a bare one ending at a space or, if asked to, an equals sign. */
+    String atom(final boolean stopAtEquals) {
+      if (peek('"')) {
+        return quoted();
+      }
+      final int start = pos;
+      while (pos < line.length()) {
+        final char c = line.charAt(pos);
+        if (c == ' ' || (stopAtEquals && c == '=')) {
+          break;
+        }
+        if (c == '"') {
+          throw new IllegalArgumentException("Stray quote at " + pos);
+        }
+        ++pos;
+      }
+      if (pos == start) {
+        throw new IllegalArgumentException("Empty token at " + pos);
+      }
+      return line.substring(start, pos);
+    }
+
+    private String quoted() {
+      final StringBuilder sb = new StringBuilder();
+      ++pos;
+      for (; ; ) {
+        if (pos >= line.length()) {
+          throw new IllegalArgumentException("Unterminated quote");
+        }
+        final char c = line.charAt(pos++);
+        if (c == '"') {
+          break;
+        }
+        if (c == '\\') {
+          if (pos >= line.length()) {
+            throw new IllegalArgumentException("Dangling escape");
+          }
+          final char e = line.charAt(pos++);
+          sb.append(e == 'n' ? '\n' : e);
+        } else {
+          sb.append(c);
+        }
+      }
+      if (pos < line.length() && line.charAt(pos) != ' ' && line.charAt(pos) != '=') {
+        throw new IllegalArgumentException("Missing space after quoted string at " + pos);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Parses a span line.
+   *
+   * @param line The line without its line break
+   * @return
+   */
+  static SpanLine parseSpan(final String line) {
+    final Scanner s = new Scanner(line);
+    final String name = s.atom(false);
+    String source = null;
+    UUID traceId = null;
+    UUID spanId = null;
+    final List<UUID> parents = new ArrayList<>();
+    final List<UUID> followsFrom = new ArrayList<>();
+    final Map<String, String> tags = new LinkedHashMap<>();
+    final List<String> trailing = new ArrayList<>();
+    for (; ; ) {
+      s.skipSpace();
+      if (s.atEnd()) {
+        break;
+      }
+      final String key = s.atom(true);
+      if (!s.peek('=')) {
+        trailing.add(key);
+        continue;
+      }
+      if (!trailing.isEmpty()) {
+        throw new IllegalArgumentException("Tag after timestamp: " + key);
+      }
+      ++s.pos;
+      final String value = s.atom(false);
+      switch (key) {
+        case "source":
+          source = value;
+          break;
+        case "traceId":
+          traceId = uuid(key, value);
+          break;
+        case "spanId":
+          spanId = uuid(key, value);
+          break;
+        case "parent":
+          parents.add(uuid(key, value));
+          break;
+        case "followsFrom":
+          followsFrom.add(uuid(key, value));
+          break;
+        default:
+          if (key.isEmpty() || value.isEmpty()) {
+            throw new IllegalArgumentException("Blank tag: " + key + "=" + value);
+          }
+          tags.put(key, value);
+      }
+    }
+    if (source == null || traceId == null || spanId == null) {
+      throw new IllegalArgumentException("Missing source, traceId or spanId");
+    }
+    if (trailing.size() != 2) {
+      throw new IllegalArgumentException("Expected start and duration, got " + trailing);
+    }
+    final long start = number(trailing.get(0));
+    final long duration = number(trailing.get(1));
+    if (start <= 0 || duration < 0) {
+      throw new IllegalArgumentException("Invalid start or duration: " + trailing);
+    }
+    return new SpanLine(
+        name, source, traceId, spanId, parents, followsFrom, tags, start, duration);
+  }
+
+  /**
+   * Parses a span log line, checking that it's a well-formed JSON object with a trace ID, a span
+   * ID and a list of logs.
+   *
+   * @param line The line without its line break
+   * @return The trace and span ID
+   */
+  static UUID[] parseSpanLog(final String line) {
+    if (!line.startsWith("{") || !line.endsWith("}")) {
+      throw new IllegalArgumentException("Not a JSON object");
+    }
+    int depth = 0;
+    boolean inString = false;
+    for (int i = 0; i < line.length(); ++i) {
+      final char c = line.charAt(i);
+      if (inString) {
+        if (c == '\\') {
+          ++i;
+        } else if (c == '"') {
+          inString = false;
+        } else if (c < ' ') {
+          throw new IllegalArgumentException("Unescaped control character at " + i);
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        ++depth;
+      } else if (c == '}' || c == ']') {
+        if (--depth == 0 && i != line.length() - 1) {
+          throw new IllegalArgumentException("Trailing characters after " + i);
+        }
+      }
+    }
+    if (depth != 0 || inString) {
+      throw new IllegalArgumentException("Unbalanced JSON");
+    }
+    if (!line.contains("\"logs\":[")) {
+      throw new IllegalArgumentException("No logs");
+    }
+    return new UUID[] {
+      uuid("traceId", field(line, "traceId")), uuid("spanId", field(line, "spanId"))
+    };
+  }
+
+  private static String field(final String json, final String name) {
+    final String prefix = "\"" + name + "\":\"";
+    final int start = json.indexOf(prefix);
+    if (start < 0) {
+      throw new IllegalArgumentException("No " + name);
+    }
+    final int from = start + prefix.length();
+    final int end = json.indexOf('"', from);
+    return json.substring(from, end);
+  }
+
+  private static UUID uuid(final String key, final String value) {
+    // UUID.fromString accepts short groups, so check the canonical form as well
+    if (value.length() != 36) {
+      throw new IllegalArgumentException("Invalid " + key + ": " + value);
+    }
+    try {
+      return UUID.fromString(value);
+    } catch (final IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid " + key + ": " + value, e);
+    }
+  }
+
+  private static long number(final String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (final NumberFormatException e) {
+      throw new IllegalArgumentException("Not a number: " + value, e);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.Pair;
+import com.wavefront.sdk.common.WavefrontSender;
+import com.wavefront.sdk.entities.histograms.HistogramGranularity;
+import com.wavefront.sdk.entities.tracing.SpanLog;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link WavefrontSender} that does nothing at all, for measuring the exporter's own costs
+ * without those of a fake sender that records or boxes its arguments.
+ */
+final class NullSender implements WavefrontSender {
+  @Override
+  public void sendMetric(
+      final String name,
+      final double value,
+      final Long timestamp,
+      final String source,
+      final Map<String, String> tags) {}
+
+  @Override
+  public void sendDistribution(
+      final String name,
+      final List<Pair<Double, Integer>> centroids,
+      final Set<HistogramGranularity> histogramGranularities,
+      final Long timestamp,
+      final String source,
+      final Map<String, String> tags) {}
+
+  @Override
+  public void sendSpan(
+      final String name,
+      final long startMillis,
+      final long durationMillis,
+      final String source,
+      final UUID traceId,
+      final UUID spanId,
+      final List<UUID> parents,
+      final List<UUID> followsFrom,
+      final List<Pair<String, String>> tags,
+      final List<SpanLog> spanLogs) {}
+
+  @Override
+  public void flush() {}
+
+  @Override
+  public int getFailureCount() {
+    return 0;
+  }
+
+  // Not declared by every SDK version, hence no @Override
+  public String getClientId() {
+    return "null";
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,88 @@
+package com.wavefront.opentelemetry.exporter;
+
+import com.wavefront.sdk.common.WavefrontSender;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fake {@link WavefrontSender} that records the arguments of every call instead of sending
+ * anything. Sends can be delayed or made to fail to simulate a slow or broken backend.
+ */
+class RecordingSender {
+  final List<Object[]> spans = new CopyOnWriteArrayList<>();
+
+  final List<Object[]> metrics = new CopyOnWriteArrayList<>();
+
+  final List<Object[]> distributions = new CopyOnWriteArrayList<>();
+
+  final AtomicInteger flushes = new AtomicInteger();
+
+  volatile long sendDelayMillis;
+
+  volatile int failAfter = Integer.MAX_VALUE;
+
+  final WavefrontSender sender =
+      (WavefrontSender)
+          Proxy.newProxyInstance(
+              WavefrontSender.class.getClassLoader(),
+              new Class<?>[] {WavefrontSender.class},
+              (proxy, method, args) -> {
+                switch (method.getName()) {
+                  case "sendSpan":
+                    if (sendDelayMillis > 0) {
+                      Thread.sleep(sendDelayMillis);
+                    }
+                    if (spans.size() >= failAfter) {
+                      throw new IOException("Simulated send failure");
+                    }
+                    // The exporter reuses the tag list for the next span
+                    args[8] = new ArrayList<>((List<?>) args[8]);
+                    spans.add(args);
+                    return null;
+                  case "sendMetric":
+                  case "sendDeltaCounter":
+                    metrics.add(args);
+                    return null;
+                  case "sendDistribution":
+                    distributions.add(args);
+                    return null;
+                  case "flush":
+                    flushes.incrementAndGet();
+                    return null;
+                  case "getFailureCount":
+                    return 0;
+                  case "getClientId":
+                    return "recording";
+                  case "hashCode":
+                    return System.identityHashCode(proxy);
+                  case "equals":
+                    return proxy == args[0];
+                  case "toString":
+                    return "RecordingSender";
+                  default:
+                    return null;
+                }
+              });
+
+  /**
+   * Waits until at least the given number of spans have been recorded.
+   *
+   * @param count The number of spans to wait for
+   * @param timeoutMillis The maximum time to wait
+   * @return True if the spans arrived in time
+   */
+  boolean awaitSpans(final int count, final long timeoutMillis) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (spans.size() < count) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(5);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,262 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestAdaptiveFlusher {
+  private final Workers workers = Workers.dedicated();
+
+  /** Records the number of spans in each send. The first sends can be made to fail. */
+  private static class CountingTransport implements SpanTransport {
+    final List<Integer> sent = new ArrayList<>();
+
+    int failures;
+
+    @Override
+    public synchronized void send(final EncodedBatch spans, final EncodedBatch spanLogs)
+        throws IOException {
+      if (failures > 0) {
+        --failures;
+        throw new IOException("Simulated send failure");
+      }
+      sent.add(spans.count());
+    }
+
+    synchronized List<Integer> getSent() {
+      return new ArrayList<>(sent);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private static void awaitBatchSpans(final AdaptiveFlusher flusher, final int expected)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (flusher.getBatchSpans() != expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(expected, flusher.getBatchSpans());
+  }
+
+  @Test
+  public void testFlushesOnBatchSize() throws Exception {
+    final CountDownLatch flushed = new CountDownLatch(1);
+    final AdaptiveFlusher flusher =
+        new AdaptiveFlusher(flushed::countDown, 10, 100, Long.MAX_VALUE, 60000, 1000, workers);
+    try {
+      flusher.added(9, 0);
+      assertFalse(flushed.await(100, TimeUnit.MILLISECONDS));
+      flusher.added(1, 0);
+      assertTrue(flushed.await(10, TimeUnit.SECONDS));
+    } finally {
+      flusher.close();
+    }
+  }
+
+  @Test
+  public void testFlushesOnBytes() throws Exception {
+    final CountDownLatch flushed = new CountDownLatch(1);
+    final AdaptiveFlusher flusher =
+        new AdaptiveFlusher(flushed::countDown, 10, 100, 1000, 60000, 1000, workers);
+    try {
+      flusher.added(1, 1000);
+      assertTrue(flushed.await(10, TimeUnit.SECONDS));
+    } finally {
+      flusher.close();
+    }
+  }
+
+  @Test
+  public void testFlushesOnLatency() throws Exception {
+    final CountDownLatch flushed = new CountDownLatch(1);
+    final AdaptiveFlusher flusher =
+        new AdaptiveFlusher(flushed::countDown, 1000, 10000, Long.MAX_VALUE, 50, 1000, workers);
+    try {
+      final long start = System.nanoTime();
+      flusher.added(1, 0);
+      assertTrue(flushed.await(10, TimeUnit.SECONDS));
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+      // The flush time is recorded after the action returns
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (flusher.getFlushNanos().getCount() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals(1, flusher.getFlushNanos().getCount());
+    } finally {
+      flusher.close();
+    }
+  }
+
+  @Test
+  public void testAdaptsBatchSize() throws Exception {
+    final AtomicReference<AdaptiveFlusher> ref = new AtomicReference<>();
+    final AtomicInteger flushes = new AtomicInteger();
+    final AdaptiveFlusher flusher =
+        new AdaptiveFlusher(
+            () -> {
+              switch (flushes.incrementAndGet()) {
+                case 1:
+                  // More arrives while sending than was sent, so the batch size doubles
+                  ref.get().added(20, 0);
+                  break;
+                case 2:
+                  ref.get().added(40, 0);
+                  break;
+                default:
+                  // A slow send halves it again
+                  try {
+                    Thread.sleep(50);
+                  } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                  }
+                  break;
+              }
+            },
+            10,
+            100,
+            Long.MAX_VALUE,
+            60000,
+            20,
+            workers);
+    ref.set(flusher);
+    try {
+      assertEquals(10, flusher.getBatchSpans());
+      flusher.added(10, 0);
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (flushes.get() < 3 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(5);
+      }
+      assertEquals(3, flushes.get());
+      awaitBatchSpans(flusher, 20);
+    } finally {
+      flusher.close();
+    }
+  }
+
+  @Test
+  public void testCloseFlushesPending() {
+    final AtomicInteger flushes = new AtomicInteger();
+    final AdaptiveFlusher flusher =
+        new AdaptiveFlusher(
+            flushes::incrementAndGet, 10, 100, Long.MAX_VALUE, 60000, 1000, workers);
+    flusher.added(1, 0);
+    assertEquals(0, flushes.get());
+    flusher.close();
+    assertEquals(1, flushes.get());
+  }
+
+  @Test
+  public void testExporterCombinesBatches() throws Exception {
+    final CountingTransport t = new CountingTransport();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc")
+                .adaptiveFlush(true)
+                .flushMinBatchSpans(25)
+                .flushMaxLatencyMillis(60000));
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, i * 10)));
+    }
+    // The third batch pushed the backlog past the batch size, so all three go out together
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (t.getSent().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, t.getSent().size());
+    assertEquals(30, (int) t.getSent().get(0));
+
+    exporter.export(TestSpans.batch(5, 100));
+    exporter.shutdown();
+    assertEquals(2, t.getSent().size());
+    assertEquals(5, (int) t.getSent().get(1));
+    assertEquals(35, exporter.getMetrics().getSpansExported());
+  }
+
+  @Test
+  public void testExporterRetriesFailedFlush() throws Exception {
+    final CountingTransport t = new CountingTransport();
+    t.failures = 2;
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .adaptiveFlush(true)
+                .flushMinBatchSpans(10)
+                .retryInitialBackoffMillis(10));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    // The spans of the failed flushes are put back and flushed again after a backoff
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (t.getSent().isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, t.getSent().size());
+    assertEquals(10, (int) t.getSent().get(0));
+    exporter.shutdown();
+    assertEquals(0, exporter.getMetrics().getSpansFailed());
+  }
+
+  @Test
+  public void testExporterCountsDroppedFlush() {
+    final CountingTransport t = new CountingTransport();
+    t.failures = Integer.MAX_VALUE;
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .adaptiveFlush(true)
+                .flushMinBatchSpans(10)
+                .flushMaxLatencyMillis(60000)
+                .retryInitialBackoffMillis(60000));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    // Spans that can't be sent by the time the exporter shuts down are counted as failed
+    exporter.shutdown();
+    assertTrue(t.getSent().isEmpty());
+    assertEquals(10, exporter.getMetrics().getSpansFailed());
+  }
+
+  @Test
+  public void testExporterDropsFailedFlushWhenFull() throws Exception {
+    final CountingTransport t = new CountingTransport();
+    t.failures = Integer.MAX_VALUE;
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .adaptiveFlush(true)
+                .flushMaxBatchBytes(1)
+                .retryInitialBackoffMillis(60000));
+    // Far more than the pending limit, so the failed flush isn't kept for retrying
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (exporter.getMetrics().getSpansFailed() == 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(10, exporter.getMetrics().getSpansFailed());
+    exporter.shutdown();
+    assertEquals(10, exporter.getMetrics().getSpansFailed());
+  }
+}
@@ -0,0 +1,172 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter.ResultCode;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestAsyncSpanDispatcher {
+  private WavefrontSpanExporter create(
+      final RecordingSender rs, final int queueSize, final OverflowPolicy policy) {
+    return new WavefrontSpanExporter(
+        rs.sender,
+        WavefrontSpanExporter.Builder.newBuilder()
+            .asyncQueueSize(queueSize)
+            .overflowPolicy(policy)
+            .blockTimeoutMillis(50));
+  }
+
+  @Test
+  public void testRingBuffer() {
+    final SpanRingBuffer<Integer> rb = new SpanRingBuffer<>(3);
+    assertEquals(4, rb.capacity());
+    for (int i = 0; i < 4; ++i) {
+      assertTrue(rb.offer(i));
+    }
+    assertEquals(false, rb.offer(4));
+    assertEquals(4, rb.size());
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(Integer.valueOf(i), rb.poll());
+    }
+    assertNull(rb.poll());
+    assertEquals(0, rb.size());
+  }
+
+  @Test
+  public void testRingBufferConcurrent() throws InterruptedException {
+    final SpanRingBuffer<Integer> rb = new SpanRingBuffer<>(64);
+    final int perProducer = 20000;
+    final int producers = 4;
+    final Set<Integer> seen = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    final CountDownLatch done = new CountDownLatch(producers * 2);
+    // Assertions fail on the test thread, since a failure on a consumer thread would only end it
+    final AtomicReference<String> failure = new AtomicReference<>();
+    for (int p = 0; p < producers; ++p) {
+      final int base = p * perProducer;
+      new Thread(
+              () -> {
+                for (int i = 0; i < perProducer; ++i) {
+                  while (!rb.offer(base + i)) {
+                    Thread.yield();
+                  }
+                }
+                done.countDown();
+              })
+          .start();
+      new Thread(
+              () -> {
+                for (int i = 0; i < perProducer; ) {
+                  final Integer v = rb.poll();
+                  if (v == null) {
+                    Thread.yield();
+                    continue;
+                  }
+                  if (!seen.add(v)) {
+                    failure.compareAndSet(null, "Polled twice: " + v);
+                  }
+                  ++i;
+                }
+                done.countDown();
+              })
+          .start();
+    }
+    assertTrue("Producers or consumers stalled", done.await(30, TimeUnit.SECONDS));
+    assertNull(failure.get());
+    assertEquals(producers * perProducer, seen.size());
+  }
+
+  @Test
+  public void testAsyncExport() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter e = create(rs, 1024, OverflowPolicy.DROP_NEWEST);
+    assertEquals(ResultCode.SUCCESS, e.export(TestSpans.batch(100, 1)));
+    assertTrue(rs.awaitSpans(100, 10000));
+    e.shutdown();
+    assertEquals(0, e.getDroppedSpanCount());
+  }
+
+  @Test
+  public void testDropNewest() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    rs.sendDelayMillis = 20;
+    final WavefrontSpanExporter e = create(rs, 8, OverflowPolicy.DROP_NEWEST);
+    final long start = System.currentTimeMillis();
+    e.export(TestSpans.batch(100, 1));
+    assertTrue("export() must not wait for the sender", System.currentTimeMillis() - start < 1000);
+    assertTrue(e.getDroppedSpanCount() > 0);
+    e.shutdown();
+    assertEquals(100, rs.spans.size() + e.getDroppedSpanCount());
+  }
+
+  @Test
+  public void testDrainsBeforeDropping() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter e = create(rs, 8, OverflowPolicy.DROP_NEWEST);
+    final List<SpanData> spans = TestSpans.batch(100, 1);
+    final AtomicBoolean drained = new AtomicBoolean();
+    // Waits part way through the batch for the first span to be sent
+    final List<SpanData> batch =
+        new AbstractList<SpanData>() {
+          @Override
+          public SpanData get(final int index) {
+            if (index == 20) {
+              try {
+                drained.set(rs.awaitSpans(1, 5000));
+              } catch (final InterruptedException ex) {
+                Thread.currentThread().interrupt();
+              }
+            }
+            return spans.get(index);
+          }
+
+          @Override
+          public int size() {
+            return spans.size();
+          }
+        };
+    e.export(batch);
+    assertTrue("Nothing was sent until the whole batch had been queued", drained.get());
+    e.shutdown();
+    assertEquals(100, rs.spans.size() + e.getDroppedSpanCount());
+  }
+
+  @Test
+  public void testDropOldest() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    rs.sendDelayMillis = 20;
+    final WavefrontSpanExporter e = create(rs, 8, OverflowPolicy.DROP_OLDEST);
+    e.export(TestSpans.batch(100, 1));
+    e.shutdown();
+    assertEquals(100, rs.spans.size() + e.getDroppedSpanCount());
+    // The newest span always makes it through
+    final Set<Object> names = new HashSet<>();
+    for (final Object[] args : rs.spans) {
+      names.add(args[0]);
+    }
+    assertTrue(names.contains("span-100"));
+  }
+
+  @Test
+  public void testBlock() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    rs.sendDelayMillis = 5;
+    final WavefrontSpanExporter e = create(rs, 8, OverflowPolicy.BLOCK);
+    e.export(TestSpans.batch(100, 1));
+    e.shutdown();
+    assertEquals(100, rs.spans.size() + e.getDroppedSpanCount());
+    assertTrue(e.getDroppedSpanCount() > 0);
+  }
+}
@@ -0,0 +1,272 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDirectIngestionSpanTransport {
+  private final ByteBufferPool pool = new ByteBufferPool(256, 16);
+
+  private HttpServer server;
+
+  private final List<Request> requests = new ArrayList<>();
+
+  private volatile int status = 202;
+
+  // Requests after this many are answered with an error
+  private volatile int failAfter = Integer.MAX_VALUE;
+
+  // Requests for this format are answered with an error
+  private volatile String failQuery;
+
+  /** What the stand-in server received in one request. */
+  private static final class Request {
+    final String query;
+
+    final String encoding;
+
+    final int bodySize;
+
+    final String content;
+
+    Request(final String query, final String encoding, final int bodySize, final String content) {
+      this.query = query;
+      this.encoding = encoding;
+      this.bodySize = bodySize;
+      this.content = content;
+    }
+
+    int lines() {
+      return content.isEmpty() ? 0 : content.split("\n").length;
+    }
+  }
+
+  private static byte[] readAll(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[4096];
+    int n;
+    while ((n = in.read(buf)) >= 0) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private void handle(final HttpExchange exchange) throws IOException {
+    final byte[] body = readAll(exchange.getRequestBody());
+    final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    final byte[] content =
+        "gzip".equals(encoding)
+            ? readAll(new GZIPInputStream(new ByteArrayInputStream(body)))
+            : body;
+    final int code;
+    synchronized (requests) {
+      final String query = exchange.getRequestURI().getQuery();
+      code = requests.size() < failAfter && !query.equals(failQuery) ? status : 503;
+      requests.add(
+          new Request(
+              exchange.getRequestURI().getQuery(),
+              encoding,
+              body.length,
+              new String(content, StandardCharsets.UTF_8)));
+    }
+    exchange.sendResponseHeaders(code, -1);
+    exchange.close();
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/report", this::handle);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  private String url() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  private EncodedBatch lines(final int count) {
+    final EncodedBatch b = new EncodedBatch(pool);
+    for (int i = 0; i < count; ++i) {
+      b.putAscii("getOrder source=host traceId=" + i * 7919 + " spanId=" + i + " 1 2\n");
+      b.incrementCount();
+    }
+    return b;
+  }
+
+  private List<Request> getRequests() {
+    synchronized (requests) {
+      return new ArrayList<>(requests);
+    }
+  }
+
+  @Test
+  public void testGzipEncoder() throws IOException {
+    // Start small so the output buffer has to grow
+    final GzipEncoder gzip = new GzipEncoder(Deflater.DEFAULT_COMPRESSION, 16);
+    for (int round = 0; round < 2; ++round) {
+      final StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 1000 * (round + 1); ++i) {
+        sb.append("line ").append(i * 31 + round).append('\n');
+      }
+      final byte[] input = ("xx" + sb + "yy").getBytes(StandardCharsets.US_ASCII);
+      final int n = gzip.encode(input, 2, input.length - 4);
+      final byte[] compressed = new byte[n];
+      System.arraycopy(gzip.getOutput(), 0, compressed, 0, n);
+      assertArrayEquals(
+          sb.toString().getBytes(StandardCharsets.US_ASCII),
+          readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+    gzip.end();
+  }
+
+  @Test
+  public void testCompressedPost() throws IOException {
+    final DirectIngestionSpanTransport t = new DirectIngestionSpanTransport(url(), "token");
+    final EncodedBatch spans = lines(1000);
+    final EncodedBatch logs = lines(10);
+    try {
+      t.send(spans, logs);
+    } finally {
+      spans.release();
+      logs.release();
+    }
+    final List<Request> r = getRequests();
+    assertEquals(2, r.size());
+    assertEquals("f=trace", r.get(0).query);
+    assertEquals("gzip", r.get(0).encoding);
+    assertEquals(1000, r.get(0).lines());
+    assertEquals("f=spanLogs", r.get(1).query);
+    assertEquals(10, r.get(1).lines());
+    assertTrue(t.getBytesOut() * 4 < t.getBytesIn());
+    t.close();
+  }
+
+  @Test
+  public void testSplitsLargePayloads() throws IOException {
+    final DirectIngestionSpanTransport t =
+        new DirectIngestionSpanTransport(url(), "token", Compression.GZIP, 2000);
+    final EncodedBatch spans = lines(2000);
+    try {
+      t.send(spans, new EncodedBatch(pool));
+    } finally {
+      spans.release();
+    }
+    final List<Request> r = getRequests();
+    assertTrue(r.size() > 1);
+    // Split into parts sized from the compression ratio rather than by halving repeatedly
+    assertTrue("Too many requests: " + r.size(), r.size() <= 2 * t.getBytesOut() / 2000 + 1);
+    int total = 0;
+    for (final Request req : r) {
+      assertTrue(req.bodySize <= 2000);
+      assertTrue(req.content.endsWith("\n"));
+      total += req.lines();
+    }
+    assertEquals(2000, total);
+  }
+
+  @Test
+  public void testPartialFailure() throws IOException {
+    failAfter = 2;
+    final DirectIngestionSpanTransport t =
+        new DirectIngestionSpanTransport(url(), "token", Compression.NONE, 1000);
+    final EncodedBatch spans = lines(100);
+    final int size = spans.size();
+    try {
+      t.send(spans, new EncodedBatch(pool));
+      fail("Expected the send to fail");
+    } catch (final IOException e) {
+      // Only the lines that weren't posted are left to retry
+      final List<Request> r = getRequests();
+      assertEquals(3, r.size());
+      final int posted = r.get(0).lines() + r.get(1).lines();
+      assertEquals(100 - posted, spans.count());
+      assertEquals(size - r.get(0).bodySize - r.get(1).bodySize, spans.size());
+      final ByteBuffer rest = ByteBuffer.allocate(spans.size());
+      spans.copyTo(rest);
+      assertTrue(new String(rest.array(), StandardCharsets.UTF_8).startsWith(r.get(2).content));
+    } finally {
+      spans.release();
+    }
+  }
+
+  @Test
+  public void testSpanLogFailure() throws IOException {
+    failQuery = "f=spanLogs";
+    final DirectIngestionSpanTransport t = new DirectIngestionSpanTransport(url(), "token");
+    final EncodedBatch spans = lines(10);
+    final EncodedBatch logs = lines(2);
+    try {
+      t.send(spans, logs);
+      fail("Expected the send to fail");
+    } catch (final IOException e) {
+      // The spans were delivered, so only the span logs are left to retry
+      assertEquals(2, getRequests().size());
+      assertTrue(spans.isEmpty());
+      assertEquals(0, spans.count());
+      assertEquals(2, logs.count());
+    } finally {
+      spans.release();
+      logs.release();
+    }
+  }
+
+  @Test
+  public void testUncompressed() throws IOException {
+    final DirectIngestionSpanTransport t =
+        new DirectIngestionSpanTransport(url(), "token", Compression.NONE, 1000);
+    final EncodedBatch spans = lines(100);
+    final int size = spans.size();
+    try {
+      t.send(spans, new EncodedBatch(pool));
+    } finally {
+      spans.release();
+    }
+    int bytes = 0;
+    for (final Request req : getRequests()) {
+      assertNull(req.encoding);
+      assertTrue(req.bodySize <= 1000);
+      bytes += req.bodySize;
+    }
+    assertEquals(size, bytes);
+    assertEquals(size, t.getBytesOut());
+  }
+
+  @Test
+  public void testServerError() throws IOException {
+    status = 500;
+    final DirectIngestionSpanTransport t = new DirectIngestionSpanTransport(url(), "token");
+    final EncodedBatch spans = lines(1);
+    try {
+      t.send(spans, new EncodedBatch(pool));
+      fail("Expected the send to fail");
+    } catch (final IOException e) {
+      assertTrue(e.getMessage().contains("500"));
+    } finally {
+      spans.release();
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+public class TestExporterMetrics {
+  @Test
+  public void testBuckets() {
+    // Every value must land in a bucket whose upper bound is at least the value and at most
+    // 12.5% above it
+    long previous = -1;
+    for (long v = 0; v < 1 << 20; v += 1 + v / 64) {
+      final int b = ConcurrentHistogram.bucket(v);
+      final long upper = ConcurrentHistogram.upperBound(b);
+      assertTrue(upper >= v);
+      assertTrue(upper <= v + v / 8 + 1);
+      assertTrue(b >= previous);
+      previous = b;
+    }
+    // The largest values must still fit
+    final ConcurrentHistogram h = new ConcurrentHistogram();
+    h.record(Long.MAX_VALUE);
+    assertEquals(Long.MAX_VALUE, h.snapshot().getPercentile(50));
+  }
+
+  @Test
+  public void testPercentiles() {
+    final ConcurrentHistogram h = new ConcurrentHistogram();
+    for (int i = 1; i <= 1000; ++i) {
+      h.record(i * 1000L);
+    }
+    final ConcurrentHistogram.Snapshot s = h.snapshot();
+    assertEquals(1000, s.getCount());
+    assertEquals(1000000, s.getMax());
+    assertEquals(500500.0, s.getMean(), 0.001);
+    final long p50 = s.getPercentile(50);
+    assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125);
+    final long p99 = s.getPercentile(99);
+    assertTrue(p99 >= 990000 && p99 <= 1000000);
+    assertEquals(1000000, s.getPercentile(100));
+    assertEquals(0, new ConcurrentHistogram().snapshot().getPercentile(99));
+  }
+
+  @Test
+  public void testSince() {
+    final ConcurrentHistogram h = new ConcurrentHistogram();
+    h.record(1000);
+    h.record(5000);
+    final ConcurrentHistogram.Snapshot first = h.snapshot();
+    h.record(100);
+    h.record(200);
+    final ConcurrentHistogram.Snapshot interval = h.snapshot().since(first);
+    assertEquals(2, interval.getCount());
+    assertEquals(300, interval.getSum());
+    assertEquals(150.0, interval.getMean(), 0.001);
+    // The larger values recorded earlier don't count towards the interval's maximum
+    assertTrue(interval.getMax() >= 200 && interval.getMax() <= 200 * 1.125);
+    assertTrue(interval.getPercentile(99) <= 200 * 1.125);
+    h.record(9000);
+    assertEquals(9000, h.snapshot().since(first).getMax());
+    assertEquals(0, first.since(first).getCount());
+    assertEquals(0, first.since(first).getMax());
+  }
+
+  @Test
+  public void testReportPerInterval() throws IOException {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            new RecordingSender().sender, WavefrontSpanExporter.Builder.newBuilder());
+    final WavefrontMetricsSink sink = new WavefrontMetricsSink(rs.sender, "host", "a", "s", -1);
+    exporter.export(TestSpans.batch(30, 1));
+    sink.report(exporter.getMetrics());
+    exporter.export(TestSpans.batch(10, 31));
+    sink.report(exporter.getMetrics());
+    exporter.shutdown();
+    final List<Double> maxima = new ArrayList<>();
+    for (final Object[] m : rs.metrics) {
+      if (m[0].equals(WavefrontMetricsSink.PREFIX + "batch.size.max")) {
+        maxima.add((Double) m[1]);
+      }
+    }
+    // Each report covers only the batches exported since the previous one
+    assertEquals(Arrays.asList(30.0, 10.0), maxima);
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    final ConcurrentHistogram h = new ConcurrentHistogram();
+    final Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; ++i) {
+      threads[i] =
+          new Thread(
+              () -> {
+                for (int j = 0; j < 100000; ++j) {
+                  h.record(j);
+                }
+              });
+      threads[i].start();
+    }
+    for (final Thread t : threads) {
+      t.join();
+    }
+    final ConcurrentHistogram.Snapshot s = h.snapshot();
+    assertEquals(800000, s.getCount());
+    assertEquals(8L * 99999 * 100000 / 2, s.getSum());
+    assertEquals(99999, s.getMax());
+  }
+
+  @Test
+  public void testExportMetrics() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender, WavefrontSpanExporter.Builder.newBuilder().host("host"));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(30, 11)));
+    rs.failAfter = 40;
+    assertEquals(
+        SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(TestSpans.batch(5, 41)));
+
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(40, s.getSpansExported());
+    assertEquals(5, s.getSpansFailed());
+    assertEquals(2, s.getBatchesExported());
+    assertEquals(1, s.getBatchesFailed());
+    assertEquals(3, s.getBatchSize().getCount());
+    assertEquals(30, s.getBatchSize().getMax());
+    assertEquals(3, s.getExportNanos().getCount());
+    assertEquals(3, s.getConversionNanos().getCount());
+    assertEquals(3, s.getSendNanos().getCount());
+    assertTrue(s.getExportNanos().getSum() > 0);
+  }
+
+  @Test
+  public void testReportToWavefront() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc")
+                .selfMetricsIntervalSeconds(3600));
+    exporter.export(TestSpans.batch(10, 1));
+    // Shutting down reports one last time
+    exporter.shutdown();
+    final Map<String, Object[]> byName = new HashMap<>();
+    for (final Object[] m : rs.metrics) {
+      byName.put((String) m[0], m);
+    }
+    final Object[] exported = byName.get(WavefrontMetricsSink.PREFIX + "spans.exported");
+    assertEquals(10.0, (Double) exported[1], 0.0);
+    assertEquals("host", exported[3]);
+    @SuppressWarnings("unchecked")
+    final Map<String, String> tags = (Map<String, String>) exported[4];
+    assertEquals("app", tags.get("application"));
+    assertEquals("svc", tags.get("service"));
+    assertTrue(byName.containsKey(WavefrontMetricsSink.PREFIX + "send.time.p99"));
+    assertTrue(byName.containsKey(WavefrontMetricsSink.PREFIX + "batch.size.max"));
+    // Every value is reported by name, and components that aren't enabled report nothing
+    for (final String name : exporter.getMetrics().getValues().keySet()) {
+      assertTrue(name, byName.containsKey(WavefrontMetricsSink.PREFIX + name));
+    }
+    assertTrue(byName.containsKey(WavefrontMetricsSink.PREFIX + "spanname.cache.hits"));
+    assertFalse(byName.containsKey(WavefrontMetricsSink.PREFIX + "sampler.traces.kept"));
+  }
+
+  @Test
+  public void testCustomSink() {
+    final AtomicReference<ExporterMetrics.Snapshot> reported = new AtomicReference<>();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            new RecordingSender().sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .selfMetricsIntervalSeconds(3600)
+                .metricsSink(reported::set));
+    exporter.export(TestSpans.batch(7, 1));
+    exporter.shutdown();
+    assertEquals(7, reported.get().getSpansExported());
+  }
+
+  @Test
+  public void testContention() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    rs.sendDelayMillis = 20;
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(rs.sender, WavefrontSpanExporter.Builder.newBuilder());
+    final Thread other = new Thread(() -> exporter.export(TestSpans.batch(5, 1)));
+    other.start();
+    exporter.export(TestSpans.batch(5, 6));
+    other.join();
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    // Both batches take 100ms to send, so they overlap
+    assertEquals(1, s.getExportsContended());
+    assertEquals(-1, s.getShard());
+  }
+}
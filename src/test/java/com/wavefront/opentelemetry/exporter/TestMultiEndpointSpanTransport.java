@@ -0,0 +1,327 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.TraceId;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class TestMultiEndpointSpanTransport {
+  private static final Pattern TRACE_ID = Pattern.compile(" traceId=([0-9a-f-]+)");
+
+  private final ByteBufferPool pool = new ByteBufferPool(64, 16);
+
+  /** Records the lines it's sent, fails on demand and can be made to block. */
+  private static class FakeTransport implements SpanTransport {
+    final List<String> lines = new ArrayList<>();
+
+    volatile boolean down;
+
+    volatile boolean broken;
+
+    volatile CountDownLatch blocker;
+
+    int calls;
+
+    @Override
+    public void send(final EncodedBatch spans, final EncodedBatch spanLogs) throws IOException {
+      synchronized (this) {
+        ++calls;
+      }
+      final CountDownLatch b = blocker;
+      if (b != null) {
+        try {
+          b.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (down) {
+        throw new IOException("Endpoint is down");
+      }
+      if (broken) {
+        throw new IllegalStateException("Endpoint is broken");
+      }
+      final ByteBuffer bb = ByteBuffer.allocate(spans.size());
+      spans.copyTo(bb);
+      final String s = new String(bb.array(), StandardCharsets.UTF_8);
+      synchronized (this) {
+        lines.addAll(Arrays.asList(s.split("\n")));
+      }
+    }
+
+    synchronized int getCalls() {
+      return calls;
+    }
+
+    synchronized Set<String> traceIds() {
+      final Set<String> result = new HashSet<>();
+      for (final String line : lines) {
+        final Matcher m = TRACE_ID.matcher(line);
+        if (m.find()) {
+          result.add(m.group(1));
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private static List<FakeTransport> fakes(final int n) {
+    final List<FakeTransport> result = new ArrayList<>();
+    for (int i = 0; i < n; ++i) {
+      result.add(new FakeTransport());
+    }
+    return result;
+  }
+
+  private EncodedBatch batch(final String line) {
+    final EncodedBatch b = new EncodedBatch(pool);
+    b.putAscii(line + "\n");
+    b.incrementCount();
+    return b;
+  }
+
+  private void send(final MultiEndpointSpanTransport t, final int route) throws IOException {
+    final EncodedBatch lines = batch("span");
+    final EncodedBatch logs = new EncodedBatch(pool);
+    try {
+      t.send(route, lines, logs);
+    } finally {
+      lines.release();
+      logs.release();
+    }
+  }
+
+  @Test
+  public void testConsistentHashing() {
+    final MultiEndpointSpanTransport three =
+        new MultiEndpointSpanTransport(
+            fakes(3), Arrays.asList("a", "b", "c"), LoadBalancing.TRACE_ID, 3, 1000);
+    final MultiEndpointSpanTransport two =
+        new MultiEndpointSpanTransport(
+            fakes(2), Arrays.asList("b", "c"), LoadBalancing.TRACE_ID, 3, 1000);
+    final int[] counts = new int[3];
+    for (int i = 0; i < 3000; ++i) {
+      final TraceId id = new TraceId(i * 31L, i);
+      final int route = three.route(id);
+      assertEquals(route, three.route(new TraceId(i * 31L, i)));
+      ++counts[route];
+      if (route > 0) {
+        // Traces that didn't belong to the removed endpoint stay where they were
+        assertEquals(route - 1, two.route(id));
+      }
+    }
+    for (final int count : counts) {
+      assertTrue("Uneven spread: " + Arrays.toString(counts), count > 700);
+    }
+  }
+
+  @Test
+  public void testCircuitBreaker() throws Exception {
+    final List<FakeTransport> f = fakes(3);
+    final MultiEndpointSpanTransport t =
+        new MultiEndpointSpanTransport(
+            f, Arrays.asList("a", "b", "c"), LoadBalancing.TRACE_ID, 2, 500);
+    f.get(0).down = true;
+    final FakeTransport next = f.get(t.getFailoverOrder(0)[0]);
+
+    // Endpoint 0 fails, so its batches go to the next one in line
+    send(t, 0);
+    assertEquals(1, next.lines.size());
+    assertEquals(3, t.getHealthyEndpoints());
+    send(t, 0);
+    assertEquals(2, t.getHealthyEndpoints());
+    assertEquals(2, f.get(0).getCalls());
+    assertEquals(2, t.getFailovers());
+
+    // Out of rotation, so it's no longer tried
+    send(t, 0);
+    assertEquals(2, f.get(0).getCalls());
+    assertEquals(3, next.lines.size());
+
+    // Once the retry interval has passed, a batch is let through and puts it back in rotation
+    f.get(0).down = false;
+    Thread.sleep(600);
+    send(t, 0);
+    assertEquals(3, f.get(0).getCalls());
+    assertEquals(1, f.get(0).lines.size());
+    assertEquals(3, t.getHealthyEndpoints());
+  }
+
+  @Test
+  public void testProbeThrowing() throws Exception {
+    final List<FakeTransport> f = fakes(2);
+    final MultiEndpointSpanTransport t =
+        new MultiEndpointSpanTransport(
+            f, Arrays.asList("a", "b"), LoadBalancing.TRACE_ID, 1, 100);
+    f.get(0).down = true;
+    send(t, 0);
+    assertEquals(1, t.getHealthyEndpoints());
+
+    // The probe throws something other than an IOException
+    f.get(0).down = false;
+    f.get(0).broken = true;
+    Thread.sleep(150);
+    try {
+      send(t, 0);
+      fail("Expected the probe to throw");
+    } catch (final IllegalStateException e) {
+      // Expected
+    }
+    assertEquals(2, f.get(0).getCalls());
+
+    // The endpoint is still probed once the retry interval has passed again
+    f.get(0).broken = false;
+    Thread.sleep(250);
+    send(t, 0);
+    assertEquals(3, f.get(0).getCalls());
+    assertEquals(2, t.getHealthyEndpoints());
+  }
+
+  @Test
+  public void testFailoverFollowsRing() throws Exception {
+    final List<FakeTransport> f = fakes(4);
+    final MultiEndpointSpanTransport t =
+        new MultiEndpointSpanTransport(
+            f, Arrays.asList("a", "b", "c", "d"), LoadBalancing.TRACE_ID, 1, 60000);
+    final int[] before = new int[4000];
+    for (int i = 0; i < before.length; ++i) {
+      before[i] = t.route(new TraceId(i * 31L, i));
+    }
+    f.get(0).down = true;
+    send(t, 0);
+    assertEquals(3, t.getHealthyEndpoints());
+
+    // The traces of the endpoint that's out are spread over all the others, the rest stay put
+    final int[] counts = new int[4];
+    for (int i = 0; i < before.length; ++i) {
+      final int route = t.route(new TraceId(i * 31L, i));
+      if (before[i] == 0) {
+        ++counts[route];
+      } else {
+        assertEquals(before[i], route);
+      }
+    }
+    assertEquals(0, counts[0]);
+    for (int i = 1; i < counts.length; ++i) {
+      assertTrue("Uneven failover: " + Arrays.toString(counts), counts[i] > 100);
+    }
+  }
+
+  @Test
+  public void testAllEndpointsDown() {
+    final List<FakeTransport> f = fakes(2);
+    final MultiEndpointSpanTransport t =
+        new MultiEndpointSpanTransport(
+            f, Arrays.asList("a", "b"), LoadBalancing.LEAST_OUTSTANDING, 1, 60000);
+    f.get(0).down = true;
+    f.get(1).down = true;
+    for (int i = 0; i < 2; ++i) {
+      final EncodedBatch lines = batch("span");
+      try {
+        t.send(lines, new EncodedBatch(pool));
+        fail("Expected the send to fail");
+      } catch (final IOException e) {
+        // Expected
+      } finally {
+        lines.release();
+      }
+    }
+    assertEquals(0, t.getHealthyEndpoints());
+    // Both circuits are open, so the second attempt didn't touch the endpoints
+    assertEquals(1, f.get(0).getCalls());
+    assertEquals(1, f.get(1).getCalls());
+  }
+
+  @Test
+  public void testLeastOutstanding() throws Exception {
+    final List<FakeTransport> f = fakes(2);
+    final MultiEndpointSpanTransport t =
+        new MultiEndpointSpanTransport(
+            f, Arrays.asList("a", "b"), LoadBalancing.LEAST_OUTSTANDING, 3, 1000);
+    final CountDownLatch release = new CountDownLatch(1);
+    f.get(0).blocker = release;
+    final Thread slow =
+        new Thread(
+            () -> {
+              final EncodedBatch lines = batch("slow");
+              try {
+                t.send(lines, new EncodedBatch(pool));
+              } catch (final IOException e) {
+                throw new RuntimeException(e);
+              } finally {
+                lines.release();
+              }
+            });
+    slow.start();
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (f.get(0).getCalls() == 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    // Endpoint 0 still has a batch in flight, so the next ones go to endpoint 1
+    for (int i = 0; i < 3; ++i) {
+      final EncodedBatch lines = batch("fast");
+      t.send(lines, new EncodedBatch(pool));
+      lines.release();
+    }
+    release.countDown();
+    slow.join();
+    assertEquals(Arrays.asList("slow"), f.get(0).lines);
+    assertEquals(3, f.get(1).lines.size());
+  }
+
+  @Test
+  public void testExporterKeepsTracesTogether() {
+    final List<FakeTransport> f = fakes(3);
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            new MultiEndpointSpanTransport(
+                f, Arrays.asList("a", "b", "c"), LoadBalancing.TRACE_ID, 3, 1000),
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc"));
+    final List<SpanData> spans = new ArrayList<>();
+    for (int trace = 1; trace <= 50; ++trace) {
+      spans.add(TestSpans.span(trace, trace * 10, 0));
+      spans.add(TestSpans.span(trace, trace * 10 + 1, trace * 10));
+      spans.add(TestSpans.span(trace, trace * 10 + 2, trace * 10));
+    }
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(spans));
+    exporter.shutdown();
+    final Set<String> seen = new HashSet<>();
+    int lines = 0;
+    for (final FakeTransport ft : f) {
+      assertTrue(ft.lines.size() > 0);
+      lines += ft.lines.size();
+      for (final String id : ft.traceIds()) {
+        assertTrue("Trace " + id + " was split across endpoints", seen.add(id));
+      }
+    }
+    assertEquals(150, lines);
+    assertEquals(50, seen.size());
+    assertEquals(3, exporter.getMetrics().getHealthyEndpoints());
+  }
+}
@@ -0,0 +1,172 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestNioProxySpanTransport {
+  private final ByteBufferPool pool = new ByteBufferPool(64, 16);
+
+  /** Stands in for the proxy tracing port and collects the lines it receives. */
+  private static class FakeProxy implements Runnable, AutoCloseable {
+    private final ServerSocketChannel server;
+
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+    private volatile SocketChannel conn;
+
+    FakeProxy(final int port) throws IOException {
+      server = ServerSocketChannel.open();
+      server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      server.bind(new InetSocketAddress("localhost", port));
+      final Thread t = new Thread(this);
+      t.setDaemon(true);
+      t.start();
+    }
+
+    int getPort() throws IOException {
+      return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void run() {
+      try {
+        conn = server.accept();
+        final BufferedReader br =
+            new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(conn), StandardCharsets.UTF_8));
+        String line;
+        while ((line = br.readLine()) != null) {
+          lines.add(line);
+        }
+      } catch (final IOException e) {
+        // Closed
+      }
+    }
+
+    String poll() throws InterruptedException {
+      return lines.poll(10, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (conn != null) {
+        conn.close();
+      }
+      server.close();
+    }
+  }
+
+  private void send(final SpanTransport t, final String... lines) throws IOException {
+    final EncodedBatch spans = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    try {
+      for (final String line : lines) {
+        spans.putAscii(line);
+        spans.put('\n');
+      }
+      t.send(spans, logs);
+    } finally {
+      spans.release();
+      logs.release();
+    }
+  }
+
+  @Test
+  public void testSend() throws Exception {
+    try (final FakeProxy proxy = new FakeProxy(0)) {
+      final NioProxySpanTransport t =
+          new NioProxySpanTransport("localhost", proxy.getPort(), 1 << 20, 10, 100);
+      try {
+        // Long enough to span several pooled chunks
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+          sb.append("0123456789");
+        }
+        final String longLine = sb.toString();
+        for (int i = 0; i < 50; ++i) {
+          send(t, "line-" + i, longLine);
+        }
+        for (int i = 0; i < 50; ++i) {
+          assertEquals("line-" + i, proxy.poll());
+          assertEquals(longLine, proxy.poll());
+        }
+        t.flush();
+        assertEquals(0, t.getBacklogBytes());
+        assertEquals(50, t.getSentBatches());
+      } finally {
+        t.close();
+      }
+    }
+  }
+
+  @Test
+  public void testProxyRestart() throws Exception {
+    final FakeProxy first = new FakeProxy(0);
+    final int port = first.getPort();
+    final NioProxySpanTransport t = new NioProxySpanTransport("localhost", port, 1 << 20, 10, 50);
+    try {
+      send(t, "before");
+      assertEquals("before", first.poll());
+
+      // Take the proxy down and keep sending while it's away
+      first.close();
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (t.isConnected() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      send(t, "during-1");
+      send(t, "during-2");
+      Thread.sleep(200);
+      assertTrue(t.getBacklogBytes() > 0);
+
+      // Bring it back. The backlog should be delivered to the new instance.
+      try (final FakeProxy second = new FakeProxy(port)) {
+        assertEquals("during-1", second.poll());
+        assertEquals("during-2", second.poll());
+        send(t, "after");
+        assertEquals("after", second.poll());
+      }
+      assertTrue(t.getReconnects() > 0);
+    } finally {
+      t.close();
+    }
+  }
+
+  @Test
+  public void testBacklogFull() throws Exception {
+    final int port;
+    try (final FakeProxy proxy = new FakeProxy(0)) {
+      port = proxy.getPort();
+    }
+    // Nobody is listening, so everything goes into the backlog
+    final NioProxySpanTransport t = new NioProxySpanTransport("localhost", port, 100, 10, 50);
+    try {
+      send(t, "0123456789012345678901234567890123456789");
+      send(t, "0123456789012345678901234567890123456789");
+      try {
+        send(t, "0123456789012345678901234567890123456789");
+        fail("Expected the backlog to be full");
+      } catch (final IOException e) {
+        // Expected
+      }
+      assertEquals(1, t.getRejectedBatches());
+    } finally {
+      t.close();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+public class TestPendingBatches {
+  private final ByteBufferPool pool = new ByteBufferPool(64, 16);
+
+  private final Workers workers = Workers.dedicated();
+
+  private final ExporterMetrics metrics = new ExporterMetrics(-1);
+
+  /** Records the lines sent to each route and fails the routes it's told to. */
+  private static class FakeSender implements StagingBuffer.Sender {
+    final Map<Integer, List<String>> sent = new HashMap<>();
+
+    final Set<Integer> down = new HashSet<>();
+
+    @Override
+    public synchronized void send(
+        final int route, final EncodedBatch lines, final EncodedBatch logs) throws IOException {
+      if (down.contains(route)) {
+        throw new IOException("Endpoint is down");
+      }
+      final ByteBuffer bb = ByteBuffer.allocate(lines.size());
+      lines.copyTo(bb);
+      sent.computeIfAbsent(route, r -> new ArrayList<>())
+          .addAll(Arrays.asList(new String(bb.array(), StandardCharsets.UTF_8).split("\n")));
+    }
+
+    synchronized List<String> getSent(final int route) {
+      return new ArrayList<>(sent.getOrDefault(route, Collections.emptyList()));
+    }
+  }
+
+  /** Creates batches with a flusher that never flushes by itself. */
+  private PendingBatches pending(final int routes, final long maxBytes, final FakeSender sender) {
+    return new PendingBatches(
+        routes,
+        maxBytes,
+        pool,
+        sender,
+        metrics,
+        action -> new AdaptiveFlusher(action, 1000, 1000, 1 << 20, 60000, 1000, workers));
+  }
+
+  private boolean add(final PendingBatches pending, final int route, final String line) {
+    final EncodedBatch lines = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    try {
+      lines.putAscii(line + "\n");
+      lines.incrementCount();
+      return pending.add(route, lines, logs);
+    } finally {
+      lines.release();
+      logs.release();
+    }
+  }
+
+  private long failed() {
+    return metrics.snapshot(Collections.singletonList(metrics)).getSpansFailed();
+  }
+
+  @Test
+  public void testRequeuesInFrontOfNewSpans() throws IOException {
+    final FakeSender sender = new FakeSender();
+    final PendingBatches pending = pending(2, 1 << 20, sender);
+    assertTrue(add(pending, 0, "a"));
+    assertTrue(add(pending, 1, "b"));
+    sender.down.add(1);
+    try {
+      pending.flush();
+      fail("Expected the flush to fail");
+    } catch (final IOException e) {
+      // Expected
+    }
+    assertEquals(Arrays.asList("a"), sender.getSent(0));
+    assertTrue(sender.getSent(1).isEmpty());
+
+    assertTrue(add(pending, 1, "c"));
+    sender.down.clear();
+    pending.flush();
+    assertEquals(Arrays.asList("a"), sender.getSent(0));
+    assertEquals(Arrays.asList("b", "c"), sender.getSent(1));
+    pending.close();
+    assertEquals(0, failed());
+  }
+
+  @Test
+  public void testDropsWhenFull() {
+    final FakeSender sender = new FakeSender();
+    final PendingBatches pending = pending(0, 32, sender);
+    // The first batch is always taken, however large
+    assertTrue(add(pending, -1, "a"));
+    assertFalse(add(pending, -1, "b"));
+    sender.down.add(-1);
+    try {
+      pending.flush();
+      fail("Expected the flush to fail");
+    } catch (final IOException e) {
+      // Expected
+    }
+    // No room to keep it for another try
+    assertEquals(1, failed());
+    pending.close();
+    assertTrue(sender.getSent(-1).isEmpty());
+    assertEquals(1, failed());
+  }
+}
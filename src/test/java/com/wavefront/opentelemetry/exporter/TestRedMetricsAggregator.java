@@ -0,0 +1,159 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.wavefront.sdk.common.Pair;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestRedMetricsAggregator {
+  private static final String PREFIX = "tracing.derived.app.svc.";
+
+  private static Map<String, Object[]> byName(final List<Object[]> calls) {
+    final Map<String, Object[]> result = new HashMap<>();
+    for (final Object[] c : calls) {
+      result.put((String) c[0], c);
+    }
+    return result;
+  }
+
+  @Test
+  public void testAggregation() throws IOException {
+    final RedMetricsAggregator red = new RedMetricsAggregator("app", "svc", "host", 100);
+    for (int i = 1; i <= 100; ++i) {
+      red.record("get", false, i * 1000);
+    }
+    red.record("get", true, 500000);
+    red.record("put", false, 10);
+
+    final RecordingSender rs = new RecordingSender();
+    red.flush(rs.sender);
+    final Map<String, Object[]> metrics = byName(rs.metrics);
+    final Object[] okCount = findMetric(rs.metrics, PREFIX + "get.invocation.count", "false");
+    assertEquals(100.0, (Double) okCount[1], 0.0);
+    assertEquals("host", okCount[3]);
+    @SuppressWarnings("unchecked")
+    final Map<String, String> tags = (Map<String, String>) okCount[4];
+    assertEquals("app", tags.get("application"));
+    assertEquals("svc", tags.get("service"));
+    assertEquals("get", tags.get("operationName"));
+    assertEquals(
+        5050.0,
+        (Double) findMetric(rs.metrics, PREFIX + "get.total_time.millis", "false")[1],
+        0.0);
+    assertEquals(1.0, (Double) metrics.get(PREFIX + "get.error.count")[1], 0.0);
+    assertEquals(
+        1.0, (Double) findMetric(rs.metrics, PREFIX + "get.invocation.count", "true")[1], 0.0);
+    assertNotNull(metrics.get(PREFIX + "put.invocation.count"));
+
+    // The histogram must account for every span
+    final Object[] dist = findMetric(rs.distributions, PREFIX + "get.duration.micros", "false");
+    @SuppressWarnings("unchecked")
+    final List<Pair<Double, Integer>> centroids = (List<Pair<Double, Integer>>) dist[1];
+    int total = 0;
+    for (final Pair<Double, Integer> c : centroids) {
+      total += c._2;
+      assertTrue(c._1 >= 1000 / 1.125 && c._1 <= 100000 * 1.125);
+    }
+    assertEquals(100, total);
+
+    // Nothing new, so nothing is sent
+    rs.metrics.clear();
+    red.flush(rs.sender);
+    assertTrue(rs.metrics.isEmpty());
+  }
+
+  private static Object[] findMetric(
+      final List<Object[]> calls, final String name, final String error) {
+    for (final Object[] c : calls) {
+      @SuppressWarnings("unchecked")
+      final Map<String, String> tags = (Map<String, String>) c[c.length - 1];
+      if (name.equals(c[0]) && error.equals(tags.get("error"))) {
+        return c;
+      }
+    }
+    throw new AssertionError("No metric " + name + " with error=" + error);
+  }
+
+  @Test
+  public void testCardinalityLimit() throws IOException {
+    final RedMetricsAggregator red = new RedMetricsAggregator("app", "svc", "host", 10);
+    for (int i = 0; i < 50; ++i) {
+      red.record("op-" + i, false, 1000);
+    }
+    assertEquals(10, red.getOperationCount());
+    // Errors of an operation already tracked don't count towards the limit again
+    red.record("op-0", true, 1000);
+    assertEquals(10, red.getOperationCount());
+    final RecordingSender rs = new RecordingSender();
+    red.flush(rs.sender);
+    final String overflow = PREFIX + RedMetricsAggregator.OVERFLOW_OPERATION + ".invocation.count";
+    assertEquals(40.0, (Double) byName(rs.metrics).get(overflow)[1], 0.0);
+    final Object[] errors = findMetric(rs.metrics, PREFIX + "op-0.invocation.count", "true");
+    assertEquals(1.0, (Double) errors[1], 0.0);
+
+    // Idle operations are forgotten, making room for new ones
+    red.flush(rs.sender);
+    red.flush(rs.sender);
+    assertEquals(0, red.getOperationCount());
+    red.record("new-op", false, 1000);
+    rs.metrics.clear();
+    red.flush(rs.sender);
+    assertTrue(byName(rs.metrics).containsKey(PREFIX + "new-op.invocation.count"));
+    assertFalse(byName(rs.metrics).containsKey(overflow));
+  }
+
+  @Test
+  public void testExporterSendsRedMetrics() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc")
+                .redMetrics(true)
+                .redMetricsIntervalSeconds(3600));
+    exporter.export(TestSpans.batch(3, 1));
+    exporter.shutdown();
+    assertEquals(3, rs.spans.size());
+    assertTrue(byName(rs.metrics).containsKey(PREFIX + "span-1.invocation.count"));
+    assertTrue(byName(rs.distributions).containsKey(PREFIX + "span-3.duration.micros"));
+  }
+
+  @Test
+  public void testRetriedBatchCountedOnce() {
+    for (final long dedupWindowMillis : new long[] {0, 60000}) {
+      final RecordingSender rs = new RecordingSender();
+      final WavefrontSpanExporter exporter =
+          new WavefrontSpanExporter(
+              rs.sender,
+              WavefrontSpanExporter.Builder.newBuilder()
+                  .application("app")
+                  .service("svc")
+                  .redMetrics(true)
+                  .redMetricsIntervalSeconds(3600)
+                  .dedupWindowMillis(dedupWindowMillis));
+      // The batch fails after two spans have been sent and the span processor sends it again
+      rs.failAfter = 2;
+      final List<SpanData> batch = TestSpans.batch(3, 1);
+      assertEquals(SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(batch));
+      rs.failAfter = Integer.MAX_VALUE;
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(batch));
+      exporter.shutdown();
+      for (int i = 1; i <= 3; ++i) {
+        final String name = PREFIX + "span-" + i + ".invocation.count";
+        assertEquals(1.0, (Double) byName(rs.metrics).get(name)[1], 0.0);
+      }
+    }
+  }
+}
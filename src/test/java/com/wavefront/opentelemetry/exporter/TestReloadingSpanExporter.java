@@ -0,0 +1,129 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.wavefront.sdk.common.Pair;
+import io.opentelemetry.auto.exportersupport.ConfigProvider;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.Test;
+
+public class TestReloadingSpanExporter {
+  /** Settings as the auto instrumenter would supply them. */
+  private static class MapConfig implements ConfigProvider {
+    final Map<String, String> map = new HashMap<>();
+
+    @Override
+    public String getString(final String key, final String defaultValue) {
+      return map.getOrDefault(key, defaultValue);
+    }
+
+    @Override
+    public int getInt(final String key, final int defaultValue) {
+      return map.containsKey(key) ? Integer.parseInt(map.get(key)) : defaultValue;
+    }
+
+    @Override
+    public long getLong(final String key, final int defaultValue) {
+      return map.containsKey(key) ? Long.parseLong(map.get(key)) : defaultValue;
+    }
+
+    @Override
+    public boolean getBoolean(final String key, final boolean defaultValue) {
+      return map.containsKey(key) ? Boolean.parseBoolean(map.get(key)) : defaultValue;
+    }
+
+    @Override
+    public double getDouble(final String key, final double defaultValue) {
+      return map.containsKey(key) ? Double.parseDouble(map.get(key)) : defaultValue;
+    }
+  }
+
+  private static void write(final File file, final String... settings) throws IOException {
+    final Properties props = new Properties();
+    for (int i = 0; i < settings.length; i += 2) {
+      props.setProperty(settings[i], settings[i + 1]);
+    }
+    try (final OutputStream out = new FileOutputStream(file)) {
+      props.store(out, null);
+    }
+  }
+
+  private static boolean hasTag(final SpanExporter exporter, final String key) {
+    final List<Pair<String, String>> tags =
+        ((WavefrontSpanExporter) exporter).extractTags(TestSpans.span(1, 1, 0), false);
+    for (final Pair<String, String> tag : tags) {
+      if (tag._1.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static ReloadingSpanExporter create(final File file) throws IOException {
+    final MapConfig config = new MapConfig();
+    config.map.put("wavefront.proxy", "localhost");
+    config.map.put("wavefront.traceport", "50000");
+    config.map.put("wavefront.reload.file", file.getPath());
+    config.map.put("wavefront.reload.interval", "3600000");
+    return (ReloadingSpanExporter) new WavefrontSpanExporterFactory().fromConfig(config);
+  }
+
+  @Test
+  public void testRetune() throws IOException {
+    final File file = new File(Files.createTempDirectory("reload").toFile(), "exporter.properties");
+    write(file, "wavefront.tags.max", "10");
+    final ReloadingSpanExporter exporter = create(file);
+    final SpanExporter first = exporter.getExporter();
+    assertTrue(hasTag(first, "http.method"));
+    assertFalse(exporter.reload());
+
+    write(file, "wavefront.tags.max", "10", "wavefront.tags.deny", "http.method");
+    assertTrue(exporter.reload());
+    // Applied to the running exporter
+    assertSame(first, exporter.getExporter());
+    assertFalse(hasTag(first, "http.method"));
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testReplace() throws IOException {
+    final File file = new File(Files.createTempDirectory("reload").toFile(), "exporter.properties");
+    final ReloadingSpanExporter exporter = create(file);
+    final SpanExporter first = exporter.getExporter();
+
+    // A new endpoint needs a new exporter
+    write(file, "wavefront.traceport", "50001");
+    assertTrue(exporter.reload());
+    assertNotSame(first, exporter.getExporter());
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(1, 1)));
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testInvalidSettings() throws IOException {
+    final File file = new File(Files.createTempDirectory("reload").toFile(), "exporter.properties");
+    final ReloadingSpanExporter exporter = create(file);
+    final SpanExporter first = exporter.getExporter();
+    write(file, "wavefront.tags.max", "lots");
+    assertFalse(exporter.reload());
+    assertSame(first, exporter.getExporter());
+    // Only reported once
+    assertFalse(exporter.reload());
+    exporter.shutdown();
+    assertEquals(
+        SpanExporter.ResultCode.FAILED_NOT_RETRYABLE, exporter.export(TestSpans.batch(1, 1)));
+  }
+}
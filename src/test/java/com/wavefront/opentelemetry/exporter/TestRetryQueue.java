@@ -0,0 +1,130 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class TestRetryQueue {
+  private static Set<Object> spanNames(final RecordingSender rs) {
+    final Set<Object> names = new HashSet<>();
+    for (final Object[] args : rs.spans) {
+      assertTrue("Span " + args[0] + " was sent twice", names.add(args[0]));
+    }
+    return names;
+  }
+
+  @Test
+  public void testRetriesOnlyUnsentSpans() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .retryQueue(true)
+                .retryInitialBackoffMillis(10));
+    rs.failAfter = 3;
+    // Part of the batch is sent, the rest is left to the retry queue
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(5, 1)));
+    assertEquals(3, rs.spans.size());
+    // Queued behind the retries rather than sent
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(5, 6)));
+    assertEquals(3, rs.spans.size());
+
+    rs.failAfter = Integer.MAX_VALUE;
+    assertTrue(rs.awaitSpans(10, 5000));
+    assertEquals(10, spanNames(rs).size());
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (exporter.getMetrics().getRetryPendingSpans() > 0
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(10, s.getSpansExported());
+    assertEquals(7, s.getSpansRetrySent());
+    assertTrue(s.getSpansRetried() >= 7);
+    assertEquals(0, s.getSpansFailed());
+    assertEquals(0, s.getSpansDuplicated());
+    assertEquals(0, s.getRetryPendingBytes());
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testWithoutRetryQueue() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(rs.sender, WavefrontSpanExporter.Builder.newBuilder());
+    rs.failAfter = 3;
+    assertEquals(
+        SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(TestSpans.batch(5, 1)));
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(3, s.getSpansExported());
+    assertEquals(2, s.getSpansFailed());
+    // The span processor may send the whole batch again
+    assertEquals(3, s.getSpansDuplicated());
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testBackoffAndMemoryCap() throws InterruptedException {
+    final AtomicInteger attempts = new AtomicInteger();
+    final RetryQueue q =
+        new RetryQueue(
+            spans -> {
+              attempts.incrementAndGet();
+              return spans;
+            },
+            2 * SpanSize.estimate(TestSpans.span(1, 1, 0)),
+            10,
+            40,
+            Workers.dedicated());
+    assertTrue(q.offer(TestSpans.batch(2, 1)));
+    assertFalse(q.offer(TestSpans.batch(1, 3)));
+    assertEquals(1, q.getDropped());
+    assertEquals(2, q.getPendingSpans());
+
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (attempts.get() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    // 10, 20, 40, 40...
+    assertEquals(40, q.getBackoffMillis());
+    assertEquals(2, q.getPendingSpans());
+
+    // The last attempt at shutdown fails too, so the spans are dropped
+    q.close();
+    assertEquals(3, q.getDropped());
+    assertEquals(0, q.getPendingSpans());
+  }
+
+  @Test
+  public void testPartialRetry() {
+    final List<List<SpanData>> seen = Collections.synchronizedList(new ArrayList<>());
+    final RetryQueue q =
+        new RetryQueue(
+            spans -> {
+              seen.add(spans);
+              // Send the first span of every attempt
+              return new ArrayList<>(spans.subList(1, spans.size()));
+            },
+            Long.MAX_VALUE,
+            60000,
+            60000,
+            Workers.dedicated());
+    assertTrue(q.offer(TestSpans.batch(3, 1)));
+    // The backoff is long, so everything is left for the last attempt
+    q.close();
+    assertEquals(1, seen.size());
+    assertEquals(2, q.getDropped());
+    assertEquals(3, q.getRetried());
+  }
+}
@@ -0,0 +1,136 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.TraceId;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.junit.Test;
+
+public class TestShardedSpanExporter {
+  private static List<SpanData> traces(final int traces, final int spansPerTrace) {
+    final List<SpanData> spans = new ArrayList<>();
+    for (int i = 1; i <= spansPerTrace; ++i) {
+      for (int t = 1; t <= traces; ++t) {
+        spans.add(TestSpans.span(t, t * 1000 + i, i > 1 ? t * 1000 + i - 1 : 0));
+      }
+    }
+    return spans;
+  }
+
+  @Test
+  public void testRoutesByTrace() throws InterruptedException {
+    final List<RecordingSender> senders = new ArrayList<>();
+    final List<WavefrontSpanExporter> shards = new ArrayList<>();
+    for (int i = 0; i < 4; ++i) {
+      final RecordingSender rs = new RecordingSender();
+      senders.add(rs);
+      shards.add(new WavefrontSpanExporter(rs.sender, WavefrontSpanExporter.Builder.newBuilder()));
+    }
+    final ShardedSpanExporter exporter = new ShardedSpanExporter(shards);
+    final List<SpanData> spans = traces(100, 5);
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(spans));
+
+    int total = 0;
+    for (int i = 0; i < senders.size(); ++i) {
+      final List<Object[]> sent = senders.get(i).spans;
+      // Every shard gets a share, and only spans of traces that belong to it, in order
+      assertTrue(sent.size() > 0);
+      total += sent.size();
+      final long[] last = new long[101];
+      for (final Object[] s : sent) {
+        final long id = Long.parseLong(((String) s[0]).substring("span-".length()));
+        final int trace = (int) (id / 1000);
+        assertEquals(i, ShardedSpanExporter.shardOf(new TraceId(0x0123456789abcdefL, trace), 4));
+        assertTrue(id > last[trace]);
+        last[trace] = id;
+      }
+    }
+    assertEquals(500, total);
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testFailureIsRetryable() {
+    final List<WavefrontSpanExporter> shards = new ArrayList<>();
+    final RecordingSender broken = new RecordingSender();
+    broken.failAfter = 0;
+    shards.add(
+        new WavefrontSpanExporter(broken.sender, WavefrontSpanExporter.Builder.newBuilder()));
+    shards.add(
+        new WavefrontSpanExporter(
+            new RecordingSender().sender, WavefrontSpanExporter.Builder.newBuilder()));
+    final ShardedSpanExporter exporter = new ShardedSpanExporter(shards);
+    assertEquals(SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(traces(10, 1)));
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testBuildSharded() throws IOException, InterruptedException {
+    final List<String> lines = new CopyOnWriteArrayList<>();
+    try (final ServerSocket server = new ServerSocket(0)) {
+      final Thread acceptor =
+          new Thread(
+              () -> {
+                try {
+                  for (; ; ) {
+                    final Socket conn = server.accept();
+                    final Thread reader =
+                        new Thread(
+                            () -> {
+                              try (final BufferedReader br =
+                                  new BufferedReader(
+                                      new InputStreamReader(
+                                          conn.getInputStream(), StandardCharsets.UTF_8))) {
+                                for (String line; (line = br.readLine()) != null; ) {
+                                  lines.add(line);
+                                }
+                              } catch (final IOException e) {
+                                // Connection closed
+                              }
+                            });
+                    reader.setDaemon(true);
+                    reader.start();
+                  }
+                } catch (final IOException e) {
+                  // Server closed
+                }
+              });
+      acceptor.setDaemon(true);
+      acceptor.start();
+
+      final ShardedSpanExporter exporter =
+          WavefrontSpanExporter.Builder.newBuilder()
+              .proxyClient("localhost")
+              .tracingPort(server.getLocalPort())
+              .nativeEncoding(true)
+              .buildSharded(3);
+      assertEquals(3, exporter.getShardCount());
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(traces(30, 2)));
+      exporter.shutdown();
+
+      final List<ExporterMetrics.Snapshot> metrics = exporter.getMetrics();
+      long exported = 0;
+      for (int i = 0; i < metrics.size(); ++i) {
+        assertEquals(i, metrics.get(i).getShard());
+        exported += metrics.get(i).getSpansExported();
+      }
+      assertEquals(60, exported);
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (lines.size() < 60 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(60, lines.size());
+    }
+  }
+}
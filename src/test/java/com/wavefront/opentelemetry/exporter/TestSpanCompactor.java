@@ -0,0 +1,174 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.wavefront.sdk.common.Pair;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestSpanCompactor {
+  private static SpanData query(
+      final long spanId, final long parentId, final long startMillis, final long endMillis) {
+    return SpanData.newBuilder()
+        .setName("query")
+        .setKind(Span.Kind.CLIENT)
+        .setTraceId(new TraceId(0, 1))
+        .setSpanId(new SpanId(spanId))
+        .setParentSpanId(new SpanId(parentId))
+        .setAttributes(
+            Collections.singletonMap("db.type", AttributeValue.stringAttributeValue("sql")))
+        .setStartEpochNanos(startMillis * 1000000)
+        .setEndEpochNanos(endMillis * 1000000)
+        .setStatus(Status.OK)
+        .build();
+  }
+
+  @Test
+  public void testDeduplicate() {
+    final SpanCompactor compactor = new SpanCompactor(60000, 1000, 0);
+    final List<SpanData> first = TestSpans.batch(10, 1);
+    assertSame(first, compactor.deduplicate(first));
+
+    // Sent again along with new spans, one of them twice
+    final List<SpanData> second = new ArrayList<>(TestSpans.batch(15, 6));
+    second.add(TestSpans.span(20, 20, 0));
+    final List<SpanData> fresh = compactor.deduplicate(second);
+    assertEquals(10, fresh.size());
+    assertEquals(new SpanId(11), fresh.get(0).getSpanId());
+    assertEquals(6, compactor.getDuplicates());
+
+    // Forgotten spans are let through again
+    compactor.forget(first.subList(0, 2));
+    assertEquals(2, compactor.deduplicate(TestSpans.batch(4, 1)).size());
+  }
+
+  @Test
+  public void testBounded() {
+    final SpanCompactor compactor = new SpanCompactor(60000, 100, 0);
+    compactor.deduplicate(TestSpans.batch(200, 1));
+    // Only the most recent spans are remembered
+    assertEquals(10, compactor.deduplicate(TestSpans.batch(10, 1)).size());
+    assertEquals(0, compactor.deduplicate(TestSpans.batch(10, 191)).size());
+  }
+
+  @Test
+  public void testIdSet() {
+    final SpanCompactor.IdSet set = new SpanCompactor.IdSet(1000);
+    for (int i = 1; i <= 1000; ++i) {
+      assertTrue(set.add(i, -i, i));
+    }
+    assertTrue(set.isFull());
+    assertFalse(set.add(5, -5, 5));
+    for (int i = 1; i <= 1000; i += 2) {
+      set.remove(i, -i, i);
+    }
+    for (int i = 1; i <= 1000; ++i) {
+      assertEquals(i % 2 == 0, set.contains(i, -i, i));
+    }
+    assertFalse(set.isFull());
+    set.clear();
+    assertFalse(set.contains(2, -2, 2));
+  }
+
+  @Test
+  public void testRollUp() {
+    final SpanCompactor compactor = new SpanCompactor(0, 0, 3);
+    final SpanData parent = query(1, 9, 0, 100);
+    final List<SpanData> spans =
+        Arrays.asList(
+            query(2, 1, 10, 20),
+            TestSpans.span(1, 7, 1),
+            query(3, 1, 30, 35),
+            query(4, 1, 40, 80),
+            parent,
+            // Has a child of its own
+            query(5, 1, 50, 60),
+            query(6, 5, 55, 58));
+    final SpanCompactor.RollUp rollUp = compactor.rollUp(spans);
+    final List<SpanData> result = rollUp.getSpans();
+    assertEquals(5, result.size());
+    final SpanData combined = result.get(0);
+    assertEquals(new SpanId(2), combined.getSpanId());
+    assertEquals(10000000, combined.getStartEpochNanos());
+    assertEquals(80000000, combined.getEndEpochNanos());
+    final Map<String, AttributeValue> attrs = combined.getAttributes();
+    assertEquals("sql", attrs.get("db.type").getStringValue());
+    assertEquals(3, attrs.get(SpanCompactor.COUNT_TAG).getLongValue());
+    assertEquals(5000, attrs.get(SpanCompactor.MIN_TAG).getLongValue());
+    assertEquals(40000, attrs.get(SpanCompactor.MAX_TAG).getLongValue());
+    assertSame(spans.get(1), result.get(1));
+    assertSame(parent, result.get(2));
+    assertEquals(3, compactor.getRolledUp());
+    assertEquals(1, compactor.getRollups());
+
+    assertEquals(
+        Arrays.asList(spans.get(0), spans.get(2), spans.get(3), spans.get(6)),
+        rollUp.expand(Arrays.asList(combined, result.get(4))));
+  }
+
+  @Test
+  public void testRollUpKeepsEarlierParents() {
+    final SpanCompactor compactor = new SpanCompactor(0, 1000, 3);
+    // The child of query 4 ends first and is exported on its own
+    final List<SpanData> children = Collections.singletonList(query(6, 4, 45, 50));
+    assertSame(children, compactor.rollUp(children).getSpans());
+    final List<SpanData> spans =
+        Arrays.asList(query(2, 1, 10, 20), query(3, 1, 30, 35), query(4, 1, 40, 80));
+    assertEquals(3, compactor.rollUp(spans).getSpans().size());
+    assertEquals(0, compactor.getRollups());
+
+    // Without it, they are rolled up
+    final List<SpanData> leaves =
+        Arrays.asList(query(12, 1, 10, 20), query(13, 1, 30, 35), query(14, 1, 40, 80));
+    assertEquals(1, compactor.rollUp(leaves).getSpans().size());
+  }
+
+  @Test
+  public void testExporter() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .dedupWindowMillis(60000)
+                .rollupMinSpans(2));
+    final List<SpanData> batch = new ArrayList<>(TestSpans.batch(5, 1));
+    batch.add(query(10, 1, 0, 10));
+    batch.add(query(11, 1, 0, 20));
+    // Sent after the roll-up, so the roll-up is not the last span
+    batch.add(TestSpans.span(1, 12, 1));
+    // The batch fails after four spans have been sent and the span processor sends it again
+    rs.failAfter = 4;
+    assertEquals(SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(batch));
+    rs.failAfter = Integer.MAX_VALUE;
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(batch));
+    assertEquals(7, rs.spans.size());
+    assertEquals("query", rs.spans.get(5)[0]);
+    boolean tagged = false;
+    for (final Object tag : (List<?>) rs.spans.get(5)[8]) {
+      tagged |= ((Pair<?, ?>) tag)._1.equals(SpanCompactor.COUNT_TAG);
+    }
+    assertTrue(tagged);
+
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(4, s.getSpansDeduplicated());
+    assertEquals(4, s.getSpansRolledUp());
+    assertEquals(2, s.getRollups());
+    exporter.shutdown();
+  }
+}
@@ -0,0 +1,226 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.common.InstrumentationLibraryInfo;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Link;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanContext;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceFlags;
+import io.opentelemetry.trace.TraceId;
+import io.opentelemetry.trace.Tracestate;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestSpanLineEncoder {
+  private static String toString(final EncodedBatch batch) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    batch.writeTo(out, new byte[7]);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static SpanData createSpan() {
+    final Map<String, AttributeValue> eventAttrs =
+        Collections.singletonMap(
+            "message", AttributeValue.stringAttributeValue("line1\nline2 \"quoted\""));
+    return createSpan(
+        Collections.singletonList(
+            SpanData.TimedEvent.create(1500000000123456789L, "event", eventAttrs)));
+  }
+
+  private static SpanData createSpan(final List<SpanData.TimedEvent> events) {
+    final Map<String, AttributeValue> attrs = new LinkedHashMap<>();
+    attrs.put("http.method", AttributeValue.stringAttributeValue("GET"));
+    attrs.put("http.status_code", AttributeValue.longAttributeValue(200));
+    attrs.put("cached", AttributeValue.booleanAttributeValue(true));
+    attrs.put("db statement", AttributeValue.stringAttributeValue(" say \"hi\"\n to Zo\u00eb "));
+    attrs.put("empty", AttributeValue.stringAttributeValue(" "));
+    return SpanData.newBuilder()
+        .setName("client.span")
+        .setKind(Span.Kind.CLIENT)
+        .setTraceId(TraceId.fromLowerBase16("0123456789abcdeffedcba9876543210", 0))
+        .setSpanId(SpanId.fromLowerBase16("1111111111111111", 0))
+        .setInstrumentationLibraryInfo(InstrumentationLibraryInfo.create("lib", "1.0"))
+        .setAttributes(attrs)
+        .setTimedEvents(events)
+        .setStartEpochNanos(1500000000000000000L)
+        .setEndEpochNanos(1500000000250000000L)
+        .setStatus(Status.INTERNAL)
+        .build();
+  }
+
+  @Test
+  public void testEncodeSpan() throws IOException {
+    final ByteBufferPool pool = new ByteBufferPool(16, 4);
+    final EncodedBatch spans = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    final SpanLineEncoder encoder = new SpanLineEncoder("myhost", "app", "svc");
+    assertTrue(encoder.encode(createSpan(), spans, logs));
+    assertEquals(1, spans.count());
+    assertEquals(1, logs.count());
+    assertEquals(
+        "\"client.span\" source=\"myhost\""
+            + " traceId=01234567-89ab-cdef-fedc-ba9876543210"
+            + " spanId=00000000-0000-0000-1111-111111111111"
+            + " \"application\"=\"app\" \"service\"=\"svc\""
+            + " \"instrumentation.name\"=\"lib\" \"instrumentation.version\"=\"1.0\""
+            + " \"opentelemetry.status\"=\"INTERNAL\" \"error\"=\"true\""
+            + " \"http.method\"=\"GET\" \"http.status_code\"=\"200\" \"cached\"=\"true\""
+            + " \"db-statement\"=\"say \\\"hi\\\"\\n to Zo\u00eb\""
+            + " \"_spanLogs\"=\"true\" 1500000000000 250\n",
+        toString(spans));
+    assertEquals(
+        "{\"traceId\":\"01234567-89ab-cdef-fedc-ba9876543210\","
+            + "\"spanId\":\"00000000-0000-0000-1111-111111111111\","
+            + "\"logs\":[{\"timestamp\":1500000000123456,"
+            + "\"fields\":{\"message\":\"line1\\nline2 \\\"quoted\\\"\"}}]}\n",
+        toString(logs));
+    spans.release();
+    logs.release();
+    assertTrue(pool.getIdleCount() > 0);
+  }
+
+  @Test
+  public void testParentAndFollowsFrom() throws IOException {
+    final SpanData child = TestSpans.span(1, 2, 1);
+    final List<Link> links =
+        Arrays.<Link>asList(
+            SpanData.Link.create(
+                SpanContext.create(
+                    child.getTraceId(),
+                    new SpanId(3),
+                    TraceFlags.getDefault(),
+                    Tracestate.getDefault())),
+            // Links to other traces can't be expressed and are left out
+            SpanData.Link.create(
+                SpanContext.create(
+                    new TraceId(0, 99),
+                    new SpanId(4),
+                    TraceFlags.getDefault(),
+                    Tracestate.getDefault())));
+    final SpanData span =
+        SpanData.newBuilder()
+            .setName(child.getName())
+            .setKind(child.getKind())
+            .setTraceId(child.getTraceId())
+            .setSpanId(child.getSpanId())
+            .setParentSpanId(child.getParentSpanId())
+            .setLinks(links)
+            .setStartEpochNanos(child.getStartEpochNanos())
+            .setEndEpochNanos(child.getEndEpochNanos())
+            .setStatus(Status.OK)
+            .build();
+    final ByteBufferPool pool = new ByteBufferPool(64, 4);
+    final EncodedBatch spans = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    new SpanLineEncoder("myhost", "app", "svc").encode(span, spans, logs);
+    final String line = toString(spans);
+    assertTrue(line.contains(" parent=00000000-0000-0000-0000-000000000001 "));
+    assertTrue(line.contains(" followsFrom=00000000-0000-0000-0000-000000000003 "));
+    assertFalse(line.contains("0000-000000000004"));
+  }
+
+  @Test
+  public void testSpanLogLimits() throws IOException {
+    final SpanData.TimedEvent event =
+        SpanData.TimedEvent.create(
+            1500000000000001000L,
+            "exception",
+            Collections.singletonMap(
+                "stack", AttributeValue.stringAttributeValue("at Foo.bar(Foo.java:1)")));
+    final SpanData span = createSpan(Arrays.asList(event, event, event));
+    final ByteBufferPool pool = new ByteBufferPool(64, 4);
+    final EncodedBatch spans = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    new SpanLineEncoder("myhost", "app", "svc", TagPolicy.KEEP_ALL, 2, 6)
+        .encode(span, spans, logs);
+    assertTrue(
+        toString(logs)
+            .endsWith(
+                "\"logs\":[{\"timestamp\":1500000000000001,\"fields\":{\"stack\":\"at Foo\"}},"
+                    + "{\"timestamp\":1500000000000001,\"fields\":{\"stack\":\"at Foo\"}}]}\n"));
+
+    // No span logs at all
+    spans.release();
+    logs.release();
+    new SpanLineEncoder("myhost", "app", "svc", TagPolicy.KEEP_ALL, 0, 6)
+        .encode(span, spans, logs);
+    assertTrue(logs.isEmpty());
+    assertFalse(toString(spans).contains("_spanLogs"));
+  }
+
+  @Test
+  public void testMatchesSdkQuoting() {
+    assertEquals("\"a-b.c_d\"", SpanLineEncoder.quoteKey("a b.c_d"));
+    assertEquals("\"x \\\"y\\\"\"", SpanLineEncoder.quoteValue(" x \"y\" "));
+  }
+
+  @Test
+  public void testTruncate() throws IOException {
+    final EncodedBatch b = new EncodedBatch(new ByteBufferPool(4, 4));
+    b.putAscii("hello");
+    final long mark = b.mark();
+    b.putAscii(" world, this spills into more chunks");
+    b.truncate(mark);
+    b.putAscii("!");
+    assertEquals("hello!", toString(b));
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    final ByteBufferPool pool = new ByteBufferPool(16, 16);
+    final EncodedBatch b = new EncodedBatch(pool);
+    b.putAscii("first\n");
+    b.incrementCount();
+    // Small batches are copied into the last chunk rather than each keeping a chunk of their own
+    for (int i = 0; i < 2; ++i) {
+      final EncodedBatch small = new EncodedBatch(pool);
+      small.putAscii("ab\n");
+      small.incrementCount();
+      b.append(small);
+      assertTrue(small.isEmpty());
+    }
+    assertEquals(16, b.capacity());
+    // Larger ones are moved as they are
+    final EncodedBatch large = new EncodedBatch(pool);
+    large.putAscii("0123456789abcdefghij\n");
+    large.incrementCount();
+    b.append(large);
+    assertEquals(4, b.count());
+    assertEquals(0, large.count());
+    assertEquals(48, b.capacity());
+    assertEquals("first\nab\nab\n0123456789abcdefghij\n", toString(b));
+    b.release();
+  }
+
+  @Test
+  public void testSkip() throws IOException {
+    final ByteBufferPool pool = new ByteBufferPool(16, 16);
+    final EncodedBatch b = new EncodedBatch(pool);
+    for (int i = 0; i < 5; ++i) {
+      b.putAscii("line-" + i + "\n");
+      b.incrementCount();
+    }
+    // The first chunk is released and what is left of the second is moved to its start
+    b.skip(21, 3);
+    assertEquals(2, b.count());
+    assertEquals(32, b.capacity());
+    assertEquals("line-3\nline-4\n", toString(b));
+    b.putAscii("x\n");
+    assertEquals("line-3\nline-4\nx\n", toString(b));
+    b.release();
+  }
+}
@@ -0,0 +1,114 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestSpanNamer {
+  private static SpanData span(final String name, final String... attrs) {
+    final Map<String, AttributeValue> map = new HashMap<>();
+    for (int i = 0; i < attrs.length; i += 2) {
+      map.put(attrs[i], AttributeValue.stringAttributeValue(attrs[i + 1]));
+    }
+    return SpanData.newBuilder()
+        .setName(name)
+        .setKind(Span.Kind.CLIENT)
+        .setTraceId(new TraceId(1, 2))
+        .setSpanId(new SpanId(3))
+        .setParentSpanId(SpanId.getInvalid())
+        .setAttributes(map)
+        .setStartEpochNanos(1000000)
+        .setEndEpochNanos(2000000)
+        .setStatus(Status.OK)
+        .build();
+  }
+
+  @Test
+  public void testDefaultTemplate() {
+    final SpanNamer namer = new SpanNamer(SpanNamer.DEFAULT_TEMPLATE, 100);
+    assertEquals("getOrder", namer.name(span("getOrder")).getName());
+    assertEquals(
+        "getOrder(orders)", namer.name(span("getOrder", "resource.name", "orders")).getName());
+  }
+
+  @Test
+  public void testTemplate() {
+    final SpanNamer namer = new SpanNamer("{kind}:{name}[ {http.method}][ {http.route}]", 100);
+    assertEquals("client:fetch", namer.name(span("fetch")).getName());
+    assertEquals(
+        "client:fetch GET /orders",
+        namer.name(span("fetch", "http.method", "GET", "http.route", "/orders")).getName());
+    assertEquals(
+        "client:fetch /orders", namer.name(span("fetch", "http.route", "/orders")).getName());
+    // Outside of brackets, missing attributes are left empty
+    assertEquals(
+        "x--fetch", new SpanNamer("x-{missing}-{name}", 100).name(span("fetch")).getName());
+  }
+
+  @Test
+  public void testQuoting() {
+    final SpanNamer namer = new SpanNamer(SpanNamer.DEFAULT_TEMPLATE, 100);
+    // Like the Wavefront SDK, the name as a whole is trimmed, not its parts
+    final SpanNamer.Name name = namer.name(span(" say \"hi\" ", "resource.name", "r\n"));
+    assertEquals(
+        "\"say \\\"hi\\\" (r\\n)\"", new String(name.getQuoted(), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testCache() {
+    final SpanNamer namer = new SpanNamer("{name}[ {http.method}]", 2);
+    final SpanNamer.Name first = namer.name(span("a", "http.method", "GET"));
+    assertSame(first, namer.name(span("a", "http.method", "GET")));
+    // Attributes the template doesn't use don't matter
+    assertSame(first, namer.name(span("a", "http.method", "GET", "other", "x")));
+    namer.name(span("a", "http.method", "POST"));
+    assertEquals(2, namer.getHits());
+    assertEquals(2, namer.getMisses());
+    assertEquals(2, namer.getSize());
+
+    // Full, so new names are derived but not kept
+    assertEquals("b", namer.name(span("b")).getName());
+    assertEquals("b", namer.name(span("b")).getName());
+    assertEquals(2, namer.getSize());
+    assertEquals(4, namer.getMisses());
+  }
+
+  @Test
+  public void testInvalidTemplates() {
+    for (final String template : new String[] {"{name", "[{name}", "[[{name}]]"}) {
+      try {
+        new SpanNamer(template, 100);
+        fail("Expected " + template + " to be rejected");
+      } catch (final IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testExporterMetrics() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder().spanNameTemplate("{kind}/{name}"));
+    exporter.export(TestSpans.batch(10, 1));
+    exporter.export(TestSpans.batch(10, 1));
+    assertEquals("server/span-1", rs.spans.get(0)[0]);
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(10, s.getSpanNameCacheMisses());
+    assertEquals(10, s.getSpanNameCacheHits());
+    exporter.shutdown();
+  }
+}
@@ -0,0 +1,285 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSpanSpool {
+  private final ByteBufferPool pool = new ByteBufferPool(64, 16);
+
+  private File dir;
+
+  /** Records what it's sent as strings and fails on demand. */
+  private static class FakeTransport implements SpanTransport, StagingBuffer.Sender {
+    final List<String> sent = new ArrayList<>();
+
+    final List<Integer> routes = new ArrayList<>();
+
+    volatile boolean down;
+
+    @Override
+    public synchronized void send(final EncodedBatch spans, final EncodedBatch spanLogs)
+        throws IOException {
+      if (down) {
+        throw new IOException("Backend is down");
+      }
+      sent.add(toString(spans) + "|" + toString(spanLogs));
+    }
+
+    @Override
+    public synchronized void send(
+        final int route, final EncodedBatch spans, final EncodedBatch spanLogs)
+        throws IOException {
+      send(spans, spanLogs);
+      routes.add(route);
+    }
+
+    private static String toString(final EncodedBatch b) {
+      final ByteBuffer bb = ByteBuffer.allocate(b.size());
+      b.copyTo(bb);
+      return new String(bb.array(), StandardCharsets.UTF_8);
+    }
+
+    synchronized List<String> getSent() {
+      return new ArrayList<>(sent);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("spool").toFile();
+  }
+
+  @After
+  public void tearDown() {
+    final File[] files = dir.listFiles();
+    if (files != null) {
+      for (final File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private void append(final SpanSpool spool, final String spans, final String logs)
+      throws IOException {
+    append(spool, -1, spans, logs);
+  }
+
+  private void append(
+      final SpanSpool spool, final int route, final String spans, final String logs)
+      throws IOException {
+    final EncodedBatch s = new EncodedBatch(pool);
+    final EncodedBatch l = new EncodedBatch(pool);
+    try {
+      s.putAscii(spans);
+      s.incrementCount();
+      l.putAscii(logs);
+      spool.append(route, s, l);
+    } finally {
+      s.release();
+      l.release();
+    }
+  }
+
+  private File[] segments() {
+    return dir.listFiles((d, name) -> name.endsWith(".seg"));
+  }
+
+  @Test
+  public void testReplayInOrder() throws IOException {
+    final FakeTransport t = new FakeTransport();
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      for (int i = 0; i < 100; ++i) {
+        append(spool, "span-" + i, i % 2 == 0 ? "log-" + i : "");
+      }
+      assertEquals(100, spool.getPendingSpans());
+      assertTrue(spool.getSegmentCount() > 1);
+
+      t.down = true;
+      assertEquals(0, spool.replay(t, pool));
+      assertEquals(100, spool.getPendingBatches());
+
+      t.down = false;
+      assertEquals(100, spool.replay(t, pool));
+      final List<String> sent = t.getSent();
+      assertEquals(100, sent.size());
+      for (int i = 0; i < 100; ++i) {
+        assertEquals("span-" + i + "|" + (i % 2 == 0 ? "log-" + i : ""), sent.get(i));
+      }
+      assertFalse(spool.hasBacklog());
+      assertEquals(0, spool.getPendingBytes());
+      assertEquals(100, spool.getReplayedSpans());
+      assertEquals(0, segments().length);
+    }
+  }
+
+  @Test
+  public void testReplayKeepsRoute() throws IOException {
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      append(spool, 2, "span-0", "");
+      append(spool, 0, "span-1", "");
+      append(spool, -1, "span-2", "");
+    }
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      final FakeTransport t = new FakeTransport();
+      assertEquals(3, spool.replay(t, pool));
+      assertEquals(Arrays.asList(2, 0, -1), t.routes);
+    }
+  }
+
+  @Test
+  public void testRecovery() throws IOException {
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      for (int i = 0; i < 10; ++i) {
+        append(spool, "span-" + i, "");
+      }
+      // Replay the first three
+      for (int i = 0; i < 3; ++i) {
+        spool.commit(spool.next());
+      }
+    }
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      assertEquals(7, spool.getPendingSpans());
+      append(spool, "span-10", "");
+      final FakeTransport t = new FakeTransport();
+      spool.replay(t, pool);
+      final List<String> sent = t.getSent();
+      assertEquals(8, sent.size());
+      assertEquals("span-3|", sent.get(0));
+      assertEquals("span-10|", sent.get(7));
+    }
+  }
+
+  @Test
+  public void testPartialRecordIsDiscarded() throws IOException {
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      append(spool, "span-0", "");
+      append(spool, "span-1", "");
+    }
+    // Simulate a crash in the middle of writing the second record
+    final File segment = segments()[0];
+    final int second = SpanSpool.HEADER_SIZE + "span-0".length();
+    try (final RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+      raf.seek(second + SpanSpool.HEADER_SIZE + 2);
+      raf.write('X');
+    }
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      assertEquals(1, spool.getPendingBatches());
+      // The next record goes where the broken one was
+      append(spool, "span-2", "");
+      final FakeTransport t = new FakeTransport();
+      spool.replay(t, pool);
+      assertEquals(2, t.getSent().size());
+      assertEquals("span-0|", t.getSent().get(0));
+      assertEquals("span-2|", t.getSent().get(1));
+    }
+  }
+
+  @Test
+  public void testSizeCap() throws IOException {
+    // Two segments of room, each holding a few records
+    try (final SpanSpool spool = new SpanSpool(dir, 128, 256, 60000)) {
+      for (int i = 0; i < 20; ++i) {
+        append(spool, "span-" + i, "");
+      }
+      assertEquals(2, spool.getSegmentCount());
+      assertEquals(20, spool.getPendingSpans() + spool.getOverflowedSpans());
+      assertTrue(spool.getOverflowedSpans() > 0);
+      final FakeTransport t = new FakeTransport();
+      spool.replay(t, pool);
+      // Whatever survived is the newest spans, in order
+      final List<String> sent = t.getSent();
+      assertEquals("span-19|", sent.get(sent.size() - 1));
+    }
+  }
+
+  @Test
+  public void testAgeCap() throws Exception {
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 50)) {
+      append(spool, "old", "");
+      Thread.sleep(100);
+      append(spool, "new", "");
+      final SpanSpool.Record r = spool.next();
+      assertEquals(1, spool.getExpiredSpans());
+      spool.commit(r);
+      assertNull(spool.next());
+      assertFalse(spool.hasBacklog());
+    }
+  }
+
+  @Test
+  public void testDirectoryLocked() throws IOException {
+    try (final SpanSpool spool = new SpanSpool(dir, 1024, 1 << 20, 60000)) {
+      try {
+        new SpanSpool(dir, 1024, 1 << 20, 60000).close();
+        fail("Expected the directory to be locked");
+      } catch (final IOException e) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testExporterSpoolsWhileBackendIsDown() throws Exception {
+    final FakeTransport t = new FakeTransport();
+    t.down = true;
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc")
+                .spoolDirectory(dir));
+    try {
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+      final SpanSpool spool = exporter.getSpool();
+      assertEquals(10, spool.getPendingSpans());
+
+      // Sent while the backlog is still there, so it must queue up behind it
+      t.down = false;
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(5, 11)));
+      assertEquals(0, t.getSent().size());
+      assertEquals(15, spool.getPendingSpans());
+
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (spool.hasBacklog() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      final List<String> sent = t.getSent();
+      assertEquals(2, sent.size());
+      assertTrue(sent.get(0).startsWith("\"span-1\""));
+      assertTrue(sent.get(1).startsWith("\"span-11\""));
+
+      // With the backlog gone, spans are sent directly again
+      assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(1, 16)));
+      assertEquals(3, t.getSent().size());
+    } finally {
+      exporter.shutdown();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package com.wavefront.opentelemetry.exporter;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Helpers for building synthetic spans in tests. */
+final class TestSpans {
+  private TestSpans() {}
+
+  /**
+   * Creates a span with a few attributes.
+   *
+   * @param traceId The low half of the trace ID
+   * @param spanId The span ID
+   * @param parentId The parent span ID or 0 for a root span
+   * @return
+   */
+  static SpanData span(final long traceId, final long spanId, final long parentId) {
+    final Map<String, AttributeValue> attrs = new HashMap<>();
+    attrs.put("http.method", AttributeValue.stringAttributeValue("GET"));
+    attrs.put("http.status_code", AttributeValue.longAttributeValue(200));
+    return span(traceId, spanId, parentId, attrs);
+  }
+
+  /**
+   * Creates a span with the given attributes.
+   *
+   * @param traceId The low half of the trace ID
+   * @param spanId The span ID
+   * @param parentId The parent span ID or 0 for a root span
+   * @param attrs The attributes
+   * @return
+   */
+  static SpanData span(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final Map<String, AttributeValue> attrs) {
+    final long nowInNanos = System.currentTimeMillis() * 1000000;
+    return SpanData.newBuilder()
+        .setName("span-" + spanId)
+        .setKind(Span.Kind.SERVER)
+        .setTraceId(new TraceId(0x0123456789abcdefL, traceId))
+        .setSpanId(new SpanId(spanId))
+        .setParentSpanId(new SpanId(parentId))
+        .setAttributes(attrs)
+        .setStartEpochNanos(nowInNanos)
+        .setEndEpochNanos(nowInNanos + 1000000)
+        .setStatus(Status.OK)
+        .build();
+  }
+
+  /**
+   * Creates a batch of root spans belonging to separate traces.
+   *
+   * @param count The number of spans
+   * @param firstId The ID of the first span and trace
+   * @return
+   */
+  static List<SpanData> batch(final int count, final long firstId) {
+    final List<SpanData> spans = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      spans.add(span(firstId + i, firstId + i, 0));
+    }
+    return spans;
+  }
+}
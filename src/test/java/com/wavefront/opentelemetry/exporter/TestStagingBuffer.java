@@ -0,0 +1,241 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class TestStagingBuffer {
+  private final ByteBufferPool pool = new ByteBufferPool(64, 16);
+
+  private final Workers workers = Workers.dedicated();
+
+  /** Records what it's sent and can be made to fail or block. */
+  private static class FakeSender implements StagingBuffer.Sender, SpanTransport {
+    final List<String> lines = new ArrayList<>();
+
+    final List<Integer> routes = new ArrayList<>();
+
+    volatile boolean down;
+
+    // Delivers this many lines of the next send with more than that before failing
+    volatile int deliverBeforeFailing = -1;
+
+    volatile CountDownLatch blocker;
+
+    final CountDownLatch entered = new CountDownLatch(1);
+
+    int sends;
+
+    int spans;
+
+    @Override
+    public void send(final int route, final EncodedBatch spans, final EncodedBatch logs)
+        throws IOException {
+      entered.countDown();
+      final CountDownLatch b = blocker;
+      if (b != null) {
+        try {
+          b.await(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+          throw new IOException(e);
+        }
+      }
+      if (down) {
+        throw new IOException("Backend is down");
+      }
+      final int partial = deliverBeforeFailing;
+      if (partial >= 0 && spans.count() > partial) {
+        deliverBeforeFailing = -1;
+        final ByteBuffer bb = ByteBuffer.allocate(spans.size());
+        spans.copyTo(bb);
+        final String[] all = new String(bb.array(), StandardCharsets.UTF_8).split("\n");
+        int bytes = 0;
+        synchronized (this) {
+          for (int i = 0; i < partial; ++i) {
+            lines.add(all[i]);
+            bytes += all[i].length() + 1;
+          }
+        }
+        spans.skip(bytes, partial);
+        throw new IOException("Failed part way");
+      }
+      final ByteBuffer bb = ByteBuffer.allocate(spans.size());
+      spans.copyTo(bb);
+      synchronized (this) {
+        ++sends;
+        this.spans += spans.count();
+        routes.add(route);
+        lines.addAll(Arrays.asList(new String(bb.array(), StandardCharsets.UTF_8).split("\n")));
+      }
+    }
+
+    @Override
+    public void send(final EncodedBatch spans, final EncodedBatch logs) throws IOException {
+      send(-1, spans, logs);
+    }
+
+    synchronized List<String> getLines() {
+      return new ArrayList<>(lines);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
+  private boolean append(final StagingBuffer b, final int route, final String line) {
+    final EncodedBatch lines = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    try {
+      lines.putAscii(line + "\n");
+      lines.incrementCount();
+      return b.append(route, lines, logs);
+    } finally {
+      lines.release();
+      logs.release();
+    }
+  }
+
+  private static void await(final FakeSender s, final int lines) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 5000;
+    while (s.getLines().size() < lines && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  @Test
+  public void testWrapsAround() throws InterruptedException {
+    final FakeSender s = new FakeSender();
+    // Room for a few records of 16 + 9 bytes, so the ring wraps many times
+    final StagingBuffer b = new StagingBuffer(100, pool, s, 1000, 1, 1, workers);
+    final List<String> expected = new ArrayList<>();
+    for (int i = 0; i < 200; ++i) {
+      final String line = String.format("line-%03d", i);
+      final long deadline = System.currentTimeMillis() + 5000;
+      while (!append(b, 0, line) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(1);
+      }
+      expected.add(line);
+    }
+    await(s, 200);
+    assertEquals(expected, s.getLines());
+    assertEquals(200, b.getSent());
+    b.close();
+    assertEquals(0, b.getUsedBytes());
+  }
+
+  @Test
+  public void testCapAndCombinedSends() throws InterruptedException {
+    final FakeSender s = new FakeSender();
+    final StagingBuffer b = new StagingBuffer(100, pool, s, 1000, 1, 1, workers);
+    final CountDownLatch release = new CountDownLatch(1);
+    s.blocker = release;
+    // The first record is taken by the blocked sending task, the next three fill the buffer
+    assertTrue(append(b, 0, "aaaaaaaa"));
+    assertTrue(s.entered.await(5, TimeUnit.SECONDS));
+    assertTrue(append(b, 0, "bbbbbbbb"));
+    assertTrue(append(b, 0, "cccccccc"));
+    assertTrue(append(b, 1, "dddddddd"));
+    assertEquals(100, b.getUsedBytes());
+    assertFalse(append(b, 0, "eeeeeeee"));
+    assertEquals(1, b.getDropped());
+    assertEquals(4, b.getPendingSpans());
+
+    release.countDown();
+    await(s, 4);
+    // Records for the same endpoint are sent together
+    assertEquals(Arrays.asList(0, 0, 1), s.routes);
+    assertEquals(Arrays.asList("aaaaaaaa", "bbbbbbbb", "cccccccc", "dddddddd"), s.getLines());
+    b.close();
+  }
+
+  @Test
+  public void testRetriesAfterFailure() throws InterruptedException {
+    final FakeSender s = new FakeSender();
+    s.down = true;
+    final StagingBuffer b = new StagingBuffer(1000, pool, s, 1000, 5, 20, workers);
+    assertTrue(append(b, 0, "first"));
+    assertTrue(append(b, 0, "second"));
+    Thread.sleep(50);
+    assertEquals(2, b.getPendingSpans());
+    s.down = false;
+    await(s, 2);
+    assertEquals(Arrays.asList("first", "second"), s.getLines());
+    b.close();
+    assertEquals(0, b.getDropped());
+  }
+
+  @Test
+  public void testRetriesOnlyUndelivered() throws InterruptedException {
+    final FakeSender s = new FakeSender();
+    final CountDownLatch release = new CountDownLatch(1);
+    s.blocker = release;
+    final StagingBuffer b = new StagingBuffer(10000, pool, s, 1000, 50, 50, workers);
+    assertTrue(append(b, 0, "first"));
+    // Staged while the sender is blocked, so they go out combined into one send
+    final List<String> expected = new ArrayList<>(Arrays.asList("first"));
+    for (int i = 0; i < 5; ++i) {
+      assertTrue(append(b, 0, "line-" + i));
+      expected.add("line-" + i);
+    }
+    // The combined send gets three lines through, then fails
+    s.deliverBeforeFailing = 3;
+    s.blocker = null;
+    release.countDown();
+    await(s, 6);
+    assertEquals(-1, s.deliverBeforeFailing);
+    b.close();
+    assertEquals(expected, s.getLines());
+    assertEquals(6, b.getSent());
+  }
+
+  @Test
+  public void testCloseDropsUnsendable() {
+    final FakeSender s = new FakeSender();
+    s.down = true;
+    final StagingBuffer b = new StagingBuffer(1000, pool, s, 1000, 60000, 60000, workers);
+    assertTrue(append(b, 0, "first"));
+    assertTrue(append(b, 0, "second"));
+    b.close();
+    assertEquals(2, b.getDropped());
+    assertEquals(0, b.getPendingSpans());
+    assertFalse(append(b, 0, "third"));
+  }
+
+  @Test
+  public void testExporter() throws InterruptedException {
+    final FakeSender s = new FakeSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            null,
+            s,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .stagingBufferBytes(1024 * 1024));
+    for (int i = 0; i < 10; ++i) {
+      assertEquals(
+          SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, i * 10 + 1)));
+    }
+    await(s, 100);
+    assertEquals(100, s.getLines().size());
+    exporter.shutdown();
+    final ExporterMetrics.Snapshot m = exporter.getMetrics();
+    assertEquals(1024 * 1024, m.getStagingCapacityBytes());
+    assertEquals(0, m.getStagingUsedBytes());
+    assertEquals(0, m.getStagingDropped());
+    assertEquals(100, s.spans);
+  }
+}
@@ -0,0 +1,112 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.wavefront.sdk.common.Pair;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.trace.AttributeValue;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestTagPolicy {
+  @Test
+  public void testAllowAndDeny() {
+    final TagPolicy p =
+        TagPolicy.newBuilder().allow("http.*", "db.type").deny("http.user_agent").build();
+    assertEquals(TagPolicy.Action.KEEP, p.action("http.method"));
+    assertEquals(TagPolicy.Action.KEEP, p.action("db.type"));
+    assertEquals(TagPolicy.Action.DROP, p.action("db.statement"));
+    assertEquals(TagPolicy.Action.DROP, p.action("http.user_agent"));
+    assertEquals(TagPolicy.Action.KEEP, TagPolicy.KEEP_ALL.action("anything"));
+  }
+
+  @Test
+  public void testValues() {
+    final TagPolicy p =
+        TagPolicy.newBuilder().maxValueLength(5).normalizeUrls("http.url").build();
+    assertEquals("abcde", p.value("k", AttributeValue.stringAttributeValue("abcdefgh")));
+    assertEquals("true", p.value("k", AttributeValue.booleanAttributeValue(true)));
+    assertEquals("42", p.value("k", AttributeValue.longAttributeValue(42)));
+    assertEquals("1.5", p.value("k", AttributeValue.doubleAttributeValue(1.5)));
+    // Converted numbers come from the cache
+    assertSame(
+        p.value("k", AttributeValue.longAttributeValue(12345)),
+        p.value("k", AttributeValue.longAttributeValue(12345)));
+    assertNull(
+        TagPolicy.newBuilder()
+            .deny("k")
+            .build()
+            .value("k", AttributeValue.stringAttributeValue("v")));
+    // Surrogate pairs are never split
+    assertEquals("ab", TagPolicy.truncate("ab\ud83d\ude00", 3));
+  }
+
+  @Test
+  public void testNormalizeUrl() {
+    assertEquals("/users/{id}/orders", TagPolicy.normalizeUrl("/users/1234/orders?page=2"));
+    assertEquals(
+        "http://host:8080/api/v2/items/{id}",
+        TagPolicy.normalizeUrl(
+            "http://host:8080/api/v2/items/3f2504e0-4f89-11d3-9a0c-0305e82c3301#top"));
+    assertEquals("/a/{id}/", TagPolicy.normalizeUrl("/a/deadbeef0123/"));
+    assertEquals("/a/deadbeef", TagPolicy.normalizeUrl("/a/deadbeef"));
+    assertEquals("https://host", TagPolicy.normalizeUrl("https://host?x=1"));
+    assertEquals("", TagPolicy.normalizeUrl(""));
+  }
+
+  @Test
+  public void testExporterAppliesPolicy() {
+    final Map<String, AttributeValue> attrs = new LinkedHashMap<>();
+    attrs.put("http.method", AttributeValue.stringAttributeValue("GET"));
+    attrs.put("http.url", AttributeValue.stringAttributeValue("/users/17?x=y"));
+    attrs.put("db.statement", AttributeValue.stringAttributeValue("select * from users"));
+    attrs.put("a", AttributeValue.stringAttributeValue("1"));
+    attrs.put("b", AttributeValue.stringAttributeValue("2"));
+    final TagPolicy policy =
+        TagPolicy.newBuilder().deny("db.*").normalizeUrls("http.url").maxTags(3).build();
+
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender, WavefrontSpanExporter.Builder.newBuilder().tagPolicy(policy));
+    final List<SpanData> spans = new ArrayList<>();
+    spans.add(TestSpans.span(1, 1, 0, attrs));
+    exporter.export(spans);
+    @SuppressWarnings("unchecked")
+    final List<Pair<String, String>> tags = (List<Pair<String, String>>) rs.spans.get(0)[8];
+    final Map<String, String> byKey = new LinkedHashMap<>();
+    for (final Pair<String, String> t : tags) {
+      byKey.put(t._1, t._2);
+    }
+    assertEquals("GET", byKey.get("http.method"));
+    assertEquals("/users/{id}", byKey.get("http.url"));
+    assertFalse(byKey.containsKey("db.statement"));
+    assertEquals("1", byKey.get("a"));
+    assertFalse(byKey.containsKey("b"));
+
+    // The native encoder must produce the same tags
+    final ByteBufferPool pool = new ByteBufferPool(1024, 4);
+    final EncodedBatch lines = new EncodedBatch(pool);
+    final EncodedBatch logs = new EncodedBatch(pool);
+    new SpanLineEncoder("host", "app", "svc", policy)
+        .encode(TestSpans.span(1, 1, 0, attrs), lines, logs);
+    final ByteBuffer bb = ByteBuffer.allocate(lines.size());
+    lines.copyTo(bb);
+    final String line = new String(bb.array(), StandardCharsets.UTF_8);
+    assertTrue(
+        line.contains(" \"http.method\"=\"GET\" \"http.url\"=\"/users/{id}\" \"a\"=\"1\" "));
+    assertFalse(line.contains("db.statement"));
+    assertFalse(line.contains("\"b\""));
+    lines.release();
+    logs.release();
+  }
+}
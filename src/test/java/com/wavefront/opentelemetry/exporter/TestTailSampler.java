@@ -0,0 +1,178 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class TestTailSampler {
+  private static final long SECOND = 1000000000L;
+
+  private static SpanData span(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final long durationMillis,
+      final Status status) {
+    final long now = System.currentTimeMillis() * 1000000;
+    return SpanData.newBuilder()
+        .setName("span-" + spanId)
+        .setKind(Span.Kind.SERVER)
+        .setTraceId(new TraceId(0, traceId))
+        .setSpanId(new SpanId(spanId))
+        .setParentSpanId(parentId != 0 ? new SpanId(parentId) : SpanId.getInvalid())
+        .setAttributes(
+            Collections.singletonMap("http.method", AttributeValue.stringAttributeValue("GET")))
+        .setStartEpochNanos(now)
+        .setEndEpochNanos(now + durationMillis * 1000000)
+        .setStatus(status)
+        .build();
+  }
+
+  /** A trace with a root span and one child. */
+  private static List<SpanData> trace(
+      final long traceId, final long durationMillis, final Status status) {
+    final List<SpanData> spans = new ArrayList<>();
+    spans.add(span(traceId, traceId * 10 + 1, traceId * 10, durationMillis, status));
+    spans.add(span(traceId, traceId * 10, 0, 1, Status.OK));
+    return spans;
+  }
+
+  private static Set<TraceId> traceIds(final List<SpanData> spans) {
+    final Set<TraceId> result = new HashSet<>();
+    for (final SpanData s : spans) {
+      result.add(s.getTraceId());
+    }
+    return result;
+  }
+
+  @Test
+  public void testRules() {
+    // Only one token, so only one of the ordinary traces can be kept
+    final TailSampler sampler = new TailSampler(30000, 1 << 20, 500, 0.001);
+    final List<SpanData> spans = new ArrayList<>();
+    spans.addAll(trace(1, 1, Status.INTERNAL));
+    spans.addAll(trace(2, 600, Status.OK));
+    spans.addAll(trace(3, 1, Status.OK));
+    spans.addAll(trace(4, 1, Status.OK));
+    assertTrue(sampler.add(spans, new ArrayList<>()).isEmpty());
+    assertEquals(8, sampler.getBufferedSpans());
+    assertEquals(4, sampler.getBufferedTraces());
+
+    final List<SpanData> kept = sampler.sweep(System.nanoTime() + 2 * SECOND, false);
+    assertEquals(6, kept.size());
+    final Set<TraceId> ids = traceIds(kept);
+    assertTrue(ids.contains(new TraceId(0, 1)));
+    assertTrue(ids.contains(new TraceId(0, 2)));
+    assertTrue(ids.contains(new TraceId(0, 3)) ^ ids.contains(new TraceId(0, 4)));
+    assertEquals(3, sampler.getTracesKept());
+    assertEquals(1, sampler.getTracesDropped());
+    assertEquals(0, sampler.getBufferedSpans());
+    assertEquals(0, sampler.getBufferedBytes());
+    assertEquals(4, sampler.getDecisionNanos().getCount());
+  }
+
+  @Test
+  public void testCompletion() {
+    final TailSampler sampler = new TailSampler(10000, 1 << 20, 0, 1000);
+    final long start = System.nanoTime();
+    // Trace 1 is complete, trace 2 is still waiting for its root
+    sampler.add(trace(1, 1, Status.OK), new ArrayList<>());
+    sampler.add(Collections.singletonList(span(2, 21, 20, 1, Status.OK)), new ArrayList<>());
+    assertTrue(sampler.sweep(start, false).isEmpty());
+    assertEquals(
+        Collections.singleton(new TraceId(0, 1)),
+        traceIds(sampler.sweep(start + 2 * SECOND, false)));
+    assertEquals(1, sampler.getBufferedTraces());
+
+    // Late spans of a decided trace follow the decision
+    final List<SpanData> late = Collections.singletonList(span(1, 12, 10, 1, Status.OK));
+    assertEquals(1, sampler.add(late, new ArrayList<>()).size());
+
+    // Trace 2 is decided once the decision wait is over
+    assertEquals(1, sampler.sweep(start + 11 * SECOND, false).size());
+    assertEquals(0, sampler.getBufferedTraces());
+  }
+
+  @Test
+  public void testMemoryCap() {
+    final TailSampler sampler = new TailSampler(30000, 1500, 0, 1000);
+    assertTrue(sampler.add(trace(1, 1, Status.OK), new ArrayList<>()).isEmpty());
+    // The next trace doesn't fit, so it's decided right away
+    final List<SpanData> kept = sampler.add(trace(2, 1, Status.INTERNAL), new ArrayList<>());
+    assertEquals(Collections.singleton(new TraceId(0, 2)), traceIds(kept));
+    assertTrue(sampler.getBufferedBytes() <= 1500);
+    assertEquals(1, sampler.getBufferedTraces());
+
+    // Trace 1 doesn't fit once another span arrives. The spans it had buffered are handed back
+    // apart from the new one.
+    final SpanData late = span(1, 12, 10, 1, Status.OK);
+    final List<SpanData> released = new ArrayList<>();
+    assertEquals(
+        Collections.singletonList(late),
+        sampler.add(Collections.singletonList(late), released));
+    assertEquals(trace(1, 1, Status.OK).size(), released.size());
+    assertEquals(Collections.singleton(new TraceId(0, 1)), traceIds(released));
+    assertEquals(0, sampler.getBufferedTraces());
+  }
+
+  @Test
+  public void testExporterSendsReleasedSeparately() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .tailSampling(true)
+                .tailSamplingMaxBytes(1500)
+                .tailSamplingTracesPerSecond(1000));
+    exporter.export(trace(1, 1, Status.OK));
+    assertTrue(rs.spans.isEmpty());
+    // The spans of the first export go out on their own, then this export's span fails
+    rs.failAfter = 2;
+    final List<SpanData> batch = Collections.singletonList(span(1, 12, 10, 1, Status.OK));
+    assertEquals(SpanExporter.ResultCode.FAILED_RETRYABLE, exporter.export(batch));
+    assertEquals(2, rs.spans.size());
+    // Only this export's span is sent again
+    rs.failAfter = Integer.MAX_VALUE;
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(batch));
+    assertEquals(3, rs.spans.size());
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testExporterSamples() {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .tailSampling(true)
+                .tailSamplingTracesPerSecond(0.001));
+    final List<SpanData> spans = new ArrayList<>();
+    spans.addAll(trace(1, 1, Status.OK));
+    spans.addAll(trace(2, 1, Status.OK));
+    spans.addAll(trace(3, 1, Status.UNKNOWN));
+    exporter.export(spans);
+    assertTrue(rs.spans.isEmpty());
+    // Shutting down decides on everything still buffered
+    exporter.shutdown();
+    assertEquals(4, rs.spans.size());
+    final ExporterMetrics.Snapshot s = exporter.getMetrics();
+    assertEquals(2, s.getTracesKept());
+    assertEquals(1, s.getTracesDropped());
+    assertEquals(4, s.getSpansExported());
+  }
+}
@@ -0,0 +1,146 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.wavefront.sdk.common.Pair;
+import io.opentelemetry.sdk.trace.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.AttributeValue;
+import io.opentelemetry.trace.Span;
+import io.opentelemetry.trace.SpanId;
+import io.opentelemetry.trace.Status;
+import io.opentelemetry.trace.TraceId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class TestTraceGraph {
+  private final SpanNamer namer = new SpanNamer(SpanNamer.DEFAULT_TEMPLATE, 100);
+
+  private static SpanData span(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final long startMillis,
+      final long endMillis) {
+    return SpanData.newBuilder()
+        .setName("span-" + spanId)
+        .setKind(Span.Kind.SERVER)
+        .setTraceId(new TraceId(0, traceId))
+        .setSpanId(new SpanId(spanId))
+        .setParentSpanId(new SpanId(parentId))
+        .setStartEpochNanos(startMillis * 1000000)
+        .setEndEpochNanos(endMillis * 1000000)
+        .setStatus(Status.OK)
+        .build();
+  }
+
+  @Test
+  public void testSummary() {
+    final TraceGraph graph = new TraceGraph(1000, 60000, namer);
+    // 1 -> 2 -> 4
+    //   -> 3
+    // Children end first, so they're exported in an earlier batch
+    graph.record(Arrays.asList(span(1, 4, 2, 120, 180), span(1, 3, 1, 110, 150)));
+    graph.record(Arrays.asList(span(1, 2, 1, 105, 190)));
+    assertNull(graph.summary(span(1, 2, 1, 105, 190)));
+    final SpanData root = span(1, 1, 0, 100, 200);
+    graph.record(Collections.singletonList(root));
+    final Map<String, AttributeValue> summary = graph.summary(root);
+    assertEquals(4, summary.get(TraceGraph.SPANS_TAG).getLongValue());
+    assertEquals(100, summary.get(TraceGraph.DURATION_TAG).getLongValue());
+    assertEquals(
+        "span-1 > span-2 > span-4",
+        summary.get(TraceGraph.CRITICAL_PATH_TAG).getStringValue());
+    assertEquals(4, graph.getSpans());
+    assertEquals(1, graph.getTraces());
+    assertEquals(1, graph.getSummaries());
+  }
+
+  @Test
+  public void testManyLocalRoots() {
+    final TraceGraph graph = new TraceGraph(10000, 60000, namer);
+    // Consumers of one message each, all children of a span in another process
+    for (int i = 1; i <= 200; ++i) {
+      final long rootId = i * 10;
+      final SpanData child = span(1, rootId + 1, rootId, 100, 150);
+      graph.record(Arrays.asList(child, child));
+      final SpanData root =
+          SpanData.newBuilder()
+              .setName("span-" + rootId)
+              .setKind(Span.Kind.CONSUMER)
+              .setTraceId(new TraceId(0, 1))
+              .setSpanId(new SpanId(rootId))
+              .setParentSpanId(new SpanId(9999))
+              .setHasRemoteParent(true)
+              .setStartEpochNanos(100000000)
+              .setEndEpochNanos(200000000)
+              .setStatus(Status.OK)
+              .build();
+      graph.record(Collections.singletonList(root));
+      final Map<String, AttributeValue> summary = graph.summary(root);
+      // The child sent twice counts once
+      assertEquals(2, summary.get(TraceGraph.SPANS_TAG).getLongValue());
+      assertEquals(
+          "span-" + rootId + " > span-" + (rootId + 1),
+          summary.get(TraceGraph.CRITICAL_PATH_TAG).getStringValue());
+    }
+    assertEquals(400, graph.getSpans());
+    assertEquals(200, graph.getSummaries());
+  }
+
+  @Test
+  public void testOverflow() {
+    final TraceGraph graph = new TraceGraph(2, 60000, namer);
+    graph.record(Arrays.asList(span(1, 2, 1, 100, 110), span(1, 3, 1, 100, 120)));
+    final SpanData root = span(1, 1, 0, 100, 200);
+    graph.record(Collections.singletonList(root));
+    // The trace is incomplete, so it's not summarized
+    assertNull(graph.summary(root));
+    assertEquals(1, graph.getOverflow());
+    assertEquals(2, graph.getSpans());
+  }
+
+  @Test
+  public void testSweep() {
+    final TraceGraph graph = new TraceGraph(1000, 10, namer);
+    final SpanData root = span(1, 1, 0, 100, 200);
+    graph.record(Arrays.asList(span(1, 2, 1, 100, 110), root));
+    graph.sweep(System.nanoTime() - 1000000000L);
+    assertEquals(1, graph.getTraces());
+    graph.sweep(System.nanoTime() + 1000000000L);
+    assertEquals(0, graph.getTraces());
+    assertEquals(0, graph.getSpans());
+    assertNull(graph.summary(root));
+  }
+
+  @Test
+  public void testExporter() throws InterruptedException {
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender, WavefrontSpanExporter.Builder.newBuilder().traceSummaries(true));
+    assertEquals(
+        SpanExporter.ResultCode.SUCCESS,
+        exporter.export(Collections.singletonList(TestSpans.span(1, 2, 1))));
+    assertEquals(
+        SpanExporter.ResultCode.SUCCESS,
+        exporter.export(Arrays.asList(TestSpans.span(1, 1, 0), TestSpans.span(2, 3, 4))));
+    assertTrue(rs.awaitSpans(3, 10000));
+    exporter.shutdown();
+
+    // Not the last span sent, so its tags must not have been overwritten by the next span's
+    final Object[] root = rs.spans.get(1);
+    assertEquals("span-1", root[0]);
+    assertEquals(Collections.emptyList(), root[6]);
+    @SuppressWarnings("unchecked")
+    final List<Pair<String, String>> tags = (List<Pair<String, String>>) root[8];
+    assertTrue(tags.contains(new Pair<>(TraceGraph.SPANS_TAG, "2")));
+    assertTrue(tags.contains(new Pair<>(TraceGraph.CRITICAL_PATH_TAG, "span-1 > span-2")));
+    assertEquals(1, exporter.getMetrics().getTraceSummaries());
+  }
+}
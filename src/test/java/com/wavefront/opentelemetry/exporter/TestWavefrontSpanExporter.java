@@ -1,10 +1,13 @@
 package com.wavefront.opentelemetry.exporter;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import com.wavefront.sdk.entities.tracing.SpanLog;
 import io.opentelemetry.auto.exportersupport.ConfigProvider;
 import io.opentelemetry.sdk.trace.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.trace.AttributeValue;
 import io.opentelemetry.trace.Span;
 import io.opentelemetry.trace.SpanId;
 import io.opentelemetry.trace.Status;
@@ -12,9 +15,14 @@ import io.opentelemetry.trace.TraceId;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,10 +30,14 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import org.junit.Test;
 
 public class TestWavefrontSpanExporter {
+  // Measured at about 300 bytes per span with a sender that does nothing, plus some headroom
+  private static final long MAX_BYTES_PER_SPAN = 384;
+
   private TestConfig createDefaultConfig() {
     final int tracingPort = getFreePort(50000);
     final int metricPort = getFreePort(2878);
@@ -76,6 +88,46 @@ public class TestWavefrontSpanExporter {
     return list;
   }
 
+  /** Delivers the first few lines of the first batch it's sent, then fails. */
+  private static class MidBatchFailingTransport implements SpanTransport {
+    private static final int DELIVERED = 4;
+
+    final List<String> lines = new ArrayList<>();
+
+    boolean failed;
+
+    @Override
+    public synchronized void send(final EncodedBatch spans, final EncodedBatch spanLogs)
+        throws IOException {
+      final ByteBuffer bb = ByteBuffer.allocate(spans.size());
+      spans.copyTo(bb);
+      final String[] l = new String(bb.array(), StandardCharsets.UTF_8).split("\n");
+      if (failed) {
+        lines.addAll(Arrays.asList(l));
+        return;
+      }
+      failed = true;
+      int bytes = 0;
+      for (int i = 0; i < DELIVERED; ++i) {
+        lines.add(l[i]);
+        bytes += l[i].length() + 1;
+      }
+      // Like the real transports, drop what was delivered before failing
+      spans.skip(bytes, DELIVERED);
+      throw new IOException("Connection reset");
+    }
+
+    synchronized List<String> getLines() {
+      return new ArrayList<>(lines);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  }
+
   private int getFreePort(final int start) {
     int port = start;
     for (; ; ++port) {
@@ -87,6 +139,42 @@ public class TestWavefrontSpanExporter {
     }
   }
 
+  @Test
+  public void testSpanLogs() {
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            new RecordingSender().sender,
+            WavefrontSpanExporter.Builder.newBuilder().maxSpanLogs(2).maxSpanLogValueLength(4));
+    final List<SpanData.TimedEvent> events = new ArrayList<>();
+    for (int i = 1; i <= 3; ++i) {
+      events.add(
+          SpanData.TimedEvent.create(
+              1500000000000000000L + i * 1000000,
+              "event",
+              Collections.singletonMap(
+                  "message", AttributeValue.stringAttributeValue("message " + i))));
+    }
+    final SpanData span =
+        SpanData.newBuilder()
+            .setName("span")
+            .setKind(Span.Kind.SERVER)
+            .setTraceId(new TraceId(1, 2))
+            .setSpanId(new SpanId(3))
+            .setParentSpanId(SpanId.getInvalid())
+            .setTimedEvents(events)
+            .setStartEpochNanos(1500000000000000000L)
+            .setEndEpochNanos(1500000001000000000L)
+            .setStatus(Status.OK)
+            .build();
+    final List<SpanLog> logs = exporter.spanLogs(span);
+    assertEquals(2, logs.size());
+    // Each log carries its own event's timestamp, in microseconds
+    assertEquals(1500000000001000L, logs.get(0).getTimestamp());
+    assertEquals(1500000000002000L, logs.get(1).getTimestamp());
+    assertEquals("mess", logs.get(0).getFields().get("message"));
+    assertTrue(exporter.spanLogs(TestSpans.span(1, 1, 0)).isEmpty());
+  }
+
   @Test
   public void testHex() {
     assertEquals(2, WavefrontSpanExporter.parseHex("2"));
@@ -96,6 +184,80 @@ public class TestWavefrontSpanExporter {
     assertEquals(0x7fffffffffffffffL, WavefrontSpanExporter.parseHex("7fffffffffffffff"));
   }
 
+  @Test
+  public void testIdConversion() {
+    final String[] traceIds = {
+      "0123456789abcdef0000000000000000",
+      "ffffffffffffffff8000000000000001",
+      "00000000000000000000000000000002",
+      "fedcba98765432100123456789abcdef"
+    };
+    final IdConverter ids = new IdConverter(16);
+    for (final String s : traceIds) {
+      final TraceId tid = TraceId.fromLowerBase16(s, 0);
+      assertEquals(WavefrontSpanExporter.makeUUID(s), IdConverter.toUUID(tid));
+      assertEquals(WavefrontSpanExporter.makeUUID(s), ids.traceId(tid));
+      assertEquals(WavefrontSpanExporter.makeUUID(s), ids.traceId(tid));
+
+      final String half = s.substring(16);
+      final SpanId sid = SpanId.fromLowerBase16(half, 0);
+      assertEquals(WavefrontSpanExporter.makeUUID(half), IdConverter.toUUID(sid));
+      assertEquals(WavefrontSpanExporter.makeUUID(half), ids.spanId(sid));
+      assertEquals(WavefrontSpanExporter.makeUUID(half), ids.spanId(sid));
+    }
+  }
+
+  @Test
+  public void testParallelConversion() {
+    final RecordingSender rs = new RecordingSender();
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final WavefrontSpanExporter e =
+          new WavefrontSpanExporter(
+              rs.sender,
+              WavefrontSpanExporter.Builder.newBuilder()
+                  .parallelConversion(pool)
+                  .parallelThreshold(100));
+      assertEquals(SpanExporter.ResultCode.SUCCESS, e.export(TestSpans.batch(1000, 1)));
+      assertEquals(1000, rs.spans.size());
+      for (int i = 0; i < 1000; ++i) {
+        assertEquals("span-" + (i + 1), rs.spans.get(i)[0]);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testAllocationPerSpan() {
+    final java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (!(mx instanceof com.sun.management.ThreadMXBean)) {
+      return; // Allocation accounting not available on this JVM
+    }
+    final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean) mx;
+    if (!tmx.isThreadAllocatedMemorySupported() || !tmx.isThreadAllocatedMemoryEnabled()) {
+      return;
+    }
+    final WavefrontSpanExporter e =
+        new WavefrontSpanExporter(new NullSender(), WavefrontSpanExporter.Builder.newBuilder());
+    final List<SpanData> batch = TestSpans.batch(1000, 1);
+
+    // Warm up so that caches are populated and the JIT has done its thing
+    for (int i = 0; i < 20; ++i) {
+      e.export(batch);
+    }
+    final long tid = Thread.currentThread().getId();
+    final int rounds = 20;
+    final long before = tmx.getThreadAllocatedBytes(tid);
+    for (int i = 0; i < rounds; ++i) {
+      e.export(batch);
+    }
+    final long bytesPerSpan = (tmx.getThreadAllocatedBytes(tid) - before) / (rounds * 1000L);
+    assertTrue(
+        "Allocation per span regressed: " + bytesPerSpan + " bytes",
+        bytesPerSpan <= MAX_BYTES_PER_SPAN);
+  }
+
   @Test
   public void testCreate() {
     final SpanExporter e = createDefault();
@@ -125,6 +287,54 @@ public class TestWavefrontSpanExporter {
     e.export(createTestSpans());
   }
 
+  @Test
+  public void testNativeEncodingToProxy() throws IOException, InterruptedException {
+    final TestConfig config = createDefaultConfig();
+    config.put("wavefront.nativeencoding", "true");
+    final SpanExporter e = createDefault(config);
+    final MockServer ms = new MockServer(config.getInt("wavefront.traceport", 0), 2);
+    final Thread t = new Thread(ms);
+    t.start();
+    assertEquals(SpanExporter.ResultCode.SUCCESS, e.export(createTestSpans()));
+    final String first = ms.poll(10000);
+    final String second = ms.poll(10000);
+    assertTrue(first.startsWith("\"client.span\" source="));
+    assertTrue(first.contains(" traceId=01234567-89ab-cdef-0000-000000000000"));
+    assertTrue(first.contains(" \"application\"=\"test-application\""));
+    assertTrue(second.startsWith("\"server.span\" source="));
+    assertTrue(second.contains(" spanId=00000000-0000-0000-1111-111111111111"));
+    e.shutdown();
+  }
+
+  @Test
+  public void testOnlyUndeliveredSpansAreRetried() throws InterruptedException {
+    final MidBatchFailingTransport t = new MidBatchFailingTransport();
+    final WavefrontSpanExporter e =
+        new WavefrontSpanExporter(
+            null,
+            t,
+            WavefrontSpanExporter.Builder.newBuilder()
+                .host("host")
+                .application("app")
+                .service("svc")
+                .retryQueue(true)
+                .retryInitialBackoffMillis(10));
+    try {
+      assertEquals(SpanExporter.ResultCode.SUCCESS, e.export(TestSpans.batch(10, 1)));
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (t.getLines().size() < 10 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      final List<String> lines = t.getLines();
+      assertEquals(10, lines.size());
+      for (int i = 0; i < 10; ++i) {
+        assertTrue(lines.get(i), lines.get(i).startsWith("\"span-" + (i + 1) + "\" "));
+      }
+    } finally {
+      e.shutdown();
+    }
+  }
+
   private static class MockServer implements Runnable {
     private final ServerSocket socket;
 
@@ -0,0 +1,182 @@
+package com.wavefront.opentelemetry.exporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class TestWorkers {
+  private static List<WavefrontSpanExporter> createExporters(
+      final int count,
+      final RecordingSender rs,
+      final ExecutorService executor,
+      final ScheduledExecutorService scheduler) {
+    final List<WavefrontSpanExporter> exporters = new ArrayList<>();
+    for (int i = 0; i < count; ++i) {
+      exporters.add(
+          new WavefrontSpanExporter(
+              rs.sender,
+              WavefrontSpanExporter.Builder.newBuilder()
+                  .asyncQueueSize(1024)
+                  .drainThreads(4)
+                  .adaptiveFlush(true)
+                  .retryQueue(true)
+                  .executor(executor)
+                  .scheduler(scheduler)));
+    }
+    return exporters;
+  }
+
+  @Test
+  public void testThreadCountStaysFlat() throws InterruptedException {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      final RecordingSender rs = new RecordingSender();
+      // Warm up so that the shared threads exist before counting
+      final List<WavefrontSpanExporter> first = createExporters(5, rs, executor, scheduler);
+      for (int i = 0; i < first.size(); ++i) {
+        first.get(i).export(TestSpans.batch(10, i * 10 + 1));
+      }
+      assertTrue(rs.awaitSpans(50, 10000));
+      final int before = threads.getThreadCount();
+
+      final List<WavefrontSpanExporter> more = createExporters(200, rs, executor, scheduler);
+      for (int i = 0; i < more.size(); ++i) {
+        assertEquals(
+            SpanExporter.ResultCode.SUCCESS,
+            more.get(i).export(TestSpans.batch(10, 1000 + i * 10)));
+      }
+      assertTrue(rs.awaitSpans(2050, 10000));
+      // A few threads of the JVM's own may come and go, but nothing per exporter
+      assertTrue(threads.getThreadCount() - before < 10);
+
+      for (final WavefrontSpanExporter e : first) {
+        e.shutdown();
+      }
+      for (final WavefrontSpanExporter e : more) {
+        e.shutdown();
+      }
+      assertEquals(2050, rs.spans.size());
+      // Supplied executors are left running
+      executor.execute(() -> {});
+    } finally {
+      executor.shutdown();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testVirtualThreads() throws InterruptedException {
+    // Falls back to the default pool on JVMs without virtual threads
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder().asyncQueueSize(1024).virtualThreads(true));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    assertTrue(rs.awaitSpans(10, 10000));
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testRejectedTasksRunOnCaller() {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    final RecordingSender rs = new RecordingSender();
+    final WavefrontSpanExporter exporter =
+        new WavefrontSpanExporter(
+            rs.sender,
+            WavefrontSpanExporter.Builder.newBuilder().asyncQueueSize(1024).executor(executor));
+    assertEquals(SpanExporter.ResultCode.SUCCESS, exporter.export(TestSpans.batch(10, 1)));
+    assertEquals(10, rs.spans.size());
+    exporter.shutdown();
+  }
+
+  @Test
+  public void testRepeatingCancel() throws InterruptedException {
+    final Workers workers = Workers.dedicated();
+    final AtomicInteger runs = new AtomicInteger();
+    final Workers.Repeating task = workers.repeat(runs::incrementAndGet, 5);
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (runs.get() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    task.cancel();
+    final int n = runs.get();
+    assertTrue(n >= 3);
+    Thread.sleep(50);
+    assertEquals(n, runs.get());
+    workers.shutdown();
+  }
+
+  @Test
+  public void testRejectedTimerTasksDontRunOnScheduler() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      final Thread schedulerThread = scheduler.submit(Thread::currentThread).get();
+      final Workers workers = Workers.create(executor, scheduler, false);
+      final CompletableFuture<Thread> ran = new CompletableFuture<>();
+      workers.schedule(() -> ran.complete(Thread.currentThread()), 1);
+      final Thread t = ran.get(10, TimeUnit.SECONDS);
+      assertNotSame(schedulerThread, t);
+      assertTrue(t.getName(), t.getName().startsWith("wavefront-exporter-fallback-"));
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testDrainBacksOff() throws InterruptedException {
+    final Workers workers = Workers.dedicated();
+    final AtomicInteger failures = new AtomicInteger(2);
+    final AtomicInteger pending = new AtomicInteger();
+    final AtomicInteger steps = new AtomicInteger();
+    final Workers.Drain drain =
+        workers.drain(
+            () -> {
+              steps.incrementAndGet();
+              if (pending.get() == 0) {
+                return Workers.Step.DONE;
+              }
+              if (failures.getAndDecrement() > 0) {
+                return 50;
+              }
+              pending.decrementAndGet();
+              return 0;
+            });
+    pending.set(3);
+    drain.start();
+    // Asking again while backing off doesn't cut the backoff short
+    Thread.sleep(10);
+    drain.start();
+    assertEquals(3, pending.get());
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(0, pending.get());
+    drain.close();
+    final int n = steps.get();
+    pending.set(1);
+    drain.start();
+    Thread.sleep(50);
+    assertEquals(n, steps.get());
+    workers.shutdown();
+  }
+}